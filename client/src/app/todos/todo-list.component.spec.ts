@@ -97,6 +97,19 @@ describe('Todo list', () => {
   it('contains an category called <software design>', () => {
     expect(todoList.serverFilteredTodos.some((todo: Todo) => todo.category === 'software design')).toBe(true);
   })
+  it('asks the server to filter by everything in the GUI', () => {
+    const getTodosSpy = spyOn(TestBed.inject(TodoService), 'getTodos').and.callThrough();
+    todoList.todoStatus = true;
+    todoList.todoCategory = 'homework';
+    todoList.todoBody = 'z';
+    todoList.limit = 2;
+
+    todoList.getTodosFromServer();
+
+    expect(getTodosSpy).toHaveBeenCalledWith({
+      owner: undefined, status: true, category: 'homework', contains: 'z', limit: 2
+    });
+  })
 });
 
 /*
@@ -22,11 +22,10 @@ import { MatCardModule } from '@angular/material/card';
  * A component that displays a list of todos, either as a grid
  * of cards or as a vertical list.
  *
- * The component supports local filtering by *ADD FILTERS HERE*,
- * and remote filtering (i.e., filtering by the server) by
- * owner. These choices are fairly arbitrary here,
- * but in "real" projects you want to think about where it
- * makes the most sense to do the filtering.
+ * The component supports remote filtering (i.e., filtering by the
+ * server) by owner, status, category, body and limit, so the
+ * server only sends the todos we're going to show, and local
+ * sorting of those todos.
  */
 @Component({
   selector: 'app-todo-list-component',
@@ -66,17 +65,20 @@ export class TodoListComponent implements OnInit, OnDestroy {
   }
 
   /**
-   * Get the todos from the server, filtered by the owner specified
-   * in the GUI.
+   * Get the todos from the server, filtered by the owner, status,
+   * category, body and limit specified in the GUI.
    */
   getTodosFromServer(): void {
     // A todo-list-component is paying attention to todoService.getTodos
     // (which is an Observable<Todo[]>)
     // (for more on Observable, see: https://reactivex.io/documentation/observable.html)
-    // and we are specifically watching for Owner whenever the Todo[] gets updated
+    // and we are specifically watching for the filters whenever the Todo[] gets updated
     this.todoService.getTodos({
       owner: this.todoOwner,
-
+      status: this.todoStatus,
+      category: this.todoCategory,
+      contains: this.todoBody,
+      limit: this.limit,
     }).pipe(
       takeUntil(this.ngUnsubscribe)
     ).subscribe({
@@ -85,9 +87,7 @@ export class TodoListComponent implements OnInit, OnDestroy {
       next: (returnedTodos) => {
         // First, update the array of serverFilteredTodos to be the Todo[] in the observable
         this.serverFilteredTodos = returnedTodos;
-        // Then update the filters for our client-side filtering as described in this method
-        this.updateFilter();
-        this.serverFilteredTodos = this.filteredTodos;
+        // Then sort them the way the GUI asks for
         this.updateSorting();
       },
       // If we observe an error in that Observable, put that message in a snackbar so we can learn more
@@ -108,15 +108,6 @@ export class TodoListComponent implements OnInit, OnDestroy {
     });
   }
 
-  /**
-   * Called when the filtering information is changed in the GUI so we can
-   * get an updated list of `filteredTodos`.
-   */
-  public updateFilter(): void {
-    this.filteredTodos = this.todoService.filterTodos(
-      this.serverFilteredTodos, {body: this.todoBody, status: this.todoStatus, category: this.todoCategory, limit: this.limit});
-  }
-
   public updateSorting(){
     this.filteredTodos = this.todoService.sortTodos(this.serverFilteredTodos,this.todoSortBy)
   }
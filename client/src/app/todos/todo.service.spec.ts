@@ -135,6 +135,25 @@ describe('TodoService', () => {
           .toHaveBeenCalledWith(todoService.todoUrl, { params: new HttpParams().set('owner', 'Blanche') });
       });
     });
+
+    it('correctly calls api/todos with filter parameters \'status\', \'category\', \'contains\', and \'limit\'', () => {
+      const mockedMethod = spyOn(httpClient, 'get').and.returnValue(of(testTodos));
+
+      todoService.getTodos({ status: false, category: 'groceries', contains: 'pizza', limit: 2 }).subscribe(() => {
+        const [url, options] = mockedMethod.calls.argsFor(0);
+        const calledHttpParams: HttpParams = (options.params) as HttpParams;
+        expect(mockedMethod)
+          .withContext('one call')
+          .toHaveBeenCalledTimes(1);
+        expect(url)
+          .withContext('talks to the correct endpoint')
+          .toEqual(todoService.todoUrl);
+        expect(calledHttpParams.get('status')).toEqual('false');
+        expect(calledHttpParams.get('category')).toEqual('groceries');
+        expect(calledHttpParams.get('contains')).toEqual('pizza');
+        expect(calledHttpParams.get('limit')).toEqual('2');
+      });
+    });
   });
 
 
@@ -16,11 +16,15 @@ export class TodoService {
   readonly todoUrl: string = `${environment.apiUrl}todos`;
 
   private readonly ownerKey = 'owner';
+  private readonly statusKey = 'status';
+  private readonly categoryKey = 'category';
+  private readonly containsKey = 'contains';
+  private readonly limitKey = 'limit';
 
   constructor(private httpClient: HttpClient) {
   }
 
-  getTodos(filters?: { owner?: string }): Observable<Todo[]> {
+  getTodos(filters?: { owner?: string, status?: boolean, category?: string, contains?: string, limit?: number }): Observable<Todo[]> {
     // `HttpParams` is essentially just a map used to hold key-value
     // pairs that are then encoded as "?key1=value1&key2=value2&…" in
     // the URL when we make the call to `.get()` below.
@@ -29,6 +33,18 @@ export class TodoService {
       if (filters.owner) {
         httpParams = httpParams.set(this.ownerKey, filters.owner)
       }
+      if (filters.status !== undefined) {
+        httpParams = httpParams.set(this.statusKey, filters.status.toString());
+      }
+      if (filters.category) {
+        httpParams = httpParams.set(this.categoryKey, filters.category);
+      }
+      if (filters.contains) {
+        httpParams = httpParams.set(this.containsKey, filters.contains);
+      }
+      if (filters.limit) {
+        httpParams = httpParams.set(this.limitKey, filters.limit.toString());
+      }
     }
     // Send the HTTP GET request with the given URL and parameters.
     // That will return the desired `Observable<Todo[]>`
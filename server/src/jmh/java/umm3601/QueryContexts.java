@@ -0,0 +1,50 @@
+package umm3601;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import io.javalin.http.Context;
+import io.javalin.validation.Validator;
+
+/**
+ * Contexts for benchmarking the code that reads query parameters.
+ *
+ * These are Mockito mocks, like the contexts in the controller tests, set
+ * up to answer the query parameter methods from a map. They're "stub only"
+ * (they don't remember their calls), so they can be called millions of
+ * times; the time they take is part of every result, but it's the same
+ * from one commit to the next, so it doesn't hide changes.
+ */
+public final class QueryContexts {
+
+  private QueryContexts() {
+  }
+
+  /**
+   * @param query the query parameters, by name
+   * @return a context whose request has those query parameters
+   */
+  @SuppressWarnings("unchecked")
+  public static Context withQuery(Map<String, String> query) {
+    Map<String, List<String>> queryParamMap = query.entrySet().stream()
+      .collect(Collectors.toMap(Map.Entry::getKey, entry -> List.of(entry.getValue())));
+
+    Context ctx = mock(Context.class, withSettings().stubOnly());
+    when(ctx.queryParamMap()).thenReturn(queryParamMap);
+    when(ctx.queryParam(anyString())).thenAnswer(invocation -> query.get(invocation.getArgument(0, String.class)));
+    // Each call gets a new validator, as it would from Javalin, since
+    // `check` adds to the validator it's called on.
+    when(ctx.queryParamAsClass(anyString(), any(Class.class))).thenAnswer(invocation -> {
+      String key = invocation.getArgument(0, String.class);
+      return Validator.create(invocation.getArgument(1, Class.class), query.get(key), key);
+    });
+    return ctx;
+  }
+}
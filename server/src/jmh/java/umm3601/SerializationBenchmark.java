@@ -0,0 +1,90 @@
+package umm3601;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.javalin.json.JavalinJackson;
+import umm3601.todo.Todo;
+import umm3601.user.User;
+
+/**
+ * Benchmarks of turning lists of todos and users into JSON, the way the
+ * list handlers do (with Javalin's Jackson mapper), for lists of 10, 1,000
+ * and 100,000 of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+  private static final String[] OWNERS = { "Blanche", "Fry", "Barry", "Workman", "Dawn", "Roberta" };
+  private static final String[] CATEGORIES = { "software design", "groceries", "video games", "homework" };
+  private static final String[] COMPANIES = { "OHMNET", "IBM", "FRANSCENE", "UMM", "GEEKOLA" };
+  private static final String[] ROLES = { "admin", "editor", "viewer" };
+  private static final int MIN_AGE = 18;
+  private static final int AGE_RANGE = 60;
+  // The same lists every run, so runs can be compared.
+  private static final long SEED = 3601;
+
+  @Param({ "10", "1000", "100000" })
+  @SuppressWarnings("checkstyle:visibilitymodifier")
+  public int size;
+
+  private JavalinJackson jsonMapper;
+  private ArrayList<Todo> todos;
+  private ArrayList<User> users;
+
+  @Setup
+  public void setup() {
+    jsonMapper = new JavalinJackson();
+    Random random = new Random(SEED);
+    todos = new ArrayList<>(size);
+    users = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      Todo todo = new Todo();
+      todo._id = new ObjectId().toHexString();
+      todo.owner = OWNERS[random.nextInt(OWNERS.length)];
+      todo.status = random.nextBoolean();
+      todo.body = "Todo number " + i + " for " + todo.owner + ", which is about as long as most of them";
+      todo.category = CATEGORIES[random.nextInt(CATEGORIES.length)];
+      todos.add(todo);
+
+      User user = new User();
+      user._id = new ObjectId().toHexString();
+      user.name = OWNERS[random.nextInt(OWNERS.length)] + " " + i;
+      user.age = MIN_AGE + random.nextInt(AGE_RANGE);
+      user.company = COMPANIES[random.nextInt(COMPANIES.length)];
+      user.email = "user" + i + "@" + user.company.toLowerCase() + ".com";
+      user.avatar = "https://gravatar.com/avatar/" + Integer.toHexString(user.email.hashCode()) + "?d=identicon";
+      user.role = ROLES[random.nextInt(ROLES.length)];
+      users.add(user);
+    }
+  }
+
+  @Benchmark
+  public String serializeTodos() {
+    return jsonMapper.toJsonString(todos, todos.getClass());
+  }
+
+  @Benchmark
+  public String serializeUsers() {
+    return jsonMapper.toJsonString(users, users.getClass());
+  }
+}
@@ -0,0 +1,166 @@
+package umm3601;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+
+import umm3601.todo.LogTodoRepository;
+import umm3601.todo.MongoTodoRepository;
+import umm3601.todo.Todo;
+import umm3601.todo.TodoRepository;
+
+/**
+ * Benchmarks of the throughput of the todo storage: a local mongod (at
+ * `localhost:27017`) against the append-only logs of `LogTodoRepository`,
+ * for inserts (one at a time, from one thread and from `THREADS`, and in
+ * batches) and for reads (by ID, and a filtered, sorted page).
+ *
+ * Both only acknowledge a write once it's on disk: the log syncs before
+ * returning, and Mongo is asked for journaled writes. Run it with
+ * `./gradlew jmh -Pjmh.include=StorageBenchmark`.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageBenchmark {
+
+  private static final String[] OWNERS = { "Blanche", "Fry", "Barry", "Workman", "Dawn", "Roberta" };
+  private static final String[] CATEGORIES = { "software design", "groceries", "video games", "homework" };
+  // How many todos are there to read before the benchmarks start.
+  private static final int PRELOADED = 10_000;
+  private static final int BATCH_SIZE = 100;
+  private static final int PAGE_SIZE = 20;
+  private static final int THREADS = 8;
+
+  @Param({ "mongo", "log" })
+  @SuppressWarnings("checkstyle:visibilitymodifier")
+  public String storage;
+
+  private MongoClient mongoClient;
+  private Path directory;
+  private TodoRepository todoRepository;
+  private List<ObjectId> ids;
+
+  @Setup
+  public void setup() throws IOException {
+    if (storage.equals("mongo")) {
+      mongoClient = MongoClients.create();
+      MongoDatabase database = mongoClient.getDatabase("storageBenchmark").withWriteConcern(WriteConcern.JOURNALED);
+      database.drop();
+      todoRepository = new MongoTodoRepository(database);
+      IndexManager indexManager = new IndexManager(database);
+      todoRepository.declareIndexes(indexManager);
+      indexManager.reconcile();
+    } else {
+      directory = Files.createTempDirectory("storageBenchmark");
+      todoRepository = new LogTodoRepository(directory);
+    }
+
+    List<Todo> todos = new ArrayList<>(PRELOADED);
+    for (int i = 0; i < PRELOADED; i++) {
+      todos.add(newTodo());
+    }
+    for (int i = 0; i < PRELOADED; i += BATCH_SIZE) {
+      todoRepository.insertMany(todos.subList(i, i + BATCH_SIZE));
+    }
+    ids = todos.stream().map(todo -> new ObjectId(todo._id)).toList();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    if (mongoClient != null) {
+      mongoClient.getDatabase("storageBenchmark").drop();
+      mongoClient.close();
+    } else {
+      ((LogTodoRepository) todoRepository).close();
+      try (Stream<Path> files = Files.walk(directory)) {
+        for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+          Files.delete(file);
+        }
+      }
+    }
+  }
+
+  private static Todo newTodo() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    Todo todo = new Todo();
+    todo._id = new ObjectId().toHexString();
+    todo.owner = OWNERS[random.nextInt(OWNERS.length)];
+    todo.category = CATEGORIES[random.nextInt(CATEGORIES.length)];
+    todo.status = random.nextBoolean();
+    todo.body = "Benchmark todo " + random.nextInt();
+    return todo;
+  }
+
+  @Benchmark
+  public void insert() {
+    todoRepository.insert(newTodo());
+  }
+
+  // With several writers, the log's writers share flushes (group commit).
+  @Benchmark
+  @Threads(THREADS)
+  public void insertConcurrently() {
+    todoRepository.insert(newTodo());
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public Object insertBatch() {
+    List<Todo> batch = new ArrayList<>(BATCH_SIZE);
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      batch.add(newTodo());
+    }
+    return todoRepository.insertMany(batch);
+  }
+
+  @Benchmark
+  public Todo findById() {
+    return todoRepository.findById(ids.get(ThreadLocalRandom.current().nextInt(ids.size())));
+  }
+
+  @Benchmark
+  @Threads(THREADS)
+  public Todo findByIdConcurrently() {
+    return todoRepository.findById(ids.get(ThreadLocalRandom.current().nextInt(ids.size())));
+  }
+
+  @Benchmark
+  public List<Todo> findPage() {
+    String owner = OWNERS[ThreadLocalRandom.current().nextInt(OWNERS.length)];
+    return todoRepository.find(Filters.and(Filters.eq("owner", owner), Filters.eq("status", true)),
+      Sorts.ascending("category", "_id"), PAGE_SIZE);
+  }
+}
@@ -0,0 +1,94 @@
+package umm3601.todo;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.conversions.Bson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+
+import io.javalin.http.Context;
+import io.javalin.json.JavalinJackson;
+import io.javalin.validation.BodyValidator;
+import umm3601.QueryContexts;
+
+/**
+ * Benchmarks of the work `TodoController` does on every list request and
+ * every new todo: building the filter and sort from the query parameters,
+ * and checking a new todo.
+ *
+ * The controller is connected to a Mongo client that never connects (the
+ * driver only connects when it's first used), so no database is needed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TodoControllerBenchmark {
+
+  private static final String NEW_TODO =
+    "{\"owner\": \"Blanche\", \"status\": false, \"body\": \"In sunt ex non tempor cillum commodo\", "
+    + "\"category\": \"groceries\"}";
+
+  private MongoClient mongoClient;
+  private TodoController todoController;
+  private JavalinJackson jsonMapper;
+
+  // A request with every filter, and one with none.
+  private Context filteredCtx;
+  private Context unfilteredCtx;
+
+  @Setup
+  public void setup() {
+    mongoClient = MongoClients.create();
+    todoController = new TodoController(mongoClient.getDatabase("benchmark"));
+    jsonMapper = new JavalinJackson();
+    filteredCtx = QueryContexts.withQuery(Map.of(
+      TodoController.OWNER_KEY, "Blanche",
+      TodoController.STATUS_KEY, "false",
+      TodoController.CATEGORY_KEY, "groceries",
+      TodoController.CONTAINS_KEY, "tempor",
+      "sortby", "category",
+      TodoController.SORT_ORDER_KEY, "desc"));
+    unfilteredCtx = QueryContexts.withQuery(Map.of());
+  }
+
+  @TearDown
+  public void tearDown() {
+    mongoClient.close();
+  }
+
+  @Benchmark
+  public Bson constructFilter() {
+    return todoController.constructFilter(filteredCtx);
+  }
+
+  @Benchmark
+  public Bson constructEmptyFilter() {
+    return todoController.constructFilter(unfilteredCtx);
+  }
+
+  @Benchmark
+  public Bson constructSortingOrder() {
+    return todoController.constructSortingOrder(filteredCtx);
+  }
+
+  @Benchmark
+  public Todo validateNewTodo() {
+    return TodoController.validateNewTodo(new BodyValidator<>(NEW_TODO, Todo.class, jsonMapper)).get();
+  }
+}
@@ -0,0 +1,105 @@
+package umm3601.user;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.conversions.Bson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+
+import io.javalin.http.Context;
+import io.javalin.json.JavalinJackson;
+import io.javalin.validation.BodyValidator;
+import umm3601.QueryContexts;
+
+/**
+ * Benchmarks of the work `UserController` does on every list request and
+ * every new user: building the filter and sort from the query parameters,
+ * checking a new user, and generating its avatar.
+ *
+ * The controller is connected to a Mongo client that never connects (the
+ * driver only connects when it's first used), so no database is needed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserControllerBenchmark {
+
+  private static final String EMAIL = "kitty@ohmnet.com";
+  private static final String NEW_USER =
+    "{\"name\": \"Kitty Page\", \"age\": 37, \"company\": \"OHMNET\", \"email\": \"" + EMAIL + "\", "
+    + "\"role\": \"editor\"}";
+
+  private MongoClient mongoClient;
+  private UserController userController;
+  private JavalinJackson jsonMapper;
+
+  // A request with every filter, and one with none.
+  private Context filteredCtx;
+  private Context unfilteredCtx;
+
+  @Setup
+  public void setup() {
+    mongoClient = MongoClients.create();
+    userController = new UserController(mongoClient.getDatabase("benchmark"));
+    jsonMapper = new JavalinJackson();
+    filteredCtx = QueryContexts.withQuery(Map.of(
+      UserController.AGE_KEY, "37",
+      UserController.COMPANY_KEY, "OHM",
+      UserController.ROLE_KEY, "editor",
+      "sortby", "company",
+      UserController.SORT_ORDER_KEY, "desc"));
+    unfilteredCtx = QueryContexts.withQuery(Map.of());
+  }
+
+  @TearDown
+  public void tearDown() {
+    mongoClient.close();
+  }
+
+  @Benchmark
+  public Bson constructFilter() {
+    return userController.constructFilter(filteredCtx);
+  }
+
+  @Benchmark
+  public Bson constructEmptyFilter() {
+    return userController.constructFilter(unfilteredCtx);
+  }
+
+  @Benchmark
+  public Bson constructSortingOrder() {
+    return userController.constructSortingOrder(filteredCtx);
+  }
+
+  @Benchmark
+  public User validateNewUser() {
+    return UserController.validateNewUser(new BodyValidator<>(NEW_USER, User.class, jsonMapper)).get();
+  }
+
+  @Benchmark
+  public String md5() throws NoSuchAlgorithmException {
+    return userController.md5(EMAIL);
+  }
+
+  @Benchmark
+  public String generateAvatar() {
+    return userController.generateAvatar(EMAIL);
+  }
+}
@@ -0,0 +1,50 @@
+package umm3601;
+
+import java.time.Duration;
+import java.util.function.Consumer;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Starts the real server (both controllers, their caches, and the indexes
+ * they declare) in the current JVM, the way `Main` does, for the load
+ * tests. It's in the `umm3601` package so it can use the same
+ * package-private setup as `Main`.
+ *
+ * The environment variables `Main` reads to configure the controllers
+ * (`CACHE_SIZE`, `TODO_STREAM_BATCH_SIZE`, and so on) configure this server
+ * the same way, so a load test can be run against any configuration.
+ */
+public final class EmbeddedServer {
+
+  private EmbeddedServer() {
+  }
+
+  /**
+   * Connect to Mongo, let `seed` fill the database, and start the server
+   * on its usual port. The server stops when the JVM does.
+   *
+   * @param mongoAddr the address of the MongoDB server
+   * @param databaseName the database the server uses
+   * @param useVirtualThreads whether to handle requests on virtual threads
+   * @param seed what to do with the database before the server starts
+   * @return the database the server uses
+   */
+  public static MongoDatabase start(String mongoAddr, String databaseName, boolean useVirtualThreads,
+      Consumer<MongoDatabase> seed) {
+    CommandMonitor commandMonitor = new CommandMonitor(Duration.ofMillis(Long.parseLong(Main.getEnvOrDefault(
+      "SLOW_QUERY_MILLIS", String.valueOf(CommandMonitor.DEFAULT_SLOW_QUERY.toMillis())))));
+    MongoClient mongoClient = Server.configureDatabase(mongoAddr,
+      useVirtualThreads ? Integer.parseInt(Main.VIRTUAL_MONGO_POOL_SIZE) : Server.DEFAULT_MONGO_POOL_SIZE,
+      commandMonitor);
+    commandMonitor.explainWith(mongoClient);
+    MongoDatabase database = mongoClient.getDatabase(databaseName);
+
+    seed.accept(database);
+
+    Controller[] controllers = Main.getControllers(database, null, commandMonitor);
+    new Server(mongoClient, new IndexManager(database), controllers, useVirtualThreads).startServer();
+    return database;
+  }
+}
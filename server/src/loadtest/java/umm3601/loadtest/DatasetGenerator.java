@@ -0,0 +1,458 @@
+package umm3601.loadtest;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.random.RandomGenerator;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.InsertManyOptions;
+
+/**
+ * Generates as many users and todos as you like, the same ones every time
+ * for the same seed, and either loads them straight into Mongo or writes
+ * them as newline-delimited JSON (which `mongoimport` reads as is).
+ *
+ *     ./gradlew generateDataset --args="--users=1000000 --todos=10000000 --database=dev"
+ *     ./gradlew generateDataset --args="--users=1000000 --todos=10000000 --ndjson=build/dataset"
+ *
+ * Options (all `--name=value`, all optional):
+ *
+ * - `users` (1000) and `todos` (10000): how many of each.
+ * - `seed` (3601): the same seed gives the same documents, IDs and all.
+ * - `owners` (500) and `companies` (5000): how many different owners and
+ *   companies there are.
+ * - `mongo` (localhost) and `database` (dev): where to load them; the
+ *   `users` and `todos` collections there are replaced.
+ * - `ndjson`: a directory to write `users.ndjson` and `todos.ndjson` to
+ *   instead.
+ * - `threads` (the number of processors): how many threads generate (and
+ *   load) them.
+ *
+ * The values are skewed the way real ones are, rather than uniform: a few
+ * owners have most of the todos and a few companies most of the users (both
+ * Zipf-distributed), the categories and roles aren't equally common, and
+ * ages cluster around the mid-thirties. The seed files' six owners and their
+ * companies are the most popular ones, so the usual queries still find
+ * something.
+ *
+ * The documents are generated in chunks of `CHUNK_SIZE`, each from its own
+ * random generator seeded from the seed and the chunk's number, so chunks
+ * can be generated in parallel (in any order, on any number of threads)
+ * and still come out the same. The IDs are made from the same numbers, so
+ * the `n`th user's ID is known without looking (see `userId`), which the
+ * load test uses to ask for users and todos that exist.
+ */
+public final class DatasetGenerator {
+
+  // How many documents each generator task makes (and each `insertMany` adds).
+  static final int CHUNK_SIZE = 10_000;
+
+  static final int DEFAULT_OWNERS = 500;
+  static final int DEFAULT_COMPANIES = 5000;
+
+  // The exponent of the Zipf distributions; at 1, the most popular owner
+  // has twice the todos of the second, three times those of the third, and
+  // so on.
+  private static final double ZIPF_EXPONENT = 1.0;
+
+  // The seed files' owners and companies, which lead their popularity lists.
+  private static final String[] SEED_OWNERS = { "Blanche", "Fry", "Barry", "Workman", "Dawn", "Roberta" };
+  private static final String[] SEED_COMPANIES = { "OHMNET", "NIQUENT", "IBM", "FRANSCENE", "UMM", "GEEKOLA" };
+
+  // The categories and roles, and how many of every hundred have each.
+  private static final String[] CATEGORIES = { "groceries", "homework", "software design", "video games" };
+  private static final int[] CATEGORY_WEIGHTS = { 35, 30, 20, 15 };
+  private static final String[] ROLES = { "viewer", "editor", "admin" };
+  private static final int[] ROLE_WEIGHTS = { 70, 25, 5 };
+  private static final int PERCENT = 100;
+  private static final int COMPLETE_PERCENT = 40;
+
+  // Ages are normally distributed around MEAN_AGE, between MIN_AGE and MAX_AGE.
+  private static final int MIN_AGE = 18;
+  private static final int MAX_AGE = 80;
+  private static final double MEAN_AGE = 36;
+  private static final double AGE_DEVIATION = 12;
+
+  // Todo bodies are MIN_WORDS to MAX_WORDS of lorem ipsum.
+  private static final int MIN_WORDS = 6;
+  private static final int MAX_WORDS = 30;
+  private static final String[] WORDS = ("lorem ipsum dolor sit amet consectetur adipiscing elit sed do eiusmod "
+    + "tempor incididunt ut labore et dolore magna aliqua enim ad minim veniam quis nostrud exercitation "
+    + "ullamco laboris nisi aliquip ex ea commodo consequat duis aute irure in reprehenderit voluptate velit "
+    + "esse cillum fugiat nulla pariatur excepteur sint occaecat cupidatat non proident sunt culpa qui "
+    + "officia deserunt mollit anim id est laborum").split(" ");
+
+  // Generated names are two or three of these run together.
+  private static final String[] SYLLABLES = {
+    "ba", "bel", "cor", "da", "den", "el", "fa", "gen", "ha", "is", "jo", "ka", "lan", "li", "mar", "mo",
+    "na", "nel", "o", "pa", "quin", "ra", "ron", "sa", "sel", "ta", "tor", "u", "va", "ver", "wyn", "zo" };
+  private static final int NAME_EXTRA_SYLLABLES = 2;
+
+  // IDs are a fixed timestamp, a byte for the collection, and the
+  // document's number in the remaining seven bytes.
+  private static final int ID_TIMESTAMP = 0x5f000000;
+  private static final byte USER_ID_TAG = 'u';
+  private static final byte TODO_ID_TAG = 't';
+  private static final int ID_BYTES = 12;
+  private static final int ID_NUMBER_BYTES = 7;
+
+  // For spreading the chunks' seeds apart (the first is the golden ratio).
+  private static final long SEED_INCREMENT = 0x9e3779b97f4a7c15L;
+  private static final long TODO_SEEDS = 0x7f4a7c159e3779b9L;
+
+  private static final double NANOS_PER_SECOND = 1e9;
+
+  private final long seed;
+  private final String[] owners;
+  private final String[] companies;
+  private final double[] ownerPopularity;
+  private final double[] companyPopularity;
+
+  /**
+   * @param seed the seed everything is generated from
+   * @param ownerCount how many different owners the todos have
+   * @param companyCount how many different companies the users work for
+   */
+  DatasetGenerator(long seed, int ownerCount, int companyCount) {
+    this.seed = seed;
+    SplittableRandom random = new SplittableRandom(seed);
+    this.owners = names(random, SEED_OWNERS, ownerCount, false);
+    this.companies = names(random, SEED_COMPANIES, companyCount, true);
+    this.ownerPopularity = zipf(ownerCount);
+    this.companyPopularity = zipf(companyCount);
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      String[] parts = arg.replaceFirst("^--", "").split("=", 2);
+      options.put(parts[0], parts.length > 1 ? parts[1] : "true");
+    }
+    long users = Long.parseLong(options.getOrDefault("users", "1000"));
+    long todos = Long.parseLong(options.getOrDefault("todos", "10000"));
+    int threads = Integer.parseInt(options.getOrDefault("threads",
+      String.valueOf(Runtime.getRuntime().availableProcessors())));
+    DatasetGenerator generator = new DatasetGenerator(
+      Long.parseLong(options.getOrDefault("seed", "3601")),
+      Integer.parseInt(options.getOrDefault("owners", String.valueOf(DEFAULT_OWNERS))),
+      Integer.parseInt(options.getOrDefault("companies", String.valueOf(DEFAULT_COMPANIES))));
+
+    long start = System.nanoTime();
+    if (options.containsKey("ndjson")) {
+      Path directory = Path.of(options.get("ndjson"));
+      Files.createDirectories(directory);
+      generator.writeNdjson(directory, users, todos, threads);
+    } else {
+      try (MongoClient mongoClient = MongoClients.create("mongodb://" + options.getOrDefault("mongo", "localhost"))) {
+        generator.load(mongoClient.getDatabase(options.getOrDefault("database", "dev")), users, todos, threads);
+      }
+    }
+    System.out.printf("Generated %d users and %d todos in %.1f seconds%n",
+      users, todos, (System.nanoTime() - start) / NANOS_PER_SECOND);
+  }
+
+  /**
+   * Replace the `users` and `todos` collections in `database` with
+   * `users` users and `todos` todos.
+   *
+   * @param database the database to load them into
+   * @param users how many users
+   * @param todos how many todos
+   * @param threads how many threads generate and insert them
+   */
+  void load(MongoDatabase database, long users, long todos, int threads)
+      throws InterruptedException, ExecutionException {
+    MongoCollection<Document> userCollection = database.getCollection("users");
+    MongoCollection<Document> todoCollection = database.getCollection("todos");
+    userCollection.drop();
+    todoCollection.drop();
+    InsertManyOptions unordered = new InsertManyOptions().ordered(false);
+    generate(users, threads, chunk -> {
+      userCollection.insertMany(users(chunk, users), unordered);
+      return null;
+    }, ignored -> { });
+    generate(todos, threads, chunk -> {
+      todoCollection.insertMany(todos(chunk, todos), unordered);
+      return null;
+    }, ignored -> { });
+  }
+
+  /**
+   * Write `users` users to `users.ndjson` and `todos` todos to
+   * `todos.ndjson` in `directory`, one (extended JSON) document per line.
+   *
+   * @param directory where to write them
+   * @param users how many users
+   * @param todos how many todos
+   * @param threads how many threads generate them
+   */
+  void writeNdjson(Path directory, long users, long todos, int threads)
+      throws IOException, InterruptedException, ExecutionException {
+    try (Writer out = Files.newBufferedWriter(directory.resolve("users.ndjson"), StandardCharsets.UTF_8)) {
+      generate(users, threads, chunk -> ndjson(users(chunk, users)), lines -> write(out, lines));
+    }
+    try (Writer out = Files.newBufferedWriter(directory.resolve("todos.ndjson"), StandardCharsets.UTF_8)) {
+      generate(todos, threads, chunk -> ndjson(todos(chunk, todos)), lines -> write(out, lines));
+    }
+  }
+
+  /**
+   * Run `task` on each chunk of `count` documents on `threads` threads,
+   * handing the results to `consumer` in chunk order. Only a couple of
+   * chunks per thread are generated ahead of the consumer, so memory stays
+   * bounded however many documents there are.
+   */
+  private static <T> void generate(long count, int threads, LongFunction<T> task, Consumer<T> consumer)
+      throws InterruptedException, ExecutionException {
+    long chunks = (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      Queue<Future<T>> pending = new ArrayDeque<>();
+      for (long chunk = 0; chunk < chunks; chunk++) {
+        long thisChunk = chunk;
+        pending.add(executor.submit(() -> task.apply(thisChunk)));
+        if (pending.size() >= 2 * threads) {
+          consumer.accept(pending.remove().get());
+        }
+      }
+      while (!pending.isEmpty()) {
+        consumer.accept(pending.remove().get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * @param chunk which chunk
+   * @param total how many users there are in all
+   * @return the users in the chunk
+   */
+  List<Document> users(long chunk, long total) {
+    SplittableRandom random = chunkRandom(USER_ID_TAG, chunk);
+    MessageDigest md5;
+    try {
+      md5 = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    long first = chunk * CHUNK_SIZE;
+    long last = Math.min(total, first + CHUNK_SIZE);
+    List<Document> users = new ArrayList<>((int) (last - first));
+    for (long i = first; i < last; i++) {
+      String firstName = name(random, false);
+      String lastName = name(random, false);
+      String company = company(random);
+      String email = (firstName + lastName + "@" + company + ".com").toLowerCase(Locale.ROOT);
+      users.add(new Document("_id", userId(i))
+        .append("name", firstName + " " + lastName)
+        .append("age", age(random))
+        .append("company", company)
+        .append("email", email)
+        .append("role", role(random))
+        .append("avatar", "https://gravatar.com/avatar/"
+          + HexFormat.of().formatHex(md5.digest(email.getBytes(StandardCharsets.UTF_8))) + "?d=identicon"));
+    }
+    return users;
+  }
+
+  /**
+   * @param chunk which chunk
+   * @param total how many todos there are in all
+   * @return the todos in the chunk
+   */
+  List<Document> todos(long chunk, long total) {
+    SplittableRandom random = chunkRandom(TODO_ID_TAG, chunk);
+    long first = chunk * CHUNK_SIZE;
+    long last = Math.min(total, first + CHUNK_SIZE);
+    List<Document> todos = new ArrayList<>((int) (last - first));
+    for (long i = first; i < last; i++) {
+      todos.add(new Document("_id", todoId(i))
+        .append("owner", owner(random))
+        .append("status", random.nextInt(PERCENT) < COMPLETE_PERCENT)
+        .append("body", body(random))
+        .append("category", category(random)));
+    }
+    return todos;
+  }
+
+  /**
+   * @param n which user (from zero)
+   * @return the ID of the `n`th user generated
+   */
+  static ObjectId userId(long n) {
+    return id(USER_ID_TAG, n);
+  }
+
+  /**
+   * @param n which todo (from zero)
+   * @return the ID of the `n`th todo generated
+   */
+  static ObjectId todoId(long n) {
+    return id(TODO_ID_TAG, n);
+  }
+
+  /**
+   * @return a todo owner, the popular ones more often
+   */
+  String owner(RandomGenerator random) {
+    return owners[pick(random, ownerPopularity)];
+  }
+
+  /**
+   * @return a company, the big ones more often
+   */
+  String company(RandomGenerator random) {
+    return companies[pick(random, companyPopularity)];
+  }
+
+  /**
+   * @return a todo category, the common ones more often
+   */
+  static String category(RandomGenerator random) {
+    return CATEGORIES[weighted(random, CATEGORY_WEIGHTS)];
+  }
+
+  /**
+   * @return a user role, the common ones more often
+   */
+  static String role(RandomGenerator random) {
+    return ROLES[weighted(random, ROLE_WEIGHTS)];
+  }
+
+  private static ObjectId id(byte tag, long n) {
+    ByteBuffer bytes = ByteBuffer.allocate(ID_BYTES).putInt(ID_TIMESTAMP).put(tag);
+    for (int i = ID_NUMBER_BYTES - 1; i >= 0; i--) {
+      bytes.put((byte) (n >>> (i * Byte.SIZE)));
+    }
+    return new ObjectId(bytes.array());
+  }
+
+  private SplittableRandom chunkRandom(byte tag, long chunk) {
+    return new SplittableRandom(seed + (tag == TODO_ID_TAG ? TODO_SEEDS : 0) + chunk * SEED_INCREMENT);
+  }
+
+  private static int age(RandomGenerator random) {
+    int age;
+    do {
+      age = (int) Math.round(random.nextGaussian(MEAN_AGE, AGE_DEVIATION));
+    } while (age < MIN_AGE || age > MAX_AGE);
+    return age;
+  }
+
+  private static String body(RandomGenerator random) {
+    int words = MIN_WORDS + random.nextInt(MAX_WORDS - MIN_WORDS + 1);
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < words; i++) {
+      String word = WORDS[random.nextInt(WORDS.length)];
+      body.append(i == 0 ? Character.toUpperCase(word.charAt(0)) + word.substring(1) : " " + word);
+    }
+    return body.append('.').toString();
+  }
+
+  /**
+   * @return a made-up name of two or three syllables, capitalized (or all
+   *   upper case, like the seed files' companies)
+   */
+  private static String name(RandomGenerator random, boolean upperCase) {
+    StringBuilder name = new StringBuilder();
+    int syllables = 2 + random.nextInt(NAME_EXTRA_SYLLABLES);
+    for (int i = 0; i < syllables; i++) {
+      name.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+    }
+    return upperCase
+      ? name.toString().toUpperCase(Locale.ROOT)
+      : Character.toUpperCase(name.charAt(0)) + name.substring(1);
+  }
+
+  /**
+   * @return `count` different names, starting with `known` (as many of
+   *   them as fit) and then made-up ones
+   */
+  private static String[] names(RandomGenerator random, String[] known, int count, boolean upperCase) {
+    LinkedHashSet<String> names = new LinkedHashSet<>();
+    names.addAll(Arrays.asList(known).subList(0, Math.min(count, known.length)));
+    while (names.size() < count) {
+      names.add(name(random, upperCase));
+    }
+    return names.toArray(new String[0]);
+  }
+
+  /**
+   * @return the cumulative probabilities of a Zipf distribution over
+   *   `count` ranks
+   */
+  private static double[] zipf(int count) {
+    double[] cumulative = new double[count];
+    double total = 0;
+    for (int rank = 0; rank < count; rank++) {
+      total += 1 / Math.pow(rank + 1, ZIPF_EXPONENT);
+      cumulative[rank] = total;
+    }
+    for (int rank = 0; rank < count; rank++) {
+      cumulative[rank] /= total;
+    }
+    return cumulative;
+  }
+
+  private static int pick(RandomGenerator random, double[] cumulative) {
+    int index = Arrays.binarySearch(cumulative, random.nextDouble());
+    return Math.min(cumulative.length - 1, index >= 0 ? index : -index - 1);
+  }
+
+  private static int weighted(RandomGenerator random, int[] weights) {
+    int roll = random.nextInt(PERCENT);
+    int index = 0;
+    while (roll >= weights[index]) {
+      roll -= weights[index];
+      index++;
+    }
+    return index;
+  }
+
+  private static String ndjson(List<Document> documents) {
+    StringBuilder lines = new StringBuilder();
+    for (Document document : documents) {
+      lines.append(document.toJson()).append('\n');
+    }
+    return lines.toString();
+  }
+
+  private static void write(Writer out, String lines) {
+    try {
+      out.write(lines);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
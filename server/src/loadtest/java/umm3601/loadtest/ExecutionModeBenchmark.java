@@ -0,0 +1,156 @@
+package umm3601.loadtest;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput and latency of a running server at a fixed
+ * concurrency, to compare the execution modes (`EXECUTION_MODE` in `Main`).
+ *
+ * Start the server in one mode, run
+ *
+ *     ./gradlew executionModeBenchmark --args="http://localhost:4567 1000 30"
+ *
+ * then restart it in each of the other modes and run it again. The arguments are the
+ * server's base URL, the number of requests kept in flight, the length of
+ * the run in seconds, and (optionally) the paths to request, which are
+ * cycled through; by default a mix of `/api/todos` and `/api/users`
+ * queries. Turn the server's caches off (`CACHE_SIZE=0 LIST_CACHE_SIZE=0`)
+ * so every request goes to the database, which is where the modes differ.
+ *
+ * Each of the in-flight requests sends its next request as soon as the
+ * last one finishes (a closed loop), so the concurrency stays put for the
+ * whole run. The client is asynchronous, so high concurrencies don't need
+ * a thread each. The results are printed as one line of JSON.
+ *
+ * `./gradlew connectionLoadTest` runs the same thing with 10,000 requests
+ * (and so 10,000 connections) in flight, which is where the blocking mode
+ * runs out of threads; the client and the server both need an open-file
+ * limit (`ulimit -n`) well above that.
+ */
+public final class ExecutionModeBenchmark {
+
+  // The positions of the command-line arguments.
+  private static final int CONCURRENCY_ARG = 1;
+  private static final int SECONDS_ARG = 2;
+  private static final int PATHS_ARG = 3;
+
+  private static final int DEFAULT_CONCURRENCY = 1000;
+  private static final int DEFAULT_SECONDS = 30;
+  private static final List<String> DEFAULT_PATHS = List.of(
+    "/api/todos?category=homework",
+    "/api/todos?owner=fry&limit=20",
+    "/api/users?company=ohm",
+    "/api/users?age=25");
+
+  // Requests sent in the first part of the run (while the JIT and the
+  // connection pools warm up) aren't counted.
+  private static final double WARMUP_FRACTION = 0.2;
+
+  private static final double P50 = 0.50;
+  private static final double P99 = 0.99;
+  private static final double NANOS_PER_MILLI = 1e6;
+  private static final double NANOS_PER_SECOND = 1e9;
+  private static final int FIRST_ERROR_STATUS = 400;
+
+  private final HttpClient client = HttpClient.newBuilder()
+    .connectTimeout(Duration.ofSeconds(DEFAULT_SECONDS))
+    .build();
+  private final List<URI> uris = new ArrayList<>();
+  private final AtomicLong next = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final List<Long> latencies = new ArrayList<>();
+
+  private long measureFrom;
+  private long stopAt;
+
+  private ExecutionModeBenchmark(String baseUrl, List<String> paths) {
+    for (String path : paths) {
+      uris.add(URI.create(baseUrl + path));
+    }
+  }
+
+  public static void main(String[] args) {
+    String baseUrl = args.length > 0 ? args[0] : "http://localhost:4567";
+    int concurrency = args.length > CONCURRENCY_ARG ? Integer.parseInt(args[CONCURRENCY_ARG]) : DEFAULT_CONCURRENCY;
+    int seconds = args.length > SECONDS_ARG ? Integer.parseInt(args[SECONDS_ARG]) : DEFAULT_SECONDS;
+    List<String> paths = args.length > PATHS_ARG
+      ? Arrays.asList(args).subList(PATHS_ARG, args.length)
+      : DEFAULT_PATHS;
+
+    System.out.println(new ExecutionModeBenchmark(baseUrl, paths).run(concurrency, seconds));
+  }
+
+  /**
+   * Keep `concurrency` requests in flight for `seconds`.
+   *
+   * @return the results, as JSON
+   */
+  private String run(int concurrency, int seconds) {
+    long start = System.nanoTime();
+    long length = Duration.ofSeconds(seconds).toNanos();
+    measureFrom = start + (long) (length * WARMUP_FRACTION);
+    stopAt = start + length;
+
+    List<CompletableFuture<Void>> loops = new ArrayList<>(concurrency);
+    for (int i = 0; i < concurrency; i++) {
+      CompletableFuture<Void> done = new CompletableFuture<>();
+      loop(done);
+      loops.add(done);
+    }
+    CompletableFuture.allOf(loops.toArray(new CompletableFuture<?>[0])).join();
+    double measuredSeconds = (stopAt - measureFrom) / NANOS_PER_SECOND;
+
+    long[] sorted;
+    synchronized (latencies) {
+      sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+    }
+    return String.format(
+      "{\"concurrency\": %d, \"requests\": %d, \"errors\": %d, \"throughput\": %.1f,"
+        + " \"p50Millis\": %.2f, \"p99Millis\": %.2f, \"maxMillis\": %.2f}",
+      concurrency, sorted.length, errors.get(), sorted.length / measuredSeconds,
+      percentile(sorted, P50), percentile(sorted, P99),
+      sorted.length == 0 ? 0 : sorted[sorted.length - 1] / NANOS_PER_MILLI);
+  }
+
+  /**
+   * Send requests one after another until the run is over, and then
+   * complete `done`.
+   */
+  private void loop(CompletableFuture<Void> done) {
+    long sent = System.nanoTime();
+    if (sent >= stopAt) {
+      done.complete(null);
+      return;
+    }
+    URI uri = uris.get((int) (next.getAndIncrement() % uris.size()));
+    HttpRequest request = HttpRequest.newBuilder(uri).GET().build();
+    client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+      .whenComplete((response, error) -> {
+        long finished = System.nanoTime();
+        if (error != null || response.statusCode() >= FIRST_ERROR_STATUS) {
+          errors.incrementAndGet();
+        } else if (sent >= measureFrom && finished <= stopAt) {
+          synchronized (latencies) {
+            latencies.add(finished - sent);
+          }
+        }
+        loop(done);
+      });
+  }
+
+  private static double percentile(long[] sorted, double fraction) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    return sorted[(int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1)] / NANOS_PER_MILLI;
+  }
+}
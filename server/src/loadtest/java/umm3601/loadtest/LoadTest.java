@@ -0,0 +1,255 @@
+package umm3601.loadtest;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import umm3601.EmbeddedServer;
+import umm3601.loadtest.Workload.Operation;
+
+/**
+ * Starts the server in this JVM against a local mongod, fills a database
+ * with users and todos, and drives a mix of reads, filtered lists, the
+ * company grouping, inserts, and deletes at it (see `Workload`), reporting
+ * the throughput and the latency percentiles of each route.
+ *
+ *     ./gradlew loadTest --args="--mode=open --rate=2000 --seconds=60"
+ *
+ * Options (all `--name=value`, all optional):
+ *
+ * - `mongo` (localhost) and `database` (loadtest): where the data goes; the
+ *   `users` and `todos` collections there are replaced.
+ * - `users` (1000), `todos` (10000), and `seed` (3601): the data, made by
+ *   `DatasetGenerator`.
+ * - `mode` (closed): in a closed loop, `concurrency` clients each send a
+ *   request as soon as their last one finishes, which measures the most
+ *   the server can do. In an open loop, requests are started at a steady
+ *   `rate` per second however the server is coping, with at most
+ *   `concurrency` in flight.
+ * - `rate` (1000) and `concurrency` (64).
+ * - `seconds` (60), of which the first `warmup` (10) aren't counted.
+ * - `mix` (`Workload.DEFAULT_MIX`): the weight of each operation.
+ * - `virtual` (false): run the server's requests on virtual threads.
+ *
+ * In the open loop, each request's latency is measured from when it was
+ * supposed to start, not from when it actually went out. If the server
+ * stalls (or every connection is busy), the requests that should have
+ * gone out during the stall count the time they spent waiting, so the tail
+ * latencies aren't hidden by the load test slowing down along with the
+ * server ("coordinated omission"). Closed-loop latencies can't avoid that,
+ * which is why they're best read as a measure of throughput.
+ *
+ * The server's caches and other settings are read from the environment
+ * variables `Main` uses. The results are printed as JSON.
+ */
+public final class LoadTest {
+
+  private static final String BASE_URL = "http://localhost:4567";
+
+  // Latencies are recorded in microseconds, up to a minute, to three
+  // significant digits.
+  private static final long HIGHEST_MICROS = TimeUnit.MINUTES.toMicros(1);
+  private static final int SIGNIFICANT_DIGITS = 3;
+  private static final double MICROS_PER_MILLI = 1e3;
+  private static final double NANOS_PER_SECOND = 1e9;
+  private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+  private final Workload workload;
+  private final Map<Operation, Histogram> latencies = new EnumMap<>(Operation.class);
+  private final Map<Operation, LongAdder> errors = new EnumMap<>(Operation.class);
+
+  private long measureFrom;
+  private long stopAt;
+
+  private LoadTest(Workload workload) {
+    this.workload = workload;
+    for (Operation operation : Operation.values()) {
+      latencies.put(operation, new ConcurrentHistogram(HIGHEST_MICROS, SIGNIFICANT_DIGITS));
+      errors.put(operation, new LongAdder());
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      String[] parts = arg.replaceFirst("^--", "").split("=", 2);
+      options.put(parts[0], parts.length > 1 ? parts[1] : "true");
+    }
+    String mode = options.getOrDefault("mode", "closed");
+    int rate = Integer.parseInt(options.getOrDefault("rate", "1000"));
+    int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "64"));
+    int seconds = Integer.parseInt(options.getOrDefault("seconds", "60"));
+    int warmup = Integer.parseInt(options.getOrDefault("warmup", "10"));
+    if (!mode.equals("open") && !mode.equals("closed")) {
+      throw new IllegalArgumentException("The mode has to be open or closed, not " + mode);
+    }
+
+    long users = Long.parseLong(options.getOrDefault("users", "1000"));
+    long todos = Long.parseLong(options.getOrDefault("todos", "10000"));
+    DatasetGenerator dataset = new DatasetGenerator(
+      Long.parseLong(options.getOrDefault("seed", "3601")),
+      DatasetGenerator.DEFAULT_OWNERS,
+      DatasetGenerator.DEFAULT_COMPANIES);
+    EmbeddedServer.start(
+      options.getOrDefault("mongo", "localhost"),
+      options.getOrDefault("database", "loadtest"),
+      Boolean.parseBoolean(options.getOrDefault("virtual", "false")),
+      database -> {
+        try {
+          dataset.load(database, users, todos, Runtime.getRuntime().availableProcessors());
+        } catch (InterruptedException | ExecutionException e) {
+          throw new IllegalStateException("Couldn't load the dataset", e);
+        }
+      });
+
+    HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(seconds)).build();
+    Workload workload = new Workload(client, BASE_URL,
+      Workload.parseMix(options.getOrDefault("mix", Workload.DEFAULT_MIX)), dataset, users, todos);
+    LoadTest loadTest = new LoadTest(workload);
+
+    long start = System.nanoTime();
+    loadTest.measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+    loadTest.stopAt = start + TimeUnit.SECONDS.toNanos(seconds);
+    if (mode.equals("open")) {
+      loadTest.openLoop(rate, concurrency, start);
+    } else {
+      loadTest.closedLoop(concurrency);
+    }
+
+    Map<String, Object> settings = new LinkedHashMap<>();
+    settings.put("mode", mode);
+    settings.put("concurrency", concurrency);
+    if (mode.equals("open")) {
+      settings.put("targetRate", rate);
+    }
+    System.out.println(loadTest.report(settings));
+    System.exit(0);
+  }
+
+  /**
+   * Start a request every `1 / rate` seconds until the run is over, with at
+   * most `concurrency` in flight; a request that has to wait for one of
+   * the others to finish is late, and its lateness counts in its latency.
+   */
+  private void openLoop(int rate, int concurrency, long start) throws InterruptedException {
+    double interval = NANOS_PER_SECOND / rate;
+    Semaphore inFlight = new Semaphore(concurrency);
+    for (long i = 0;; i++) {
+      long intended = start + (long) (i * interval);
+      if (intended >= stopAt) {
+        break;
+      }
+      for (long wait = intended - System.nanoTime(); wait > 0; wait = intended - System.nanoTime()) {
+        LockSupport.parkNanos(wait);
+      }
+      inFlight.acquire();
+      Workload.Request request = workload.next();
+      workload.sendAsync(request).whenComplete((succeeded, error) -> {
+        record(request.operation(), intended, System.nanoTime(), error == null && succeeded);
+        inFlight.release();
+      });
+    }
+    // Wait for the last requests to finish.
+    inFlight.acquire(concurrency);
+  }
+
+  /**
+   * Have `concurrency` clients (each on a virtual thread) send one request
+   * after another until the run is over.
+   */
+  private void closedLoop(int concurrency) throws InterruptedException {
+    List<Thread> clients = new ArrayList<>(concurrency);
+    for (int i = 0; i < concurrency; i++) {
+      clients.add(Thread.ofVirtual().start(() -> {
+        for (long sent = System.nanoTime(); sent < stopAt; sent = System.nanoTime()) {
+          Workload.Request request = workload.next();
+          boolean succeeded;
+          try {
+            succeeded = workload.send(request);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          } catch (Exception e) {
+            succeeded = false;
+          }
+          record(request.operation(), sent, System.nanoTime(), succeeded);
+        }
+      }));
+    }
+    for (Thread thread : clients) {
+      thread.join();
+    }
+  }
+
+  /**
+   * Record a request that was meant to start at `intended`, if it was
+   * meant to start after the warmup.
+   */
+  private void record(Operation operation, long intended, long finished, boolean succeeded) {
+    if (intended < measureFrom) {
+      return;
+    }
+    if (succeeded) {
+      latencies.get(operation).recordValue(
+        Math.min(HIGHEST_MICROS, TimeUnit.NANOSECONDS.toMicros(finished - intended)));
+    } else {
+      errors.get(operation).increment();
+    }
+  }
+
+  /**
+   * @return the settings, the overall throughput, and the throughput and
+   *   latency percentiles (in milliseconds) of each route, as JSON
+   */
+  private String report(Map<String, Object> settings) throws JsonProcessingException {
+    double measuredSeconds = (stopAt - measureFrom) / NANOS_PER_SECOND;
+    Histogram all = new Histogram(HIGHEST_MICROS, SIGNIFICANT_DIGITS);
+    long allErrors = 0;
+    Map<String, Object> routes = new LinkedHashMap<>();
+    for (Operation operation : Operation.values()) {
+      Histogram histogram = latencies.get(operation);
+      long operationErrors = errors.get(operation).sum();
+      if (histogram.getTotalCount() == 0 && operationErrors == 0) {
+        continue;
+      }
+      all.add(histogram);
+      allErrors += operationErrors;
+      routes.put(operation.route(), summary(histogram, operationErrors, measuredSeconds));
+    }
+
+    Map<String, Object> report = new LinkedHashMap<>(settings);
+    report.put("measuredSeconds", measuredSeconds);
+    report.put("overall", summary(all, allErrors, measuredSeconds));
+    report.put("routes", routes);
+    return new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsString(report);
+  }
+
+  private static Map<String, Object> summary(Histogram histogram, long errorCount, double measuredSeconds) {
+    Map<String, Object> summary = new LinkedHashMap<>();
+    summary.put("requests", histogram.getTotalCount());
+    summary.put("errors", errorCount);
+    summary.put("throughput", histogram.getTotalCount() / measuredSeconds);
+    for (double percentile : PERCENTILES) {
+      summary.put("p" + (percentile == Math.rint(percentile) ? String.valueOf((int) percentile) : percentile)
+        + "Millis", histogram.getValueAtPercentile(percentile) / MICROS_PER_MILLI);
+    }
+    summary.put("maxMillis", histogram.getMaxValue() / MICROS_PER_MILLI);
+    return summary;
+  }
+}
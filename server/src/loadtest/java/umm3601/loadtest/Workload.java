@@ -0,0 +1,205 @@
+package umm3601.loadtest;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The requests a load test sends: a weighted mix of operations on the
+ * todos and users, picked at random for each request.
+ *
+ * Reads pick from the todos and users a `DatasetGenerator` put in the
+ * database, and filter on its owners, categories, companies, and roles,
+ * the popular ones more often. Each todo a load test adds is later deleted
+ * by one of its deletes, so the deletes don't eat into the generated data
+ * (and don't 404); a delete with nothing left to delete adds a todo instead.
+ */
+final class Workload {
+
+  /**
+   * The kinds of request, each with the name used in the mix and the route
+   * its latencies are reported under.
+   */
+  enum Operation {
+    GET_TODO("getTodo", "GET /api/todos/{id}"),
+    LIST_TODOS("listTodos", "GET /api/todos"),
+    GET_USER("getUser", "GET /api/users/{id}"),
+    LIST_USERS("listUsers", "GET /api/users"),
+    USERS_BY_COMPANY("usersByCompany", "GET /api/usersByCompany"),
+    ADD_TODO("addTodo", "POST /api/todos"),
+    DELETE_TODO("deleteTodo", "DELETE /api/todos/{id}");
+
+    private final String mixName;
+    private final String route;
+
+    Operation(String mixName, String route) {
+      this.mixName = mixName;
+      this.route = route;
+    }
+
+    String route() {
+      return route;
+    }
+  }
+
+  /**
+   * A request that's ready to send, and the operation it's for.
+   */
+  record Request(Operation operation, HttpRequest httpRequest) {
+  }
+
+  static final String DEFAULT_MIX =
+    "getTodo:25,listTodos:25,getUser:10,listUsers:15,usersByCompany:5,addTodo:10,deleteTodo:10";
+
+  private static final int PAGE_SIZE = 20;
+  private static final int COMPANY_PREFIX = 3;
+  private static final int FIRST_ERROR_STATUS = 300;
+
+  private static final Pattern NEW_ID = Pattern.compile("\"id\"\\s*:\\s*\"([0-9a-f]{24})\"");
+
+  private final HttpClient client;
+  private final String baseUrl;
+  private final Operation[] operations;
+  private final int[] cumulativeWeights;
+  private final DatasetGenerator dataset;
+  private final long users;
+  private final long todos;
+
+  // The todos this load test added, waiting to be deleted.
+  private final Queue<String> addedTodoIds = new ConcurrentLinkedQueue<>();
+
+  Workload(HttpClient client, String baseUrl, Map<Operation, Integer> mix, DatasetGenerator dataset, long users,
+      long todos) {
+    this.client = client;
+    this.baseUrl = baseUrl;
+    this.dataset = dataset;
+    this.users = users;
+    this.todos = todos;
+    this.operations = mix.keySet().toArray(new Operation[0]);
+    this.cumulativeWeights = new int[operations.length];
+    int total = 0;
+    for (int i = 0; i < operations.length; i++) {
+      total += mix.get(operations[i]);
+      cumulativeWeights[i] = total;
+    }
+    if (total <= 0) {
+      throw new IllegalArgumentException("The mix has to have some operations in it");
+    }
+  }
+
+  /**
+   * Parse a mix like `getTodo:25,addTodo:5`: each operation's name and its
+   * relative weight. Operations that aren't mentioned aren't sent.
+   *
+   * @param mix the mix
+   * @return the weight of each operation in the mix
+   */
+  static Map<Operation, Integer> parseMix(String mix) {
+    Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+    for (String entry : mix.split(",")) {
+      String[] parts = entry.trim().split(":");
+      Operation operation = null;
+      for (Operation candidate : Operation.values()) {
+        if (candidate.mixName.equals(parts[0])) {
+          operation = candidate;
+        }
+      }
+      if (operation == null || parts.length != 2) {
+        throw new IllegalArgumentException("Can't make sense of '" + entry + "' in the mix " + mix);
+      }
+      weights.put(operation, Integer.parseInt(parts[1]));
+    }
+    return weights;
+  }
+
+  /**
+   * @return the next request to send, picked at random from the mix
+   */
+  Request next() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int roll = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+    int index = 0;
+    while (cumulativeWeights[index] <= roll) {
+      index++;
+    }
+    Operation operation = operations[index];
+
+    if (operation == Operation.DELETE_TODO) {
+      String id = addedTodoIds.poll();
+      if (id != null) {
+        return new Request(operation, HttpRequest.newBuilder(uri("/api/todos/" + id)).DELETE().build());
+      }
+      operation = Operation.ADD_TODO;
+    }
+    return new Request(operation, switch (operation) {
+      case GET_TODO -> get("/api/todos/" + DatasetGenerator.todoId(random.nextLong(todos)).toHexString());
+      case LIST_TODOS -> random.nextBoolean()
+        ? get("/api/todos?owner=" + dataset.owner(random) + "&limit=" + PAGE_SIZE)
+        : get("/api/todos?category=" + DatasetGenerator.category(random).replace(" ", "%20") + "&limit=" + PAGE_SIZE);
+      case GET_USER -> get("/api/users/" + DatasetGenerator.userId(random.nextLong(users)).toHexString());
+      case LIST_USERS -> random.nextBoolean()
+        ? get("/api/users?company=" + companyPrefix(dataset.company(random)) + "&limit=" + PAGE_SIZE)
+        : get("/api/users?role=" + DatasetGenerator.role(random) + "&sortby=age&limit=" + PAGE_SIZE);
+      case USERS_BY_COMPANY -> get("/api/usersByCompany?sortBy=count&sortOrder=desc");
+      default -> HttpRequest.newBuilder(uri("/api/todos"))
+        .header("Content-Type", "application/json")
+        .POST(HttpRequest.BodyPublishers.ofString("{\"owner\": \"" + dataset.owner(random)
+          + "\", \"status\": false, \"body\": \"Added by the load test\", \"category\": \""
+          + DatasetGenerator.category(random) + "\"}"))
+        .build();
+    });
+  }
+
+  /**
+   * Send a request, keeping track of the todos it adds.
+   *
+   * @param request the request
+   * @return whether it succeeded (with a 2xx status)
+   */
+  CompletableFuture<Boolean> sendAsync(Request request) {
+    return client.sendAsync(request.httpRequest(), HttpResponse.BodyHandlers.ofString())
+      .thenApply(response -> succeeded(request, response));
+  }
+
+  /**
+   * Send a request, and wait for the response.
+   *
+   * @param request the request
+   * @return whether it succeeded (with a 2xx status)
+   * @throws Exception if it couldn't be sent
+   */
+  boolean send(Request request) throws Exception {
+    return succeeded(request, client.send(request.httpRequest(), HttpResponse.BodyHandlers.ofString()));
+  }
+
+  private boolean succeeded(Request request, HttpResponse<String> response) {
+    if (request.operation() == Operation.ADD_TODO) {
+      Matcher id = NEW_ID.matcher(response.body());
+      if (id.find()) {
+        addedTodoIds.add(id.group(1));
+      }
+    }
+    return response.statusCode() < FIRST_ERROR_STATUS;
+  }
+
+  private HttpRequest get(String path) {
+    return HttpRequest.newBuilder(uri(path)).GET().build();
+  }
+
+  private URI uri(String path) {
+    return URI.create(baseUrl + path);
+  }
+
+  private static String companyPrefix(String company) {
+    return company.substring(0, Math.min(COMPANY_PREFIX, company.length()));
+  }
+}
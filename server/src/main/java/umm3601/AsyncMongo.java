@@ -0,0 +1,179 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.eq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+import org.bson.types.ObjectId;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+
+import io.javalin.json.JsonMapper;
+
+/**
+ * Non-blocking reads, on the MongoDB reactive-streams driver, for the
+ * "async" execution mode (see `Main`).
+ *
+ * With the (default) synchronous driver, a request thread waits for every
+ * query it makes; when the database is slow, Jetty's pool fills up with
+ * threads doing nothing but waiting. Here a query hands back a
+ * `CompletableFuture` instead, which a handler passes to `ctx.future(...)`,
+ * so the request thread goes back to the pool until the results arrive.
+ *
+ * MongoJack only works with the synchronous driver, so documents come back
+ * as `Document`s and are turned into `type` through their JSON (with
+ * ObjectIds written as hex strings, which is how the API sends them).
+ */
+public class AsyncMongo implements AutoCloseable {
+
+  private static final JsonWriterSettings JSON_SETTINGS = JsonWriterSettings.builder()
+    .outputMode(JsonMode.RELAXED)
+    .objectIdConverter((id, writer) -> writer.writeString(id.toHexString()))
+    .build();
+
+  private final MongoClient mongoClient;
+  private final MongoDatabase database;
+
+  /**
+   * Construct reads against a database.
+   *
+   * @param mongoClient the reactive-streams client, which `close()` closes
+   * @param databaseName the name of the database to read from
+   */
+  public AsyncMongo(MongoClient mongoClient, String databaseName) {
+    this.mongoClient = mongoClient;
+    this.database = mongoClient.getDatabase(databaseName);
+  }
+
+  /**
+   * Connect to a MongoDB server with the reactive-streams driver, with the
+   * given settings. Pass the same settings the synchronous client was made
+   * with (see `Server.mongoClientSettings`), so both have the same pool size
+   * and command listener.
+   *
+   * @param settings the settings for the client
+   * @param databaseName the name of the database to read from
+   * @return reads against that database
+   */
+  public static AsyncMongo connect(MongoClientSettings settings, String databaseName) {
+    return new AsyncMongo(MongoClients.create(settings), databaseName);
+  }
+
+  /**
+   * Connect to a MongoDB server with the reactive-streams driver, with the
+   * same defaults as `Server.configureDatabase(String)`.
+   *
+   * @param mongoAddr the address of the MongoDB server
+   * @param databaseName the name of the database to read from
+   * @return reads against that database
+   */
+  public static AsyncMongo connect(String mongoAddr, String databaseName) {
+    return connect(Server.mongoClientSettings(mongoAddr, Server.DEFAULT_MONGO_POOL_SIZE,
+      new CommandMonitor(CommandMonitor.DEFAULT_SLOW_QUERY)), databaseName);
+  }
+
+  /**
+   * Find the document with the given ID.
+   *
+   * @param <T> the type of the document
+   * @param collection the name of the collection to look in
+   * @param id the ID of the document
+   * @param type the class of the document
+   * @param jsonMapper the mapper used to turn the document into a `type`
+   * @return the document, or null if there isn't one with that ID
+   */
+  public <T> CompletableFuture<T> findById(String collection, ObjectId id, Class<T> type, JsonMapper jsonMapper) {
+    return collect(database.getCollection(collection).find(eq("_id", id)).comment(RequestId.current()).first())
+      .thenApply(documents -> documents.isEmpty() ? null : convert(documents.get(0), type, jsonMapper));
+  }
+
+  /**
+   * Find the documents that match a filter, the way the list handlers do
+   * (with `TextMatch.COLLATION`).
+   *
+   * @param <T> the type of the documents
+   * @param collection the name of the collection to look in
+   * @param filter the filter the documents have to match
+   * @param sort the order to return the documents in
+   * @param limit the most documents to return, or zero for all of them
+   * @param type the class of the documents
+   * @param jsonMapper the mapper used to turn each document into a `type`
+   * @return the matching documents
+   */
+  public <T> CompletableFuture<ArrayList<T>> find(String collection, Bson filter, Bson sort, int limit,
+      Class<T> type, JsonMapper jsonMapper) {
+    return collect(database.getCollection(collection)
+        .find(filter)
+        .comment(RequestId.current())
+        .collation(TextMatch.COLLATION)
+        .sort(sort)
+        .limit(limit))
+      .thenApply(documents -> {
+        ArrayList<T> results = new ArrayList<>(documents.size());
+        for (Document document : documents) {
+          results.add(convert(document, type, jsonMapper));
+        }
+        return results;
+      });
+  }
+
+  /**
+   * Close the underlying client.
+   */
+  @Override
+  public void close() {
+    mongoClient.close();
+  }
+
+  /**
+   * Collect everything a publisher emits into a list.
+   *
+   * @param <T> the type of the elements
+   * @param publisher the publisher to subscribe to
+   * @return a future that completes with every element, in order, once the
+   *   publisher is done (or with its error)
+   */
+  static <T> CompletableFuture<List<T>> collect(Publisher<T> publisher) {
+    CompletableFuture<List<T>> result = new CompletableFuture<>();
+    publisher.subscribe(new Subscriber<T>() {
+      private final List<T> elements = new ArrayList<>();
+
+      @Override
+      public void onSubscribe(Subscription subscription) {
+        subscription.request(Long.MAX_VALUE);
+      }
+
+      @Override
+      public void onNext(T element) {
+        elements.add(element);
+      }
+
+      @Override
+      public void onError(Throwable error) {
+        result.completeExceptionally(error);
+      }
+
+      @Override
+      public void onComplete() {
+        result.complete(elements);
+      }
+    });
+    return result;
+  }
+
+  private static <T> T convert(Document document, Class<T> type, JsonMapper jsonMapper) {
+    return jsonMapper.fromJsonString(document.toJson(JSON_SETTINGS), type);
+  }
+}
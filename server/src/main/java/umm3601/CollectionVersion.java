@@ -0,0 +1,36 @@
+package umm3601;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A version number for the contents of a collection, bumped on every write.
+ *
+ * Anything derived from a whole collection (like a cached list of todos)
+ * can be tagged with the version it was built from; if the version has
+ * moved on since, the derived data is stale. That makes invalidation a
+ * single increment, however many things were derived.
+ *
+ * Versions start from the time the server started (in milliseconds), so
+ * a version handed out by an earlier run of the server is very unlikely to
+ * be mistaken for a current one.
+ */
+public class CollectionVersion {
+
+  private final AtomicLong version = new AtomicLong(System.currentTimeMillis());
+
+  /**
+   * @return the current version of the collection
+   */
+  public long current() {
+    return version.get();
+  }
+
+  /**
+   * Record that the collection has changed.
+   *
+   * @return the new version of the collection
+   */
+  public long bump() {
+    return version.incrementAndGet();
+  }
+}
@@ -0,0 +1,364 @@
+package umm3601;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Watches every command the Mongo clients send, to see where the time in
+ * the database goes.
+ *
+ * For each collection and command (`todos`/`find`, say) it keeps the number
+ * of calls and failures, the total and longest time taken, and the number
+ * of documents returned; those are listed at `GET /api/mongo/commands`.
+ *
+ * A query that takes longer than the slow-query threshold is logged, with
+ * the request that made it (from its `comment`; see `RequestId`), and
+ * explained in the background so the log also shows the plan Mongo picked,
+ * which makes collection scans easy to spot. Only the shape of the query
+ * and the stages of its plan are logged, never the values it looked for. To keep that from piling up,
+ * each collection and command is explained at most once per
+ * `EXPLAIN_INTERVAL`, and only `EXPLAIN_QUEUE_SIZE` explains wait at a time.
+ *
+ * Each command is also a `MongoCommandEvent` for Java Flight Recorder.
+ */
+public class CommandMonitor implements CommandListener, Controller {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CommandMonitor.class);
+
+  private static final String API_COMMANDS = "/api/mongo/commands";
+
+  // How long a command may take before it's logged, unless told otherwise.
+  static final Duration DEFAULT_SLOW_QUERY = Duration.ofMillis(100);
+
+  // The commands whose plans `explain` can show.
+  private static final Set<String> EXPLAINABLE = Set.of("find", "aggregate", "count", "distinct");
+
+  static final Duration EXPLAIN_INTERVAL = Duration.ofMinutes(1);
+  static final int EXPLAIN_QUEUE_SIZE = 16;
+
+  // The fields the driver adds to a command that `explain` won't accept.
+  private static final Set<String> SESSION_FIELDS = Set.of("lsid", "txnNumber", "$clusterTime", "$db",
+    "$readPreference", "readConcern", "autocommit", "startTransaction");
+
+  private final long slowNanos;
+
+  // The commands that are running, by the driver's request ID.
+  private final Map<Integer, Running> running = new ConcurrentHashMap<>();
+
+  // What's been recorded, keyed by "collection.command".
+  private final Map<String, CommandStats> stats = new ConcurrentHashMap<>();
+
+  // When each "collection.command" was last explained, in nanoseconds.
+  private final Map<String, Long> lastExplained = new ConcurrentHashMap<>();
+
+  // One background thread, with a short queue; explains that don't fit are dropped.
+  private final ThreadPoolExecutor explainer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+    new ArrayBlockingQueue<>(EXPLAIN_QUEUE_SIZE), runnable -> {
+      Thread thread = new Thread(runnable, "mongo-explain");
+      thread.setDaemon(true);
+      return thread;
+    }, new ThreadPoolExecutor.DiscardPolicy());
+
+  private MongoClient explainClient;
+
+  /**
+   * A command that has been sent, and the bits of it we need once it's done.
+   */
+  private static final class Running {
+    private final String key;
+    private final String database;
+    // A copy of the command, kept only if it could be explained.
+    private final BsonDocument command;
+    // The flight recorder event, or null if JFR isn't recording them.
+    private final MongoCommandEvent event;
+
+    Running(String key, String database, BsonDocument command, MongoCommandEvent event) {
+      this.key = key;
+      this.database = database;
+      this.command = command;
+      this.event = event;
+    }
+  }
+
+  /**
+   * The totals for one collection and command.
+   */
+  private static final class CommandStats {
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder documents = new LongAdder();
+  }
+
+  /**
+   * Construct a monitor.
+   *
+   * @param slowQuery how long a command may take before it's logged (and
+   *   explained)
+   */
+  public CommandMonitor(Duration slowQuery) {
+    this.slowNanos = slowQuery.toNanos();
+  }
+
+  /**
+   * Set the client used to explain slow queries. The monitor has to be
+   * given to the client's settings before the client exists, so this is
+   * separate from the constructor; until it's called, nothing is explained.
+   *
+   * @param client the client to run `explain` with
+   */
+  public void explainWith(MongoClient client) {
+    this.explainClient = client;
+  }
+
+  @Override
+  public void commandStarted(CommandStartedEvent event) {
+    String commandName = event.getCommandName();
+    BsonDocument command = event.getCommand();
+    BsonValue target = command.get(commandName);
+    // Most commands name their collection; `getMore` names it separately.
+    String collection = target != null && target.isString()
+      ? target.asString().getValue()
+      : command.containsKey("collection") ? command.getString("collection").getValue() : "";
+    // The command document is only good for the length of this call, so
+    // keep a copy of the ones we might need to explain later.
+    BsonDocument copy = EXPLAINABLE.contains(commandName) ? command.clone() : null;
+    MongoCommandEvent jfrEvent = beginEvent(collection, commandName, command);
+    running.put(event.getRequestId(),
+      new Running(collection + "." + commandName, event.getDatabaseName(), copy, jfrEvent));
+  }
+
+  /**
+   * Begin a flight recorder event for a command, if JFR is recording them.
+   */
+  private static MongoCommandEvent beginEvent(String collection, String commandName, BsonDocument command) {
+    MongoCommandEvent jfrEvent = new MongoCommandEvent();
+    if (!jfrEvent.isEnabled()) {
+      return null;
+    }
+    jfrEvent.begin();
+    jfrEvent.collection = collection;
+    jfrEvent.command = commandName;
+    jfrEvent.filterShape = MongoCommandEvent.filterShape(command);
+    BsonValue comment = command.get("comment");
+    jfrEvent.requestId = comment != null && comment.isString() ? comment.asString().getValue() : null;
+    return jfrEvent;
+  }
+
+  /**
+   * Finish and write a command's flight recorder event, if it has one.
+   */
+  private static void commitEvent(Running started, long documents, boolean succeeded) {
+    if (started.event == null) {
+      return;
+    }
+    started.event.end();
+    if (started.event.shouldCommit()) {
+      started.event.documents = documents;
+      started.event.succeeded = succeeded;
+      started.event.commit();
+    }
+  }
+
+  @Override
+  public void commandSucceeded(CommandSucceededEvent event) {
+    Running started = running.remove(event.getRequestId());
+    if (started == null) {
+      return;
+    }
+    long nanos = event.getElapsedTime(TimeUnit.NANOSECONDS);
+    CommandStats commandStats = record(started.key, nanos);
+    long documents = documentsIn(event.getResponse());
+    commandStats.documents.add(documents);
+    commitEvent(started, documents, true);
+
+    if (nanos > slowNanos && started.command != null) {
+      slowQuery(started, nanos);
+    }
+  }
+
+  @Override
+  public void commandFailed(CommandFailedEvent event) {
+    Running started = running.remove(event.getRequestId());
+    if (started != null) {
+      record(started.key, event.getElapsedTime(TimeUnit.NANOSECONDS)).failures.increment();
+      commitEvent(started, 0, false);
+    }
+  }
+
+  private CommandStats record(String key, long nanos) {
+    CommandStats commandStats = stats.computeIfAbsent(key, k -> new CommandStats());
+    commandStats.calls.increment();
+    commandStats.totalNanos.add(nanos);
+    commandStats.maxNanos.accumulate(nanos);
+    return commandStats;
+  }
+
+  /**
+   * Log a slow query, and explain it if it hasn't been lately.
+   */
+  private void slowQuery(Running started, long nanos) {
+    BsonValue comment = started.command.get("comment");
+    String requestId = comment != null && comment.isString() ? comment.asString().getValue() : "-";
+    LOGGER.warn("Slow {} ({} ms, request {}): {}", started.key, TimeUnit.NANOSECONDS.toMillis(nanos),
+      requestId, MongoCommandEvent.filterShape(started.command));
+
+    long now = System.nanoTime();
+    Long last = lastExplained.get(started.key);
+    if (explainClient == null || last != null && now - last < EXPLAIN_INTERVAL.toNanos()) {
+      return;
+    }
+    lastExplained.put(started.key, now);
+    explainer.execute(() -> explain(started, requestId));
+  }
+
+  /**
+   * Ask Mongo how it runs a query, and log the plan it picked; this runs on
+   * the explain thread.
+   */
+  private void explain(Running started, String requestId) {
+    try {
+      Document explanation = explainClient.getDatabase(started.database).runCommand(
+        new BsonDocument("explain", explainable(started.command)).append("verbosity", new BsonString("queryPlanner")));
+      Object plan = explanation.get("queryPlanner") instanceof Document
+        ? ((Document) explanation.get("queryPlanner")).get("winningPlan")
+        : null;
+      String stages = plan instanceof Document ? planStages((Document) plan) : "?";
+      if (stages.contains("COLLSCAN")) {
+        LOGGER.warn("Slow {} (request {}) scans the whole collection: {}", started.key, requestId, stages);
+      } else {
+        LOGGER.info("Slow {} (request {}) plan: {}", started.key, requestId, stages);
+      }
+    } catch (RuntimeException e) {
+      LOGGER.info("Couldn't explain slow {} (request {}): {}", started.key, requestId, e.getMessage());
+    }
+  }
+
+  /**
+   * The stages of a query plan, from the last one back to the first (with
+   * the index each index scan used), like `FETCH <- IXSCAN(owner_1__id_1)`.
+   * The plan's filters and index bounds hold the query's values, so they're
+   * left out.
+   *
+   * @param plan the `winningPlan` of an explanation
+   * @return the plan's stages
+   */
+  static String planStages(Document plan) {
+    // Newer servers wrap the plan, next to the slot-based engine's version of it.
+    if (plan.get("queryPlan") instanceof Document) {
+      return planStages((Document) plan.get("queryPlan"));
+    }
+    StringBuilder stages = new StringBuilder(String.valueOf(plan.get("stage")));
+    if (plan.containsKey("indexName")) {
+      stages.append('(').append(plan.get("indexName")).append(')');
+    }
+    if (plan.get("inputStage") instanceof Document) {
+      stages.append(" <- ").append(planStages((Document) plan.get("inputStage")));
+    } else if (plan.get("inputStages") instanceof List<?>) {
+      StringBuilder branches = new StringBuilder();
+      for (Object input : (List<?>) plan.get("inputStages")) {
+        if (input instanceof Document) {
+          branches.append(branches.length() == 0 ? "" : ", ").append(planStages((Document) input));
+        }
+      }
+      stages.append(" <- [").append(branches).append(']');
+    }
+    return stages.toString();
+  }
+
+  /**
+   * The command without the session and routing fields the driver added.
+   */
+  private static BsonDocument explainable(BsonDocument command) {
+    BsonDocument stripped = new BsonDocument();
+    for (Map.Entry<String, BsonValue> field : command.entrySet()) {
+      if (!SESSION_FIELDS.contains(field.getKey())) {
+        stripped.append(field.getKey(), field.getValue());
+      }
+    }
+    return stripped;
+  }
+
+  /**
+   * The number of documents in a reply: the batch of a cursor, or the `n`
+   * of a write or count.
+   */
+  private static long documentsIn(BsonDocument response) {
+    BsonDocument cursor = response.getDocument("cursor", null);
+    if (cursor != null) {
+      BsonArray batch = cursor.containsKey("firstBatch")
+        ? cursor.getArray("firstBatch")
+        : cursor.getArray("nextBatch", new BsonArray());
+      return batch.size();
+    }
+    BsonValue n = response.get("n");
+    return n != null && n.isNumber() ? n.asNumber().longValue() : 0;
+  }
+
+  /**
+   * @return the totals for each collection and command, sorted by key
+   */
+  List<Map<String, Object>> commandStats() {
+    List<Map<String, Object>> result = new ArrayList<>();
+    for (Map.Entry<String, CommandStats> entry : new TreeMap<>(stats).entrySet()) {
+      CommandStats commandStats = entry.getValue();
+      Map<String, Object> summary = new LinkedHashMap<>();
+      int dot = entry.getKey().lastIndexOf('.');
+      summary.put("collection", entry.getKey().substring(0, dot));
+      summary.put("command", entry.getKey().substring(dot + 1));
+      summary.put("calls", commandStats.calls.sum());
+      summary.put("failures", commandStats.failures.sum());
+      summary.put("totalMillis", TimeUnit.NANOSECONDS.toMillis(commandStats.totalNanos.sum()));
+      summary.put("maxMillis", TimeUnit.NANOSECONDS.toMillis(commandStats.maxNanos.get()));
+      summary.put("documents", commandStats.documents.sum());
+      result.add(summary);
+    }
+    return result;
+  }
+
+  /**
+   * Set the JSON body of the response to the totals for each collection
+   * and command.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getCommandStats(Context ctx) {
+    ctx.json(commandStats());
+    ctx.status(HttpStatus.OK);
+  }
+
+  @Override
+  public void addRoutes(Javalin server) {
+    server.get(API_COMMANDS, this::getCommandStats);
+  }
+}
@@ -21,7 +21,7 @@ import io.javalin.Javalin;
  * Note that this interface definition is _complete_ and you shouldn't need to
  * add anything to it. You just need to make sure that any new controllers
  * you implement also implement this interface, providing their own `addRoutes()`
- * method.
+ * method, and (if they query the database) their own `declareIndexes()` method.
  */
 public interface Controller {
   /**
@@ -35,4 +35,19 @@ public interface Controller {
    * @param server The Javalin server to add routes to
    */
   void addRoutes(Javalin server);
+
+  /**
+   * Declare the database indexes this controller's queries need.
+   *
+   * The server hands every controller the same `IndexManager` before it
+   * starts, and then creates any declared indexes that are missing. A
+   * controller whose filters or sorts touch the database should declare
+   * an index for each of them here, so none of its queries fall back to
+   * a collection scan. By default a controller declares nothing.
+   *
+   * @param indexes The index manager to add declarations to
+   */
+  default void declareIndexes(IndexManager indexes) {
+    // Controllers that don't query the database don't need any indexes.
+  }
 }
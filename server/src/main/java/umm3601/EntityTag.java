@@ -0,0 +1,105 @@
+package umm3601;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Strong entity tags (`ETag`s) for read endpoints, and the `If-None-Match`
+ * handling that goes with them.
+ *
+ * A tag is derived from the version of the collection a response was read
+ * from (see `CollectionVersion`) and the query that produced it, not from
+ * the response body. So a handler can compute the tag, and answer
+ * `304 Not Modified`, before it has gone to the database or serialized
+ * anything. The same query against the same version always gives the same
+ * bytes, which is what makes the tag strong.
+ *
+ * Since versions are only bumped by the controllers, a change made directly
+ * in the database (rather than through the API) isn't noticed until the
+ * next write through the API or the next restart.
+ */
+public final class EntityTag {
+
+  // The first 12 bytes of the digest; that's plenty to tell queries apart,
+  // and encodes to 16 characters with no padding.
+  private static final int DIGEST_BYTES = 12;
+
+  private EntityTag() {
+  }
+
+  /**
+   * Build the tag for the response to a query.
+   *
+   * @param version the version of the collection the query runs against
+   * @param parts the filter, sort, limit, etc. that make up the query
+   *   (normalized the same way as `ResponseCache.queryKey`)
+   * @return a quoted, strong entity tag
+   */
+  public static String of(long version, Object... parts) {
+    byte[] digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256")
+        .digest(ResponseCache.queryKey(version, parts).getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-256
+      throw new IllegalStateException(e);
+    }
+    byte[] prefix = new byte[DIGEST_BYTES];
+    System.arraycopy(digest, 0, prefix, 0, DIGEST_BYTES);
+    return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(prefix) + "\"";
+  }
+
+  /**
+   * Answer `304 Not Modified` if the client already has the response
+   * tagged `etag`.
+   *
+   * If this returns true the response is complete, and the handler should
+   * return without doing anything else. Otherwise nothing about the
+   * response has been changed, and the handler should send `etag` (in the
+   * `ETag` header) along with its response.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param etag the tag of the response the handler would send
+   * @return true if the client's copy is current and a 304 was sent
+   */
+  public static boolean notModified(Context ctx, String etag) {
+    if (!matches(ctx.header(Header.IF_NONE_MATCH), etag)) {
+      return false;
+    }
+    ctx.header(Header.ETAG, etag);
+    ctx.status(HttpStatus.NOT_MODIFIED);
+    return true;
+  }
+
+  /**
+   * Check an `If-None-Match` header against a tag.
+   *
+   * `If-None-Match` uses the weak comparison, so a `W/` prefix on any of
+   * the client's tags is ignored.
+   *
+   * @param ifNoneMatch the value of the `If-None-Match` header, or null
+   * @param etag the (quoted) tag to look for
+   * @return true if the header is `*` or lists `etag`
+   */
+  static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      String tag = candidate.trim();
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if (tag.equals("*") || tag.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,195 @@
+package umm3601;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.javalin.Javalin;
+import io.javalin.http.ConflictResponse;
+import io.javalin.http.Context;
+import io.javalin.http.ForbiddenResponse;
+import io.javalin.http.HttpStatus;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
+/**
+ * Starts, stops, and dumps a Java Flight Recorder recording on request, so
+ * we can look inside the server when latency spikes in production without
+ * restarting it:
+ *
+ * - `POST /api/admin/jfr/start` starts recording (409 if it already is);
+ * - `POST /api/admin/jfr/dump` writes what's been recorded so far to a new
+ *   file in the recording directory, and responds with its name;
+ * - `POST /api/admin/jfr/stop` stops recording (and throws it away; dump it
+ *   first to keep it);
+ * - `GET /api/admin/jfr` says whether it's recording.
+ *
+ * These routes have no authentication, so they're only added when the
+ * server is started with `JFR_ADMIN=true` (see `Main`), and they refuse
+ * (403) requests that don't come from this machine.
+ *
+ * The recording uses JFR's low-overhead "default" settings, plus every
+ * `HttpRequestEvent` and `MongoCommandEvent`. It's bounded by age and size,
+ * so leaving it on doesn't fill the disk: JFR throws away the oldest data
+ * once the recording is older than `maxAge` or bigger than `maxBytes`.
+ */
+public class FlightRecordings implements Controller {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(FlightRecordings.class);
+
+  private static final String API_JFR = "/api/admin/jfr";
+  private static final String SETTINGS = "default";
+  private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+  private final Path directory;
+  private final Duration maxAge;
+  private final long maxBytes;
+
+  // The running recording, or null if there isn't one; only touched while
+  // holding this object's lock.
+  private Recording recording;
+
+  /**
+   * Construct a controller for flight recordings.
+   *
+   * @param directory where recordings are dumped
+   * @param maxAge the most recent stretch of time a recording keeps
+   * @param maxBytes the most a recording keeps, in bytes
+   */
+  public FlightRecordings(Path directory, Duration maxAge, long maxBytes) {
+    this.directory = directory;
+    this.maxAge = maxAge;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Start recording.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public synchronized void startRecording(Context ctx) {
+    if (recording != null) {
+      throw new ConflictResponse("A flight recording is already running");
+    }
+    Configuration settings;
+    try {
+      settings = Configuration.getConfiguration(SETTINGS);
+    } catch (IOException | ParseException e) {
+      throw new IllegalStateException("Couldn't load the JFR settings " + SETTINGS, e);
+    }
+    recording = new Recording(settings);
+    recording.setName("umm3601");
+    recording.setToDisk(true);
+    recording.setMaxAge(maxAge);
+    recording.setMaxSize(maxBytes);
+    recording.enable(HttpRequestEvent.class);
+    recording.enable(MongoCommandEvent.class);
+    recording.start();
+    LOGGER.info("Started a flight recording (keeping up to {} or {} bytes)", maxAge, maxBytes);
+
+    ctx.json(status());
+    ctx.status(HttpStatus.CREATED);
+  }
+
+  /**
+   * Write what's been recorded so far to a new file.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public synchronized void dumpRecording(Context ctx) {
+    if (recording == null) {
+      throw new ConflictResponse("No flight recording is running");
+    }
+    Path file = directory.resolve("server-" + LocalDateTime.now().format(FILE_TIME) + ".jfr");
+    try {
+      Files.createDirectories(directory);
+      recording.dump(file);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    LOGGER.info("Dumped the flight recording to {}", file);
+
+    ctx.json(Map.of("file", file.toString()));
+    ctx.status(HttpStatus.CREATED);
+  }
+
+  /**
+   * Stop recording, throwing away what was recorded.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public synchronized void stopRecording(Context ctx) {
+    if (recording == null) {
+      throw new ConflictResponse("No flight recording is running");
+    }
+    recording.close();
+    recording = null;
+    LOGGER.info("Stopped the flight recording");
+
+    ctx.json(status());
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Say whether it's recording.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public synchronized void getRecording(Context ctx) {
+    ctx.json(status());
+    ctx.status(HttpStatus.OK);
+  }
+
+  private Map<String, Object> status() {
+    Map<String, Object> status = new LinkedHashMap<>();
+    status.put("recording", recording != null);
+    if (recording != null) {
+      status.put("startTime", recording.getStartTime().toString());
+    }
+    status.put("directory", directory.toString());
+    status.put("maxAgeSeconds", maxAge.toSeconds());
+    status.put("maxBytes", maxBytes);
+    return status;
+  }
+
+  /**
+   * Refuse a request that didn't come from this machine. This guards every
+   * admin route (those under `/api/admin`), not just the recording ones.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public static void requireLoopback(Context ctx) {
+    String address = ctx.req().getRemoteAddr();
+    try {
+      // The address is always numeric, so this doesn't look anything up.
+      if (address != null && InetAddress.getByName(address).isLoopbackAddress()) {
+        return;
+      }
+    } catch (UnknownHostException e) {
+      // Not an address we can check, so it's refused below.
+    }
+    throw new ForbiddenResponse("Admin routes can only be used from the server's own machine");
+  }
+
+  @Override
+  public void addRoutes(Javalin server) {
+    server.before(API_JFR, FlightRecordings::requireLoopback);
+    server.before(API_JFR + "/*", FlightRecordings::requireLoopback);
+    server.get(API_JFR, this::getRecording);
+    server.post(API_JFR + "/start", this::startRecording);
+    server.post(API_JFR + "/dump", this::dumpRecording);
+    server.post(API_JFR + "/stop", this::stopRecording);
+  }
+}
@@ -0,0 +1,78 @@
+package umm3601;
+
+import io.javalin.http.Context;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A Java Flight Recorder event for each HTTP request, with its method,
+ * route template, status, and request ID (see `RequestId`), so a recording
+ * (see `FlightRecordings`) shows which requests were running during, say,
+ * a GC pause or a lock contention spike.
+ *
+ * `Server` calls `begin` before every request and `end` after it. When
+ * nothing is recording, both are next to free: JFR compiles `begin`,
+ * `end`, and `commit` down to nothing, and the fields are only filled in
+ * for events that will actually be written.
+ */
+@Name("umm3601.HttpRequest")
+@Label("HTTP Request")
+@Category({ "umm3601", "HTTP" })
+@Description("An HTTP request handled by the server")
+@StackTrace(false)
+@SuppressWarnings("checkstyle:visibilitymodifier")
+final class HttpRequestEvent extends Event {
+
+  static final String ATTRIBUTE = "httpRequestEvent";
+
+  @Label("Method")
+  String method;
+
+  @Label("Route")
+  String route;
+
+  @Label("Status")
+  int status;
+
+  @Label("Request ID")
+  String requestId;
+
+  /**
+   * Start the event for a request; `Server` runs this before every request.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  static void begin(Context ctx) {
+    HttpRequestEvent event = new HttpRequestEvent();
+    event.begin();
+    ctx.attribute(ATTRIBUTE, event);
+  }
+
+  /**
+   * Finish the event for a request, and write it if JFR wants it; `Server`
+   * runs this after every request.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  static void end(Context ctx) {
+    HttpRequestEvent event = ctx.attribute(ATTRIBUTE);
+    if (event == null) {
+      return;
+    }
+    event.end();
+    if (event.shouldCommit()) {
+      String path = ctx.endpointHandlerPath();
+      event.method = ctx.method().name();
+      event.route = path == null || path.isEmpty() ? Metrics.UNMATCHED_ROUTE : path;
+      event.status = ctx.statusCode();
+      // Read from the response, since an async request may finish on
+      // another thread than the one `RequestId` knows it on.
+      event.requestId = ctx.res().getHeader(RequestId.HEADER);
+      event.commit();
+    }
+  }
+}
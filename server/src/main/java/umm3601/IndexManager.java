@@ -0,0 +1,198 @@
+package umm3601;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Collation;
+import com.mongodb.client.model.CollationStrength;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Keeps the indexes in the database in line with the queries the
+ * controllers actually issue.
+ *
+ * Each `Controller` declares the indexes its filters and sorts need (via
+ * `Controller#declareIndexes()`), and when the server starts up
+ * `reconcile()` creates any that are missing. Indexes that are in the
+ * database but that nobody declared are left alone, but logged, since they
+ * usually mean the declarations and the database have drifted apart.
+ *
+ * The indexes that have been applied are listed at `GET /api/indexes`.
+ */
+public class IndexManager implements Controller {
+
+  private static final String API_INDEXES = "/api/indexes";
+
+  // The index MongoDB creates on `_id` for every collection.
+  private static final String DEFAULT_INDEX_NAME = "_id_";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(IndexManager.class);
+
+  private final MongoDatabase database;
+
+  // The declared indexes, grouped by collection name.
+  private final Map<String, List<IndexModel>> declared = new LinkedHashMap<>();
+
+  // The key patterns of the indexes reconciled so far, grouped by collection name.
+  private final Map<String, List<String>> applied = new LinkedHashMap<>();
+
+  /**
+   * Construct an index manager for the given database.
+   *
+   * @param database the database whose collections will be indexed, or
+   *   null if there isn't one (and so nothing will be declared)
+   */
+  public IndexManager(MongoDatabase database) {
+    this.database = database;
+  }
+
+  /**
+   * Declare that `collection` needs an index on `keys`.
+   *
+   * @param collection the name of the collection to index
+   * @param keys the index key pattern, e.g., `Indexes.ascending("owner", "_id")`
+   */
+  public void declare(String collection, Bson keys) {
+    declare(collection, keys, new IndexOptions());
+  }
+
+  /**
+   * Declare that `collection` needs an index on `keys`, built with the
+   * given options (e.g., a collation).
+   *
+   * @param collection the name of the collection to index
+   * @param keys the index key pattern
+   * @param options the options to create the index with
+   */
+  public void declare(String collection, Bson keys, IndexOptions options) {
+    IndexModel model = new IndexModel(keys, options);
+    // Mongo names an index after its keys, so an index with a collation needs
+    // its own name or it would clash with one on the same keys without it.
+    if (options.getName() == null && options.getCollation() != null) {
+      options.name(keyPattern(model).replace('@', '_').replace('/', '_'));
+    }
+    declared.computeIfAbsent(collection, name -> new ArrayList<>()).add(model);
+  }
+
+  /**
+   * Bring the database in line with the declared indexes.
+   *
+   * For each collection this compares the declared key patterns with the
+   * indexes that already exist, creates the missing ones in a single
+   * `createIndexes` call, and logs any existing indexes that weren't
+   * declared. Calling this again when nothing has changed does no writes.
+   */
+  public void reconcile() {
+    for (Map.Entry<String, List<IndexModel>> entry : declared.entrySet()) {
+      String collectionName = entry.getKey();
+      MongoCollection<Document> collection = database.getCollection(collectionName);
+
+      List<String> existing = new ArrayList<>();
+      for (Document index : collection.listIndexes()) {
+        String existingPattern = keyPattern(index.get("key", Document.class))
+          + collationSuffix(index.get("collation", Document.class));
+        existing.add(existingPattern);
+        boolean isDeclared = entry.getValue().stream().anyMatch(model -> keyPattern(model).equals(existingPattern));
+        if (!isDeclared && !DEFAULT_INDEX_NAME.equals(index.getString("name"))) {
+          LOGGER.warn("Index {} on {} exists but isn't declared by any controller", existingPattern, collectionName);
+        }
+      }
+
+      List<IndexModel> missing = entry.getValue().stream()
+        .filter(model -> !existing.contains(keyPattern(model)))
+        .collect(Collectors.toList());
+      if (!missing.isEmpty()) {
+        LOGGER.info("Creating {} missing index(es) on {}: {}", missing.size(), collectionName,
+          missing.stream().map(IndexManager::keyPattern).collect(Collectors.toList()));
+        collection.createIndexes(missing);
+      }
+
+      applied.put(collectionName,
+        entry.getValue().stream().map(IndexManager::keyPattern).collect(Collectors.toList()));
+    }
+  }
+
+  /**
+   * Get the indexes that `reconcile()` has made sure exist.
+   *
+   * @return the key patterns of the applied indexes, grouped by collection name
+   */
+  public Map<String, List<String>> appliedIndexes() {
+    return Map.copyOf(applied);
+  }
+
+  /**
+   * Set the JSON body of the response to be the applied indexes.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getIndexes(Context ctx) {
+    ctx.json(appliedIndexes());
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Setup the route that lists the applied indexes.
+   *
+   * @param server The Javalin server instance
+   */
+  public void addRoutes(Javalin server) {
+    server.get(API_INDEXES, this::getIndexes);
+  }
+
+  private static String keyPattern(IndexModel model) {
+    BsonDocument keys = model.getKeys()
+      .toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+    Collation collation = model.getOptions().getCollation();
+    if (collation == null) {
+      return keyPattern(Document.parse(keys.toJson()));
+    }
+    CollationStrength strength = Objects.requireNonNullElse(collation.getStrength(), CollationStrength.TERTIARY);
+    return keyPattern(Document.parse(keys.toJson()))
+      + "@" + collation.getLocale() + "/" + strength.getIntRepresentation();
+  }
+
+  /**
+   * Two indexes on the same keys with different collations are different
+   * indexes (and only one of them will serve a given query), so the
+   * collation is part of what we compare, as `@locale/strength`.
+   */
+  private static String collationSuffix(Document collation) {
+    if (collation == null) {
+      return "";
+    }
+    return "@" + collation.getString("locale") + "/" + collation.getInteger("strength");
+  }
+
+  /**
+   * A canonical string for an index key pattern, like `owner_1__id_1`.
+   *
+   * Indexes created from the shell sometimes use doubles (`1.0`) where
+   * the driver uses ints, so we only look at the direction of numeric keys.
+   */
+  private static String keyPattern(Document keys) {
+    return keys.entrySet().stream()
+      .map(key -> key.getKey() + "_" + (key.getValue() instanceof Number
+        ? Integer.toString((int) Math.signum(((Number) key.getValue()).doubleValue()))
+        : key.getValue().toString()))
+      .collect(Collectors.joining("_"));
+  }
+}
@@ -0,0 +1,621 @@
+package umm3601;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Documents (as bytes) by ID, kept in an append-only log of memory-mapped
+ * segment files in a directory on this machine.
+ *
+ * Every write appends a record to the end of the active segment: a put
+ * holds the whole document, and a delete just its ID. When the active
+ * segment is full it's sealed (and flushed by the next `sync`), and a new
+ * one is started.
+ * Nothing is changed in place, so a crash can only tear the record being
+ * written; every record has a CRC, and a torn one (and anything after it)
+ * is dropped when the log is opened again.
+ *
+ * Where the latest version of each document is, is only kept in memory,
+ * and is rebuilt by reading through the log when it's opened. Old
+ * versions and deleted documents are cleared out by compaction, which
+ * copies the live records of all the sealed segments into one compacted
+ * file, `NAME-N.compacted` (which replaces every segment up to N), and
+ * then deletes them. It runs every `COMPACTION_INTERVAL` if at least half
+ * of what's in the sealed segments is garbage, and doesn't hold up writes.
+ *
+ * Writes return their position in the log, and `sync` waits for the log
+ * to be on disk up to a position. The writers waiting on `sync` share
+ * flushes (group commit): one of them flushes everything written so far
+ * while the rest wait, and a flush covers every write made before it
+ * started, so under load there are far fewer flushes than writes.
+ */
+public final class LogStore implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(LogStore.class);
+
+  static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+  static final Duration COMPACTION_INTERVAL = Duration.ofMinutes(1);
+
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String COMPACTED_SUFFIX = ".compacted";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  // A record is its length (not counting the header) and the CRC32 of the
+  // rest, then the operation, the length of the ID and the ID (in UTF-8),
+  // and, for a put, the document. A length of zero marks the end.
+  private static final int HEADER_SIZE = Integer.BYTES * 2;
+  private static final int ID_OFFSET = HEADER_SIZE + 1 + Short.BYTES;
+  private static final int MAX_ID_LENGTH = 0xFFFF;
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+
+  private final Path directory;
+  private final String name;
+  private final int segmentSize;
+
+  // The sealed segments, oldest first, and the one being written to.
+  private final List<Segment> sealed = new ArrayList<>();
+  private Segment active;
+  // The segments sealed since the last flush, which `sync` flushes first.
+  private final List<Segment> unflushed = new ArrayList<>();
+  // Where the latest version of each document that hasn't been deleted is.
+  private final Map<String, Location> locations = new HashMap<>();
+  // How many records have been written, which is the position of the last one.
+  private long appended;
+  private boolean closed;
+
+  // Held while flushing the active segment, so waiting writers share flushes.
+  private final Object syncLock = new Object();
+  // The position up to which the log is known to be on disk.
+  private volatile long synced;
+
+  // Held while compacting, so there's only one compaction at a time.
+  private final Object compactionLock = new Object();
+  private final ScheduledExecutorService compactor;
+
+  /**
+   * A segment file, mapped into memory.
+   */
+  private static final class Segment {
+    private Path path;
+    private final long number;
+    private final MappedByteBuffer buffer;
+    // Where the next record goes.
+    private int end;
+    // How much of it is known to be on disk; guarded by `syncLock`.
+    private int flushed;
+    // The size of the records in it that are the latest versions of their documents.
+    private long liveBytes;
+
+    private Segment(Path path, long number, MappedByteBuffer buffer) {
+      this.path = path;
+      this.number = number;
+      this.buffer = buffer;
+    }
+  }
+
+  /**
+   * Where a record is: its segment, and its offset and size in it.
+   */
+  private record Location(Segment segment, int offset, int size) {
+  }
+
+  /**
+   * Open (or start) the log called `name` in `directory`, with the default
+   * segment size and compaction interval.
+   *
+   * @param directory the directory the segment files are kept in
+   * @param name the name of the log, which starts the names of its files
+   * @throws IOException if the log can't be read, or is corrupt
+   */
+  public LogStore(Path directory, String name) throws IOException {
+    this(directory, name, DEFAULT_SEGMENT_SIZE, COMPACTION_INTERVAL);
+  }
+
+  /**
+   * Open (or start) the log called `name` in `directory`.
+   *
+   * @param directory the directory the segment files are kept in
+   * @param name the name of the log, which starts the names of its files
+   * @param segmentSize the size of each segment file, in bytes
+   * @param compactionInterval how often to check whether to compact
+   * @throws IOException if the log can't be read, or is corrupt
+   */
+  LogStore(Path directory, String name, int segmentSize, Duration compactionInterval) throws IOException {
+    this.directory = directory;
+    this.name = name;
+    this.segmentSize = segmentSize;
+    Files.createDirectories(directory);
+    open();
+
+    compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, name + "-log-compactor");
+      thread.setDaemon(true);
+      return thread;
+    });
+    compactor.scheduleWithFixedDelay(this::compactInBackground,
+      compactionInterval.toMillis(), compactionInterval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Find the files of the log, finish (or undo) any compaction that was
+   * cut short, and read through what's left to find every document.
+   */
+  private void open() throws IOException {
+    List<Long> segmentNumbers = new ArrayList<>();
+    List<Long> compactedNumbers = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, name + "-*")) {
+      for (Path file : files) {
+        String fileName = file.getFileName().toString();
+        if (number(fileName, COMPACTED_SUFFIX + TEMP_SUFFIX) >= 0) {
+          // A compaction that didn't finish; the segments it was copying are still there.
+          Files.delete(file);
+        } else if (number(fileName, COMPACTED_SUFFIX) >= 0) {
+          compactedNumbers.add(number(fileName, COMPACTED_SUFFIX));
+        } else if (number(fileName, SEGMENT_SUFFIX) >= 0) {
+          segmentNumbers.add(number(fileName, SEGMENT_SUFFIX));
+        }
+      }
+    }
+
+    // A compacted file replaces every segment (and older compacted file) up
+    // to its number; any still here were left by a compaction that finished
+    // just before a crash.
+    long compactedNumber = compactedNumbers.stream().mapToLong(Long::longValue).max().orElse(0);
+    for (long number : compactedNumbers) {
+      if (number < compactedNumber) {
+        Files.delete(directory.resolve(fileName(number, COMPACTED_SUFFIX)));
+      }
+    }
+    for (long number : segmentNumbers) {
+      if (number <= compactedNumber) {
+        Files.delete(directory.resolve(fileName(number, SEGMENT_SUFFIX)));
+      }
+    }
+    segmentNumbers.removeIf(number -> number <= compactedNumber);
+    Collections.sort(segmentNumbers);
+
+    if (!compactedNumbers.isEmpty()) {
+      Path path = directory.resolve(fileName(compactedNumber, COMPACTED_SUFFIX));
+      Segment compacted = new Segment(path, compactedNumber, map(path, -1));
+      replay(compacted, false);
+      sealed.add(compacted);
+    }
+    for (int i = 0; i < segmentNumbers.size(); i++) {
+      Path path = directory.resolve(fileName(segmentNumbers.get(i), SEGMENT_SUFFIX));
+      Segment segment = new Segment(path, segmentNumbers.get(i), map(path, -1));
+      boolean last = i == segmentNumbers.size() - 1;
+      replay(segment, last);
+      if (last) {
+        active = segment;
+      } else {
+        sealed.add(segment);
+      }
+    }
+    if (active == null) {
+      active = createSegment(compactedNumber + 1);
+    }
+    LOGGER.info("Opened the {} log in {}, with {} documents in {} files",
+      name, directory, locations.size(), sealed.size() + 1);
+  }
+
+  /**
+   * Read the records of a segment in order, updating where each document is.
+   *
+   * @param segment the segment to read
+   * @param last whether it's the last segment, where a torn record is
+   *   expected after a crash; anywhere else it means the log is corrupt
+   */
+  private void replay(Segment segment, boolean last) throws IOException {
+    MappedByteBuffer buffer = segment.buffer;
+    CRC32 crc = new CRC32();
+    int offset = 0;
+    while (offset + HEADER_SIZE <= buffer.capacity()) {
+      int length = buffer.getInt(offset);
+      if (length == 0) {
+        break;
+      }
+      boolean whole = length > 0 && length <= buffer.capacity() - offset - HEADER_SIZE;
+      if (whole) {
+        crc.reset();
+        crc.update(buffer.slice(offset + HEADER_SIZE, length));
+        whole = (int) crc.getValue() == buffer.getInt(offset + Integer.BYTES);
+      }
+      if (!whole) {
+        if (!last) {
+          throw new IOException("The record at " + offset + " in " + segment.path + " is corrupt");
+        }
+        LOGGER.warn("Dropping the torn record at {} in {}", offset, segment.path);
+        break;
+      }
+      apply(segment, offset, HEADER_SIZE + length);
+      offset += HEADER_SIZE + length;
+    }
+    if (last) {
+      // Clear anything after the last whole record (what's left of a torn
+      // write), so it can't be mistaken for part of a record written later,
+      // and make sure that's on disk before anything is written after it.
+      boolean cleared = false;
+      for (int i = offset; i < buffer.capacity(); i++) {
+        if (buffer.get(i) != 0) {
+          buffer.put(i, (byte) 0);
+          cleared = true;
+        }
+      }
+      if (cleared) {
+        buffer.force(offset, buffer.capacity() - offset);
+      }
+    }
+    segment.end = offset;
+    segment.flushed = offset;
+  }
+
+  /**
+   * Note where a record's document is now (or that it's been deleted).
+   */
+  private void apply(Segment segment, int offset, int size) {
+    String id = readId(segment.buffer, offset);
+    Location previous;
+    if (segment.buffer.get(offset + HEADER_SIZE) == PUT) {
+      previous = locations.put(id, new Location(segment, offset, size));
+      segment.liveBytes += size;
+    } else {
+      previous = locations.remove(id);
+    }
+    if (previous != null) {
+      previous.segment.liveBytes -= previous.size;
+    }
+  }
+
+  /**
+   * @return the number of documents in the log
+   */
+  public synchronized int size() {
+    return locations.size();
+  }
+
+  /**
+   * @param id the ID of a document
+   * @return the latest version of the document, or null if there isn't
+   *   one with that ID
+   */
+  public synchronized byte[] get(String id) {
+    Location location = locations.get(id);
+    return location == null ? null : readDocument(location);
+  }
+
+  /**
+   * Pass the latest version of every document to `action`, in no
+   * particular order; this is how a reader fills its indexes.
+   *
+   * @param action what to do with each ID and document
+   */
+  public void forEach(BiConsumer<String, byte[]> action) {
+    List<Map.Entry<String, Location>> entries;
+    synchronized (this) {
+      entries = List.copyOf(locations.entrySet());
+    }
+    for (Map.Entry<String, Location> entry : entries) {
+      action.accept(entry.getKey(), readDocument(entry.getValue()));
+    }
+  }
+
+  /**
+   * Write a new version of a document; it's only on disk once `sync` has
+   * returned.
+   *
+   * @param id the ID of the document
+   * @param document the document
+   * @return the position of the write in the log, for `sync`
+   */
+  public synchronized long put(String id, byte[] document) {
+    Location location = append(PUT, id, document);
+    Location previous = locations.put(id, location);
+    location.segment.liveBytes += location.size;
+    if (previous != null) {
+      previous.segment.liveBytes -= previous.size;
+    }
+    return appended;
+  }
+
+  /**
+   * Delete a document; the delete is only on disk once `sync` has
+   * returned.
+   *
+   * @param id the ID of the document
+   * @return the position of the delete in the log, for `sync` (which is 0,
+   *   and needn't be waited for, if there was no such document)
+   */
+  public synchronized long delete(String id) {
+    Location previous = locations.remove(id);
+    if (previous == null) {
+      return 0;
+    }
+    previous.segment.liveBytes -= previous.size;
+    append(DELETE, id, new byte[0]);
+    return appended;
+  }
+
+  /**
+   * Wait for the log to be on disk up to `position`, flushing it if no
+   * other writer is already doing so.
+   *
+   * @param position a position from `put` or `delete`
+   */
+  public void sync(long position) {
+    if (synced >= position) {
+      return;
+    }
+    synchronized (syncLock) {
+      // A flush that started after our write (while we waited) covers it.
+      if (synced >= position) {
+        return;
+      }
+      List<Segment> segments;
+      int[] ends;
+      long upTo;
+      synchronized (this) {
+        segments = new ArrayList<>(unflushed);
+        segments.add(active);
+        ends = segments.stream().mapToInt(segment -> segment.end).toArray();
+        upTo = appended;
+      }
+      // Writes carry on in the rest of the active segment (or a new one)
+      // while these are flushed.
+      for (int i = 0; i < segments.size(); i++) {
+        Segment segment = segments.get(i);
+        segment.buffer.force(segment.flushed, ends[i] - segment.flushed);
+        segment.flushed = ends[i];
+      }
+      synchronized (this) {
+        // Only the ones that were already sealed are done with; the active
+        // one may have been sealed since, with more written to it.
+        unflushed.removeAll(segments.subList(0, segments.size() - 1));
+      }
+      synced = upTo;
+    }
+  }
+
+  /**
+   * Write a record to the end of the active segment, starting a new one if
+   * it doesn't fit.
+   */
+  private Location append(byte operation, String id, byte[] document) {
+    if (closed) {
+      throw new IllegalStateException("The " + name + " log is closed");
+    }
+    byte[] idBytes = id.getBytes(UTF_8);
+    if (idBytes.length > MAX_ID_LENGTH) {
+      throw new IllegalArgumentException("The ID " + id + " is too long");
+    }
+    int size = ID_OFFSET + idBytes.length + document.length;
+    if (size > segmentSize) {
+      throw new IllegalArgumentException("A document of " + document.length + " bytes doesn't fit in a segment");
+    }
+    if (active.end + size > active.buffer.capacity()) {
+      roll();
+    }
+
+    ByteBuffer record = ByteBuffer.allocate(size);
+    record.putInt(size - HEADER_SIZE).putInt(0)
+      .put(operation).putShort((short) idBytes.length).put(idBytes).put(document);
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), HEADER_SIZE, size - HEADER_SIZE);
+    record.putInt(Integer.BYTES, (int) crc.getValue());
+
+    Location location = new Location(active, active.end, size);
+    active.buffer.put(active.end, record.array());
+    active.end += size;
+    appended++;
+    return location;
+  }
+
+  /**
+   * Seal the active segment, and start a new one. The sealed segment is
+   * flushed by the next `sync`, which (unlike this) doesn't hold up writes.
+   */
+  private void roll() {
+    sealed.add(active);
+    unflushed.add(active);
+    try {
+      active = createSegment(active.number + 1);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Compact the sealed segments, if at least half of what's in them is
+   * garbage: copy their live records into one compacted file, and delete
+   * them. Writes carry on (in the active segment) while it runs.
+   *
+   * @return whether there was anything to compact
+   * @throws IOException if the compacted file can't be written
+   */
+  public boolean compact() throws IOException {
+    synchronized (compactionLock) {
+      List<Segment> sources;
+      List<Map.Entry<String, Location>> live = new ArrayList<>();
+      synchronized (this) {
+        long usedBytes = sealed.stream().mapToLong(segment -> segment.end).sum();
+        long liveBytes = sealed.stream().mapToLong(segment -> segment.liveBytes).sum();
+        if (closed || usedBytes == liveBytes || usedBytes - liveBytes < liveBytes) {
+          return false;
+        }
+        sources = List.copyOf(sealed);
+        Set<Segment> fromSources = Collections.newSetFromMap(new IdentityHashMap<>());
+        fromSources.addAll(sources);
+        for (Map.Entry<String, Location> entry : locations.entrySet()) {
+          if (fromSources.contains(entry.getValue().segment)) {
+            live.add(Map.entry(entry.getKey(), entry.getValue()));
+          }
+        }
+      }
+
+      // The sealed segments don't change, so they can be read without the lock.
+      long number = sources.get(sources.size() - 1).number;
+      long size = live.stream().mapToLong(entry -> entry.getValue().size).sum();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("There's too much in the " + name + " log to compact it into one file");
+      }
+      Path temp = directory.resolve(fileName(number, COMPACTED_SUFFIX + TEMP_SUFFIX));
+      Files.deleteIfExists(temp);
+      Segment compacted = new Segment(temp, number, map(temp, size));
+      List<Location> moved = new ArrayList<>(live.size());
+      for (Map.Entry<String, Location> entry : live) {
+        Location from = entry.getValue();
+        compacted.buffer.put(compacted.end, from.segment.buffer, from.offset, from.size);
+        moved.add(new Location(compacted, compacted.end, from.size));
+        compacted.end += from.size;
+      }
+      compacted.flushed = compacted.end;
+      compacted.buffer.force();
+      Path path = directory.resolve(fileName(number, COMPACTED_SUFFIX));
+      Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      compacted.path = path;
+      syncDirectory();
+
+      synchronized (this) {
+        // Documents written (or deleted) since are already somewhere newer.
+        for (int i = 0; i < live.size(); i++) {
+          String id = live.get(i).getKey();
+          if (locations.get(id) == live.get(i).getValue()) {
+            locations.put(id, moved.get(i));
+            compacted.liveBytes += moved.get(i).size;
+          }
+        }
+        sealed.removeAll(sources);
+        sealed.add(0, compacted);
+      }
+      for (Segment source : sources) {
+        if (!source.path.equals(path)) {
+          Files.deleteIfExists(source.path);
+        }
+      }
+      LOGGER.info("Compacted {} files of the {} log into {}, of {} bytes", sources.size(), name, path, size);
+      return true;
+    }
+  }
+
+  private void compactInBackground() {
+    try {
+      compact();
+    } catch (IOException | RuntimeException e) {
+      LOGGER.error("Couldn't compact the {} log", name, e);
+    }
+  }
+
+  /**
+   * Stop compacting, and wait for everything written to be on disk.
+   */
+  @Override
+  public void close() {
+    compactor.shutdown();
+    synchronized (compactionLock) {
+      long position;
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        position = appended;
+      }
+      sync(position);
+    }
+  }
+
+  private Segment createSegment(long number) throws IOException {
+    Path path = directory.resolve(fileName(number, SEGMENT_SUFFIX));
+    Segment segment = new Segment(path, number, map(path, segmentSize));
+    syncDirectory();
+    return segment;
+  }
+
+  /**
+   * Map a file into memory, creating it (with room for `size` bytes) if
+   * `size` isn't -1.
+   */
+  private static MappedByteBuffer map(Path path, long size) throws IOException {
+    if (size == -1) {
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        return channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+      }
+    }
+    try (FileChannel channel = FileChannel.open(path,
+        StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+
+  /**
+   * Flush the directory itself, so the files just created (or renamed) in
+   * it are still there after a crash.
+   */
+  private void syncDirectory() {
+    try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      // Not every platform lets a directory be opened; there, it's up to the file system.
+      LOGGER.debug("Couldn't flush {}", directory, e);
+    }
+  }
+
+  private String fileName(long number, String suffix) {
+    return String.format("%s-%010d%s", name, number, suffix);
+  }
+
+  /**
+   * @return the number in the name of one of this log's files with the
+   *   given suffix, or -1 if it isn't one
+   */
+  private long number(String fileName, String suffix) {
+    String prefix = name + "-";
+    if (!fileName.startsWith(prefix) || !fileName.endsWith(suffix)
+        || fileName.length() == prefix.length() + suffix.length()) {
+      return -1;
+    }
+    String number = fileName.substring(prefix.length(), fileName.length() - suffix.length());
+    return number.chars().allMatch(Character::isDigit) ? Long.parseLong(number) : -1;
+  }
+
+  private static String readId(ByteBuffer buffer, int offset) {
+    byte[] id = new byte[Short.toUnsignedInt(buffer.getShort(offset + HEADER_SIZE + 1))];
+    buffer.get(offset + ID_OFFSET, id);
+    return new String(id, UTF_8);
+  }
+
+  private static byte[] readDocument(Location location) {
+    ByteBuffer buffer = location.segment.buffer;
+    int start = ID_OFFSET + Short.toUnsignedInt(buffer.getShort(location.offset + HEADER_SIZE + 1));
+    byte[] document = new byte[location.size - start];
+    buffer.get(location.offset + start, document);
+    return document;
+  }
+}
@@ -1,36 +1,230 @@
 package umm3601;
 
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoClientSettings;
 import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoDatabase;
 
+import io.javalin.json.JavalinJackson;
+import umm3601.todo.LogTodoRepository;
+import umm3601.todo.MemoryTodoRepository;
+import umm3601.todo.MongoTodoRepository;
 import umm3601.todo.TodoController;
+import umm3601.todo.TodoRepository;
+import umm3601.user.LogUserRepository;
+import umm3601.user.MemoryUserRepository;
+import umm3601.user.MongoUserRepository;
 import umm3601.user.UserController;
+import umm3601.user.UserImporter;
+import umm3601.user.UserRepository;
 
 public class Main {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(Main.class);
+
+  static final String IMPORT_USERS_COMMAND = "import-users";
+
+  static final String BLOCKING_MODE = "blocking";
+  static final String ASYNC_MODE = "async";
+  static final String VIRTUAL_MODE = "virtual";
+
+  static final String MONGO_STORAGE = "mongo";
+  static final String MEMORY_STORAGE = "memory";
+  static final String LOG_STORAGE = "log";
+
+  // The default size of the Mongo connection pool in the virtual mode, where
+  // there's no thread pool to limit how many requests wait on it at once.
+  static final String VIRTUAL_MONGO_POOL_SIZE = "1000";
+
+  private static final long BYTES_PER_MB = 1024 * 1024;
+
   public static void main(String[] args) {
     // Get the MongoDB address and database name from environment variables and
     // if they aren't set, use the defaults of "localhost" and "dev".
     String mongoAddr = Main.getEnvOrDefault("MONGO_ADDR", "localhost");
     String databaseName = Main.getEnvOrDefault("MONGO_DB", "dev");
 
-    // Set up the MongoDB client
-    MongoClient mongoClient = Server.configureDatabase(mongoAddr);
+    // `EXECUTION_MODE` picks how requests wait on the database:
+    // - "blocking" (the default) uses the synchronous driver, holding one of
+    //   Jetty's (few hundred) request threads for the length of each query;
+    // - "async" reads users and todos with the reactive-streams driver,
+    //   handing the thread back while the query runs (see `AsyncMongo`);
+    // - "virtual" uses the synchronous driver, but runs every request on its
+    //   own virtual thread (see `VirtualThreadPool`).
+    // `MONGO_MAX_POOL_SIZE` sets how many connections each Mongo client may
+    // open (100 by default, or 1000 in the virtual mode).
+    String executionMode = Main.getEnvOrDefault("EXECUTION_MODE", BLOCKING_MODE);
+    if (!List.of(BLOCKING_MODE, ASYNC_MODE, VIRTUAL_MODE).contains(executionMode)) {
+      throw new IllegalArgumentException("Unknown EXECUTION_MODE " + executionMode);
+    }
+    boolean useVirtualThreads = executionMode.equals(VIRTUAL_MODE);
+    int maxPoolSize = Integer.parseInt(Main.getEnvOrDefault("MONGO_MAX_POOL_SIZE",
+      useVirtualThreads ? VIRTUAL_MONGO_POOL_SIZE : String.valueOf(Server.DEFAULT_MONGO_POOL_SIZE)));
+
+    // The command monitor times every database command, and logs (and
+    // explains) any query slower than `SLOW_QUERY_MILLIS` (default 100).
+    CommandMonitor commandMonitor = new CommandMonitor(Duration.ofMillis(Long.parseLong(Main.getEnvOrDefault(
+      "SLOW_QUERY_MILLIS", String.valueOf(CommandMonitor.DEFAULT_SLOW_QUERY.toMillis())))));
+
+    // `STORAGE` picks where the users and todos are kept:
+    // - "mongo" (the default) keeps them in the MongoDB database above;
+    // - "memory" keeps them in this JVM (see `MemoryCollection`), with no
+    //   database at all. It starts out empty, and forgets everything when
+    //   the server stops; fill it with `POST /api/todos/bulk` and
+    //   `POST /api/users/import`;
+    // - "log" keeps them in append-only logs (see `LogStore`) in the
+    //   directory `LOG_DIRECTORY` (default "data"), again with no database.
+    String storage = Main.getEnvOrDefault("STORAGE", MONGO_STORAGE);
+    if (!List.of(MONGO_STORAGE, MEMORY_STORAGE, LOG_STORAGE).contains(storage)) {
+      throw new IllegalArgumentException("Unknown STORAGE " + storage);
+    }
+    if (!storage.equals(MONGO_STORAGE)) {
+      if (executionMode.equals(ASYNC_MODE)) {
+        throw new IllegalArgumentException("The async execution mode only works with STORAGE=mongo");
+      }
+      if (storage.equals(MEMORY_STORAGE)) {
+        if (args.length > 0 && args[0].equals(IMPORT_USERS_COMMAND)) {
+          throw new IllegalArgumentException(IMPORT_USERS_COMMAND + " doesn't work with STORAGE=memory");
+        }
+        LOGGER.info("Running in the {} execution mode, with in-memory storage", executionMode);
+        startWithoutDatabase(new MemoryUserRepository(), new MemoryTodoRepository(), commandMonitor, useVirtualThreads);
+      } else {
+        startWithLogs(Path.of(Main.getEnvOrDefault("LOG_DIRECTORY", "data")), args, executionMode, commandMonitor,
+          useVirtualThreads);
+      }
+      return;
+    }
+
+    // Set up the MongoDB client. The async client (if there is one) gets the
+    // same settings, so `MONGO_MAX_POOL_SIZE` bounds its connections too.
+    MongoClientSettings mongoSettings = Server.mongoClientSettings(mongoAddr, maxPoolSize, commandMonitor);
+    MongoClient mongoClient = MongoClients.create(mongoSettings);
+    commandMonitor.explainWith(mongoClient);
     // Get the database
     MongoDatabase database = mongoClient.getDatabase(databaseName);
 
+    // `import-users FILE` loads the users in FILE (a JSON array or NDJSON)
+    // into the database, checking them like `POST /api/users` does, and
+    // exits without starting the server.
+    if (args.length == 2 && args[0].equals(IMPORT_USERS_COMMAND)) {
+      try {
+        importUsers(new MongoUserRepository(database), args[1]);
+      } finally {
+        mongoClient.close();
+      }
+      return;
+    }
+
+    AsyncMongo asyncMongo = null;
+    if (executionMode.equals(ASYNC_MODE)) {
+      asyncMongo = AsyncMongo.connect(mongoSettings, databaseName);
+      Runtime.getRuntime().addShutdownHook(new Thread(asyncMongo::close));
+    }
+    LOGGER.info("Running in the {} execution mode", executionMode);
+
     // The implementations of `Controller` used for the server. These will presumably
     // be one or more controllers, each of which implements the `Controller` interface.
     // You'll add your own controllers in `getControllers` as you create them.
-    final Controller[] controllers = Main.getControllers(database);
+    final Controller[] controllers = Main.getControllers(database, asyncMongo, commandMonitor);
+
+    // The index manager creates the indexes the controllers declare when the
+    // server starts up.
+    IndexManager indexManager = new IndexManager(database);
 
     // Construct the server
-    Server server = new Server(mongoClient, controllers);
+    Server server = new Server(mongoClient, indexManager, controllers, useVirtualThreads);
 
     // Start the server
     server.startServer();
   }
 
+  /**
+   * Start the server with the users and todos kept in logs in `directory`,
+   * or (with the `import-users` command) import users into them.
+   */
+  private static void startWithLogs(Path directory, String[] args, String executionMode,
+      CommandMonitor commandMonitor, boolean useVirtualThreads) {
+    LogUserRepository userRepository;
+    LogTodoRepository todoRepository;
+    try {
+      userRepository = new LogUserRepository(directory);
+      todoRepository = new LogTodoRepository(directory);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    if (args.length == 2 && args[0].equals(IMPORT_USERS_COMMAND)) {
+      try {
+        importUsers(userRepository, args[1]);
+      } finally {
+        userRepository.close();
+        todoRepository.close();
+      }
+      return;
+    }
+
+    // Everything written is already on disk; closing just stops the compactions cleanly.
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      userRepository.close();
+      todoRepository.close();
+    }));
+    LOGGER.info("Running in the {} execution mode, with logs in {}", executionMode, directory);
+    startWithoutDatabase(userRepository, todoRepository, commandMonitor, useVirtualThreads);
+  }
+
+  /**
+   * Start the server with the users and todos kept somewhere other than
+   * Mongo.
+   */
+  private static void startWithoutDatabase(UserRepository userRepository, TodoRepository todoRepository,
+      CommandMonitor commandMonitor, boolean useVirtualThreads) {
+    Controller[] controllers = Main.getControllers(userRepository, todoRepository, null, commandMonitor);
+    // Without a database there's no client to close, and no indexes to build.
+    new Server(null, new IndexManager(null), controllers, useVirtualThreads).startServer();
+  }
+
+  /**
+   * Import the users in a file into the database.
+   *
+   * `USER_IMPORT_BATCH_SIZE` (default 1000) users are written at a time,
+   * and `USER_IMPORT_WORKERS` (default: one per processor) threads check
+   * users and generate their avatars.
+   *
+   * @param userRepository where to import the users into
+   * @param fileName the name of a file with a JSON array of users, or
+   *   newline-delimited JSON users
+   */
+  static void importUsers(UserRepository userRepository, String fileName) {
+    int batchSize = Integer.parseInt(Main.getEnvOrDefault("USER_IMPORT_BATCH_SIZE", "1000"));
+    int workers = Integer.parseInt(Main.getEnvOrDefault("USER_IMPORT_WORKERS",
+      String.valueOf(Runtime.getRuntime().availableProcessors())));
+
+    try (InputStream in = new BufferedInputStream(new FileInputStream(fileName))) {
+      UserImporter.Result result = new UserController(userRepository,
+        ResponseCache.disabled("users"), ResponseCache.disabled("users"), null)
+        .importUsers(in, batchSize, workers);
+      if (result.error != null) {
+        LOGGER.error(result.error);
+      }
+      result.errors.forEach(LOGGER::warn);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
   /**
    * Get the value of an environment variable, or return a default value if it's not set.
    *
@@ -52,18 +246,85 @@ public class Main {
    *
    * @param database The MongoDB database object used by the controllers
    *               to access the database.
+   * @param asyncMongo The non-blocking reads the controllers use, or null
+   *               for them to block on `database`.
+   * @param commandMonitor The monitor of the database's commands, whose
+   *               totals are published at `/api/mongo/commands`.
    * @return An array of implementations of `Controller` for the server.
    */
-  static Controller[] getControllers(MongoDatabase database) {
+  static Controller[] getControllers(MongoDatabase database, AsyncMongo asyncMongo,
+      CommandMonitor commandMonitor) {
+    return getControllers(
+      new MongoUserRepository(database), new MongoTodoRepository(database), asyncMongo, commandMonitor);
+  }
+
+  /**
+   * Get the implementations of `Controller` used for the server, with the
+   * users and todos kept in the given repositories.
+   *
+   * @param userRepository Where the users are stored.
+   * @param todoRepository Where the todos are stored.
+   * @param asyncMongo The non-blocking reads the controllers use, or null
+   *               for them to block on the repositories (which have to
+   *               be Mongo's, if it isn't null).
+   * @param commandMonitor The monitor of the database's commands, whose
+   *               totals are published at `/api/mongo/commands`.
+   * @return An array of implementations of `Controller` for the server.
+   */
+  static Controller[] getControllers(UserRepository userRepository, TodoRepository todoRepository,
+      AsyncMongo asyncMongo, CommandMonitor commandMonitor) {
+    // If `TODO_STREAM_BATCH_SIZE` is set to a positive number, `/api/todos`
+    // streams its results to the client straight from the Mongo cursor,
+    // fetching that many documents per batch. The default of 0 builds the
+    // whole list in memory before responding.
+    int todoStreamBatchSize = Integer.parseInt(Main.getEnvOrDefault("TODO_STREAM_BATCH_SIZE", "0"));
+
+    // Individual todos and users are cached (as JSON) for `CACHE_TTL_SECONDS`,
+    // up to `CACHE_SIZE` of each. Setting `CACHE_SIZE` to 0 turns caching off.
+    // The results of list queries are cached the same way, up to
+    // `LIST_CACHE_SIZE` of each.
+    int cacheSize = Integer.parseInt(Main.getEnvOrDefault("CACHE_SIZE", "10000"));
+    int listCacheSize = Integer.parseInt(Main.getEnvOrDefault("LIST_CACHE_SIZE", "1000"));
+    Duration cacheTtl = Duration.ofSeconds(Long.parseLong(Main.getEnvOrDefault("CACHE_TTL_SECONDS", "60")));
+    ResponseCache todoCache = new ResponseCache("todos", cacheSize, cacheTtl);
+    ResponseCache userCache = new ResponseCache("users", cacheSize, cacheTtl);
+    ResponseCache todoListCache = new ResponseCache("todoLists", listCacheSize, cacheTtl);
+    ResponseCache userListCache = new ResponseCache("userLists", listCacheSize, cacheTtl);
+
+    // The admin routes (the flight recording routes at `/api/admin/jfr`, and
+    // rebuilding the users-grouped-by-company view) are only there if
+    // `JFR_ADMIN` is "true" (and even then only answer requests from this
+    // machine). Recordings keep the last `JFR_MAX_AGE_MINUTES` (default 10)
+    // minutes, up to `JFR_MAX_SIZE_MB` (default 100), and are dumped into
+    // `JFR_DIRECTORY` (default "jfr").
+    boolean jfrAdmin = Boolean.parseBoolean(Main.getEnvOrDefault("JFR_ADMIN", "false"));
+    FlightRecordings flightRecordings = new FlightRecordings(
+      Path.of(Main.getEnvOrDefault("JFR_DIRECTORY", "jfr")),
+      Duration.ofMinutes(Long.parseLong(Main.getEnvOrDefault("JFR_MAX_AGE_MINUTES", "10"))),
+      Long.parseLong(Main.getEnvOrDefault("JFR_MAX_SIZE_MB", "100")) * BYTES_PER_MB);
+
+    UserController userController = new UserController(userRepository, userCache, userListCache, asyncMongo);
+
     Controller[] controllers = new Controller[] {
       // You would add additional controllers here, as you create them,
       // although you need to make sure that each of your new controllers implements
       // the `Controller` interface.
       //
       // You can also remove this UserController once you don't need it.
-      new UserController(database),
-      new TodoController(database)
+      userController,
+      new TodoController(todoRepository, todoStreamBatchSize, todoCache, todoListCache, asyncMongo),
+      // The caches publish their hit and miss counts at `/api/cache/{name}`.
+      todoCache,
+      userCache,
+      todoListCache,
+      userListCache,
+      commandMonitor
     };
+    if (jfrAdmin) {
+      controllers = Arrays.copyOf(controllers, controllers.length + 2);
+      controllers[controllers.length - 2] = flightRecordings;
+      controllers[controllers.length - 1] = userController::addAdminRoutes;
+    }
     return controllers;
   }
 
@@ -0,0 +1,550 @@
+package umm3601;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.bson.BsonDocument;
+import org.bson.BsonRegularExpression;
+import org.bson.BsonValue;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import com.mongodb.MongoClientSettings;
+
+/**
+ * A concurrent, in-memory stand-in for a MongoDB collection, behind the
+ * in-memory storage backend (`STORAGE=memory`; see `Main`).
+ *
+ * It runs the same Bson filters and sorts the controllers build for Mongo
+ * (with `Filters`, `Sorts`, `TextMatch`, and `PageToken`), so the two
+ * backends answer a query the same way. It understands equality, `$eq`,
+ * `$ne`, `$gt`, `$gte`, `$lt`, `$lte`, regular expressions, `$and`, and
+ * `$or`; anything else is refused with an `IllegalArgumentException`
+ * rather than quietly matching the wrong documents. As in Mongo, a range
+ * only matches values of its own type (numbers, strings, or booleans), and
+ * `null` matches a missing field. Strings compare ignoring case, the way
+ * `TextMatch.COLLATION` has Mongo compare them (regexes, as in Mongo, go
+ * by their own flags).
+ *
+ * The documents are kept in a sorted map by `_id`, and each indexed field
+ * has a secondary index: a sorted map from each of its values to the IDs
+ * of the documents with that value. A query that pins an indexed field (or
+ * `_id`) down to a value or a range, like a `TextMatch` prefix, only looks
+ * at the documents in that stretch of the index; any other query looks at
+ * every document. A sorted query with a limit keeps only the best `limit`
+ * documents as it goes, rather than sorting all of them.
+ *
+ * Reads don't lock, and writes are serialized, so a document that's
+ * inserted or deleted while a query runs may or may not be seen by it (as
+ * with Mongo). Documents must not be changed once they're inserted, or the
+ * indexes won't agree with them.
+ *
+ * @param <T> the type of the documents
+ */
+public final class MemoryCollection<T> {
+
+  /**
+   * The name of the ID field, which every document must have.
+   */
+  public static final String ID_KEY = "_id";
+
+  // Stands in for null (and missing) values, which the sorted maps can't hold.
+  private static final Object MISSING = new Object() {
+    @Override
+    public String toString() {
+      return "null";
+    }
+  };
+
+  private static final Set<String> COMPARISONS = Set.of("$eq", "$ne", "$gt", "$gte", "$lt", "$lte");
+
+  private static final int MISSING_RANK = 0;
+  private static final int NUMBER_RANK = 1;
+  private static final int STRING_RANK = 2;
+  private static final int BOOLEAN_RANK = 3;
+
+  // Strings compare the way they do under `TextMatch.COLLATION`: in
+  // English, ignoring case but not accents (and with an accent written as
+  // its own character the same as one that's part of the letter). A
+  // `Collator` isn't safe to share between threads, so each thread compares
+  // with its own copy.
+  private static final ThreadLocal<Collator> COLLATOR = ThreadLocal.withInitial(() -> {
+    Collator collator = Collator.getInstance(Locale.ENGLISH);
+    collator.setStrength(Collator.SECONDARY);
+    collator.setDecomposition(Collator.CANONICAL_DECOMPOSITION);
+    return collator;
+  });
+
+  /**
+   * The order values sort in: missing values, then numbers, then strings
+   * (ignoring case), then booleans, which is Mongo's order for those types.
+   */
+  static final Comparator<Object> VALUE_ORDER = MemoryCollection::compareValues;
+
+  private final Map<String, Function<T, Object>> fields;
+  private final ConcurrentSkipListMap<String, T> documents = new ConcurrentSkipListMap<>();
+  private final Map<String, ConcurrentSkipListMap<Object, Set<String>>> indexes = new HashMap<>();
+
+  /**
+   * Construct an empty collection.
+   *
+   * @param fields how to read each field of a document, by name; `_id`
+   *   must be one of them, and read as a hex string
+   * @param indexedFields the fields to keep a secondary index on
+   */
+  public MemoryCollection(Map<String, Function<T, Object>> fields, List<String> indexedFields) {
+    if (!fields.containsKey(ID_KEY)) {
+      throw new IllegalArgumentException("The documents need an " + ID_KEY + " field");
+    }
+    this.fields = Map.copyOf(fields);
+    for (String field : indexedFields) {
+      if (!fields.containsKey(field)) {
+        throw new IllegalArgumentException("Can't index the unknown field " + field);
+      }
+      indexes.put(field, new ConcurrentSkipListMap<>(VALUE_ORDER));
+    }
+  }
+
+  /**
+   * @param id the ID of a document, as a hex string
+   * @return the document with that ID, or null if there isn't one
+   */
+  public T get(String id) {
+    return documents.get(id);
+  }
+
+  /**
+   * @return how many documents there are
+   */
+  public int size() {
+    return documents.size();
+  }
+
+  /**
+   * Add a document, unless there's already one with its ID.
+   *
+   * @param document the document, which must have its ID
+   * @return whether it was added
+   */
+  public synchronized boolean insert(T document) {
+    String id = (String) fields.get(ID_KEY).apply(document);
+    if (documents.putIfAbsent(id, document) != null) {
+      return false;
+    }
+    for (Map.Entry<String, ConcurrentSkipListMap<Object, Set<String>>> index : indexes.entrySet()) {
+      index.getValue()
+        .computeIfAbsent(value(document, index.getKey()), key -> ConcurrentHashMap.newKeySet())
+        .add(id);
+    }
+    return true;
+  }
+
+  /**
+   * Remove a document.
+   *
+   * @param id the ID of the document, as a hex string
+   * @return the removed document, or null if there wasn't one
+   */
+  public synchronized T delete(String id) {
+    T document = documents.remove(id);
+    if (document == null) {
+      return null;
+    }
+    for (Map.Entry<String, ConcurrentSkipListMap<Object, Set<String>>> index : indexes.entrySet()) {
+      Object key = value(document, index.getKey());
+      Set<String> ids = index.getValue().get(key);
+      ids.remove(id);
+      if (ids.isEmpty()) {
+        index.getValue().remove(key);
+      }
+    }
+    return document;
+  }
+
+  /**
+   * Find the documents that match a filter.
+   *
+   * @param filter the filter, or null to match every document
+   * @param sort the sort, or null for `_id` order (unless an index was used)
+   * @param limit the most documents to return, or zero for all of them
+   * @return the matching documents, in order
+   */
+  public ArrayList<T> find(Bson filter, Bson sort, int limit) {
+    BsonDocument filterDocument = render(filter);
+    Stream<T> matching = candidates(filterDocument).filter(compile(filterDocument));
+    if (sort == null) {
+      return (limit > 0 ? matching.limit(limit) : matching).collect(Collectors.toCollection(ArrayList::new));
+    }
+
+    Comparator<T> order = comparator(render(sort));
+    if (limit <= 0) {
+      return matching.sorted(order).collect(Collectors.toCollection(ArrayList::new));
+    }
+    // Keep the best `limit` documents so far in a heap whose head is the
+    // worst of them, so most documents are turned away in one comparison.
+    PriorityQueue<T> best = new PriorityQueue<>(limit + 1, order.reversed());
+    matching.forEach(document -> {
+      best.add(document);
+      if (best.size() > limit) {
+        best.poll();
+      }
+    });
+    ArrayList<T> found = new ArrayList<>(best);
+    found.sort(order);
+    return found;
+  }
+
+  /**
+   * @return every document, in `_id` order
+   */
+  public Collection<T> all() {
+    return documents.values();
+  }
+
+  private static BsonDocument render(Bson bson) {
+    return bson == null
+      ? new BsonDocument()
+      : bson.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+  }
+
+  private Object value(T document, String field) {
+    Function<T, Object> reader = fields.get(field);
+    return reader == null ? MISSING : normalize(reader.apply(document));
+  }
+
+  /**
+   * The documents that might match the filter: those in the narrowest
+   * stretch of an index the filter requires, or all of them.
+   */
+  private Stream<T> candidates(BsonDocument filter) {
+    Map<String, Bounds> bounds = new HashMap<>();
+    collectBounds(filter, bounds);
+
+    String bestField = null;
+    int bestScore = Integer.MAX_VALUE;
+    for (Map.Entry<String, Bounds> entry : bounds.entrySet()) {
+      String field = entry.getKey();
+      boolean usable = indexes.containsKey(field)
+        || field.equals(ID_KEY) && entry.getValue().allOf(String.class);
+      if (usable && entry.getValue().score() < bestScore) {
+        bestField = field;
+        bestScore = entry.getValue().score();
+      }
+    }
+    if (bestField == null) {
+      return documents.values().stream();
+    }
+
+    Bounds range = bounds.get(bestField);
+    if (bestField.equals(ID_KEY)) {
+      @SuppressWarnings("unchecked")
+      NavigableMap<Object, T> byId = (NavigableMap<Object, T>) (NavigableMap<?, T>) documents;
+      return range.of(byId).values().stream();
+    }
+    return range.of(indexes.get(bestField)).values().stream()
+      .flatMap(Set::stream)
+      .map(documents::get)
+      .filter(document -> document != null);
+  }
+
+  /**
+   * Gather the bounds the filter puts on each field, from its conditions
+   * that every match has to meet (so not from inside an `$or`).
+   */
+  private static void collectBounds(BsonDocument filter, Map<String, Bounds> bounds) {
+    for (Map.Entry<String, BsonValue> condition : filter.entrySet()) {
+      String key = condition.getKey();
+      BsonValue value = condition.getValue();
+      if (key.equals("$and")) {
+        for (BsonValue clause : value.asArray()) {
+          collectBounds(clause.asDocument(), bounds);
+        }
+      } else if (!key.startsWith("$")) {
+        Bounds fieldBounds = bounds.computeIfAbsent(key, field -> new Bounds());
+        if (!isOperators(value)) {
+          if (!value.isRegularExpression()) {
+            fieldBounds.above(fromBson(value), true);
+            fieldBounds.below(fromBson(value), true);
+          }
+          continue;
+        }
+        for (Map.Entry<String, BsonValue> operator : value.asDocument().entrySet()) {
+          switch (operator.getKey()) {
+            case "$eq" -> {
+              fieldBounds.above(fromBson(operator.getValue()), true);
+              fieldBounds.below(fromBson(operator.getValue()), true);
+            }
+            case "$gt" -> fieldBounds.above(fromBson(operator.getValue()), false);
+            case "$gte" -> fieldBounds.above(fromBson(operator.getValue()), true);
+            case "$lt" -> fieldBounds.below(fromBson(operator.getValue()), false);
+            case "$lte" -> fieldBounds.below(fromBson(operator.getValue()), true);
+            default -> {
+              // Doesn't narrow the range.
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Turn a filter into a test of a document.
+   */
+  private Predicate<T> compile(BsonDocument filter) {
+    List<Predicate<T>> conditions = new ArrayList<>();
+    for (Map.Entry<String, BsonValue> condition : filter.entrySet()) {
+      String key = condition.getKey();
+      BsonValue value = condition.getValue();
+      switch (key) {
+        case "$and" -> conditions.add(all(clauses(value)));
+        case "$or" -> {
+          List<Predicate<T>> clauses = clauses(value);
+          conditions.add(document -> clauses.stream().anyMatch(clause -> clause.test(document)));
+        }
+        default -> {
+          if (key.startsWith("$")) {
+            throw new IllegalArgumentException("The in-memory storage can't do " + key);
+          }
+          conditions.add(fieldCondition(key, value));
+        }
+      }
+    }
+    return all(conditions);
+  }
+
+  private List<Predicate<T>> clauses(BsonValue value) {
+    List<Predicate<T>> clauses = new ArrayList<>();
+    for (BsonValue clause : value.asArray()) {
+      clauses.add(compile(clause.asDocument()));
+    }
+    return clauses;
+  }
+
+  private Predicate<T> fieldCondition(String field, BsonValue condition) {
+    if (condition.isRegularExpression()) {
+      return regex(field, condition.asRegularExpression());
+    }
+    if (!isOperators(condition)) {
+      Object expected = fromBson(condition);
+      return document -> VALUE_ORDER.compare(value(document, field), expected) == 0;
+    }
+
+    List<Predicate<T>> tests = new ArrayList<>();
+    BsonDocument operators = condition.asDocument();
+    for (Map.Entry<String, BsonValue> operator : operators.entrySet()) {
+      String name = operator.getKey();
+      if (name.equals("$options")) {
+        continue;
+      }
+      if (name.equals("$regex")) {
+        String options = operators.containsKey("$options") ? operators.getString("$options").getValue() : "";
+        tests.add(regex(field, new BsonRegularExpression(operator.getValue().asString().getValue(), options)));
+        continue;
+      }
+      if (!COMPARISONS.contains(name)) {
+        throw new IllegalArgumentException("The in-memory storage can't do " + name);
+      }
+      Object operand = fromBson(operator.getValue());
+      tests.add(switch (name) {
+        case "$eq" -> document -> VALUE_ORDER.compare(value(document, field), operand) == 0;
+        case "$ne" -> document -> VALUE_ORDER.compare(value(document, field), operand) != 0;
+        case "$gt" -> document -> inRange(value(document, field), operand, order -> order > 0);
+        case "$gte" -> document -> inRange(value(document, field), operand, order -> order >= 0);
+        case "$lt" -> document -> inRange(value(document, field), operand, order -> order < 0);
+        case "$lte" -> document -> inRange(value(document, field), operand, order -> order <= 0);
+        default -> throw new IllegalArgumentException("The in-memory storage can't do " + name);
+      });
+    }
+    return all(tests);
+  }
+
+  private Predicate<T> regex(String field, BsonRegularExpression regex) {
+    int flags = 0;
+    for (char option : regex.getOptions().toCharArray()) {
+      flags |= switch (option) {
+        case 'i' -> Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+        case 'm' -> Pattern.MULTILINE;
+        case 's' -> Pattern.DOTALL;
+        case 'x' -> Pattern.COMMENTS;
+        default -> 0;
+      };
+    }
+    Pattern pattern = Pattern.compile(regex.getPattern(), flags);
+    return document -> value(document, field) instanceof String text && pattern.matcher(text).find();
+  }
+
+  private static <T> Predicate<T> all(List<Predicate<T>> tests) {
+    return document -> {
+      for (Predicate<T> test : tests) {
+        if (!test.test(document)) {
+          return false;
+        }
+      }
+      return true;
+    };
+  }
+
+  private Comparator<T> comparator(BsonDocument sort) {
+    Comparator<T> order = null;
+    for (Map.Entry<String, BsonValue> key : sort.entrySet()) {
+      String field = key.getKey();
+      Comparator<T> byField = Comparator.comparing(document -> value(document, field), VALUE_ORDER);
+      if (key.getValue().asNumber().intValue() < 0) {
+        byField = byField.reversed();
+      }
+      order = order == null ? byField : order.thenComparing(byField);
+    }
+    return order == null ? (a, b) -> 0 : order;
+  }
+
+  private static boolean isOperators(BsonValue value) {
+    return value.isDocument() && !value.asDocument().isEmpty()
+      && value.asDocument().getFirstKey().startsWith("$");
+  }
+
+  /**
+   * A value from a document, in the form `VALUE_ORDER` compares: ObjectIds
+   * as hex strings, and null as `MISSING`.
+   */
+  private static Object normalize(Object value) {
+    if (value == null) {
+      return MISSING;
+    }
+    if (value instanceof ObjectId id) {
+      return id.toHexString();
+    }
+    return value;
+  }
+
+  /**
+   * A value from a filter, in the form `VALUE_ORDER` compares.
+   */
+  private static Object fromBson(BsonValue value) {
+    return switch (value.getBsonType()) {
+      case NULL, UNDEFINED -> MISSING;
+      case STRING -> value.asString().getValue();
+      case INT32 -> value.asInt32().getValue();
+      case INT64 -> value.asInt64().getValue();
+      case DOUBLE -> value.asDouble().getValue();
+      case DECIMAL128 -> value.asDecimal128().getValue().bigDecimalValue();
+      case BOOLEAN -> value.asBoolean().getValue();
+      case OBJECT_ID -> value.asObjectId().getValue().toHexString();
+      default -> throw new IllegalArgumentException("The in-memory storage can't compare with " + value);
+    };
+  }
+
+  private static int rank(Object value) {
+    if (value == MISSING) {
+      return MISSING_RANK;
+    } else if (value instanceof Number) {
+      return NUMBER_RANK;
+    } else if (value instanceof String) {
+      return STRING_RANK;
+    } else if (value instanceof Boolean) {
+      return BOOLEAN_RANK;
+    }
+    throw new IllegalArgumentException("The in-memory storage can't compare " + value);
+  }
+
+  private static int compareValues(Object a, Object b) {
+    int byRank = Integer.compare(rank(a), rank(b));
+    if (byRank != 0) {
+      return byRank;
+    }
+    if (a instanceof Number x && b instanceof Number y) {
+      return Double.compare(x.doubleValue(), y.doubleValue());
+    }
+    if (a instanceof String x && b instanceof String y) {
+      return COLLATOR.get().compare(x, y);
+    }
+    if (a instanceof Boolean x && b instanceof Boolean y) {
+      return Boolean.compare(x, y);
+    }
+    return 0;
+  }
+
+  /**
+   * Test a value against one end of a range, which (as in Mongo) only
+   * matches values of the same type as the bound.
+   */
+  private static boolean inRange(Object value, Object bound, IntPredicate test) {
+    return value != MISSING && rank(value) == rank(bound) && test.test(compareValues(value, bound));
+  }
+
+  /**
+   * The stretch of values a field is limited to, for picking an index.
+   */
+  private static final class Bounds {
+    private Object low;
+    private boolean lowInclusive;
+    private Object high;
+    private boolean highInclusive;
+
+    void above(Object bound, boolean inclusive) {
+      int order = low == null ? -1 : VALUE_ORDER.compare(low, bound);
+      if (order < 0 || order == 0 && !inclusive) {
+        low = bound;
+        lowInclusive = inclusive;
+      }
+    }
+
+    void below(Object bound, boolean inclusive) {
+      int order = high == null ? 1 : VALUE_ORDER.compare(high, bound);
+      if (order > 0 || order == 0 && !inclusive) {
+        high = bound;
+        highInclusive = inclusive;
+      }
+    }
+
+    /**
+     * @return how good an index on this field would be: 0 for a single
+     *   value, 1 for a closed range, 2 for a half-open one, and 3 if it
+     *   isn't limited at all
+     */
+    int score() {
+      if (low != null && high != null) {
+        return VALUE_ORDER.compare(low, high) == 0 ? 0 : 1;
+      }
+      return low != null || high != null ? 2 : 3;
+    }
+
+    boolean allOf(Class<?> type) {
+      return (low == null || type.isInstance(low)) && (high == null || type.isInstance(high));
+    }
+
+    <V> NavigableMap<Object, V> of(NavigableMap<Object, V> map) {
+      if (low != null && high != null) {
+        int order = VALUE_ORDER.compare(low, high);
+        if (order > 0 || order == 0 && !(lowInclusive && highInclusive)) {
+          return Collections.emptyNavigableMap();
+        }
+      }
+      NavigableMap<Object, V> range = map;
+      if (low != null) {
+        range = range.tailMap(low, lowInclusive);
+      }
+      if (high != null) {
+        range = range.headMap(high, highInclusive);
+      }
+      return range;
+    }
+  }
+}
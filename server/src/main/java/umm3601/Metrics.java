@@ -0,0 +1,208 @@
+package umm3601;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Request and JVM metrics, published at `GET /metrics` in the Prometheus
+ * text format.
+ *
+ * `Server` hands every finished request to `record` (as Javalin's request
+ * logger), which counts it by method, route template (`/api/todos/{id}`,
+ * not the path that was asked for, so IDs don't make every request its own
+ * series) and status, and adds its latency to an HdrHistogram for the
+ * method and route. Recording is a few atomic increments, so it's cheap
+ * enough to do for every request.
+ *
+ * The latencies are published as a Prometheus histogram with fixed
+ * `BUCKETS_SECONDS`; since the HdrHistogram keeps every value (to three
+ * significant digits), the bucket counts are exact to that precision, and
+ * the buckets can be changed without losing what's already been recorded.
+ */
+public class Metrics implements Controller {
+
+  static final String METRICS_PATH = "/metrics";
+  static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  // The route of requests that didn't match any endpoint (a 404, say).
+  static final String UNMATCHED_ROUTE = "unmatched";
+
+  // The upper bounds of the latency histogram's buckets.
+  static final double[] BUCKETS_SECONDS = {
+    0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+  };
+
+  // Latencies are recorded in microseconds, up to an hour (anything longer
+  // counts as an hour), to three significant digits.
+  private static final long HIGHEST_MICROS = TimeUnit.HOURS.toMicros(1);
+  private static final int SIGNIFICANT_DIGITS = 3;
+  private static final double MICROS_PER_SECOND = 1e6;
+  private static final double MICROS_PER_MILLI = 1e3;
+  private static final double MILLIS_PER_SECOND = 1e3;
+
+  private final Map<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+
+  /**
+   * What's been recorded about the requests to one method and route.
+   */
+  private static final class RouteMetrics {
+    private final String labels;
+    private final Histogram latency = new ConcurrentHistogram(HIGHEST_MICROS, SIGNIFICANT_DIGITS);
+    private final LongAdder latencySumMicros = new LongAdder();
+    private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+
+    RouteMetrics(String method, String route) {
+      this.labels = "method=\"" + escape(method) + "\",route=\"" + escape(route) + "\"";
+    }
+  }
+
+  /**
+   * Record a finished request; `Server` registers this as Javalin's
+   * request logger.
+   *
+   * @param ctx the context of the finished request
+   * @param executionTimeMs how long the request took, in milliseconds
+   */
+  public void record(Context ctx, Float executionTimeMs) {
+    String path = ctx.endpointHandlerPath();
+    String route = path == null || path.isEmpty() ? UNMATCHED_ROUTE : path;
+    String method = ctx.method().name();
+    RouteMetrics metrics = routes.computeIfAbsent(method + " " + route, key -> new RouteMetrics(method, route));
+
+    long micros = Math.min(HIGHEST_MICROS, Math.max(0, (long) (executionTimeMs * MICROS_PER_MILLI)));
+    metrics.latency.recordValue(micros);
+    metrics.latencySumMicros.add(micros);
+    metrics.statuses.computeIfAbsent(ctx.statusCode(), code -> new LongAdder()).increment();
+  }
+
+  /**
+   * Send every metric in the Prometheus text format.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getMetrics(Context ctx) {
+    ctx.contentType(CONTENT_TYPE);
+    ctx.result(scrape());
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * @return every metric, in the Prometheus text format
+   */
+  String scrape() {
+    StringBuilder out = new StringBuilder();
+    // Sorted, so the output is in the same order from one scrape to the next.
+    Map<String, RouteMetrics> sorted = new TreeMap<>(routes);
+
+    header(out, "http_server_requests_total", "counter",
+      "Requests handled, by method, route template, and status.");
+    for (RouteMetrics metrics : sorted.values()) {
+      for (Map.Entry<Integer, LongAdder> status : new TreeMap<>(metrics.statuses).entrySet()) {
+        sample(out, "http_server_requests_total",
+          metrics.labels + ",status=\"" + status.getKey() + "\"", status.getValue().sum());
+      }
+    }
+
+    header(out, "http_server_request_duration_seconds", "histogram",
+      "How long requests took, by method and route template.");
+    for (RouteMetrics metrics : sorted.values()) {
+      long count = metrics.latency.getTotalCount();
+      for (double bucket : BUCKETS_SECONDS) {
+        long upToBucket = metrics.latency.getCountBetweenValues(0, Math.round(bucket * MICROS_PER_SECOND));
+        sample(out, "http_server_request_duration_seconds_bucket",
+          metrics.labels + ",le=\"" + bucket + "\"", upToBucket);
+      }
+      sample(out, "http_server_request_duration_seconds_bucket", metrics.labels + ",le=\"+Inf\"", count);
+      sample(out, "http_server_request_duration_seconds_sum", metrics.labels,
+        metrics.latencySumMicros.sum() / MICROS_PER_SECOND);
+      sample(out, "http_server_request_duration_seconds_count", metrics.labels, count);
+    }
+
+    jvmMetrics(out);
+    return out.toString();
+  }
+
+  /**
+   * Add the JVM's memory, garbage collection, and thread metrics.
+   */
+  private static void jvmMetrics(StringBuilder out) {
+    MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    MemoryUsage nonHeap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+    header(out, "jvm_memory_used_bytes", "gauge", "Memory in use, by area.");
+    sample(out, "jvm_memory_used_bytes", "area=\"heap\"", heap.getUsed());
+    sample(out, "jvm_memory_used_bytes", "area=\"nonheap\"", nonHeap.getUsed());
+    header(out, "jvm_memory_committed_bytes", "gauge", "Memory committed by the JVM, by area.");
+    sample(out, "jvm_memory_committed_bytes", "area=\"heap\"", heap.getCommitted());
+    sample(out, "jvm_memory_committed_bytes", "area=\"nonheap\"", nonHeap.getCommitted());
+    header(out, "jvm_memory_max_bytes", "gauge", "The most memory the JVM may use, by area (-1 if unbounded).");
+    sample(out, "jvm_memory_max_bytes", "area=\"heap\"", heap.getMax());
+    sample(out, "jvm_memory_max_bytes", "area=\"nonheap\"", nonHeap.getMax());
+
+    header(out, "jvm_memory_pool_used_bytes", "gauge", "Memory in use, by memory pool.");
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      sample(out, "jvm_memory_pool_used_bytes", "pool=\"" + escape(pool.getName()) + "\"",
+        pool.getUsage().getUsed());
+    }
+
+    header(out, "jvm_gc_collections_total", "counter", "Garbage collections, by collector.");
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      sample(out, "jvm_gc_collections_total", "gc=\"" + escape(gc.getName()) + "\"", gc.getCollectionCount());
+    }
+    header(out, "jvm_gc_collection_seconds_total", "counter", "Time spent collecting garbage, by collector.");
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      sample(out, "jvm_gc_collection_seconds_total", "gc=\"" + escape(gc.getName()) + "\"",
+        gc.getCollectionTime() / MILLIS_PER_SECOND);
+    }
+
+    header(out, "jvm_threads_live", "gauge", "Live platform threads.");
+    sample(out, "jvm_threads_live", "", ManagementFactory.getThreadMXBean().getThreadCount());
+    header(out, "process_uptime_seconds", "gauge", "How long the JVM has been running.");
+    sample(out, "process_uptime_seconds", "", ManagementFactory.getRuntimeMXBean().getUptime() / MILLIS_PER_SECOND);
+  }
+
+  private static void header(StringBuilder out, String name, String type, String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void sample(StringBuilder out, String name, String labels, double value) {
+    out.append(name);
+    if (!labels.isEmpty()) {
+      out.append('{').append(labels).append('}');
+    }
+    out.append(' ');
+    // Whole numbers (counts, bytes) are written without a decimal point.
+    if (value == Math.rint(value) && !Double.isInfinite(value)) {
+      out.append((long) value);
+    } else {
+      out.append(value);
+    }
+    out.append('\n');
+  }
+
+  /**
+   * Escape a label value the way the Prometheus text format wants.
+   */
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  @Override
+  public void addRoutes(Javalin server) {
+    server.get(METRICS_PATH, this::getMetrics);
+  }
+}
@@ -0,0 +1,101 @@
+package umm3601;
+
+import java.util.Map;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A Java Flight Recorder event for each command sent to Mongo, with the
+ * collection, the command, the shape of its filter, the number of
+ * documents returned, and the request that sent it.
+ *
+ * `CommandMonitor` begins the event when the driver sends a command and
+ * commits it when the reply comes back, so it covers every query the
+ * controllers make (through MongoJack or the reactive-streams driver)
+ * without wrapping each call.
+ *
+ * The filter shape is the filter with its values replaced by `?`
+ * (`{"owner": ?, "age": {"$gt": ?}}`), so events for the same query with
+ * different values can be grouped, and no user data ends up in the
+ * recording. It's only worked out when the event is enabled.
+ */
+@Name("umm3601.MongoCommand")
+@Label("Mongo Command")
+@Category({ "umm3601", "MongoDB" })
+@Description("A command sent to MongoDB")
+@StackTrace(false)
+@SuppressWarnings("checkstyle:visibilitymodifier")
+final class MongoCommandEvent extends Event {
+
+  // Where each command that has one keeps its filter.
+  private static final String[] FILTER_FIELDS = { "filter", "query", "pipeline" };
+
+  @Label("Collection")
+  String collection;
+
+  @Label("Command")
+  String command;
+
+  @Label("Filter Shape")
+  String filterShape;
+
+  @Label("Documents")
+  long documents;
+
+  @Label("Succeeded")
+  boolean succeeded;
+
+  @Label("Request ID")
+  String requestId;
+
+  /**
+   * @param command a command sent to Mongo
+   * @return the shape of the command's filter (or pipeline), or "" if it
+   *   doesn't have one
+   */
+  static String filterShape(BsonDocument command) {
+    for (String field : FILTER_FIELDS) {
+      BsonValue filter = command.get(field);
+      if (filter != null) {
+        StringBuilder shape = new StringBuilder();
+        appendShape(shape, filter);
+        return shape.toString();
+      }
+    }
+    return "";
+  }
+
+  private static void appendShape(StringBuilder shape, BsonValue value) {
+    if (value.isDocument()) {
+      shape.append('{');
+      String separator = "";
+      for (Map.Entry<String, BsonValue> field : value.asDocument().entrySet()) {
+        shape.append(separator).append('"').append(field.getKey()).append("\": ");
+        appendShape(shape, field.getValue());
+        separator = ", ";
+      }
+      shape.append('}');
+    } else if (value.isArray() && value.asArray().stream().anyMatch(v -> v.isDocument() || v.isArray())) {
+      // Lists of clauses (`$and`, pipelines) keep their structure; lists of
+      // values (`$in`) are just one `?`, however long they are.
+      shape.append('[');
+      String separator = "";
+      for (BsonValue element : value.asArray()) {
+        shape.append(separator);
+        appendShape(shape, element);
+        separator = ", ";
+      }
+      shape.append(']');
+    } else {
+      shape.append('?');
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package umm3601;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.ServiceUnavailableResponse;
+import io.javalin.json.JsonMapper;
+
+/**
+ * Streams query results to the client as newline-delimited JSON (one
+ * document per line), for exporting whole (or filtered) collections.
+ *
+ * Documents are written as they're read (from Mongo, as the cursor yields
+ * them, `BATCH_SIZE` at a time), so an export of any size runs in
+ * constant memory. With `gzip=true` the
+ * export is compressed as it's written, and sent as a `.ndjson.gz` file.
+ *
+ * An export ties up a request thread (and a cursor) for as long as it
+ * runs, so only `MAX_CONCURRENT_EXPORTS` run at once; any more are turned
+ * away with `503 Service Unavailable` rather than crowding out normal traffic.
+ */
+public final class NdjsonExport {
+
+  /**
+   * The query parameter that asks for a gzipped export.
+   */
+  public static final String GZIP_KEY = "gzip";
+
+  static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+  static final String GZIP_CONTENT_TYPE = "application/gzip";
+
+  /**
+   * How many documents an export reads from Mongo at a time.
+   */
+  public static final int BATCH_SIZE = 1000;
+
+  static final int MAX_CONCURRENT_EXPORTS = 2;
+
+  // Enough to hold a few documents, so we don't write to the response one
+  // tiny line at a time.
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final byte[] NEWLINE = {'\n'};
+
+  private static final Semaphore EXPORTS = new Semaphore(MAX_CONCURRENT_EXPORTS);
+
+  private NdjsonExport() {
+  }
+
+  /**
+   * Send the documents found by a query as newline-delimited JSON.
+   *
+   * @param <T> the type of the documents
+   * @param ctx a Javalin HTTP context, which may have the `gzip` query parameter
+   * @param documents opens the stream of documents to send, which is
+   *   closed once they have been
+   * @param type the class of the documents
+   * @param name the base name of the file the client saves the export as
+   */
+  public static <T> void send(Context ctx, Supplier<Stream<T>> documents, Class<T> type, String name) {
+    boolean gzip = ctx.queryParamMap().containsKey(GZIP_KEY)
+      && ctx.queryParamAsClass(GZIP_KEY, Boolean.class).get();
+    if (!EXPORTS.tryAcquire()) {
+      throw new ServiceUnavailableResponse("Too many exports are running; try again later");
+    }
+
+    try {
+      // The status and headers have to be set before we start writing the
+      // body, since they go out with the first flushed bytes.
+      ctx.status(HttpStatus.OK);
+      ctx.contentType(gzip ? GZIP_CONTENT_TYPE : NDJSON_CONTENT_TYPE);
+      ctx.header(Header.CONTENT_DISPOSITION,
+        "attachment; filename=\"" + name + (gzip ? ".ndjson.gz" : ".ndjson") + "\"");
+
+      JsonMapper jsonMapper = ctx.jsonMapper();
+      try (OutputStream out = gzip
+            ? new GZIPOutputStream(ctx.outputStream(), BUFFER_SIZE)
+            : new BufferedOutputStream(ctx.outputStream(), BUFFER_SIZE);
+          Stream<T> stream = documents.get()) {
+        for (Iterator<T> cursor = stream.iterator(); cursor.hasNext();) {
+          out.write(jsonMapper.toJsonString(cursor.next(), type).getBytes(StandardCharsets.UTF_8));
+          out.write(NEWLINE);
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    } finally {
+      EXPORTS.release();
+    }
+  }
+}
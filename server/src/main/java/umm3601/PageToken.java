@@ -0,0 +1,106 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.or;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.function.Function;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.json.JsonParseException;
+import org.bson.types.ObjectId;
+
+import io.javalin.http.BadRequestResponse;
+
+/**
+ * Opaque continuation tokens for keyset ("cursor") pagination of list
+ * endpoints.
+ *
+ * A token records the sort key and `_id` of the last document on a page.
+ * The next page is then fetched with a range query that starts just after
+ * that document, rather than with a `skip`, so asking for page N costs the
+ * same as asking for page 1 (as long as there's an index on the sort field
+ * and `_id`).
+ *
+ * To the client a token is just a URL-safe string; it hands back whatever
+ * it got in the `X-Next` response header as the `next` query parameter.
+ */
+public final class PageToken {
+
+  /**
+   * The query parameter a client uses to ask for the page after a token.
+   */
+  public static final String NEXT_KEY = "next";
+
+  /**
+   * The response header that carries the token for the next page, if there
+   * might be one.
+   */
+  public static final String NEXT_HEADER = "X-Next";
+
+  private static final String ID_FIELD = "_id";
+  private static final String SORT_VALUE_KEY = "k";
+  private static final String ID_KEY = "i";
+
+  private PageToken() {
+  }
+
+  /**
+   * Build the token for the page that follows `last`.
+   *
+   * @param <T> the type of the items on the page
+   * @param last the last item on the current page
+   * @param id the `_id` of that item, as a hex string
+   * @param sortValue reads the value of the field the list is sorted by
+   *                  off an item
+   * @return an opaque, URL-safe continuation token
+   */
+  public static <T> String after(T last, String id, Function<? super T, ?> sortValue) {
+    Document token = new Document(SORT_VALUE_KEY, sortValue.apply(last)).append(ID_KEY, new ObjectId(id));
+    return Base64.getUrlEncoder().withoutPadding()
+      .encodeToString(token.toJson().getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Construct a Bson filter that matches everything that comes after the
+   * document recorded in `token`, given the sort field and direction.
+   *
+   * Ties on the sort field are broken by `_id`, so the sort used for the
+   * query must also be on `_id` (in the same direction) after `sortBy`.
+   *
+   * @param token a token previously produced by `after()`
+   * @param sortBy the name of the field the list is sorted by
+   * @param descending whether the list is sorted in descending order
+   * @return a Bson filter selecting the documents on the next page
+   */
+  public static Bson rangeFilter(String token, String sortBy, boolean descending) {
+    Document decoded = decode(token);
+    Object sortValue = decoded.get(SORT_VALUE_KEY);
+    ObjectId lastId = decoded.getObjectId(ID_KEY);
+
+    if (sortBy.equals(ID_FIELD)) {
+      return descending ? lt(ID_FIELD, lastId) : gt(ID_FIELD, lastId);
+    }
+    return descending
+      ? or(lt(sortBy, sortValue), and(eq(sortBy, sortValue), lt(ID_FIELD, lastId)))
+      : or(gt(sortBy, sortValue), and(eq(sortBy, sortValue), gt(ID_FIELD, lastId)));
+  }
+
+  private static Document decode(String token) {
+    Document decoded;
+    try {
+      decoded = Document.parse(new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8));
+    } catch (IllegalArgumentException | JsonParseException e) {
+      throw new BadRequestResponse("The requested page token wasn't legal.");
+    }
+    if (!decoded.containsKey(SORT_VALUE_KEY) || !(decoded.get(ID_KEY) instanceof ObjectId)) {
+      throw new BadRequestResponse("The requested page token wasn't legal.");
+    }
+    return decoded;
+  }
+}
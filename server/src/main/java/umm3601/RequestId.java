@@ -0,0 +1,67 @@
+package umm3601;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import io.javalin.http.Context;
+
+/**
+ * An ID for each HTTP request, so everything a request does (in particular
+ * its database queries, which carry it as their `comment`) can be traced
+ * back to it.
+ *
+ * The ID comes from the request's `X-Request-Id` header if it has a
+ * sensible one (so IDs from a proxy or a load test carry through), and is
+ * made up otherwise; either way it's sent back in the response's
+ * `X-Request-Id` header. While a handler runs, `current()` returns it.
+ */
+public final class RequestId {
+
+  public static final String HEADER = "X-Request-Id";
+
+  // IDs from clients are only used if they look like IDs (and can't, say,
+  // be used to stuff anything odd into the logs).
+  private static final Pattern LEGAL_ID = Pattern.compile("^[A-Za-z0-9._-]{1,64}$");
+
+  // Made up IDs are a random prefix for this run of the server plus a
+  // counter, which is cheaper than a random UUID per request.
+  private static final String PREFIX = Long.toHexString(ThreadLocalRandom.current().nextLong()) + "-";
+  private static final AtomicLong COUNTER = new AtomicLong();
+
+  private static final ThreadLocal<String> CURRENT = new ThreadLocal<>();
+
+  private RequestId() {
+  }
+
+  /**
+   * Give the request an ID; `Server` runs this before every request.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public static void start(Context ctx) {
+    String id = ctx.header(HEADER);
+    if (id == null || !LEGAL_ID.matcher(id).matches()) {
+      id = PREFIX + COUNTER.incrementAndGet();
+    }
+    ctx.header(HEADER, id);
+    CURRENT.set(id);
+  }
+
+  /**
+   * Forget the request's ID; `Server` runs this after every request.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public static void end(Context ctx) {
+    CURRENT.remove();
+  }
+
+  /**
+   * @return the ID of the request being handled on this thread, or null if
+   *   there isn't one (at startup, say)
+   */
+  public static String current() {
+    return CURRENT.get();
+  }
+}
@@ -0,0 +1,268 @@
+package umm3601;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.bson.BsonDocument;
+import org.bson.conversions.Bson;
+
+import com.mongodb.MongoClientSettings;
+
+import io.javalin.Javalin;
+import io.javalin.http.ContentType;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+/**
+ * A bounded, in-process cache of serialized (JSON) responses.
+ *
+ * Entries are evicted when the cache is full (least recently used first)
+ * and when they're older than the time-to-live, so a cache can't grow
+ * without bound or serve something that changed behind our back for
+ * longer than the TTL. Controllers invalidate entries themselves whenever
+ * they change the underlying data.
+ *
+ * A cache with a capacity of zero is disabled: it never stores anything,
+ * and `isEnabled()` lets callers skip the work of filling it.
+ *
+ * Hit and miss counts (along with the current size) are available at
+ * `GET /api/cache/{name}`, so the capacity and TTL can be tuned.
+ */
+public class ResponseCache implements Controller {
+
+  private static final String API_CACHE = "/api/cache/";
+
+  // The defaults for a `HashMap`; we only need to give them because we
+  // want the constructor that also takes the access order.
+  private static final int INITIAL_CAPACITY = 16;
+  private static final float LOAD_FACTOR = 0.75f;
+
+  private final String name;
+  private final int capacity;
+  private final long ttlNanos;
+  private final LongSupplier clock;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  // An access-ordered `LinkedHashMap` drops its least recently used entry
+  // once it has more than `capacity` of them.
+  private final LinkedHashMap<String, Entry> entries;
+
+  /**
+   * A cached response, along with when it was cached.
+   */
+  private static final class Entry {
+    private final byte[] body;
+    private final long cachedAt;
+
+    Entry(byte[] body, long cachedAt) {
+      this.body = body;
+      this.cachedAt = cachedAt;
+    }
+  }
+
+  /**
+   * Construct a cache.
+   *
+   * @param name the name the cache's statistics are published under
+   * @param capacity the most entries the cache will hold, or zero to disable it
+   * @param ttl how long an entry may be served after it was cached
+   */
+  public ResponseCache(String name, int capacity, Duration ttl) {
+    this(name, capacity, ttl, System::nanoTime);
+  }
+
+  /**
+   * Construct a cache that reads the time from the given clock; this lets
+   * tests control when entries expire.
+   *
+   * @param name the name the cache's statistics are published under
+   * @param capacity the most entries the cache will hold, or zero to disable it
+   * @param ttl how long an entry may be served after it was cached
+   * @param clock the source of the current time, in nanoseconds
+   */
+  ResponseCache(String name, int capacity, Duration ttl, LongSupplier clock) {
+    this.name = name;
+    this.capacity = capacity;
+    this.ttlNanos = ttl.toNanos();
+    this.clock = clock;
+    this.entries = new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > ResponseCache.this.capacity;
+      }
+    };
+  }
+
+  /**
+   * Construct a cache that never stores anything.
+   *
+   * @param name the name the cache's statistics are published under
+   * @return a disabled cache
+   */
+  public static ResponseCache disabled(String name) {
+    return new ResponseCache(name, 0, Duration.ZERO);
+  }
+
+  /**
+   * Build a cache key for a list query.
+   *
+   * The key is made from the version of the collection the query ran
+   * against and the (normalized) pieces of the query: Bson filters and
+   * sorts are written out as JSON, and everything else as a string. Since
+   * the controllers build their filters in a fixed order, the same query
+   * asked with its parameters in a different order gets the same key, and
+   * once the collection's version moves on, no old key is ever asked for
+   * again (so those entries just age out).
+   *
+   * @param version the version of the collection the query runs against
+   * @param parts the filter, sort, limit, etc. that make up the query
+   * @return a key identifying the query's result
+   */
+  public static String queryKey(long version, Object... parts) {
+    StringJoiner key = new StringJoiner("|", version + "|", "");
+    for (Object part : parts) {
+      key.add(part instanceof Bson
+        ? ((Bson) part).toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry()).toJson()
+        : String.valueOf(part));
+    }
+    return key.toString();
+  }
+
+  /**
+   * Send a serialized JSON response (cached or about to be).
+   *
+   * @param ctx a Javalin HTTP context
+   * @param body the serialized JSON response body
+   */
+  public static void send(Context ctx, byte[] body) {
+    ctx.contentType(ContentType.APPLICATION_JSON);
+    ctx.result(body);
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * @return whether this cache stores anything at all
+   */
+  public boolean isEnabled() {
+    return capacity > 0;
+  }
+
+  /**
+   * Look up a cached response.
+   *
+   * @param key the key the response was cached under
+   * @return the cached response body, or null if there isn't a fresh one
+   */
+  public synchronized byte[] get(String key) {
+    Entry entry = entries.get(key);
+    if (entry != null && clock.getAsLong() - entry.cachedAt > ttlNanos) {
+      entries.remove(key);
+      entry = null;
+    }
+    if (entry == null) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    return entry.body;
+  }
+
+  /**
+   * Cache a response, if the cache is enabled.
+   *
+   * @param key the key to cache the response under
+   * @param body the serialized response body
+   */
+  public synchronized void put(String key, byte[] body) {
+    if (isEnabled()) {
+      entries.put(key, new Entry(body, clock.getAsLong()));
+    }
+  }
+
+  /**
+   * Cache a response read from a collection, unless the collection has
+   * been written to since it was read.
+   *
+   * The check and the store happen under the cache's lock, so a writer that
+   * bumps the version and then invalidates the key can't have its
+   * invalidation overtaken by a reader that started before the write.
+   *
+   * @param key the key to cache the response under
+   * @param body the serialized response body
+   * @param collection the version of the collection the response came from
+   * @param readAt the collection's version when the response was read
+   */
+  public synchronized void putIfCurrent(String key, byte[] body, CollectionVersion collection, long readAt) {
+    if (collection.current() == readAt) {
+      put(key, body);
+    }
+  }
+
+  /**
+   * Drop the response cached under `key`, if there is one.
+   *
+   * @param key the key of the response to drop
+   */
+  public synchronized void invalidate(String key) {
+    entries.remove(key);
+  }
+
+  /**
+   * Drop every cached response.
+   */
+  public synchronized void invalidateAll() {
+    entries.clear();
+  }
+
+  /**
+   * @return how many lookups found a fresh response
+   */
+  public long hits() {
+    return hits.sum();
+  }
+
+  /**
+   * @return how many lookups didn't find a fresh response
+   */
+  public long misses() {
+    return misses.sum();
+  }
+
+  /**
+   * @return how many responses are cached right now (including any that
+   *   have expired but haven't been looked up since)
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Set the JSON body of the response to be the statistics for this cache.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getStats(Context ctx) {
+    ctx.json(Map.of(
+      "name", name,
+      "capacity", capacity,
+      "size", size(),
+      "hits", hits(),
+      "misses", misses()));
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Setup the route that publishes this cache's statistics.
+   *
+   * @param server The Javalin server instance
+   */
+  public void addRoutes(Javalin server) {
+    server.get(API_CACHE + name, this::getStats);
+  }
+}
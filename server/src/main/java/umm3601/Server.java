@@ -6,6 +6,7 @@ import com.mongodb.MongoClientSettings;
 import com.mongodb.ServerAddress;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
+import com.mongodb.event.CommandListener;
 
 import org.bson.UuidRepresentation;
 
@@ -21,22 +22,56 @@ public class Server {
   // The port that the server should run on.
   private static final int SERVER_PORT = 4567;
 
+  // The most connections the MongoDB client opens, unless told otherwise;
+  // this is the driver's own default.
+  static final int DEFAULT_MONGO_POOL_SIZE = 100;
+
   // The `mongoClient` field is used to access the MongoDB
   private final MongoClient mongoClient;
 
+  // The `indexManager` field collects the indexes the controllers need, and
+  // creates any that are missing before the server starts taking requests.
+  private final IndexManager indexManager;
+
   // The `controllers` field is an array of all the `Controller` implementations
   // for the server. This is used to add routes to the server.
   private Controller[] controllers;
 
+  // Whether requests are handled on virtual threads (see `VirtualThreadPool`)
+  // rather than Jetty's usual pool of platform threads.
+  private final boolean useVirtualThreads;
+
+  // Request counts and latencies (by route) and JVM statistics, which are
+  // published at `GET /metrics`.
+  private final Metrics metrics = new Metrics();
+
   /**
    * Construct a `Server` object that we'll use (via `startServer()`) to configure
    * and start the server.
    *
    * @param mongoClient The MongoDB client object used to access to the database
+   * @param indexManager The index manager for the database the controllers use
+   * @param controllers The implementations of `Controller` used for this server
+   */
+  public Server(MongoClient mongoClient, IndexManager indexManager, Controller[] controllers) {
+    this(mongoClient, indexManager, controllers, false);
+  }
+
+  /**
+   * Construct a `Server` object that may handle requests on virtual threads.
+   *
+   * @param mongoClient The MongoDB client object used to access to the database,
+   *   or null if the controllers don't use one (with `STORAGE=memory`)
+   * @param indexManager The index manager for the database the controllers use
    * @param controllers The implementations of `Controller` used for this server
+   * @param useVirtualThreads Whether to handle each request (and the blocking
+   *   database calls it makes) on its own virtual thread
    */
-  public Server(MongoClient mongoClient, Controller[] controllers) {
+  public Server(MongoClient mongoClient, IndexManager indexManager, Controller[] controllers,
+      boolean useVirtualThreads) {
     this.mongoClient = mongoClient;
+    this.useVirtualThreads = useVirtualThreads;
+    this.indexManager = indexManager;
     // This is what is known as a "defensive copy". We make a copy of
     // the array so that if the caller modifies the array after passing
     // it in, we don't have to worry about it. If we didn't do this,
@@ -61,17 +96,53 @@ public class Server {
    * @return The MongoDB client object
    */
   static MongoClient configureDatabase(String mongoAddr) {
+    return configureDatabase(mongoAddr, DEFAULT_MONGO_POOL_SIZE, new CommandMonitor(CommandMonitor.DEFAULT_SLOW_QUERY));
+  }
+
+  /**
+   * Setup the MongoDB database connection, with a connection pool of a
+   * given size.
+   *
+   * Each request that's waiting on the database holds a connection, so the
+   * pool has to be about as big as the number of requests we expect to be
+   * waiting at once; any more wait for a connection to come free.
+   *
+   * @param mongoAddr The address of the MongoDB server
+   * @param maxPoolSize The most connections to open to the MongoDB server
+   * @param commandListener A listener that sees every command the client
+   *   sends (see `CommandMonitor`)
+   *
+   * @return The MongoDB client object
+   */
+  static MongoClient configureDatabase(String mongoAddr, int maxPoolSize, CommandListener commandListener) {
     // Setup the MongoDB client object with the information we set earlier
-    MongoClient mongoClient = MongoClients.create(MongoClientSettings
+    return MongoClients.create(mongoClientSettings(mongoAddr, maxPoolSize, commandListener));
+  }
+
+  /**
+   * The settings for a MongoDB client, with a connection pool of a given
+   * size. Both the synchronous client and the reactive-streams one (see
+   * `AsyncMongo`) are made with these, so they're set up the same way.
+   *
+   * @param mongoAddr The address of the MongoDB server
+   * @param maxPoolSize The most connections the client may open to the
+   *   MongoDB server
+   * @param commandListener A listener that sees every command the client
+   *   sends (see `CommandMonitor`)
+   *
+   * @return The settings for the client
+   */
+  static MongoClientSettings mongoClientSettings(String mongoAddr, int maxPoolSize, CommandListener commandListener) {
+    return MongoClientSettings
       .builder()
       .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+      .applyToConnectionPoolSettings(builder -> builder.maxSize(maxPoolSize))
+      .addCommandListener(commandListener)
       // Old versions of the mongodb-driver-sync package encoded UUID values (universally unique identifiers) in
       // a non-standard way. This option says to use the standard encoding.
       // See: https://studio3t.com/knowledge-base/articles/mongodb-best-practices-uuid-data/
       .uuidRepresentation(UuidRepresentation.STANDARD)
-      .build());
-
-    return mongoClient;
+      .build();
   }
 
   /**
@@ -82,11 +153,27 @@ public class Server {
    * JVM is shut down.
    */
   void startServer() {
+    setupIndexes();
     Javalin javalin = configureJavalin();
     setupRoutes(javalin);
     javalin.start(SERVER_PORT);
   }
 
+  /**
+   * Make sure the database has every index the controllers' queries need.
+   *
+   * Each controller declares its indexes with the index manager, which then
+   * creates any that are missing (and logs any that nobody declared). This
+   * happens before the server starts so no request runs against a
+   * collection that's missing an index.
+   */
+  private void setupIndexes() {
+    for (Controller controller : controllers) {
+      controller.declareIndexes(indexManager);
+    }
+    indexManager.reconcile();
+  }
+
   /**
    * Configure the Javalin server. This includes
    *
@@ -96,6 +183,11 @@ public class Server {
    *   JVM is shut down.
    * - Setting up a handler for uncaught exceptions to return an HTTP 500
    *   error.
+   * - Running requests on virtual threads, if the server was asked to.
+   * - Recording the route, status, and latency of every request.
+   * - Giving every request an ID (see `RequestId`).
+   * - Timing the phases of every request (see `ServerTiming`).
+   * - Recording every request for Java Flight Recorder (see `HttpRequestEvent`).
    *
    * @return The Javalin server instance
    */
@@ -114,9 +206,17 @@ public class Server {
      * what HTTP methods they use. (Replace `localhost` and `4567` with whatever server
      * and  port you're actually using, if they are different.)
      */
-    Javalin server = Javalin.create(config ->
-      config.plugins.register(new RouteOverviewPlugin("/api"))
-    );
+    Javalin server = Javalin.create(config -> {
+      config.plugins.register(new RouteOverviewPlugin("/api"));
+      // Javalin calls this after every request (including async ones, once
+      // their futures finish), with how long the request took.
+      config.requestLogger.http(metrics::record);
+      // Give Jetty a pool that starts a virtual thread for each task, rather
+      // than its default (bounded) pool of platform threads.
+      if (useVirtualThreads) {
+        config.jetty.server(() -> new org.eclipse.jetty.server.Server(new VirtualThreadPool()));
+      }
+    });
 
     // Configure the MongoDB client and the Javalin server to shut down gracefully.
     configureShutdowns(server);
@@ -134,6 +234,21 @@ public class Server {
       throw new InternalServerErrorResponse(e.toString());
     });
 
+    // Every request gets an ID, which its database queries carry as their
+    // comment, so a slow query in the logs can be matched to its request.
+    server.before(RequestId::start);
+
+    // Every request is a Java Flight Recorder event (see `FlightRecordings`),
+    // which costs next to nothing unless something is recording.
+    server.before(HttpRequestEvent::begin);
+    server.after(HttpRequestEvent::end);
+    server.after(RequestId::end);
+
+    // Every response says where its time went, in a `Server-Timing` header
+    // (see `ServerTiming`).
+    server.before(ServerTiming::start);
+    server.after(ServerTiming::finish);
+
     return server;
   }
 
@@ -156,6 +271,10 @@ public class Server {
      * life of the server, the only way to do this is to wait for
      * these events and close it then.
      */
+    if (mongoClient == null) {
+      // With in-memory storage there's no client to close.
+      return;
+    }
     server.events(event -> {
       event.serverStartFailed(mongoClient::close);
       event.serverStopped(mongoClient::close);
@@ -173,5 +292,9 @@ public class Server {
     for (Controller controller : controllers) {
       controller.addRoutes(server);
     }
+    // `GET /api/indexes` lists the indexes that were applied at startup.
+    indexManager.addRoutes(server);
+    // `GET /metrics` has the request and JVM metrics, for Prometheus.
+    metrics.addRoutes(server);
   }
 }
@@ -0,0 +1,147 @@
+package umm3601;
+
+import io.javalin.http.Context;
+
+/**
+ * A breakdown of where each request's time went, sent to the client in a
+ * `Server-Timing` header (which browser devtools show next to the request,
+ * and the load-test tooling can read), like
+ *
+ *   `Server-Timing: validate;dur=0.041, db;dur=3.870, serialize;dur=0.512, total;dur=4.602`
+ *
+ * `Server` starts the clock before each request, and adds the header (with
+ * the `total`) after it. In between, a handler calls `mark(phase)` at the
+ * end of each phase, which adds the time since the previous mark (or the
+ * start) to that phase; a phase marked more than once adds up.
+ *
+ * Since this happens on every request, a mark is just a `System.nanoTime()`
+ * and a couple of array writes: the phases are constant strings, kept in
+ * fixed arrays, and nothing is formatted until the header is written. Time
+ * spent writing the body to the client can't be included, since the header
+ * has to go out before the body; nor can anything after a handler starts
+ * streaming its response (which sends the headers).
+ */
+public final class ServerTiming {
+
+  public static final String HEADER = "Server-Timing";
+
+  // The phases the controllers mark.
+  public static final String VALIDATE = "validate";
+  public static final String CACHE = "cache";
+  public static final String DB = "db";
+  public static final String SERIALIZE = "serialize";
+  static final String TOTAL = "total";
+
+  static final String ATTRIBUTE = "serverTiming";
+
+  // More phases than this are ignored; the handlers use at most four.
+  private static final int MAX_PHASES = 8;
+
+  private static final long NANOS_PER_MICRO = 1_000;
+  private static final long MICROS_PER_MILLI = 1_000;
+  private static final long TENTHS = 10;
+  private static final long HUNDREDTHS = 100;
+
+  // What `forContext` returns when there's no timing for a request (when a
+  // test calls a handler directly, say); marks on it do nothing.
+  private static final ServerTiming DISABLED = new ServerTiming(0);
+
+  private final String[] phases = new String[MAX_PHASES];
+  private final long[] phaseNanos = new long[MAX_PHASES];
+  private int phaseCount;
+  private final long startNanos;
+  private long lastMarkNanos;
+
+  ServerTiming(long startNanos) {
+    this.startNanos = startNanos;
+    this.lastMarkNanos = startNanos;
+  }
+
+  /**
+   * Start timing a request; `Server` runs this before every request.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public static void start(Context ctx) {
+    ctx.attribute(ATTRIBUTE, new ServerTiming(System.nanoTime()));
+  }
+
+  /**
+   * @param ctx a Javalin HTTP context
+   * @return the timing of the request, which does nothing if the request
+   *   isn't being timed
+   */
+  public static ServerTiming forContext(Context ctx) {
+    ServerTiming timing = ctx.attribute(ATTRIBUTE);
+    return timing == null ? DISABLED : timing;
+  }
+
+  /**
+   * Add the time since the last mark (or the start) to a phase.
+   *
+   * @param phase the phase that just ended; one of the constants here
+   */
+  public void mark(String phase) {
+    if (this == DISABLED) {
+      return;
+    }
+    long now = System.nanoTime();
+    long elapsed = now - lastMarkNanos;
+    lastMarkNanos = now;
+    for (int i = 0; i < phaseCount; i++) {
+      if (phases[i].equals(phase)) {
+        phaseNanos[i] += elapsed;
+        return;
+      }
+    }
+    if (phaseCount < MAX_PHASES) {
+      phases[phaseCount] = phase;
+      phaseNanos[phaseCount] = elapsed;
+      phaseCount++;
+    }
+  }
+
+  /**
+   * Add the `Server-Timing` header, unless the response has already been
+   * sent; `Server` runs this after every request.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public static void finish(Context ctx) {
+    ServerTiming timing = ctx.attribute(ATTRIBUTE);
+    if (timing == null || ctx.res().isCommitted()) {
+      return;
+    }
+    ctx.header(HEADER, timing.header(System.nanoTime()));
+  }
+
+  /**
+   * @param nowNanos the time the request finished
+   * @return the value of the `Server-Timing` header, with each phase in the
+   *   order it was first marked, and then the total
+   */
+  String header(long nowNanos) {
+    StringBuilder header = new StringBuilder();
+    for (int i = 0; i < phaseCount; i++) {
+      appendMetric(header, phases[i], phaseNanos[i]);
+      header.append(", ");
+    }
+    appendMetric(header, TOTAL, nowNanos - startNanos);
+    return header.toString();
+  }
+
+  /**
+   * Append `name;dur=millis`, with the milliseconds to three decimal places.
+   */
+  private static void appendMetric(StringBuilder header, String name, long nanos) {
+    long micros = nanos / NANOS_PER_MICRO;
+    long fraction = micros % MICROS_PER_MILLI;
+    header.append(name).append(";dur=").append(micros / MICROS_PER_MILLI).append('.');
+    if (fraction < TENTHS) {
+      header.append("00");
+    } else if (fraction < HUNDREDTHS) {
+      header.append('0');
+    }
+    header.append(fraction);
+  }
+}
@@ -0,0 +1,103 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.regex;
+
+import java.util.regex.Pattern;
+
+import org.bson.conversions.Bson;
+
+import com.mongodb.client.model.Collation;
+import com.mongodb.client.model.CollationStrength;
+import com.mongodb.client.model.IndexOptions;
+
+import io.javalin.http.Context;
+
+/**
+ * Case-insensitive matching of string query parameters (like `owner` or
+ * `company`) that can use an index.
+ *
+ * An unanchored, case-insensitive regex can't use an index, so every such
+ * lookup scans the whole collection. Instead, list queries run with a
+ * case-insensitive collation (`COLLATION`), the indexes behind them are
+ * built with that same collation (`indexOptions()`), and a value is matched
+ * in one of three ways, chosen with the `match` query parameter:
+ *
+ *   - `prefix` (the default): the field starts with the value
+ *   - `exact`: the field is the value
+ *   - `substring`: the field contains the value anywhere; this is the old
+ *     behavior, and it is much slower on a big collection since it can't
+ *     use the index
+ *
+ * Case is ignored in all three.
+ */
+public final class TextMatch {
+
+  /**
+   * The query parameter that selects how a string value is matched.
+   */
+  public static final String MATCH_KEY = "match";
+
+  /**
+   * Compare strings in English, ignoring case (but not accents).
+   */
+  public static final Collation COLLATION = Collation.builder()
+    .locale("en")
+    .collationStrength(CollationStrength.SECONDARY)
+    .build();
+
+  static final String EXACT = "exact";
+  static final String PREFIX = "prefix";
+  static final String SUBSTRING = "substring";
+  private static final String MATCH_REGEX = "^(exact|prefix|substring)$";
+
+  // In the Unicode collation algorithm U+FFFF sorts after every other
+  // character, so it makes an upper bound for "everything starting with".
+  private static final String MAX_WEIGHT = "\uFFFF";
+
+  private TextMatch() {
+  }
+
+  /**
+   * Construct a filter matching `field` against the query parameter with
+   * the same name, in the way the `match` query parameter asks for.
+   *
+   * The query using this filter must run with `COLLATION` for the match to
+   * ignore case (and use an index).
+   *
+   * @param ctx a Javalin HTTP context, which contains the query parameters
+   * @param field the name of both the query parameter and the document field
+   * @return a Bson filter for the requested match
+   */
+  public static Bson filter(Context ctx, String field) {
+    String value = ctx.queryParam(field);
+    String mode = PREFIX;
+    if (ctx.queryParamMap().containsKey(MATCH_KEY)) {
+      mode = ctx.queryParamAsClass(MATCH_KEY, String.class)
+        .check(it -> it.matches(MATCH_REGEX), "Match must be one of exact, prefix, or substring")
+        .get();
+    }
+
+    switch (mode) {
+      case EXACT:
+        return eq(field, value);
+      case SUBSTRING:
+        return regex(field, Pattern.compile(Pattern.quote(value), Pattern.CASE_INSENSITIVE));
+      default:
+        // Under the collation this is a range scan over one stretch of the index.
+        return and(gte(field, value), lt(field, value + MAX_WEIGHT));
+    }
+  }
+
+  /**
+   * Options for an index that queries run with `COLLATION` can use.
+   *
+   * @return a fresh set of index options with the case-insensitive collation
+   */
+  public static IndexOptions indexOptions() {
+    return new IndexOptions().collation(COLLATION);
+  }
+}
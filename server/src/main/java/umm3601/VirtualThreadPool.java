@@ -0,0 +1,68 @@
+package umm3601;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * A Jetty thread pool that runs every task on a new virtual thread, for
+ * the "virtual" execution mode (see `Main`).
+ *
+ * Jetty's default pool has a couple of hundred platform threads, and a
+ * request holds one for as long as it waits on the (synchronous) Mongo
+ * driver; once they're all waiting, new requests queue up even though the
+ * database may have plenty of room. A virtual thread that blocks on I/O
+ * gives up its carrier thread, so a request waiting on Mongo costs little
+ * more than its stack, and concurrency is bounded by the Mongo connection
+ * pool (`MONGO_MAX_POOL_SIZE`) instead of the thread pool.
+ *
+ * There's no "size" to run out of, so the pool never reports being low on
+ * threads.
+ */
+public class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool {
+
+  private final ExecutorService executor = Executors.newThreadPerTaskExecutor(
+    Thread.ofVirtual().name("jetty-virtual-", 0).factory());
+
+  @Override
+  public void execute(Runnable task) {
+    executor.execute(task);
+  }
+
+  @Override
+  public void join() throws InterruptedException {
+    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return the number of threads; virtual threads aren't pooled, so this
+   *   is always zero
+   */
+  @Override
+  public int getThreads() {
+    return 0;
+  }
+
+  /**
+   * @return the number of idle threads; virtual threads aren't pooled, so
+   *   this is always zero
+   */
+  @Override
+  public int getIdleThreads() {
+    return 0;
+  }
+
+  @Override
+  public boolean isLowOnThreads() {
+    return false;
+  }
+
+  @Override
+  protected void doStop() throws Exception {
+    executor.shutdown();
+    super.doStop();
+  }
+}
@@ -0,0 +1,189 @@
+package umm3601.todo;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.stream.Stream;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import umm3601.LogStore;
+
+/**
+ * Keeps the todos (as JSON) in a `LogStore` in a directory on this
+ * machine, and their tombstones in another, for running without a
+ * database.
+ *
+ * Queries are answered by a `MemoryTodoRepository` (and its indexes),
+ * which is filled from the logs when they're opened and kept up to date
+ * with every write. Writes return once they're on disk.
+ */
+public class LogTodoRepository implements TodoRepository, Closeable {
+
+  static final String TODO_LOG = "todos";
+  static final String TOMBSTONE_LOG = "todo-tombstones";
+
+  private static final ObjectReader TODO_READER = new ObjectMapper().readerFor(Todo.class);
+  private static final ObjectWriter TODO_WRITER = new ObjectMapper().writerFor(Todo.class);
+
+  private final MemoryTodoRepository memory = new MemoryTodoRepository();
+  private final LogStore todos;
+  private final LogStore tombstones;
+
+  /**
+   * Open (or start) the todo logs in `directory`.
+   *
+   * @param directory the directory the logs are kept in
+   * @throws IOException if the logs can't be read
+   */
+  public LogTodoRepository(Path directory) throws IOException {
+    todos = new LogStore(directory, TODO_LOG);
+    tombstones = new LogStore(directory, TOMBSTONE_LOG);
+
+    todos.forEach((id, json) -> memory.insert(read(json)));
+    Instant expiry = Instant.now().minus(TodoChangeLog.RETENTION);
+    // Where the last expired tombstone was deleted, so those deletes can be
+    // on disk before the repository is used.
+    LongAccumulator lastDelete = new LongAccumulator(Math::max, 0);
+    tombstones.forEach((id, json) -> {
+      Document tombstone = Document.parse(new String(json, UTF_8));
+      if (tombstone.getDate(TodoChangeLog.DELETED_AT_KEY).toInstant().isBefore(expiry)) {
+        lastDelete.accumulate(tombstones.delete(id));
+      } else {
+        memory.addTombstone(tombstone)
+          .forEach(expired -> lastDelete.accumulate(tombstones.delete(expired.toHexString())));
+      }
+    });
+    tombstones.sync(lastDelete.get());
+  }
+
+  @Override
+  public Todo findById(ObjectId id) {
+    return memory.findById(id);
+  }
+
+  @Override
+  public ArrayList<Todo> find(Bson filter, Bson sort, int limit) {
+    return memory.find(filter, sort, limit);
+  }
+
+  @Override
+  public Stream<Todo> stream(Bson filter, Bson sort, int limit, int batchSize) {
+    return memory.stream(filter, sort, limit, batchSize);
+  }
+
+  @Override
+  public Stream<Todo> export(Bson filter) {
+    return memory.export(filter);
+  }
+
+  @Override
+  public void insert(Todo todo) {
+    if (todo._id == null) {
+      todo._id = new ObjectId().toHexString();
+    }
+    byte[] json = write(todo);
+    long position;
+    // The log has to get the writes in the same order as the indexes.
+    synchronized (this) {
+      memory.insert(todo);
+      position = todos.put(todo._id, json);
+    }
+    todos.sync(position);
+  }
+
+  @Override
+  public Map<Integer, String> insertMany(List<Todo> newTodos) {
+    List<byte[]> json = new ArrayList<>(newTodos.size());
+    for (Todo todo : newTodos) {
+      if (todo._id == null) {
+        todo._id = new ObjectId().toHexString();
+      }
+      json.add(write(todo));
+    }
+    Map<Integer, String> errors;
+    long position = 0;
+    synchronized (this) {
+      errors = memory.insertMany(newTodos);
+      for (int i = 0; i < newTodos.size(); i++) {
+        if (!errors.containsKey(i)) {
+          position = todos.put(newTodos.get(i)._id, json.get(i));
+        }
+      }
+    }
+    // One flush for the whole batch.
+    todos.sync(position);
+    return errors;
+  }
+
+  @Override
+  public Todo delete(ObjectId id) {
+    Todo deleted;
+    long position = 0;
+    synchronized (this) {
+      deleted = memory.delete(id);
+      if (deleted != null) {
+        position = todos.delete(id.toHexString());
+      }
+    }
+    todos.sync(position);
+    return deleted;
+  }
+
+  @Override
+  public void addTombstone(String todoId, Instant deletedAt) {
+    Document tombstone = MemoryTodoRepository.tombstone(todoId, deletedAt);
+    long position;
+    synchronized (this) {
+      position = tombstones.put(tombstone.getObjectId("_id").toHexString(), tombstone.toJson().getBytes(UTF_8));
+      for (ObjectId expired : memory.addTombstone(tombstone)) {
+        tombstones.delete(expired.toHexString());
+      }
+    }
+    tombstones.sync(position);
+  }
+
+  @Override
+  public List<Document> tombstones(ObjectId after, ObjectId upTo, int limit) {
+    return memory.tombstones(after, upTo, limit);
+  }
+
+  /**
+   * Wait for everything written to be on disk, and stop compacting.
+   */
+  @Override
+  public void close() {
+    todos.close();
+    tombstones.close();
+  }
+
+  private static byte[] write(Todo todo) {
+    try {
+      return TODO_WRITER.writeValueAsBytes(todo);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static Todo read(byte[] json) {
+    try {
+      return TODO_READER.readValue(json);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
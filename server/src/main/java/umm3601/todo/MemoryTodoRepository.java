@@ -0,0 +1,132 @@
+package umm3601.todo;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import io.javalin.http.ConflictResponse;
+import umm3601.MemoryCollection;
+
+/**
+ * Keeps the todos in this JVM, in a `MemoryCollection` with secondary
+ * indexes on owner, category, and status (the fields `getTodos` filters
+ * on). Nothing is saved: the todos are gone when the server stops.
+ *
+ * Tombstones are kept in `_id` order, and those older than
+ * `TodoChangeLog.RETENTION` are dropped as new ones are added.
+ */
+public class MemoryTodoRepository implements TodoRepository {
+
+  private final MemoryCollection<Todo> todos = new MemoryCollection<>(
+    Map.<String, Function<Todo, Object>>of(
+      MemoryCollection.ID_KEY, todo -> todo._id,
+      TodoController.OWNER_KEY, todo -> todo.owner,
+      TodoController.STATUS_KEY, todo -> todo.status,
+      TodoController.BODY_KEY, todo -> todo.body,
+      TodoController.CATEGORY_KEY, todo -> todo.category),
+    List.of(TodoController.OWNER_KEY, TodoController.CATEGORY_KEY, TodoController.STATUS_KEY));
+
+  private final ConcurrentSkipListMap<ObjectId, Document> tombstones = new ConcurrentSkipListMap<>();
+
+  @Override
+  public Todo findById(ObjectId id) {
+    return todos.get(id.toHexString());
+  }
+
+  @Override
+  public ArrayList<Todo> find(Bson filter, Bson sort, int limit) {
+    return todos.find(filter, sort, limit);
+  }
+
+  @Override
+  public Stream<Todo> stream(Bson filter, Bson sort, int limit, int batchSize) {
+    return find(filter, sort, limit).stream();
+  }
+
+  @Override
+  public Stream<Todo> export(Bson filter) {
+    return find(filter, null, 0).stream();
+  }
+
+  @Override
+  public void insert(Todo todo) {
+    if (todo._id == null) {
+      todo._id = new ObjectId().toHexString();
+    }
+    if (!todos.insert(todo)) {
+      throw new ConflictResponse("There is already a todo with ID " + todo._id);
+    }
+  }
+
+  @Override
+  public Map<Integer, String> insertMany(List<Todo> newTodos) {
+    Map<Integer, String> errors = new HashMap<>();
+    for (int i = 0; i < newTodos.size(); i++) {
+      Todo todo = newTodos.get(i);
+      if (todo._id == null) {
+        todo._id = new ObjectId().toHexString();
+      }
+      if (!todos.insert(todo)) {
+        errors.put(i, "There is already a todo with ID " + todo._id);
+      }
+    }
+    return errors;
+  }
+
+  @Override
+  public Todo delete(ObjectId id) {
+    return todos.delete(id.toHexString());
+  }
+
+  @Override
+  public void addTombstone(String todoId, Instant deletedAt) {
+    addTombstone(tombstone(todoId, deletedAt));
+  }
+
+  /**
+   * Make a new tombstone for a deleted todo.
+   *
+   * @param todoId the ID of the deleted todo, as a hex string
+   * @param deletedAt when it was deleted
+   * @return the tombstone, with a new `_id`
+   */
+  static Document tombstone(String todoId, Instant deletedAt) {
+    return new Document("_id", new ObjectId())
+      .append(TodoChangeLog.TODO_ID_KEY, todoId)
+      .append(TodoChangeLog.DELETED_AT_KEY, Date.from(deletedAt));
+  }
+
+  /**
+   * Add a tombstone, and drop the ones made before the retention period
+   * (counting back from when it was deleted), as Mongo's TTL index would.
+   *
+   * @param tombstone a tombstone from `tombstone`
+   * @return the IDs of the tombstones dropped
+   */
+  List<ObjectId> addTombstone(Document tombstone) {
+    tombstones.put(tombstone.getObjectId("_id"), tombstone);
+    Instant deletedAt = tombstone.getDate(TodoChangeLog.DELETED_AT_KEY).toInstant();
+    Map<ObjectId, Document> expired =
+      tombstones.headMap(new ObjectId(Date.from(deletedAt.minus(TodoChangeLog.RETENTION)), 0));
+    List<ObjectId> expiredIds = List.copyOf(expired.keySet());
+    expired.clear();
+    return expiredIds;
+  }
+
+  @Override
+  public List<Document> tombstones(ObjectId after, ObjectId upTo, int limit) {
+    return tombstones.subMap(after, false, upTo, true).values().stream()
+      .limit(limit)
+      .toList();
+  }
+}
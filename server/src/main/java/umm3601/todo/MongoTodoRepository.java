@@ -0,0 +1,194 @@
+package umm3601.todo;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.lte;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.bson.Document;
+import org.bson.UuidRepresentation;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.mongojack.JacksonMongoCollection;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.ReadPreference;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.FindOneAndDeleteOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.InsertOneOptions;
+import com.mongodb.client.model.Sorts;
+
+import umm3601.IndexManager;
+import umm3601.NdjsonExport;
+import umm3601.RequestId;
+import umm3601.TextMatch;
+
+/**
+ * Stores the todos in the `todos` collection of a MongoDB database, and
+ * their tombstones in `TodoChangeLog.TOMBSTONE_COLLECTION`.
+ *
+ * Every command (reads and writes) is tagged with the ID of the request
+ * that made it (see `RequestId`), and list queries run with the case-insensitive
+ * `TextMatch.COLLATION` so they can use the indexes declared here.
+ */
+public class MongoTodoRepository implements TodoRepository {
+
+  static final String TODO_COLLECTION = "todos";
+
+  private static final String ID_KEY = "_id";
+
+  private final JacksonMongoCollection<Todo> todoCollection;
+  private final MongoCollection<Document> tombstoneCollection;
+
+  /**
+   * @param db the database with the todos (and their tombstones)
+   */
+  public MongoTodoRepository(MongoDatabase db) {
+    this(db, JacksonMongoCollection.builder().build(db, TODO_COLLECTION, Todo.class, UuidRepresentation.STANDARD));
+  }
+
+  /**
+   * @param db the database with the todos' tombstones
+   * @param todoCollection the collection of todos
+   */
+  MongoTodoRepository(MongoDatabase db, JacksonMongoCollection<Todo> todoCollection) {
+    this.todoCollection = todoCollection;
+    this.tombstoneCollection = db.getCollection(TodoChangeLog.TOMBSTONE_COLLECTION);
+  }
+
+  @Override
+  public Todo findById(ObjectId id) {
+    return todoCollection.find(eq(ID_KEY, id)).comment(RequestId.current()).first();
+  }
+
+  @Override
+  public ArrayList<Todo> find(Bson filter, Bson sort, int limit) {
+    return query(filter, sort, limit).into(new ArrayList<>());
+  }
+
+  @Override
+  public Stream<Todo> stream(Bson filter, Bson sort, int limit, int batchSize) {
+    return stream(query(filter, sort, limit).batchSize(batchSize).cursor());
+  }
+
+  /**
+   * Exports read from a secondary when there is one, to keep them from
+   * competing with normal traffic on the primary.
+   */
+  @Override
+  public Stream<Todo> export(Bson filter) {
+    return stream(todoCollection
+      .withReadPreference(ReadPreference.secondaryPreferred())
+      .find(filter)
+      .comment(RequestId.current())
+      .collation(TextMatch.COLLATION)
+      .batchSize(NdjsonExport.BATCH_SIZE)
+      .cursor());
+  }
+
+  @Override
+  public void insert(Todo todo) {
+    todoCollection.insertOne(todo, new InsertOneOptions().comment(RequestId.current()));
+  }
+
+  /**
+   * The todos are written with a single unordered `insertMany`, so one
+   * failed todo doesn't stop the rest.
+   */
+  @Override
+  public Map<Integer, String> insertMany(List<Todo> todos) {
+    Map<Integer, String> errors = new HashMap<>();
+    try {
+      todoCollection.insertMany(todos, new InsertManyOptions().ordered(false).comment(RequestId.current()));
+    } catch (MongoBulkWriteException e) {
+      for (BulkWriteError error : e.getWriteErrors()) {
+        errors.put(error.getIndex(), error.getMessage());
+      }
+    }
+    return errors;
+  }
+
+  /**
+   * `findOneAndDelete` hands back the deleted todo, so the live feed can
+   * tell subscribers whose todo it was.
+   */
+  @Override
+  public Todo delete(ObjectId id) {
+    return todoCollection.findOneAndDelete(eq(ID_KEY, id), new FindOneAndDeleteOptions().comment(RequestId.current()));
+  }
+
+  @Override
+  public void addTombstone(String todoId, Instant deletedAt) {
+    tombstoneCollection.insertOne(
+      new Document(TodoChangeLog.TODO_ID_KEY, todoId).append(TodoChangeLog.DELETED_AT_KEY, Date.from(deletedAt)),
+      new InsertOneOptions().comment(RequestId.current()));
+  }
+
+  @Override
+  public List<Document> tombstones(ObjectId after, ObjectId upTo, int limit) {
+    return tombstoneCollection
+      .find(and(gt(ID_KEY, after), lte(ID_KEY, upTo)))
+      .comment(RequestId.current())
+      .sort(Sorts.ascending(ID_KEY))
+      .limit(limit)
+      .into(new ArrayList<>());
+  }
+
+  /**
+   * Declare the indexes behind `getTodos`. Every list query sorts on a
+   * field followed by `_id` (owner by default), so each index ends in the
+   * default sort to let Mongo filter and sort in one index scan. List
+   * queries run with the case-insensitive `TextMatch.COLLATION`, so the
+   * indexes have to be built with it too.
+   *
+   * Tombstones are dropped once they're `TodoChangeLog.RETENTION` old by a
+   * TTL index. (The change queries themselves only need the `_id` indexes.)
+   */
+  @Override
+  public void declareIndexes(IndexManager indexes) {
+    indexes.declare(TODO_COLLECTION, Indexes.ascending(TodoController.OWNER_KEY, ID_KEY), TextMatch.indexOptions());
+    indexes.declare(TODO_COLLECTION, Indexes.ascending(TodoController.STATUS_KEY, TodoController.OWNER_KEY, ID_KEY),
+      TextMatch.indexOptions());
+    indexes.declare(TODO_COLLECTION,
+      Indexes.ascending(TodoController.CATEGORY_KEY, TodoController.OWNER_KEY, ID_KEY), TextMatch.indexOptions());
+    indexes.declare(TodoChangeLog.TOMBSTONE_COLLECTION, Indexes.ascending(TodoChangeLog.DELETED_AT_KEY),
+      new IndexOptions().expireAfter(TodoChangeLog.RETENTION.toSeconds(), TimeUnit.SECONDS));
+  }
+
+  private FindIterable<Todo> query(Bson filter, Bson sort, int limit) {
+    return todoCollection
+      .find(filter)
+      .comment(RequestId.current())
+      .collation(TextMatch.COLLATION)
+      .sort(sort)
+      .limit(limit);
+  }
+
+  /**
+   * The documents from a cursor, as a stream that closes the cursor when
+   * it's closed.
+   */
+  private static Stream<Todo> stream(MongoCursor<Todo> cursor) {
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED), false)
+      .onClose(cursor::close);
+  }
+}
@@ -0,0 +1,222 @@
+package umm3601.todo;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.lte;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.bson.Document;
+import org.bson.json.JsonParseException;
+import org.bson.types.ObjectId;
+import org.mongojack.JacksonMongoCollection;
+
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Sorts;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.GoneResponse;
+
+/**
+ * The inserts and deletes of todos since some point in time, so a client
+ * can keep its copy of the todos in sync without re-reading all of them.
+ *
+ * Inserts are found by `_id`: an ObjectId starts with the time it was
+ * made, so the todos added since a point are an index range scan on `_id`.
+ * Deletes leave a tombstone (the ID of the deleted todo) behind in the
+ * `TodoRepository` (in `TOMBSTONE_COLLECTION`, with Mongo), whose own
+ * `_id`s work the same way. A change
+ * token records how far through both the client has got.
+ *
+ * Two things to know about the tokens:
+ *
+ *   - ObjectIds are made just before a document is written, so a todo can
+ *     show up a moment after one with a later ID. Changes are only handed
+ *     out once they're `SETTLE` old, so nothing is skipped because of that.
+ *     This relies on the server making every todo's ID at the time it's
+ *     written: `TodoController` refuses todos that come with an `_id`.
+ *   - Tombstones are kept for `RETENTION`. A token older than that would
+ *     miss deletes, so it is refused (with `410 Gone`), and the client
+ *     has to start over without one.
+ */
+public class TodoChangeLog {
+
+  static final String TOMBSTONE_COLLECTION = "todoTombstones";
+  static final String TODO_ID_KEY = "todoId";
+  static final String DELETED_AT_KEY = "deletedAt";
+
+  // The most inserts (and, separately, deletes) sent in one response.
+  static final int MAX_CHANGES = 1000;
+
+  static final Duration SETTLE = Duration.ofSeconds(2);
+  static final Duration RETENTION = Duration.ofDays(7);
+
+  private static final String ID_KEY = "_id";
+  private static final String TODOS_POSITION_KEY = "t";
+  private static final String TOMBSTONES_POSITION_KEY = "d";
+
+  // The last 8 bytes of an ObjectId (after the 4-byte timestamp), as hex.
+  private static final String MIN_ID_TAIL = "0000000000000000";
+  private static final String MAX_ID_TAIL = "ffffffffffffffff";
+
+  private final TodoRepository todoRepository;
+  private final Supplier<Instant> clock;
+
+  /**
+   * The changes since a token, and the token to ask with next time.
+   */
+  @SuppressWarnings("checkstyle:visibilitymodifier")
+  public static class Changes {
+    public List<Todo> inserted;
+    public List<String> deleted;
+    public String next;
+    // Whether there were more changes than fit in this response; if so,
+    // ask again right away with `next`.
+    public boolean more;
+  }
+
+  /**
+   * Construct a change log for the todos in `todoRepository`.
+   *
+   * @param todoRepository where the todos (and their tombstones) are stored
+   */
+  TodoChangeLog(TodoRepository todoRepository) {
+    this(todoRepository, Instant::now);
+  }
+
+  /**
+   * Construct a change log that reads the time from the given clock; this
+   * lets tests see changes without waiting for them to settle.
+   *
+   * @param todoRepository where the todos (and their tombstones) are stored
+   * @param clock the source of the current time
+   */
+  TodoChangeLog(TodoRepository todoRepository, Supplier<Instant> clock) {
+    this.todoRepository = todoRepository;
+    this.clock = clock;
+  }
+
+  /**
+   * Construct a change log for todos kept in Mongo, that reads the time
+   * from the given clock.
+   *
+   * @param db the database with the todos (and their tombstones)
+   * @param todoCollection the collection of todos
+   * @param clock the source of the current time
+   */
+  TodoChangeLog(MongoDatabase db, JacksonMongoCollection<Todo> todoCollection, Supplier<Instant> clock) {
+    this(new MongoTodoRepository(db, todoCollection), clock);
+  }
+
+  /**
+   * Record that a todo was deleted.
+   *
+   * @param id the ID of the deleted todo, as a hex string
+   */
+  void recordDelete(String id) {
+    todoRepository.addTombstone(id, clock.get());
+  }
+
+  /**
+   * Get the changes since `token`.
+   *
+   * Without a token, every todo counts as inserted (and there's nothing to
+   * delete), which is how a client starts.
+   *
+   * @param token a token from an earlier `Changes`, or null
+   * @return the todos inserted and the IDs of the todos deleted since
+   *   `token`, and the token for next time
+   */
+  Changes since(String token) {
+    Instant now = clock.get();
+    // Only changes made by the end of the second `SETTLE` ago are handed out.
+    ObjectId horizon = idAt(now.minus(SETTLE), MAX_ID_TAIL);
+
+    ObjectId todosPosition;
+    ObjectId tombstonesPosition;
+    if (token == null) {
+      todosPosition = idAt(Instant.EPOCH, MIN_ID_TAIL);
+      tombstonesPosition = horizon;
+    } else {
+      Document decoded = decode(token);
+      todosPosition = decoded.getObjectId(TODOS_POSITION_KEY);
+      tombstonesPosition = decoded.getObjectId(TOMBSTONES_POSITION_KEY);
+      if (tombstonesPosition.getDate().toInstant().isBefore(now.minus(RETENTION))) {
+        throw new GoneResponse("The change token has expired; get all the todos again.");
+      }
+    }
+
+    Changes changes = new Changes();
+    changes.inserted = todoRepository.find(
+      and(gt(ID_KEY, todosPosition), lte(ID_KEY, horizon)), Sorts.ascending(ID_KEY), MAX_CHANGES + 1);
+    List<Document> tombstones = todoRepository.tombstones(tombstonesPosition, horizon, MAX_CHANGES + 1);
+
+    // If there are more of either, pick up after the last one sent;
+    // otherwise we've seen everything up to the horizon.
+    if (changes.inserted.size() > MAX_CHANGES) {
+      changes.inserted = changes.inserted.subList(0, MAX_CHANGES);
+      todosPosition = new ObjectId(changes.inserted.get(MAX_CHANGES - 1)._id);
+      changes.more = true;
+    } else {
+      todosPosition = max(todosPosition, horizon);
+    }
+    if (tombstones.size() > MAX_CHANGES) {
+      tombstones = tombstones.subList(0, MAX_CHANGES);
+      tombstonesPosition = tombstones.get(MAX_CHANGES - 1).getObjectId(ID_KEY);
+      changes.more = true;
+    } else {
+      tombstonesPosition = max(tombstonesPosition, horizon);
+    }
+
+    changes.deleted = new ArrayList<>(tombstones.size());
+    for (Document tombstone : tombstones) {
+      changes.deleted.add(tombstone.getString(TODO_ID_KEY));
+    }
+    changes.next = token(todosPosition, tombstonesPosition);
+    return changes;
+  }
+
+  /**
+   * Build a change token from the positions in the todos and tombstones.
+   */
+  static String token(ObjectId todosPosition, ObjectId tombstonesPosition) {
+    Map<String, Object> positions = new LinkedHashMap<>();
+    positions.put(TODOS_POSITION_KEY, todosPosition);
+    positions.put(TOMBSTONES_POSITION_KEY, tombstonesPosition);
+    return Base64.getUrlEncoder().withoutPadding()
+      .encodeToString(new Document(positions).toJson().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static Document decode(String token) {
+    Document decoded;
+    try {
+      decoded = Document.parse(new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8));
+    } catch (IllegalArgumentException | JsonParseException e) {
+      throw new BadRequestResponse("The requested change token wasn't legal.");
+    }
+    if (!(decoded.get(TODOS_POSITION_KEY) instanceof ObjectId)
+        || !(decoded.get(TOMBSTONES_POSITION_KEY) instanceof ObjectId)) {
+      throw new BadRequestResponse("The requested change token wasn't legal.");
+    }
+    return decoded;
+  }
+
+  /**
+   * The smallest (or largest) ObjectId made in the same second as `time`.
+   */
+  private static ObjectId idAt(Instant time, String tail) {
+    return new ObjectId(String.format("%08x", time.getEpochSecond()) + tail);
+  }
+
+  private static ObjectId max(ObjectId a, ObjectId b) {
+    return a.compareTo(b) >= 0 ? a : b;
+  }
+}
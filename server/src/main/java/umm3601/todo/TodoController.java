@@ -4,44 +4,188 @@ import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.regex;
 import static com.mongodb.client.model.Filters.eq;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.util.regex.Pattern;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 import java.util.ArrayList;
 
 import org.bson.Document;
-import org.bson.UuidRepresentation;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
-import org.mongojack.JacksonMongoCollection;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.Sorts;
-import com.mongodb.client.result.DeleteResult;
 
 import io.javalin.Javalin;
 import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ContentType;
 import io.javalin.http.Context;
+import io.javalin.http.Header;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
+import io.javalin.validation.BodyValidator;
+import umm3601.AsyncMongo;
+import umm3601.CollectionVersion;
 import umm3601.Controller;
+import umm3601.EntityTag;
+import umm3601.IndexManager;
+import umm3601.NdjsonExport;
+import umm3601.PageToken;
+import umm3601.ResponseCache;
+import umm3601.ServerTiming;
+import umm3601.TextMatch;
 
 public class TodoController implements Controller {
   private static final String API_TODOS = "/api/todos";
   private static final String API_TODO_BY_ID = "/api/todos/{id}";
-  private final JacksonMongoCollection<Todo> todoCollection;
+  private static final String TODO_COLLECTION = MongoTodoRepository.TODO_COLLECTION;
+  private final TodoRepository todoRepository;
 
+  static final String ID_KEY = "_id";
   static final String OWNER_KEY = "owner";
+  static final String STATUS_KEY = "status";
+  static final String CATEGORY_KEY = "category";
+  static final String BODY_KEY = "body";
+  static final String CONTAINS_KEY = "contains";
+  static final String LIMIT_KEY = "limit";
   static final String SORT_ORDER_KEY = "sortorder";
   static final int MAX_BODY_LENGTH = 200;
+  private static final String STATUS_REGEX = "^(true|false)$";
   private static final String CATEGORY_REGEX = "^(software design|groceries|video games|homework)$";
+  // The fields todos can be sorted (and so paged) by, and how to read each
+  // one off a todo for the next page's token.
+  private static final Map<String, Function<Todo, Object>> SORT_FIELDS = Map.of(
+    ID_KEY, todo -> todo._id,
+    OWNER_KEY, todo -> todo.owner,
+    STATUS_KEY, todo -> todo.status,
+    CATEGORY_KEY, todo -> todo.category,
+    BODY_KEY, todo -> todo.body);
+
+  static final String SINCE_KEY = "since";
+  static final String BATCH_SIZE_KEY = "batchSize";
+  static final int DEFAULT_BULK_BATCH_SIZE = 1000;
+  static final int MAX_BULK_BATCH_SIZE = 10000;
+
+  // Reads the todos sent to `addNewTodos`, one at a time, and turns each
+  // one into a `Todo`.
+  private static final ObjectReader BULK_READER = new ObjectMapper().readerFor(JsonNode.class);
+  private static final ObjectReader TODO_READER = new ObjectMapper().readerFor(Todo.class);
+
+  /**
+   * One of the things a new todo has to be, and the message for a todo
+   * that isn't.
+   */
+  private record TodoCheck(Predicate<Todo> test, String message) {
+  }
+
+  // The checks every new todo has to pass (see `validateNewTodo`).
+  // The server picks every new todo's ID when it writes it: delta sync
+  // (`TodoChangeLog`) finds new todos by the time in their IDs.
+  private static final List<TodoCheck> NEW_TODO_CHECKS = List.of(
+      new TodoCheck(tdo -> tdo._id == null, "Todo must not have an _id; the server picks it"),
+      new TodoCheck(tdo -> tdo.owner != null && tdo.owner.length() > 0, "Todo must have a non-empty owner"),
+      new TodoCheck(tdo -> tdo.body != null && tdo.body.length() > 0, "Body must not be empty"),
+      new TodoCheck(tdo -> tdo.body == null || tdo.body.length() < MAX_BODY_LENGTH,
+        "Body must be less than 200 characters"),
+      new TodoCheck(tdo -> tdo.category != null && tdo.category.length() > 0, "Category cannot be empty"),
+      new TodoCheck(tdo -> tdo.category != null && tdo.category.matches(CATEGORY_REGEX), "Must be existing category"));
+
+  // How many documents MongoDB hands back per cursor batch when `/api/todos`
+  // is streamed. Zero turns streaming off, in which case the whole result is
+  // collected into a list before it is serialized.
+  private final int streamBatchSize;
+
+  // Serialized todos, keyed by ID, so `getTodo` can skip the database for
+  // todos that are requested over and over.
+  private final ResponseCache todoCache;
+
+  // Serialized `getTodos` results, keyed by the (normalized) query and the
+  // version of the collection they were read from.
+  private final ResponseCache todoListCache;
+
+  // Bumped by every insert and delete, which retires every cached list at once.
+  private final CollectionVersion todoVersion = new CollectionVersion();
+
+  // Tombstones of deleted todos, for `getTodoChanges`.
+  private final TodoChangeLog todoChangeLog;
+
+  // The clients listening for todos being added and deleted.
+  private final TodoFeed todoFeed = new TodoFeed();
+
+  // Non-blocking reads for `getTodo` and `getTodos`, or null to read with
+  // the synchronous driver (blocking the request thread).
+  private final AsyncMongo asyncMongo;
 
   public TodoController(MongoDatabase db) {
-    todoCollection = JacksonMongoCollection
-        .builder()
-        .build(
-            db, "todos", Todo.class, UuidRepresentation.STANDARD);
+    this(db, 0, ResponseCache.disabled(TODO_COLLECTION), ResponseCache.disabled(TODO_COLLECTION));
+  }
+
+  public TodoController(MongoDatabase db, int streamBatchSize, ResponseCache todoCache,
+      ResponseCache todoListCache) {
+    this(db, streamBatchSize, todoCache, todoListCache, null);
+  }
+
+  /**
+   * Construct a controller for todos.
+   *
+   * @param db the database containing todo data
+   * @param streamBatchSize the cursor batch size used to stream list
+   *   results to the client, or zero to build the whole list in memory
+   *   before responding
+   * @param todoCache the cache of individual todos used by `getTodo`
+   * @param todoListCache the cache of (unstreamed) lists used by `getTodos`
+   * @param asyncMongo the non-blocking reads `getTodo` and `getTodos` use,
+   *   or null for them to block on the synchronous driver
+   */
+  public TodoController(MongoDatabase db, int streamBatchSize, ResponseCache todoCache,
+      ResponseCache todoListCache, AsyncMongo asyncMongo) {
+    this(new MongoTodoRepository(db), streamBatchSize, todoCache, todoListCache, asyncMongo);
+  }
+
+  /**
+   * Construct a controller for todos kept in any storage.
+   *
+   * @param todoRepository where the todos are stored
+   * @param streamBatchSize the batch size used to stream list results to
+   *   the client, or zero to build the whole list in memory before responding
+   * @param todoCache the cache of individual todos used by `getTodo`
+   * @param todoListCache the cache of (unstreamed) lists used by `getTodos`
+   * @param asyncMongo the non-blocking reads `getTodo` and `getTodos` use,
+   *   or null for them to block on `todoRepository`; it has to read the
+   *   same database as `todoRepository`
+   */
+  public TodoController(TodoRepository todoRepository, int streamBatchSize, ResponseCache todoCache,
+      ResponseCache todoListCache, AsyncMongo asyncMongo) {
+    this(todoRepository, streamBatchSize, todoCache, todoListCache, asyncMongo, Instant::now);
+  }
+
+  /**
+   * Construct a controller whose change log reads the time from the given
+   * clock; this lets tests see changes without waiting for them to settle.
+   */
+  TodoController(TodoRepository todoRepository, int streamBatchSize, ResponseCache todoCache,
+      ResponseCache todoListCache, AsyncMongo asyncMongo, Supplier<Instant> clock) {
+    this.todoRepository = todoRepository;
+    this.streamBatchSize = streamBatchSize;
+    this.todoCache = todoCache;
+    this.todoListCache = todoListCache;
+    this.todoChangeLog = new TodoChangeLog(todoRepository, clock);
+    this.asyncMongo = asyncMongo;
   }
 
   /**
@@ -50,49 +194,245 @@ public class TodoController implements Controller {
    */
   public void getTodo(Context ctx) {
     String id = ctx.pathParam("id");
+    ObjectId objectId;
     Todo todo;
 
     try {
-      todo = todoCollection.find(eq("_id", new ObjectId(id))).first();
+      objectId = new ObjectId(id);
     } catch (IllegalArgumentException e) {
       throw new BadRequestResponse("The requested todo id wasn't a legal Mongo Object ID.");
     }
+
+    // Cached todos are keyed by ID alone, so writes to other todos don't
+    // retire them. The version read here only decides (in `sendTodo`)
+    // whether what the database hands back may still be cached.
+    long version = todoVersion.current();
+    String key = objectId.toHexString();
+    String etag = EntityTag.of(version, objectId.toHexString());
+    ServerTiming timing = ServerTiming.forContext(ctx);
+    timing.mark(ServerTiming.VALIDATE);
+
+    // Hot todos are served straight from the cache, without going to the database.
+    byte[] cached = todoCache.get(key);
+    timing.mark(ServerTiming.CACHE);
+    if (cached != null) {
+      // It's cached, so it exists, and the client's copy may be current.
+      if (!EntityTag.notModified(ctx, etag)) {
+        ctx.header(Header.ETAG, etag);
+        ResponseCache.send(ctx, cached);
+      }
+      return;
+    }
+
+    if (asyncMongo != null) {
+      ctx.future(() -> asyncMongo.findById(TODO_COLLECTION, objectId, Todo.class, ctx.jsonMapper())
+        .thenAccept(found -> sendTodo(ctx, key, version, etag, found)));
+      return;
+    }
+    todo = todoRepository.findById(objectId);
+    sendTodo(ctx, key, version, etag, todo);
+  }
+
+  /**
+   * Send a todo that `getTodo` found (and cache it, if no todo was written
+   * since `version`), or 404 if it didn't.
+   */
+  private void sendTodo(Context ctx, String key, long version, String etag, Todo todo) {
+    ServerTiming timing = ServerTiming.forContext(ctx);
+    timing.mark(ServerTiming.DB);
     if (todo == null) {
       throw new NotFoundResponse("The requested todo was not found");
+    }
+    // Only once we know the todo exists: `If-None-Match: *` (or a guessed
+    // tag) mustn't turn a missing todo into a 304.
+    if (EntityTag.notModified(ctx, etag)) {
+      return;
+    }
+    ctx.header(Header.ETAG, etag);
+    if (todoCache.isEnabled()) {
+      byte[] serialized = ctx.jsonMapper().toJsonString(todo, Todo.class).getBytes(StandardCharsets.UTF_8);
+      todoCache.putIfCurrent(key, serialized, todoVersion, version);
+      ResponseCache.send(ctx, serialized);
     } else {
       ctx.json(todo);
       ctx.status(HttpStatus.OK);
     }
+    timing.mark(ServerTiming.SERIALIZE);
   }
 
   public void getTodos(Context ctx) {
-    Bson combinedFilter = constructFilter(ctx);
     Bson sortingOrder = constructSortingOrder(ctx);
+    int limit = constructLimit(ctx);
 
-    ArrayList<Todo> matchingTodos = todoCollection
-        .find(combinedFilter)
-        .sort(sortingOrder)
-        .into(new ArrayList<>());
+    // If the client is asking for the page after a continuation token, only
+    // look at the todos that sort after the last one it has already seen.
+    Bson combinedFilter = ctx.queryParamMap().containsKey(PageToken.NEXT_KEY)
+      ? and(constructFilter(ctx),
+          PageToken.rangeFilter(ctx.queryParam(PageToken.NEXT_KEY), sortField(ctx), isDescending(ctx)))
+      : constructFilter(ctx);
+
+    // The version is read before the query, so if a write sneaks in while
+    // the query runs, the result is tagged (and cached) under the older
+    // (stale) version.
+    long version = todoVersion.current();
+    String etag = EntityTag.of(version, combinedFilter, sortingOrder, limit);
+    if (EntityTag.notModified(ctx, etag)) {
+      return;
+    }
+    ctx.header(Header.ETAG, etag);
+    ServerTiming timing = ServerTiming.forContext(ctx);
+    timing.mark(ServerTiming.VALIDATE);
+
+    // A limited request is a bounded page, so there's nothing to gain from
+    // streaming it, and we need to see the last todo to build the next token.
+    if (streamBatchSize > 0 && limit == 0) {
+      streamTodos(ctx, combinedFilter, sortingOrder, limit);
+      return;
+    }
+
+    String cacheKey = ResponseCache.queryKey(version, combinedFilter, sortingOrder, limit);
+    byte[] cached = todoListCache.get(cacheKey);
+    timing.mark(ServerTiming.CACHE);
+    if (cached != null) {
+      ResponseCache.send(ctx, cached);
+      return;
+    }
+
+    // In the async mode, the request thread is handed back while the query
+    // runs, and the todos are sent when they arrive.
+    if (asyncMongo != null) {
+      ctx.future(() -> asyncMongo
+        .find(TODO_COLLECTION, combinedFilter, sortingOrder, limit, Todo.class, ctx.jsonMapper())
+        .thenAccept(matchingTodos -> sendTodos(ctx, matchingTodos, limit, cacheKey)));
+      return;
+    }
+    ArrayList<Todo> matchingTodos = todoRepository.find(combinedFilter, sortingOrder, limit);
+    sendTodos(ctx, matchingTodos, limit, cacheKey);
+  }
+
+  /**
+   * Send the todos that `getTodos` found, along with where the next page
+   * starts if this one is full, and cache them if it isn't.
+   */
+  private void sendTodos(Context ctx, ArrayList<Todo> matchingTodos, int limit, String cacheKey) {
+    ServerTiming timing = ServerTiming.forContext(ctx);
+    timing.mark(ServerTiming.DB);
+    // A full page means there may be more todos, so tell the client where
+    // the next page starts. We only cache the body, so pages like this (which
+    // also need the header) aren't cached.
+    if (limit > 0 && matchingTodos.size() == limit) {
+      Todo last = matchingTodos.get(matchingTodos.size() - 1);
+      ctx.header(PageToken.NEXT_HEADER, PageToken.after(last, last._id, SORT_FIELDS.get(sortField(ctx))));
+    } else if (todoListCache.isEnabled()) {
+      byte[] serialized = ctx.jsonMapper()
+          .toJsonString(matchingTodos, matchingTodos.getClass())
+          .getBytes(StandardCharsets.UTF_8);
+      todoListCache.put(cacheKey, serialized);
+      ResponseCache.send(ctx, serialized);
+      timing.mark(ServerTiming.SERIALIZE);
+      return;
+    }
 
     ctx.json(matchingTodos);
+    timing.mark(ServerTiming.SERIALIZE);
 
     // Explicitly set the context status to OK
     ctx.status(HttpStatus.OK);
   }
 
   /**
+   * Write the matching todos to the response as a JSON array, one document
+   * at a time as the cursor yields them.
+   *
+   * Unlike `ctx.json(...)`, this never holds the whole result set (either
+   * as `Todo` objects or as a serialized string) in memory, and the first
+   * bytes go out to the client before the query has finished.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param filter the Bson filter used to select the todos
+   * @param sortingOrder the Bson document used to sort the todos
+   * @param limit the maximum number of todos to send, or zero for all of them
+   */
+  private void streamTodos(Context ctx, Bson filter, Bson sortingOrder, int limit) {
+    // The status and content type have to be set before we start writing
+    // the body, since the headers go out with the first flushed bytes.
+    ctx.status(HttpStatus.OK);
+    ctx.contentType(ContentType.APPLICATION_JSON);
+
+    try (Stream<Todo> todos = todoRepository.stream(filter, sortingOrder, limit, streamBatchSize)) {
+      // Javalin's JSON mapper writes the stream with Jackson's streaming
+      // generator, so each todo is serialized straight into the response.
+      ctx.jsonMapper().writeToOutputStream(todos, ctx.outputStream());
+    }
+  }
+
+  /**
+   * Stream all the todos that match the same filters as `getTodos` to the
+   * client as newline-delimited JSON (optionally gzipped); see `NdjsonExport`.
+   *
+   * With Mongo, exports read from a secondary when there is one, to keep
+   * them from competing with normal traffic on the primary.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void exportTodos(Context ctx) {
+    Bson filter = constructFilter(ctx);
+    NdjsonExport.send(ctx, () -> todoRepository.export(filter), Todo.class, TODO_COLLECTION);
+  }
+
+  /**
+   * Set the JSON body of the response to be the todos added and the IDs of
+   * the todos deleted since the change token in the `since` query
+   * parameter, along with the token to ask with `next` time; see
+   * `TodoChangeLog`.
+   *
+   * Without `since`, every todo is sent as added. If `more` is true in the
+   * response, there were too many changes to send at once, and the client
+   * should ask again right away.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getTodoChanges(Context ctx) {
+    ctx.json(todoChangeLog.since(ctx.queryParam(SINCE_KEY)));
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Construct a Bson filter document to use in the `find` method based on the
+   * query parameters from the context.
+   *
+   * This checks for the presence of the `owner`, `status`, `category`, and
+   * `contains` query parameters. `owner` is matched ignoring case, as a
+   * prefix unless the `match` query parameter asks otherwise (see
+   * `TextMatch`); `contains` is a case-insensitive substring match on the
+   * body; `status` and `category` must be legal values and are matched exactly.
    *
    * @param ctx a Javalin HTTP context, which contains the query parameters
    *            used to construct the filter
    * @return a Bson filter document that can be used in the `find` method
    *         to filter the database collection of todos
    */
-  private Bson constructFilter(Context ctx) {
+  Bson constructFilter(Context ctx) {
     List<Bson> filters = new ArrayList<>();
 
     if (ctx.queryParamMap().containsKey(OWNER_KEY)) {
-      Pattern pattern = Pattern.compile(Pattern.quote(ctx.queryParam(OWNER_KEY)), Pattern.CASE_INSENSITIVE);
-      filters.add(regex(OWNER_KEY, pattern));
+      filters.add(TextMatch.filter(ctx, OWNER_KEY));
+    }
+    if (ctx.queryParamMap().containsKey(STATUS_KEY)) {
+      String status = ctx.queryParamAsClass(STATUS_KEY, String.class)
+        .check(it -> it.matches(STATUS_REGEX), "Todo status must be either true or false")
+        .get();
+      filters.add(eq(STATUS_KEY, Boolean.parseBoolean(status)));
+    }
+    if (ctx.queryParamMap().containsKey(CATEGORY_KEY)) {
+      String category = ctx.queryParamAsClass(CATEGORY_KEY, String.class)
+        .check(it -> it.matches(CATEGORY_REGEX), "Todo must have a legal category")
+        .get();
+      filters.add(eq(CATEGORY_KEY, category));
+    }
+    if (ctx.queryParamMap().containsKey(CONTAINS_KEY)) {
+      Pattern pattern = Pattern.compile(Pattern.quote(ctx.queryParam(CONTAINS_KEY)), Pattern.CASE_INSENSITIVE);
+      filters.add(regex(BODY_KEY, pattern));
     }
 
     // Combine the list of filters into a single filtering document.
@@ -108,28 +448,89 @@ public class TodoController implements Controller {
    * @return a Bson sorting document that can be used in the `sort` method
    *         to sort the database collection of todos
    */
-  private Bson constructSortingOrder(Context ctx) {
-
-    String sortBy = Objects.requireNonNullElse(ctx.queryParam("sortby"), "owner");
-    String sortOrder = Objects.requireNonNullElse(ctx.queryParam("sortorder"), "asc");
-    Bson sortingOrder = sortOrder.equals("desc") ? Sorts.descending(sortBy) : Sorts.ascending(sortBy);
+  Bson constructSortingOrder(Context ctx) {
+    // Ties are broken by `_id` so the order is stable from one request to the
+    // next, which keyset pagination relies on.
+    String sortBy = sortField(ctx);
+    Bson sortingOrder = isDescending(ctx)
+        ? Sorts.descending(sortBy, ID_KEY)
+        : Sorts.ascending(sortBy, ID_KEY);
     return sortingOrder;
   }
 
+  /**
+   * @param ctx a Javalin HTTP context
+   * @return the field named by the `sortby` query parameter (default "owner")
+   * @throws BadRequestResponse if todos can't be sorted by that field
+   */
+  private String sortField(Context ctx) {
+    String sortBy = Objects.requireNonNullElse(ctx.queryParam("sortby"), OWNER_KEY);
+    if (!SORT_FIELDS.containsKey(sortBy)) {
+      throw new BadRequestResponse("The requested sort field wasn't one todos can be sorted by.");
+    }
+    return sortBy;
+  }
 
-public void deleteTodo(Context ctx) {
-  String id = ctx.pathParam("id");
-  DeleteResult deleteResult = todoCollection.deleteOne(eq("_id", new ObjectId(id)));
-  // We should have deleted 1 or 0 users, depending on whether `id` is a valid user ID.
-  if (deleteResult.getDeletedCount() != 1) {
-    ctx.status(HttpStatus.NOT_FOUND);
-    throw new NotFoundResponse(
-      "Was unable to delete ID "
-        + id
-        + "; perhaps illegal ID or an ID for an item not in the system?");
+  /**
+   * @param ctx a Javalin HTTP context
+   * @return whether the `sortorder` query parameter (default "asc") is "desc"
+   */
+  private boolean isDescending(Context ctx) {
+    return Objects.requireNonNullElse(ctx.queryParam(SORT_ORDER_KEY), "asc").equals("desc");
+  }
+
+  /**
+   * Get the maximum number of todos to return from the `limit` query
+   * parameter, so the database only hands back what the client will show.
+   *
+   * @param ctx a Javalin HTTP context, which contains the query parameters
+   * @return the requested limit, or zero (which Mongo treats as "no limit")
+   *         if there wasn't one
+   */
+  private int constructLimit(Context ctx) {
+    if (!ctx.queryParamMap().containsKey(LIMIT_KEY)) {
+      return 0;
+    }
+    return ctx.queryParamAsClass(LIMIT_KEY, Integer.class)
+      .check(it -> it > 0, "The todo limit must be greater than zero")
+      .get();
+  }
+
+  /**
+   * Delete the todo specified by the `id` parameter in the request.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void deleteTodo(Context ctx) {
+    String id = ctx.pathParam("id");
+    ObjectId objectId;
+    try {
+      objectId = new ObjectId(id);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestResponse("The requested todo id wasn't a legal Mongo Object ID.");
+    }
+    // `findOneAndDelete` hands back the deleted todo, so the live feed can
+    // tell subscribers whose todo it was.
+    Todo deleted = todoRepository.delete(objectId);
+    ServerTiming.forContext(ctx).mark(ServerTiming.DB);
+    // We should have deleted 1 or 0 todos, depending on whether `id` is the
+    // ID of a todo in the system. If nothing changed, nothing cached is stale.
+    if (deleted == null) {
+      ctx.status(HttpStatus.NOT_FOUND);
+      throw new NotFoundResponse(
+        "Was unable to delete ID "
+          + id
+          + "; perhaps illegal ID or an ID for an item not in the system?");
+    }
+    // The version goes first, so a `getTodo` that read this todo before it
+    // was deleted can't cache it after the invalidation.
+    todoVersion.bump();
+    todoCache.invalidate(objectId.toHexString());
+    // Leave a tombstone so clients syncing with `getTodoChanges` hear about it.
+    todoChangeLog.recordDelete(objectId.toHexString());
+    todoFeed.deleted(deleted);
+    ctx.status(HttpStatus.OK);
   }
-  ctx.status(HttpStatus.OK);
-}
 
   /**
    * Add a new todo using information from the context
@@ -140,31 +541,19 @@ public void deleteTodo(Context ctx) {
    */
   public void addNewTodo(Context ctx) {
 
-    /*
-     * The follow chain of statements uses the Javalin validator system
-     * to verify that instance of `Todo` provided in this context is
-     * a "legal" todo. It checks the following things (in order):
-     * - The todo has a value for the owner (`tdo.owner != null`)
-     * - The todo owner is not blank (`tdo.owner.length > 0`)
-     * - The provided status is strictly true or false
-     * - The provided body is not blank (`tdo.body.length > 0`)
-     * - The provided body is not too long (`tdo.body.length < MAX_BODY_LENGTH`)
-     * - The provided category is one of "homework", "software design",
-     * "video games", or "groceries"
-     * If any of these checks fail, the validator will return a
-     * `BadRequestResponse` with an appropriate error message.
-     */
-    Todo newTodo = ctx.bodyValidator(Todo.class)
-        .check(tdo -> tdo.owner.length() > 0, "Todo must have a non-empty owner")
-        .check(tdo -> tdo.status = true | false, "Status must be either true or false")
-        .check(tdo -> tdo.body.length() > 0, "Body must not be empty")
-        .check(tdo -> tdo.body.length() < MAX_BODY_LENGTH, "Body must be less than 200 characters")
-        .check(tdo -> tdo.category.length() > 0, "Category cannot be empty")
-        .check(tdo -> CATEGORY_REGEX.contains(tdo.category), "Must be existing category")
-        .get();
+    // `validateNewTodo` makes sure this is a "legal" todo; if it isn't, the
+    // validator will throw a `BadRequestResponse` with an appropriate
+    // error message.
+    Todo newTodo = validateNewTodo(ctx.bodyValidator(Todo.class)).get();
+    ServerTiming timing = ServerTiming.forContext(ctx);
+    timing.mark(ServerTiming.VALIDATE);
 
     // Insert the new todo into the database
-    todoCollection.insertOne(newTodo);
+    todoRepository.insert(newTodo);
+    timing.mark(ServerTiming.DB);
+    // Any cached list might now be missing this todo.
+    todoVersion.bump();
+    todoFeed.inserted(newTodo);
 
     // This gives the client the opportunity to know the ID of the new todo,
     // which it can use to perform further operations (e.g., display the todo).
@@ -176,11 +565,215 @@ public void deleteTodo(Context ctx) {
     ctx.status(HttpStatus.CREATED);
   }
 
+  /**
+   * Add the checks every new todo has to pass (in `addNewTodo` and
+   * `addNewTodos`) to a validator.
+   *
+   * The following chain of statements uses the Javalin validator system
+   * to verify that instance of `Todo` provided is a "legal" todo. It checks
+   * the following things (in order):
+   * - The todo doesn't come with its own `_id`
+   * - The todo has a value for the owner (`tdo.owner != null`)
+   * - The todo owner is not blank (`tdo.owner.length > 0`)
+   * - The provided body is not blank (`tdo.body.length > 0`)
+   * - The provided body is not too long (`tdo.body.length < MAX_BODY_LENGTH`)
+   * - The provided category is one of "homework", "software design",
+   * "video games", or "groceries"
+   * Jackson only accepts `true` or `false` for the (primitive) status, so
+   * there's nothing more to check there.
+   *
+   * @param validator a validator for a todo
+   * @return the validator, with the checks added
+   */
+  static BodyValidator<Todo> validateNewTodo(BodyValidator<Todo> validator) {
+    for (TodoCheck check : NEW_TODO_CHECKS) {
+      validator = validator.check(check.test()::test, check.message());
+    }
+    return validator;
+  }
+
+  /**
+   * Check a todo that's already been read the same way `validateNewTodo`
+   * does.
+   *
+   * @param todo a new todo
+   * @return the messages for the checks it fails (empty if it's legal)
+   */
+  static List<String> newTodoErrors(Todo todo) {
+    List<String> errors = new ArrayList<>();
+    for (TodoCheck check : NEW_TODO_CHECKS) {
+      if (!check.test().test(todo)) {
+        errors.add(check.message());
+      }
+    }
+    return errors;
+  }
+
+  /**
+   * Add many new todos at once, from a JSON array of todos or from
+   * newline-delimited JSON (one todo per line) in the body of the request.
+   *
+   * Each todo is checked just like in `addNewTodo`, and the legal ones are
+   * written with unordered `insertMany`s of (at most) `batchSize` todos
+   * (a query parameter, default `DEFAULT_BULK_BATCH_SIZE`). The body is
+   * read as a stream, so only one batch is held in memory at a time.
+   *
+   * The response lists, for each todo in the order it was sent, either its
+   * new `id` or the `errors` that kept it from being added, along with how
+   * many were `inserted` and how many `failed`. If the body itself isn't
+   * well-formed JSON, the todos before the problem are still added, and the
+   * response (with status 400) also has an `error` describing it.
+   *
+   * @param ctx a Javalin HTTP context that provides the todos in the body
+   *   of the request
+   */
+  public void addNewTodos(Context ctx) {
+    int batchSize = constructBulkBatchSize(ctx);
+    List<Map<String, Object>> results = new ArrayList<>();
+    List<Todo> batch = new ArrayList<>(batchSize);
+    List<Map<String, Object>> batchResults = new ArrayList<>(batchSize);
+    String streamError = null;
+
+    // `readValues` iterates over the elements of a top-level array, or over
+    // a sequence of top-level values (which is what NDJSON is).
+    try (MappingIterator<JsonNode> items = BULK_READER.readValues(ctx.bodyInputStream())) {
+      while (items.hasNextValue()) {
+        JsonNode item = items.nextValue();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("index", results.size());
+        results.add(result);
+        // The item has already been parsed, so it's turned into a todo (and
+        // checked) as is, rather than written out and parsed again.
+        Todo newTodo = readTodo(item);
+        List<String> errors = newTodo == null ? List.of("Todo must be an object with todo fields")
+          : newTodoErrors(newTodo);
+        if (errors.isEmpty()) {
+          batch.add(newTodo);
+          batchResults.add(result);
+        } else {
+          result.put("errors", errors);
+        }
+        if (batch.size() == batchSize) {
+          insertBatch(batch, batchResults);
+        }
+      }
+    } catch (JsonProcessingException e) {
+      streamError = "Malformed JSON after todo " + results.size() + ": " + e.getOriginalMessage();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    insertBatch(batch, batchResults);
+
+    long inserted = results.stream().filter(result -> !result.containsKey("errors")).count();
+    Map<String, Object> response = new LinkedHashMap<>();
+    response.put("inserted", inserted);
+    response.put("failed", results.size() - inserted);
+    response.put("results", results);
+    if (streamError != null) {
+      response.put("error", streamError);
+    }
+    ctx.json(response);
+    ctx.status(streamError == null ? HttpStatus.CREATED : HttpStatus.BAD_REQUEST);
+  }
+
+  /**
+   * Write a batch of todos with a single unordered `insertMany`, and empty
+   * the batch.
+   *
+   * Since the writes are unordered, one failed todo doesn't stop the rest of
+   * the batch; any that fail have their `id` in `batchResults` replaced with
+   * the errors.
+   *
+   * @param batch the todos to insert
+   * @param batchResults the results for those todos, in the same order
+   */
+  private void insertBatch(List<Todo> batch, List<Map<String, Object>> batchResults) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    // Pick the IDs ourselves, so we can report them even if the insert
+    // fails, but only now: delta sync finds new todos by the time in their
+    // IDs, and the todos at the end of a big upload are read long after the
+    // first batches are written.
+    for (int i = 0; i < batch.size(); i++) {
+      batch.get(i)._id = new ObjectId().toHexString();
+      batchResults.get(i).put("id", batch.get(i)._id);
+    }
+    try {
+      for (Map.Entry<Integer, String> error : todoRepository.insertMany(batch).entrySet()) {
+        Map<String, Object> result = batchResults.get(error.getKey());
+        result.remove("id");
+        result.put("errors", List.of(error.getValue()));
+      }
+      for (int i = 0; i < batch.size(); i++) {
+        if (!batchResults.get(i).containsKey("errors")) {
+          todoFeed.inserted(batch.get(i));
+        }
+      }
+    } finally {
+      // Any cached list might now be missing these todos.
+      todoVersion.bump();
+      batch.clear();
+      batchResults.clear();
+    }
+  }
+
+  /**
+   * Turn one of the items sent to `addNewTodos` into a todo.
+   *
+   * @param item the item, as JSON
+   * @return the todo, or null if the item isn't one (an array, say, or a
+   *   status that isn't `true` or `false`)
+   */
+  private static Todo readTodo(JsonNode item) {
+    if (!item.isObject()) {
+      return null;
+    }
+    try {
+      return TODO_READER.readValue(item);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Get the number of todos `addNewTodos` writes per `insertMany` from the
+   * `batchSize` query parameter.
+   *
+   * @param ctx a Javalin HTTP context, which contains the query parameters
+   * @return the requested batch size, or `DEFAULT_BULK_BATCH_SIZE`
+   */
+  private int constructBulkBatchSize(Context ctx) {
+    if (!ctx.queryParamMap().containsKey(BATCH_SIZE_KEY)) {
+      return DEFAULT_BULK_BATCH_SIZE;
+    }
+    return ctx.queryParamAsClass(BATCH_SIZE_KEY, Integer.class)
+      .check(it -> it > 0, "The batch size must be greater than zero")
+      .check(it -> it <= MAX_BULK_BATCH_SIZE, "The batch size must be at most " + MAX_BULK_BATCH_SIZE)
+      .get();
+  }
+
+  /**
+   * Declare the indexes behind `getTodos` and `getTodoChanges`, if the
+   * storage needs any; see `MongoTodoRepository`.
+   *
+   * @param indexes the index manager to add declarations to
+   */
+  public void declareIndexes(IndexManager indexes) {
+    todoRepository.declareIndexes(indexes);
+  }
+
   public void addRoutes(Javalin server) {
+    // These have to come before `API_TODO_BY_ID`, or "export", "changes",
+    // and "feed" would be taken for IDs.
+    server.get(API_TODOS + "/export", this::exportTodos);
+    server.get(API_TODOS + "/changes", this::getTodoChanges);
+    server.sse(API_TODOS + "/feed", todoFeed::subscribe);
     server.get(API_TODO_BY_ID, this::getTodo);
     server.get(API_TODOS, this::getTodos);
     server.delete(API_TODO_BY_ID, this::deleteTodo);
     server.post(API_TODOS, this::addNewTodo);
+    server.post(API_TODOS + "/bulk", this::addNewTodos);
   }
 
 
@@ -0,0 +1,256 @@
+package umm3601.todo;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.javalin.http.Context;
+import io.javalin.http.sse.SseClient;
+
+/**
+ * A live feed of todos being added and deleted, sent to subscribers as
+ * Server-Sent Events (`insert` and `delete` events, each with the todo as
+ * its data), so clients don't have to keep polling `/api/todos`.
+ *
+ * A subscriber can ask for only the todos with a given `owner` (ignoring
+ * case) and/or `category`.
+ *
+ * An idle subscriber costs an open connection and a small queue, but no
+ * thread: events are put on the subscriber's queue (of at most
+ * `BUFFER_SIZE` events) by whoever changed the todo, and a virtual thread
+ * of the subscriber's own writes them out while there are any. A write
+ * can block on a client that isn't reading, but then it only holds up
+ * that client. A subscriber that falls so far behind that its queue fills
+ * up, or whose write has been stuck for `WRITE_TIMEOUT`, is disconnected,
+ * rather than letting it hold events (and memory) for everybody; it can
+ * reconnect and catch up with `/api/todos/changes`. Every subscriber gets a
+ * comment every `HEARTBEAT`, so connections that have gone away are
+ * noticed and dropped.
+ */
+class TodoFeed {
+
+  static final String INSERT_EVENT = "insert";
+  static final String DELETE_EVENT = "delete";
+
+  static final int BUFFER_SIZE = 64;
+  static final Duration HEARTBEAT = Duration.ofSeconds(15);
+  static final Duration WRITE_TIMEOUT = Duration.ofSeconds(10);
+
+  private static final String OWNER_KEY = "owner";
+  private static final String CATEGORY_KEY = "category";
+
+  private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+  private final long writeTimeoutNanos;
+
+  // Started when the first subscriber arrives, so a server (or test) that
+  // never has one doesn't pay for the threads.
+  private ExecutorService senders;
+  private ScheduledExecutorService heartbeat;
+
+  /**
+   * An event waiting to be sent; a null `todo` is a heartbeat.
+   */
+  private static final class Event {
+    private final String name;
+    private final Todo todo;
+
+    Event(String name, Todo todo) {
+      this.name = name;
+      this.todo = todo;
+    }
+  }
+
+  /**
+   * A connected client, what it asked for, and the events queued for it.
+   */
+  private final class Subscriber {
+    private final SseClient client;
+    private final String owner;
+    private final String category;
+    private final BlockingQueue<Event> queue = new ArrayBlockingQueue<>(BUFFER_SIZE);
+    // Whether a sender has been asked to drain the queue and hasn't yet.
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    // When the write in progress (if there is one) started, from `nanoTime`.
+    private volatile boolean writing;
+    private volatile long writeStartedAt;
+
+    Subscriber(SseClient client, String owner, String category) {
+      this.client = client;
+      this.owner = owner;
+      this.category = category;
+    }
+
+    boolean wants(Todo todo) {
+      return (owner == null || owner.equalsIgnoreCase(todo.owner))
+        && (category == null || category.equals(todo.category));
+    }
+
+    /**
+     * Queue an event, and make sure a sender will get to it. If the queue is
+     * full, the subscriber is too slow to keep, so disconnect it.
+     */
+    void offer(Event event) {
+      if (!queue.offer(event)) {
+        disconnect(this);
+        return;
+      }
+      if (scheduled.compareAndSet(false, true)) {
+        senders.execute(this::drain);
+      }
+    }
+
+    /**
+     * Send everything queued; this runs on a sender. Only one sender drains
+     * a subscriber at a time, so its events go out in order.
+     */
+    void drain() {
+      do {
+        Event event;
+        while ((event = queue.poll()) != null && subscribers.contains(this)) {
+          writeStartedAt = System.nanoTime();
+          writing = true;
+          try {
+            if (event.todo == null) {
+              client.sendComment("heartbeat");
+            } else {
+              client.sendEvent(event.name, event.todo, event.todo._id);
+            }
+          } finally {
+            writing = false;
+          }
+        }
+        scheduled.set(false);
+        // Something may have been queued after the last poll but before
+        // `scheduled` was cleared, when `offer` wouldn't schedule a drain.
+      } while (!queue.isEmpty() && scheduled.compareAndSet(false, true));
+    }
+
+    boolean stalled(long now) {
+      return writing && now - writeStartedAt > writeTimeoutNanos;
+    }
+  }
+
+  /**
+   * Construct a feed with no subscribers.
+   */
+  TodoFeed() {
+    this(WRITE_TIMEOUT);
+  }
+
+  /**
+   * Construct a feed that gives up on a write after `writeTimeout`; this
+   * lets tests see stalled subscribers dropped without waiting long.
+   *
+   * @param writeTimeout how long a write to a subscriber may block
+   */
+  TodoFeed(Duration writeTimeout) {
+    this.writeTimeoutNanos = writeTimeout.toNanos();
+  }
+
+  /**
+   * Add a client to the feed; this is the handler for the SSE route.
+   *
+   * @param client the newly connected client, whose context may have the
+   *   `owner` and `category` query parameters
+   */
+  void subscribe(SseClient client) {
+    startThreads();
+    Context ctx = client.ctx();
+    Subscriber subscriber = new Subscriber(client, ctx.queryParam(OWNER_KEY), ctx.queryParam(CATEGORY_KEY));
+    subscribers.add(subscriber);
+    client.onClose(() -> subscribers.remove(subscriber));
+    // Keep the connection open after this handler returns.
+    client.keepAlive();
+  }
+
+  /**
+   * Tell the subscribers that want it that a todo was added.
+   *
+   * @param todo the new todo
+   */
+  void inserted(Todo todo) {
+    publish(new Event(INSERT_EVENT, todo));
+  }
+
+  /**
+   * Tell the subscribers that want it that a todo was deleted.
+   *
+   * @param todo the deleted todo
+   */
+  void deleted(Todo todo) {
+    publish(new Event(DELETE_EVENT, todo));
+  }
+
+  /**
+   * @return how many clients are subscribed right now
+   */
+  int subscriberCount() {
+    return subscribers.size();
+  }
+
+  private void publish(Event event) {
+    for (Subscriber subscriber : subscribers) {
+      if (subscriber.wants(event.todo)) {
+        subscriber.offer(event);
+      }
+    }
+  }
+
+  private void ping() {
+    Event heartbeatEvent = new Event(null, null);
+    for (Subscriber subscriber : subscribers) {
+      subscriber.offer(heartbeatEvent);
+    }
+  }
+
+  /**
+   * Disconnect the subscribers whose writes have been blocked for longer
+   * than the write timeout; closing the connection also fails the write.
+   */
+  private void dropStalled() {
+    long now = System.nanoTime();
+    for (Subscriber subscriber : subscribers) {
+      if (subscriber.stalled(now)) {
+        disconnect(subscriber);
+      }
+    }
+  }
+
+  private void disconnect(Subscriber subscriber) {
+    if (subscribers.remove(subscriber)) {
+      subscriber.client.close();
+    }
+  }
+
+  private synchronized void startThreads() {
+    if (senders != null) {
+      return;
+    }
+    // Virtual threads are daemons, and one blocked on a write costs little.
+    senders = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("todo-feed-sender-", 0).factory());
+    heartbeat = Executors.newSingleThreadScheduledExecutor(daemonThreads("todo-feed-heartbeat"));
+    heartbeat.scheduleAtFixedRate(this::ping, HEARTBEAT.toMillis(), HEARTBEAT.toMillis(), TimeUnit.MILLISECONDS);
+    long stallCheckNanos = writeTimeoutNanos / 2;
+    heartbeat.scheduleAtFixedRate(this::dropStalled, stallCheckNanos, stallCheckNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Make threads that don't keep the server running once everything else
+   * has stopped.
+   */
+  private static ThreadFactory daemonThreads(String name) {
+    return runnable -> {
+      Thread thread = new Thread(runnable, name);
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+}
@@ -0,0 +1,115 @@
+package umm3601.todo;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import umm3601.IndexManager;
+
+/**
+ * Where the todos (and the tombstones of deleted todos) are stored.
+ *
+ * Queries are Bson filters and sorts, built with `Filters` and `Sorts` the
+ * way Mongo expects them, so the controller, its caches, and its page
+ * tokens work the same whatever the storage. Strings are compared ignoring
+ * case, as with `TextMatch.COLLATION`.
+ *
+ * `MongoTodoRepository` keeps them in MongoDB, `MemoryTodoRepository` in
+ * this JVM, and `LogTodoRepository` in logs on this machine; `Main` picks
+ * one from the `STORAGE` environment variable.
+ */
+public interface TodoRepository {
+
+  /**
+   * @param id the ID of a todo
+   * @return the todo, or null if there isn't one with that ID
+   */
+  Todo findById(ObjectId id);
+
+  /**
+   * @param filter which todos to find
+   * @param sort the order to put them in
+   * @param limit the most todos to return, or zero for all of them
+   * @return the matching todos, in order
+   */
+  ArrayList<Todo> find(Bson filter, Bson sort, int limit);
+
+  /**
+   * Like `find`, but the todos are read as they're needed rather than all
+   * at once. The stream has to be closed.
+   *
+   * @param filter which todos to find
+   * @param sort the order to put them in
+   * @param limit the most todos to return, or zero for all of them
+   * @param batchSize how many todos to read at a time, where that matters
+   * @return the matching todos, in order
+   */
+  Stream<Todo> stream(Bson filter, Bson sort, int limit, int batchSize);
+
+  /**
+   * Read the matching todos, in no particular order, for an export (which
+   * may be served from a replica, if there is one). The stream has to be
+   * closed.
+   *
+   * @param filter which todos to export
+   * @return the matching todos
+   */
+  Stream<Todo> export(Bson filter);
+
+  /**
+   * Add a todo, giving it an ID if it doesn't have one.
+   *
+   * @param todo the new todo
+   */
+  void insert(Todo todo);
+
+  /**
+   * Add many todos at once, each of which must already have its ID. A todo
+   * that can't be added doesn't stop the rest.
+   *
+   * @param todos the new todos
+   * @return why each todo that couldn't be added wasn't, by its position
+   *   in `todos`
+   */
+  Map<Integer, String> insertMany(List<Todo> todos);
+
+  /**
+   * @param id the ID of the todo to delete
+   * @return the deleted todo, or null if there wasn't one with that ID
+   */
+  Todo delete(ObjectId id);
+
+  /**
+   * Record that a todo was deleted; see `TodoChangeLog`.
+   *
+   * @param todoId the ID of the deleted todo, as a hex string
+   * @param deletedAt when it was deleted
+   */
+  void addTombstone(String todoId, Instant deletedAt);
+
+  /**
+   * Get the tombstones in a range of their `_id`s (which start with the
+   * time they were made), in `_id` order.
+   *
+   * @param after the tombstones must have IDs after this one
+   * @param upTo and at or before this one
+   * @param limit the most tombstones to return
+   * @return the tombstones, each with its `_id` and the ID of its todo
+   *   under `TodoChangeLog.TODO_ID_KEY`
+   */
+  List<Document> tombstones(ObjectId after, ObjectId upTo, int limit);
+
+  /**
+   * Declare any indexes this storage needs in the database.
+   *
+   * @param indexes the index manager to add declarations to
+   */
+  default void declareIndexes(IndexManager indexes) {
+  }
+}
@@ -0,0 +1,325 @@
+package umm3601.user;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import java.util.stream.Stream;
+
+/**
+ * An in-memory, incrementally maintained view of the users grouped by
+ * company (what `/api/usersByCompany` returns).
+ *
+ * Building the grouping with an aggregation means reading the whole users
+ * collection on every request. Instead, the view is built from the
+ * repository once (on first use, or when `rebuild()` is asked for), and
+ * from then on `add` and `remove` keep it up to date as users come and go.
+ * A rebuild reads the users without holding up `add`, `remove`, or
+ * `grouped` (which keep using the old view until the new one is swapped
+ * in), and replays whatever they changed while it was reading.
+ *
+ * Each sorted list is built once and then handed out as is. When a user
+ * comes or goes, only their company's group is rebuilt, and moved to its
+ * new place in each sorted list, so serving the grouping doesn't depend
+ * on the number of users.
+ *
+ * The view only knows about changes made through this server; anything
+ * changed directly in the database is picked up by the next `rebuild()`.
+ * After `invalidate()`, the view is still kept up to date (and handed out
+ * if need be), but the next use rebuilds it first. A rebuild always swaps
+ * its view in, even if the view was invalidated while it was reading, so
+ * readers never wait on more than one rebuild.
+ */
+class CompanyRollup {
+
+  static final String COUNT_KEY = "count";
+
+  private static final Comparator<UserByCompany> BY_COMPANY =
+    Comparator.comparing(group -> group._id);
+  private static final Comparator<UserByCompany> BY_COMPANY_DESCENDING = BY_COMPANY.reversed();
+  private static final Comparator<UserByCompany> BY_COUNT =
+    Comparator.<UserByCompany>comparingInt(group -> group.count).thenComparing(BY_COMPANY);
+  private static final Comparator<UserByCompany> BY_COUNT_DESCENDING = BY_COUNT.reversed();
+
+  private final UserRepository users;
+
+  // Held while rebuilding, so there's only one rebuild at a time. The view
+  // itself (guarded by this object's lock) is only locked to swap in.
+  private final Object rebuildLock = new Object();
+
+  // The users (ID to name, in the order they were added) in each company,
+  // and the company each user is in, so a user can be removed by ID alone.
+  // Null until the view is first built.
+  private TreeMap<String, LinkedHashMap<String, String>> companies;
+  private Map<String, String> companyOfUser = new HashMap<>();
+
+  // Bumped whenever the view is invalidated, so a rebuild that was already
+  // reading knows that what it read may be out of date.
+  private long generation;
+  // Whether the view may be missing changes made directly in the database
+  // (it was invalidated since the last rebuild started reading), so the
+  // next use should rebuild it.
+  private boolean stale;
+  // The users added (with their company) and removed (without one) while a
+  // rebuild is reading, or null if there isn't one.
+  private List<User> changesDuringRebuild;
+
+  // The group handed out for each company, and the sorted lists of them
+  // handed out, by order. Neither is changed once handed out; a company's
+  // group is replaced when its users change, and the lists are copied.
+  private final Map<String, UserByCompany> groups = new HashMap<>();
+  private final Map<Comparator<UserByCompany>, ArrayList<UserByCompany>> sorted = new HashMap<>();
+
+  /**
+   * Construct a view of the users in `users`; nothing is read until the
+   * view is first used.
+   *
+   * @param users where the users are stored
+   */
+  CompanyRollup(UserRepository users) {
+    this.users = users;
+  }
+
+  /**
+   * Recompute the view from scratch from the stored users.
+   *
+   * @return the number of companies in the rebuilt view
+   */
+  int rebuild() {
+    synchronized (rebuildLock) {
+      long startedAt;
+      synchronized (this) {
+        startedAt = generation;
+        changesDuringRebuild = new ArrayList<>();
+      }
+      TreeMap<String, LinkedHashMap<String, String>> newCompanies = new TreeMap<>();
+      Map<String, String> newCompanyOfUser = new HashMap<>();
+      try (Stream<User> all = users.namesAndCompanies()) {
+        all.forEach(user -> {
+          // Every user added through the API has a company, but skip any that
+          // were put in the database some other way without one.
+          if (user.company != null) {
+            move(newCompanies, newCompanyOfUser, user._id, user.name, user.company);
+          }
+        });
+      } catch (RuntimeException e) {
+        synchronized (this) {
+          changesDuringRebuild = null;
+        }
+        throw e;
+      }
+
+      synchronized (this) {
+        List<User> changes = changesDuringRebuild;
+        changesDuringRebuild = null;
+        for (User change : changes) {
+          if (change.company == null) {
+            removeFrom(newCompanies, newCompanyOfUser, change._id);
+          } else {
+            move(newCompanies, newCompanyOfUser, change._id, change.name, change.company);
+          }
+        }
+        // The new view is swapped in even if it was invalidated meanwhile
+        // (it's still no older than the one it replaces); it's just marked
+        // stale, so the next use rebuilds it again.
+        companies = newCompanies;
+        companyOfUser = newCompanyOfUser;
+        groups.clear();
+        sorted.clear();
+        stale = generation != startedAt;
+      }
+      return newCompanies.size();
+    }
+  }
+
+  /**
+   * Mark the view as stale, so it's rebuilt from the collection the next
+   * time it's used (say, after a lot of users were added at once).
+   */
+  synchronized void invalidate() {
+    stale = true;
+    generation++;
+  }
+
+  /**
+   * Record that a user was added.
+   *
+   * @param user the new user, which must already have its ID
+   */
+  synchronized void add(User user) {
+    if (user.company == null) {
+      return;
+    }
+    if (changesDuringRebuild != null) {
+      changesDuringRebuild.add(user);
+    }
+    // If the view hasn't been built yet, building it will pick up this user.
+    if (companies != null) {
+      String previous = move(companies, companyOfUser, user._id, user.name, user.company);
+      if (previous != null && !previous.equals(user.company)) {
+        changed(previous);
+      }
+      changed(user.company);
+    }
+  }
+
+  /**
+   * Record that a user was removed.
+   *
+   * @param id the ID (as a hex string) of the user that was removed
+   */
+  synchronized void remove(String id) {
+    if (changesDuringRebuild != null) {
+      User removed = new User();
+      removed._id = id;
+      changesDuringRebuild.add(removed);
+    }
+    if (companies != null) {
+      String company = removeFrom(companies, companyOfUser, id);
+      if (company != null) {
+        changed(company);
+      }
+    }
+  }
+
+  /**
+   * Get the users grouped by company.
+   *
+   * The list is shared by every caller until the view next changes, so it
+   * must not be modified.
+   *
+   * @param sortBy `count` to sort by the number of users in each company;
+   *   anything else sorts by company name
+   * @param descending whether to sort in descending order
+   * @return the companies, each with its count and list of user names and IDs
+   */
+  ArrayList<UserByCompany> grouped(String sortBy, boolean descending) {
+    Comparator<UserByCompany> order = COUNT_KEY.equals(sortBy)
+      ? (descending ? BY_COUNT_DESCENDING : BY_COUNT)
+      : (descending ? BY_COMPANY_DESCENDING : BY_COMPANY);
+    synchronized (this) {
+      if (companies != null && !stale) {
+        return sorted.computeIfAbsent(order, this::sort);
+      }
+    }
+    refresh();
+    // Even if the view was invalidated again while it was being rebuilt,
+    // it's served as it is; the next use rebuilds it.
+    synchronized (this) {
+      return sorted.computeIfAbsent(order, this::sort);
+    }
+  }
+
+  /**
+   * Rebuild the view if it hasn't been built yet or is stale. Readers that
+   * were waiting for someone else's rebuild don't then rebuild it again.
+   */
+  private void refresh() {
+    synchronized (rebuildLock) {
+      synchronized (this) {
+        if (companies != null && !stale) {
+          return;
+        }
+      }
+      rebuild();
+    }
+  }
+
+  private ArrayList<UserByCompany> sort(Comparator<UserByCompany> order) {
+    ArrayList<UserByCompany> list = new ArrayList<>(companies.size());
+    for (String company : companies.keySet()) {
+      list.add(groupOf(company));
+    }
+    list.sort(order);
+    return list;
+  }
+
+  /**
+   * Replace a company's group in the sorted lists handed out, after its
+   * users changed.
+   */
+  private void changed(String company) {
+    UserByCompany old = groups.remove(company);
+    if (sorted.isEmpty()) {
+      return;
+    }
+    // Every company has its group while there are sorted lists.
+    UserByCompany updated = companies.containsKey(company) ? groupOf(company) : null;
+    for (Map.Entry<Comparator<UserByCompany>, ArrayList<UserByCompany>> entry : sorted.entrySet()) {
+      Comparator<UserByCompany> order = entry.getKey();
+      // Callers may still be sending the old list, so it's copied rather
+      // than changed.
+      ArrayList<UserByCompany> list = new ArrayList<>(entry.getValue());
+      if (old != null) {
+        int at = Collections.binarySearch(list, old, order);
+        if (at >= 0) {
+          list.remove(at);
+        }
+      }
+      if (updated != null) {
+        int at = Collections.binarySearch(list, updated, order);
+        if (at >= 0) {
+          list.set(at, updated);
+        } else {
+          list.add(-at - 1, updated);
+        }
+      }
+      entry.setValue(list);
+    }
+  }
+
+  private UserByCompany groupOf(String company) {
+    return groups.computeIfAbsent(company, key -> group(key, companies.get(key)));
+  }
+
+  /**
+   * Put a user in a company in a view, taking them out of the company they
+   * were in (if any).
+   *
+   * @return the company they were in, or null if they weren't in the view
+   */
+  private static String move(TreeMap<String, LinkedHashMap<String, String>> companies,
+      Map<String, String> companyOfUser, String id, String name, String company) {
+    String previous = removeFrom(companies, companyOfUser, id);
+    companies.computeIfAbsent(company, key -> new LinkedHashMap<>()).put(id, name);
+    companyOfUser.put(id, company);
+    return previous;
+  }
+
+  /**
+   * Take a user out of a view.
+   *
+   * @return the company they were in, or null if they weren't in the view
+   */
+  private static String removeFrom(TreeMap<String, LinkedHashMap<String, String>> companies,
+      Map<String, String> companyOfUser, String id) {
+    String company = companyOfUser.remove(id);
+    if (company != null) {
+      LinkedHashMap<String, String> members = companies.get(company);
+      members.remove(id);
+      if (members.isEmpty()) {
+        companies.remove(company);
+      }
+    }
+    return company;
+  }
+
+  private static UserByCompany group(String company, LinkedHashMap<String, String> members) {
+    UserByCompany group = new UserByCompany();
+    group._id = company;
+    group.count = members.size();
+    group.users = new ArrayList<>(members.size());
+    for (Map.Entry<String, String> member : members.entrySet()) {
+      UserIdName user = new UserIdName();
+      user._id = member.getKey();
+      user.name = member.getValue();
+      group.users.add(user);
+    }
+    return group;
+  }
+}
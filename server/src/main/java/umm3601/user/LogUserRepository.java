@@ -0,0 +1,147 @@
+package umm3601.user;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import umm3601.LogStore;
+
+/**
+ * Keeps the users (as JSON) in a `LogStore` in a directory on this
+ * machine, for running without a database.
+ *
+ * Queries (and the company rollup) are answered by a
+ * `MemoryUserRepository` (and its indexes), which is filled from the log
+ * when it's opened and kept up to date with every write. Writes return
+ * once they're on disk.
+ */
+public class LogUserRepository implements UserRepository, Closeable {
+
+  static final String USER_LOG = "users";
+
+  private static final ObjectReader USER_READER = new ObjectMapper().readerFor(User.class);
+  private static final ObjectWriter USER_WRITER = new ObjectMapper().writerFor(User.class);
+
+  private final MemoryUserRepository memory = new MemoryUserRepository();
+  private final LogStore users;
+
+  /**
+   * Open (or start) the user log in `directory`.
+   *
+   * @param directory the directory the log is kept in
+   * @throws IOException if the log can't be read
+   */
+  public LogUserRepository(Path directory) throws IOException {
+    users = new LogStore(directory, USER_LOG);
+    users.forEach((id, json) -> memory.insert(read(json)));
+  }
+
+  @Override
+  public User findById(ObjectId id) {
+    return memory.findById(id);
+  }
+
+  @Override
+  public ArrayList<User> find(Bson filter, Bson sort, int limit) {
+    return memory.find(filter, sort, limit);
+  }
+
+  @Override
+  public Stream<User> export(Bson filter) {
+    return memory.export(filter);
+  }
+
+  @Override
+  public Stream<User> namesAndCompanies() {
+    return memory.namesAndCompanies();
+  }
+
+  @Override
+  public void insert(User user) {
+    if (user._id == null) {
+      user._id = new ObjectId().toHexString();
+    }
+    byte[] json = write(user);
+    long position;
+    // The log has to get the writes in the same order as the indexes.
+    synchronized (this) {
+      memory.insert(user);
+      position = users.put(user._id, json);
+    }
+    users.sync(position);
+  }
+
+  @Override
+  public Map<Integer, String> insertMany(List<User> newUsers) {
+    List<byte[]> json = new ArrayList<>(newUsers.size());
+    for (User user : newUsers) {
+      if (user._id == null) {
+        user._id = new ObjectId().toHexString();
+      }
+      json.add(write(user));
+    }
+    Map<Integer, String> errors;
+    long position = 0;
+    synchronized (this) {
+      errors = memory.insertMany(newUsers);
+      for (int i = 0; i < newUsers.size(); i++) {
+        if (!errors.containsKey(i)) {
+          position = users.put(newUsers.get(i)._id, json.get(i));
+        }
+      }
+    }
+    // One flush for the whole batch.
+    users.sync(position);
+    return errors;
+  }
+
+  @Override
+  public boolean delete(ObjectId id) {
+    boolean deleted;
+    long position = 0;
+    synchronized (this) {
+      deleted = memory.delete(id);
+      if (deleted) {
+        position = users.delete(id.toHexString());
+      }
+    }
+    users.sync(position);
+    return deleted;
+  }
+
+  /**
+   * Wait for everything written to be on disk, and stop compacting.
+   */
+  @Override
+  public void close() {
+    users.close();
+  }
+
+  private static byte[] write(User user) {
+    try {
+      return USER_WRITER.writeValueAsBytes(user);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static User read(byte[] json) {
+    try {
+      return USER_READER.readValue(json);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
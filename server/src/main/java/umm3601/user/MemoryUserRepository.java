@@ -0,0 +1,83 @@
+package umm3601.user;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import io.javalin.http.ConflictResponse;
+import umm3601.MemoryCollection;
+
+/**
+ * Keeps the users in this JVM, in a `MemoryCollection` with secondary
+ * indexes on company, role, and age (the fields `getUsers` filters on).
+ * Nothing is saved: the users are gone when the server stops.
+ */
+public class MemoryUserRepository implements UserRepository {
+
+  private final MemoryCollection<User> users = new MemoryCollection<>(
+    Map.<String, Function<User, Object>>of(
+      MemoryCollection.ID_KEY, user -> user._id,
+      UserController.NAME_KEY, user -> user.name,
+      UserController.AGE_KEY, user -> user.age,
+      UserController.COMPANY_KEY, user -> user.company,
+      UserController.ROLE_KEY, user -> user.role,
+      "email", user -> user.email,
+      "avatar", user -> user.avatar),
+    List.of(UserController.COMPANY_KEY, UserController.ROLE_KEY, UserController.AGE_KEY));
+
+  @Override
+  public User findById(ObjectId id) {
+    return users.get(id.toHexString());
+  }
+
+  @Override
+  public ArrayList<User> find(Bson filter, Bson sort, int limit) {
+    return users.find(filter, sort, limit);
+  }
+
+  @Override
+  public Stream<User> export(Bson filter) {
+    return find(filter, null, 0).stream();
+  }
+
+  @Override
+  public Stream<User> namesAndCompanies() {
+    return users.all().stream();
+  }
+
+  @Override
+  public void insert(User user) {
+    if (user._id == null) {
+      user._id = new ObjectId().toHexString();
+    }
+    if (!users.insert(user)) {
+      throw new ConflictResponse("There is already a user with ID " + user._id);
+    }
+  }
+
+  @Override
+  public Map<Integer, String> insertMany(List<User> newUsers) {
+    Map<Integer, String> errors = new HashMap<>();
+    for (int i = 0; i < newUsers.size(); i++) {
+      User user = newUsers.get(i);
+      if (user._id == null) {
+        user._id = new ObjectId().toHexString();
+      }
+      if (!users.insert(user)) {
+        errors.put(i, "There is already a user with ID " + user._id);
+      }
+    }
+    return errors;
+  }
+
+  @Override
+  public boolean delete(ObjectId id) {
+    return users.delete(id.toHexString()) != null;
+  }
+}
@@ -0,0 +1,157 @@
+package umm3601.user;
+
+import static com.mongodb.client.model.Filters.eq;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.bson.UuidRepresentation;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.mongojack.JacksonMongoCollection;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.ReadPreference;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.DeleteOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.InsertOneOptions;
+import com.mongodb.client.model.Projections;
+
+import umm3601.IndexManager;
+import umm3601.NdjsonExport;
+import umm3601.RequestId;
+import umm3601.TextMatch;
+
+/**
+ * Stores the users in the `users` collection of a MongoDB database.
+ *
+ * Every command (reads and writes) is tagged with the ID of the request
+ * that made it (see `RequestId`), and list queries run with the case-insensitive
+ * `TextMatch.COLLATION` so they can use the indexes declared here.
+ */
+public class MongoUserRepository implements UserRepository {
+
+  static final String USER_COLLECTION = "users";
+
+  private static final String ID_KEY = "_id";
+
+  private final JacksonMongoCollection<User> userCollection;
+
+  /**
+   * @param database the database with the users
+   */
+  public MongoUserRepository(MongoDatabase database) {
+    userCollection = JacksonMongoCollection.builder().build(
+        database,
+        USER_COLLECTION,
+        User.class,
+        UuidRepresentation.STANDARD);
+  }
+
+  @Override
+  public User findById(ObjectId id) {
+    return userCollection.find(eq(ID_KEY, id)).comment(RequestId.current()).first();
+  }
+
+  @Override
+  public ArrayList<User> find(Bson filter, Bson sort, int limit) {
+    return userCollection
+      .find(filter)
+      .comment(RequestId.current())
+      .collation(TextMatch.COLLATION)
+      .sort(sort)
+      .limit(limit)
+      .into(new ArrayList<>());
+  }
+
+  /**
+   * Exports read from a secondary when there is one, to keep them from
+   * competing with normal traffic on the primary.
+   */
+  @Override
+  public Stream<User> export(Bson filter) {
+    return stream(userCollection
+      .withReadPreference(ReadPreference.secondaryPreferred())
+      .find(filter)
+      .comment(RequestId.current())
+      .collation(TextMatch.COLLATION)
+      .batchSize(NdjsonExport.BATCH_SIZE)
+      .cursor());
+  }
+
+  @Override
+  public Stream<User> namesAndCompanies() {
+    return stream(userCollection
+      .find()
+      .comment(RequestId.current())
+      .projection(Projections.include(UserController.NAME_KEY, UserController.COMPANY_KEY))
+      .cursor());
+  }
+
+  @Override
+  public void insert(User user) {
+    userCollection.insertOne(user, new InsertOneOptions().comment(RequestId.current()));
+  }
+
+  /**
+   * The users are written with a single unordered `insertMany`, so one
+   * failed user doesn't stop the rest.
+   */
+  @Override
+  public Map<Integer, String> insertMany(List<User> users) {
+    Map<Integer, String> errors = new HashMap<>();
+    try {
+      userCollection.insertMany(users, new InsertManyOptions().ordered(false).comment(RequestId.current()));
+    } catch (MongoBulkWriteException e) {
+      for (BulkWriteError error : e.getWriteErrors()) {
+        errors.put(error.getIndex(), error.getMessage());
+      }
+    }
+    return errors;
+  }
+
+  @Override
+  public boolean delete(ObjectId id) {
+    return userCollection.deleteOne(eq(ID_KEY, id), new DeleteOptions().comment(RequestId.current()))
+      .getDeletedCount() == 1;
+  }
+
+  /**
+   * Declare the indexes behind `getUsers`.
+   *
+   * List queries sort on a field followed by `_id` (name by default), so
+   * the single-field filters get compound indexes that end in that default
+   * sort. `role` and `age` are often asked for together, so they share one.
+   * List queries run with the case-insensitive `TextMatch.COLLATION`, so
+   * the indexes have to be built with it too.
+   */
+  @Override
+  public void declareIndexes(IndexManager indexes) {
+    indexes.declare(USER_COLLECTION, Indexes.ascending(UserController.NAME_KEY, ID_KEY), TextMatch.indexOptions());
+    indexes.declare(USER_COLLECTION,
+      Indexes.ascending(UserController.AGE_KEY, UserController.NAME_KEY, ID_KEY), TextMatch.indexOptions());
+    indexes.declare(USER_COLLECTION,
+      Indexes.ascending(UserController.ROLE_KEY, UserController.AGE_KEY), TextMatch.indexOptions());
+    indexes.declare(USER_COLLECTION,
+      Indexes.ascending(UserController.COMPANY_KEY, UserController.NAME_KEY, ID_KEY), TextMatch.indexOptions());
+  }
+
+  /**
+   * The documents from a cursor, as a stream that closes the cursor when
+   * it's closed.
+   */
+  private static Stream<User> stream(MongoCursor<User> cursor) {
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED), false)
+      .onClose(cursor::close);
+  }
+}
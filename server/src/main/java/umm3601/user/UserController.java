@@ -2,8 +2,8 @@ package umm3601.user;
 
 import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
-import static com.mongodb.client.model.Filters.regex;
 
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -11,24 +11,37 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
 
 import org.bson.Document;
-import org.bson.UuidRepresentation;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
-import org.mongojack.JacksonMongoCollection;
 
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.Sorts;
-import com.mongodb.client.result.DeleteResult;
 
 import io.javalin.Javalin;
 import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
+import io.javalin.http.Header;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
+import io.javalin.http.ServiceUnavailableResponse;
+import io.javalin.validation.BodyValidator;
+import umm3601.AsyncMongo;
+import umm3601.CollectionVersion;
 import umm3601.Controller;
+import umm3601.EntityTag;
+import umm3601.FlightRecordings;
+import umm3601.IndexManager;
+import umm3601.NdjsonExport;
+import umm3601.PageToken;
+import umm3601.ResponseCache;
+import umm3601.ServerTiming;
+import umm3601.TextMatch;
 /**
  * Controller that manages requests for info about users.
  */
@@ -36,28 +49,130 @@ public class UserController implements Controller {
 
   private static final String API_USERS = "/api/users";
   private static final String API_USER_BY_ID = "/api/users/{id}";
+  private static final String API_REBUILD_COMPANY_ROLLUP = "/api/admin/usersByCompany/rebuild";
+  private static final String USER_COLLECTION = MongoUserRepository.USER_COLLECTION;
+  static final String ID_KEY = "_id";
+  static final String NAME_KEY = "name";
   static final String AGE_KEY = "age";
   static final String COMPANY_KEY = "company";
   static final String ROLE_KEY = "role";
+  static final String LIMIT_KEY = "limit";
   static final String SORT_ORDER_KEY = "sortorder";
+  // The fields users can be sorted (and so paged) by, and how to read each
+  // one off a user for the next page's token.
+  private static final Map<String, Function<User, Object>> SORT_FIELDS = Map.of(
+    ID_KEY, user -> user._id,
+    NAME_KEY, user -> user.name,
+    AGE_KEY, user -> user.age,
+    COMPANY_KEY, user -> user.company,
+    "email", user -> user.email,
+    ROLE_KEY, user -> user.role);
+
+  static final String BATCH_SIZE_KEY = "batchSize";
+  static final int DEFAULT_IMPORT_BATCH_SIZE = 1000;
+  static final int MAX_IMPORT_BATCH_SIZE = 10000;
+  static final int MAX_CONCURRENT_IMPORTS = 2;
+
+  // Every import has its own pool of workers, so only a few may run at
+  // once; any more are turned away with a 503.
+  static final Semaphore IMPORTS = new Semaphore(MAX_CONCURRENT_IMPORTS);
 
   private static final int REASONABLE_AGE_LIMIT = 150;
   private static final String ROLE_REGEX = "^(admin|editor|viewer)$";
   public static final String EMAIL_REGEX = "^[a-zA-Z0-9_!#$%&'*+/=?`{|}~^.-]+@[a-zA-Z0-9.-]+$";
+  // Compiled once, since an import checks every user against them.
+  private static final Pattern ROLE_PATTERN = Pattern.compile(ROLE_REGEX);
+  private static final Pattern EMAIL_PATTERN = Pattern.compile(EMAIL_REGEX);
 
-  private final JacksonMongoCollection<User> userCollection;
+  /**
+   * One of the things a new user has to be, and the message for a user
+   * that isn't.
+   */
+  private record UserCheck(Predicate<User> test, String message) {
+  }
+
+  // The checks every new user has to pass (see `validateNewUser`).
+  private static final List<UserCheck> NEW_USER_CHECKS = List.of(
+      new UserCheck(usr -> usr.name != null && usr.name.length() > 0, "User must have a non-empty user name"),
+      new UserCheck(usr -> usr.email != null && EMAIL_PATTERN.matcher(usr.email).matches(),
+        "User must have a legal email"),
+      new UserCheck(usr -> usr.age > 0, "User's age must be greater than zero"),
+      new UserCheck(usr -> usr.age < REASONABLE_AGE_LIMIT, "User's age must be less than " + REASONABLE_AGE_LIMIT),
+      new UserCheck(usr -> usr.role != null && ROLE_PATTERN.matcher(usr.role).matches(),
+        "User must have a legal user role"),
+      new UserCheck(usr -> usr.company != null && usr.company.length() > 0, "User must have a non-empty company name"));
+
+  private final UserRepository userRepository;
+
+  // Serialized users, keyed by ID, so `getUser` can skip the database for
+  // users that are requested over and over.
+  private final ResponseCache userCache;
+
+  // Serialized `getUsers` results, keyed by the (normalized) query and the
+  // version of the collection they were read from.
+  private final ResponseCache userListCache;
+
+  // Bumped by every insert and delete, which retires every cached list at once.
+  private final CollectionVersion userVersion = new CollectionVersion();
+
+  // The users grouped by company, maintained as users are added and deleted.
+  private final CompanyRollup companyRollup;
+
+  // Non-blocking reads for `getUser` and `getUsers`, or null to read with
+  // the synchronous driver (blocking the request thread).
+  private final AsyncMongo asyncMongo;
 
   /**
-   * Construct a controller for users.
+   * Construct a controller for users, without any caching.
    *
    * @param database the database containing user data
    */
   public UserController(MongoDatabase database) {
-    userCollection = JacksonMongoCollection.builder().build(
-        database,
-        "users",
-        User.class,
-        UuidRepresentation.STANDARD);
+    this(database, ResponseCache.disabled(USER_COLLECTION), ResponseCache.disabled(USER_COLLECTION));
+  }
+
+  /**
+   * Construct a controller for users.
+   *
+   * @param database the database containing user data
+   * @param userCache the cache of individual users used by `getUser`
+   * @param userListCache the cache of lists of users used by `getUsers`
+   */
+  public UserController(MongoDatabase database, ResponseCache userCache, ResponseCache userListCache) {
+    this(database, userCache, userListCache, null);
+  }
+
+  /**
+   * Construct a controller for users that may read without blocking.
+   *
+   * @param database the database containing user data
+   * @param userCache the cache of individual users used by `getUser`
+   * @param userListCache the cache of lists of users used by `getUsers`
+   * @param asyncMongo the non-blocking reads `getUser` and `getUsers` use,
+   *   or null for them to block on the synchronous driver
+   */
+  public UserController(MongoDatabase database, ResponseCache userCache, ResponseCache userListCache,
+      AsyncMongo asyncMongo) {
+    this(new MongoUserRepository(database), userCache, userListCache, asyncMongo);
+  }
+
+  /**
+   * Construct a controller for users kept in any storage.
+   *
+   * @param userRepository where the users are stored
+   * @param userCache the cache of individual users used by `getUser`
+   * @param userListCache the cache of lists of users used by `getUsers`
+   * @param asyncMongo the non-blocking reads `getUser` and `getUsers` use,
+   *   or null for them to block on `userRepository`; it has to read the
+   *   same database as `userRepository`
+   */
+  public UserController(UserRepository userRepository, ResponseCache userCache, ResponseCache userListCache,
+      AsyncMongo asyncMongo) {
+    this.asyncMongo = asyncMongo;
+    this.userCache = userCache;
+    this.userListCache = userListCache;
+    this.userRepository = userRepository;
+    companyRollup = new CompanyRollup(userRepository);
   }
 
   /**
@@ -68,19 +183,73 @@ public class UserController implements Controller {
    */
   public void getUser(Context ctx) {
     String id = ctx.pathParam("id");
+    ObjectId objectId;
     User user;
 
     try {
-      user = userCollection.find(eq("_id", new ObjectId(id))).first();
+      objectId = new ObjectId(id);
     } catch (IllegalArgumentException e) {
       throw new BadRequestResponse("The requested user id wasn't a legal Mongo Object ID.");
     }
+
+    // Cached users are keyed by ID alone, so writes to other users don't
+    // retire them. The version read here only decides (in `sendUser`)
+    // whether what the database hands back may still be cached.
+    long version = userVersion.current();
+    String key = objectId.toHexString();
+    String etag = EntityTag.of(version, objectId.toHexString());
+    ServerTiming timing = ServerTiming.forContext(ctx);
+    timing.mark(ServerTiming.VALIDATE);
+
+    // If this user was requested recently (and hasn't changed since), send
+    // the cached JSON without a trip to the database.
+    byte[] cached = userCache.get(key);
+    timing.mark(ServerTiming.CACHE);
+    if (cached != null) {
+      // It's cached, so it exists, and the client's copy may be current.
+      if (!EntityTag.notModified(ctx, etag)) {
+        ctx.header(Header.ETAG, etag);
+        ResponseCache.send(ctx, cached);
+      }
+      return;
+    }
+
+    if (asyncMongo != null) {
+      ctx.future(() -> asyncMongo.findById(USER_COLLECTION, objectId, User.class, ctx.jsonMapper())
+        .thenAccept(found -> sendUser(ctx, key, version, etag, found)));
+      return;
+    }
+    user = userRepository.findById(objectId);
+    sendUser(ctx, key, version, etag, user);
+  }
+
+  /**
+   * Send a user that `getUser` found (and cache it, if no user was written
+   * since `version`), or 404 if it didn't.
+   */
+  private void sendUser(Context ctx, String key, long version, String etag, User user) {
+    ServerTiming timing = ServerTiming.forContext(ctx);
+    timing.mark(ServerTiming.DB);
     if (user == null) {
       throw new NotFoundResponse("The requested user was not found");
+    }
+    // Only once we know the user exists: `If-None-Match: *` (or a guessed
+    // tag) mustn't turn a missing user into a 304.
+    if (EntityTag.notModified(ctx, etag)) {
+      return;
+    }
+    ctx.header(Header.ETAG, etag);
+    if (userCache.isEnabled()) {
+      // Serialize the user ourselves (rather than with `ctx.json()`) so we
+      // can cache exactly what we send.
+      byte[] serialized = ctx.jsonMapper().toJsonString(user, User.class).getBytes(StandardCharsets.UTF_8);
+      userCache.putIfCurrent(key, serialized, userVersion, version);
+      ResponseCache.send(ctx, serialized);
     } else {
       ctx.json(user);
       ctx.status(HttpStatus.OK);
     }
+    timing.mark(ServerTiming.SERIALIZE);
   }
 
   /**
@@ -90,41 +259,120 @@ public class UserController implements Controller {
    * @param ctx a Javalin HTTP context
    */
   public void getUsers(Context ctx) {
-    Bson combinedFilter = constructFilter(ctx);
     Bson sortingOrder = constructSortingOrder(ctx);
+    int limit = constructLimit(ctx);
+
+    // If the client is asking for the page after a continuation token, only
+    // look at the users that sort after the last one it has already seen.
+    // This is a range query on the sort field and `_id` rather than a `skip`,
+    // so later pages cost the same as the first one.
+    Bson combinedFilter = ctx.queryParamMap().containsKey(PageToken.NEXT_KEY)
+      ? and(constructFilter(ctx),
+          PageToken.rangeFilter(ctx.queryParam(PageToken.NEXT_KEY), sortField(ctx), isDescending(ctx)))
+      : constructFilter(ctx);
+
+    // The version is read before the query, so if a write sneaks in while
+    // the query runs, the result is tagged (and cached) under the older
+    // (stale) version rather than the new one.
+    long version = userVersion.current();
+    String etag = EntityTag.of(version, combinedFilter, sortingOrder, limit);
+    if (EntityTag.notModified(ctx, etag)) {
+      return;
+    }
+    ctx.header(Header.ETAG, etag);
+    ServerTiming timing = ServerTiming.forContext(ctx);
+    timing.mark(ServerTiming.VALIDATE);
+
+    // Most list requests are repeats, so look for the already serialized
+    // result first.
+    String cacheKey = ResponseCache.queryKey(version, combinedFilter, sortingOrder, limit);
+    byte[] cached = userListCache.get(cacheKey);
+    timing.mark(ServerTiming.CACHE);
+    if (cached != null) {
+      ResponseCache.send(ctx, cached);
+      return;
+    }
 
-    // All three of the find, sort, and into steps happen "in parallel" inside the
+    // In the async mode, the request thread is handed back while the query
+    // runs, and the users are sent when they arrive.
+    if (asyncMongo != null) {
+      ctx.future(() -> asyncMongo
+        .find(USER_COLLECTION, combinedFilter, sortingOrder, limit, User.class, ctx.jsonMapper())
+        .thenAccept(matchingUsers -> sendUsers(ctx, matchingUsers, limit, cacheKey)));
+      return;
+    }
+
+    // All four of the find, sort, limit, and into steps happen "in parallel" inside the
     // database system. So MongoDB is going to find the users with the specified
-    // properties, return those sorted in the specified manner, and put the
-    // results into an initially empty ArrayList.
-    ArrayList<User> matchingUsers = userCollection
-      .find(combinedFilter)
-      .sort(sortingOrder)
-      .into(new ArrayList<>());
+    // properties, return (at most `limit` of) those sorted in the specified manner,
+    // and put the results into an initially empty ArrayList.
+    ArrayList<User> matchingUsers = userRepository.find(combinedFilter, sortingOrder, limit);
+    sendUsers(ctx, matchingUsers, limit, cacheKey);
+  }
+
+  /**
+   * Send the users that `getUsers` found, along with where the next page
+   * starts if this one is full, and cache them if it isn't.
+   */
+  private void sendUsers(Context ctx, ArrayList<User> matchingUsers, int limit, String cacheKey) {
+    ServerTiming timing = ServerTiming.forContext(ctx);
+    timing.mark(ServerTiming.DB);
+    // A full page means there may be more users, so tell the client where
+    // the next page starts. We only cache response bodies, so pages like
+    // this one (which also need the header) aren't cached.
+    if (limit > 0 && matchingUsers.size() == limit) {
+      User last = matchingUsers.get(matchingUsers.size() - 1);
+      ctx.header(PageToken.NEXT_HEADER, PageToken.after(last, last._id, SORT_FIELDS.get(sortField(ctx))));
+    } else if (userListCache.isEnabled()) {
+      byte[] serialized = ctx.jsonMapper()
+        .toJsonString(matchingUsers, matchingUsers.getClass())
+        .getBytes(StandardCharsets.UTF_8);
+      userListCache.put(cacheKey, serialized);
+      ResponseCache.send(ctx, serialized);
+      timing.mark(ServerTiming.SERIALIZE);
+      return;
+    }
 
     // Set the JSON body of the response to be the list of users returned by the database.
     // According to the Javalin documentation (https://javalin.io/documentation#context),
     // this calls result(jsonString), and also sets content type to json
     ctx.json(matchingUsers);
+    timing.mark(ServerTiming.SERIALIZE);
 
     // Explicitly set the context status to OK
     ctx.status(HttpStatus.OK);
   }
 
+  /**
+   * Stream all the users that match the same filters as `getUsers` to the
+   * client as newline-delimited JSON (optionally gzipped); see `NdjsonExport`.
+   *
+   * With Mongo, exports read from a secondary when there is one, to keep
+   * them from competing with normal traffic on the primary.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void exportUsers(Context ctx) {
+    Bson filter = constructFilter(ctx);
+    NdjsonExport.send(ctx, () -> userRepository.export(filter), User.class, USER_COLLECTION);
+  }
+
   /**
    * Construct a Bson filter document to use in the `find` method based on the
    * query parameters from the context.
    *
    * This checks for the presence of the `age`, `company`, and `role` query
    * parameters and constructs a filter document that will match users with
-   * the specified values for those fields.
+   * the specified values for those fields. Companies are matched ignoring
+   * case, as a prefix unless the `match` query parameter asks for an
+   * `exact` or (slower) `substring` match.
    *
    * @param ctx a Javalin HTTP context, which contains the query parameters
    *    used to construct the filter
    * @return a Bson filter document that can be used in the `find` method
    *   to filter the database collection of users
    */
-  private Bson constructFilter(Context ctx) {
+  Bson constructFilter(Context ctx) {
     List<Bson> filters = new ArrayList<>(); // start with an empty list of filters
 
     if (ctx.queryParamMap().containsKey(AGE_KEY)) {
@@ -135,8 +383,8 @@ public class UserController implements Controller {
       filters.add(eq(AGE_KEY, targetAge));
     }
     if (ctx.queryParamMap().containsKey(COMPANY_KEY)) {
-      Pattern pattern = Pattern.compile(Pattern.quote(ctx.queryParam(COMPANY_KEY)), Pattern.CASE_INSENSITIVE);
-      filters.add(regex(COMPANY_KEY, pattern));
+      // Case-insensitive prefix match by default; see `TextMatch`
+      filters.add(TextMatch.filter(ctx, COMPANY_KEY));
     }
     if (ctx.queryParamMap().containsKey(ROLE_KEY)) {
       String role = ctx.queryParamAsClass(ROLE_KEY, String.class)
@@ -159,23 +407,66 @@ public class UserController implements Controller {
    * parameters and constructs a sorting document that will sort users by
    * the specified field in the specified order. If the `sortby` query
    * parameter is not present, it defaults to "name". If the `sortorder`
-   * query parameter is not present, it defaults to "asc".
+   * query parameter is not present, it defaults to "asc". Ties are broken
+   * by `_id` (in the same direction) so the order is stable from one
+   * request to the next, which keyset pagination relies on.
    *
    * @param ctx a Javalin HTTP context, which contains the query parameters
    *   used to construct the sorting order
    * @return a Bson sorting document that can be used in the `sort` method
    *  to sort the database collection of users
    */
-  private Bson constructSortingOrder(Context ctx) {
+  Bson constructSortingOrder(Context ctx) {
     // Sort the results. Use the `sortby` query param (default "name")
     // as the field to sort by, and the query param `sortorder` (default
     // "asc") to specify the sort order.
-    String sortBy = Objects.requireNonNullElse(ctx.queryParam("sortby"), "name");
-    String sortOrder = Objects.requireNonNullElse(ctx.queryParam("sortorder"), "asc");
-    Bson sortingOrder = sortOrder.equals("desc") ?  Sorts.descending(sortBy) : Sorts.ascending(sortBy);
+    String sortBy = sortField(ctx);
+    Bson sortingOrder = isDescending(ctx) ? Sorts.descending(sortBy, ID_KEY) : Sorts.ascending(sortBy, ID_KEY);
     return sortingOrder;
   }
 
+  /**
+   * Get the name of the field to sort users by.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return the value of the `sortby` query parameter, or "name" if there isn't one
+   * @throws BadRequestResponse if users can't be sorted by that field
+   */
+  private String sortField(Context ctx) {
+    String sortBy = Objects.requireNonNullElse(ctx.queryParam("sortby"), NAME_KEY);
+    if (!SORT_FIELDS.containsKey(sortBy)) {
+      throw new BadRequestResponse("The requested sort field wasn't one users can be sorted by.");
+    }
+    return sortBy;
+  }
+
+  /**
+   * Check whether users should be sorted in descending order.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return true if the `sortorder` query parameter (default "asc") is "desc"
+   */
+  private boolean isDescending(Context ctx) {
+    return Objects.requireNonNullElse(ctx.queryParam(SORT_ORDER_KEY), "asc").equals("desc");
+  }
+
+  /**
+   * Get the maximum number of users to return (i.e., the page size) from
+   * the `limit` query parameter.
+   *
+   * @param ctx a Javalin HTTP context, which contains the query parameters
+   * @return the requested limit, or zero (which Mongo treats as "no limit")
+   *   if there wasn't one
+   */
+  private int constructLimit(Context ctx) {
+    if (!ctx.queryParamMap().containsKey(LIMIT_KEY)) {
+      return 0;
+    }
+    return ctx.queryParamAsClass(LIMIT_KEY, Integer.class)
+      .check(it -> it > 0, "The user limit must be greater than zero")
+      .get();
+  }
+
   /**
    * Set the JSON body of the response to be a list of all the user names and IDs
    * returned from the database, grouped by company
@@ -200,44 +491,90 @@ public class UserController implements Controller {
     String sortOrder = Objects.requireNonNullElse(ctx.queryParam("sortOrder"), "asc");
     Bson sortingOrder = sortOrder.equals("desc") ?  Sorts.descending(sortBy) : Sorts.ascending(sortBy);
 
+    // The grouping only changes when a user is added or deleted.
+    String etag = EntityTag.of(userVersion.current(), sortingOrder);
+    if (EntityTag.notModified(ctx, etag)) {
+      return;
+    }
+    ctx.header(Header.ETAG, etag);
+    ServerTiming timing = ServerTiming.forContext(ctx);
+    timing.mark(ServerTiming.VALIDATE);
+
     // The `UserByCompany` class is a simple class that has fields for the company
     // name, the number of users in that company, and a list of user names and IDs
     // (using the `UserIdName` class to store the user names and IDs).
-    // We're going to use the aggregation pipeline to group users by company, and
-    // then count the number of users in each company. We'll also collect the user
-    // names and IDs for each user in each company. We'll then convert the results
-    // of the aggregation pipeline to `UserByCompany` objects.
-
-    ArrayList<UserByCompany> matchingUsers = userCollection
-      // The following aggregation pipeline groups users by company, and
-      // then counts the number of users in each company. It also collects
-      // the user names and IDs for each user in each company.
-      .aggregate(
-        List.of(
-          // Project the fields we want to use in the next step, i.e., the _id, name, and company fields
-          new Document("$project", new Document("_id", 1).append("name", 1).append("company", 1)),
-          // Group the users by company, and count the number of users in each company
-          new Document("$group", new Document("_id", "$company")
-            // Count the number of users in each company
-            .append("count", new Document("$sum", 1))
-            // Collect the user names and IDs for each user in each company
-            .append("users", new Document("$push", new Document("_id", "$_id").append("name", "$name")))),
-          // Sort the results. Use the `sortby` query param (default "company")
-          // as the field to sort by, and the query param `sortorder` (default
-          // "asc") to specify the sort order.
-          new Document("$sort", sortingOrder)
-        ),
-        // Convert the results of the aggregation pipeline to UserGroupResult objects
-        // (i.e., a list of UserGroupResult objects). It is necessary to have a Java type
-        // to convert the results to, and the JacksonMongoCollection will do this for us.
-        UserByCompany.class
-      )
-      .into(new ArrayList<>());
+    // Rather than grouping the whole collection with an aggregation on every
+    // request, we serve the grouping from `companyRollup`, which `addNewUser`
+    // and `deleteUser` keep up to date as users come and go.
+    // The rollup stands in for the query here, so its time counts as `db`.
+    ArrayList<UserByCompany> matchingUsers = companyRollup.grouped(sortBy, sortOrder.equals("desc"));
+    timing.mark(ServerTiming.DB);
 
     ctx.json(matchingUsers);
+    timing.mark(ServerTiming.SERIALIZE);
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Rebuild the users-grouped-by-company view from the database.
+   *
+   * The view is kept up to date by `addNewUser` and `deleteUser`, so this is
+   * only needed if users were added or removed directly in the database.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void rebuildCompanyRollup(Context ctx) {
+    int companies = companyRollup.rebuild();
+    // The grouping may have changed, so clients' copies are out of date, and
+    // so may any user cached by ID.
+    userVersion.bump();
+    userCache.invalidateAll();
+    ctx.json(Map.of("companies", companies));
     ctx.status(HttpStatus.OK);
   }
 
+  /**
+   * Add the checks every new user has to pass (in `addNewUser` and when
+   * importing users) to a validator.
+   *
+   * The following chain of statements uses the Javalin validator system
+   * to verify that instance of `User` provided is a "legal" user. It checks
+   * the following things (in order):
+   *    - The user has a value for the name (`usr.name != null`)
+   *    - The user name is not blank (`usr.name.length > 0`)
+   *    - The provided email is valid (matches EMAIL_REGEX)
+   *    - The provided age is > 0
+   *    - The provided age is < REASONABLE_AGE_LIMIT
+   *    - The provided role is valid (one of "admin", "editor", or "viewer")
+   *    - A non-blank company is provided
+   *
+   * @param validator a validator for a user
+   * @return the validator, with the checks added
+   */
+  static BodyValidator<User> validateNewUser(BodyValidator<User> validator) {
+    for (UserCheck check : NEW_USER_CHECKS) {
+      validator = validator.check(check.test()::test, check.message());
+    }
+    return validator;
+  }
+
+  /**
+   * Check a user that has already been parsed (when importing users) the
+   * same way `validateNewUser` does.
+   *
+   * @param user the user to check
+   * @return the messages for the checks it fails (empty if it's legal)
+   */
+  static List<String> newUserErrors(User user) {
+    List<String> errors = new ArrayList<>();
+    for (UserCheck check : NEW_USER_CHECKS) {
+      if (!check.test().test(user)) {
+        errors.add(check.message());
+      }
+    }
+    return errors;
+  }
+
   /**
    * Add a new user using information from the context
    * (as long as the information gives "legal" values to User fields)
@@ -246,34 +583,22 @@ public class UserController implements Controller {
    *  in the JSON body of the request
    */
   public void addNewUser(Context ctx) {
-    /*
-     * The follow chain of statements uses the Javalin validator system
-     * to verify that instance of `User` provided in this context is
-     * a "legal" user. It checks the following things (in order):
-     *    - The user has a value for the name (`usr.name != null`)
-     *    - The user name is not blank (`usr.name.length > 0`)
-     *    - The provided email is valid (matches EMAIL_REGEX)
-     *    - The provided age is > 0
-     *    - The provided age is < REASONABLE_AGE_LIMIT
-     *    - The provided role is valid (one of "admin", "editor", or "viewer")
-     *    - A non-blank company is provided
-     * If any of these checks fail, the validator will return a
-     * `BadRequestResponse` with an appropriate error message.
-     */
-    User newUser = ctx.bodyValidator(User.class)
-      .check(usr -> usr.name != null && usr.name.length() > 0, "User must have a non-empty user name")
-      .check(usr -> usr.email.matches(EMAIL_REGEX), "User must have a legal email")
-      .check(usr -> usr.age > 0, "User's age must be greater than zero")
-      .check(usr -> usr.age < REASONABLE_AGE_LIMIT, "User's age must be less than " + REASONABLE_AGE_LIMIT)
-      .check(usr -> usr.role.matches(ROLE_REGEX), "User must have a legal user role")
-      .check(usr -> usr.company != null && usr.company.length() > 0, "User must have a non-empty company name")
-      .get();
+    // `validateNewUser` makes sure this is a "legal" user; if it isn't, the
+    // validator will throw a `BadRequestResponse` with an appropriate
+    // error message.
+    User newUser = validateNewUser(ctx.bodyValidator(User.class)).get();
+    ServerTiming timing = ServerTiming.forContext(ctx);
+    timing.mark(ServerTiming.VALIDATE);
 
     // Generate a user avatar (you won't need this part for todos)
     newUser.avatar = generateAvatar(newUser.email);
 
     // Insert the new user into the database
-    userCollection.insertOne(newUser);
+    userRepository.insert(newUser);
+    timing.mark(ServerTiming.DB);
+    // Any cached list might now be missing this user.
+    userVersion.bump();
+    companyRollup.add(newUser);
 
     // Set the JSON response to be the `_id` of the newly created user.
     // This gives the client the opportunity to know the ID of the new user,
@@ -286,6 +611,66 @@ public class UserController implements Controller {
     ctx.status(HttpStatus.CREATED);
   }
 
+  /**
+   * Import users from a JSON array or newline-delimited JSON (one user per
+   * line) in the body of the request; see `UserImporter`.
+   *
+   * Each user is checked just like in `addNewUser`. The response has the
+   * numbers of users `read`, `inserted`, and `failed`, and the first few
+   * `errors`. If the body isn't well-formed JSON, the users before the
+   * problem are still imported, and the response (with status 400) has an
+   * `error` describing it.
+   *
+   * Only `MAX_CONCURRENT_IMPORTS` imports run at once, sharing the
+   * processors between them; any more get a 503 (Service Unavailable).
+   *
+   * @param ctx a Javalin HTTP context that provides the users in the body
+   *   of the request, and optionally the `batchSize` query parameter
+   */
+  public void importUsers(Context ctx) {
+    int batchSize = DEFAULT_IMPORT_BATCH_SIZE;
+    if (ctx.queryParamMap().containsKey(BATCH_SIZE_KEY)) {
+      batchSize = ctx.queryParamAsClass(BATCH_SIZE_KEY, Integer.class)
+        .check(it -> it > 0, "The batch size must be greater than zero")
+        .check(it -> it <= MAX_IMPORT_BATCH_SIZE, "The batch size must be at most " + MAX_IMPORT_BATCH_SIZE)
+        .get();
+    }
+
+    if (!IMPORTS.tryAcquire()) {
+      throw new ServiceUnavailableResponse("Too many imports are running; try again later");
+    }
+    UserImporter.Result result;
+    try {
+      int workers = Math.max(1, Runtime.getRuntime().availableProcessors() / MAX_CONCURRENT_IMPORTS);
+      result = importUsers(ctx.bodyInputStream(), batchSize, workers);
+    } finally {
+      IMPORTS.release();
+    }
+
+    ctx.json(result);
+    ctx.status(result.error == null ? HttpStatus.CREATED : HttpStatus.BAD_REQUEST);
+  }
+
+  /**
+   * Import users from a JSON array or newline-delimited JSON; see
+   * `UserImporter`. This is what both `POST /api/users/import` and the
+   * `import-users` command use.
+   *
+   * @param in the users to import
+   * @param batchSize the number of users written per `insertMany`
+   * @param workers the number of threads that check users and make avatars
+   * @return how many users were imported, and what went wrong with the rest
+   */
+  public UserImporter.Result importUsers(InputStream in, int batchSize, int workers) {
+    try {
+      return new UserImporter(userRepository, this::generateAvatar, batchSize, workers).importFrom(in);
+    } finally {
+      // Even a partial import changes the collection.
+      userVersion.bump();
+      companyRollup.invalidate();
+    }
+  }
+
   /**
    * Delete the user specified by the `id` parameter in the request.
    *
@@ -293,15 +678,28 @@ public class UserController implements Controller {
    */
   public void deleteUser(Context ctx) {
     String id = ctx.pathParam("id");
-    DeleteResult deleteResult = userCollection.deleteOne(eq("_id", new ObjectId(id)));
-    // We should have deleted 1 or 0 users, depending on whether `id` is a valid user ID.
-    if (deleteResult.getDeletedCount() != 1) {
+    ObjectId objectId;
+    try {
+      objectId = new ObjectId(id);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestResponse("The requested user id wasn't a legal Mongo Object ID.");
+    }
+    boolean deleted = userRepository.delete(objectId);
+    ServerTiming.forContext(ctx).mark(ServerTiming.DB);
+    // We should have deleted 1 or 0 users, depending on whether `id` is the
+    // ID of a user in the system. If nothing changed, nothing cached is stale.
+    if (!deleted) {
       ctx.status(HttpStatus.NOT_FOUND);
       throw new NotFoundResponse(
         "Was unable to delete ID "
           + id
           + "; perhaps illegal ID or an ID for an item not in the system?");
     }
+    // The version goes first, so a `getUser` that read this user before it
+    // was deleted can't cache it after the invalidation.
+    userVersion.bump();
+    userCache.invalidate(objectId.toHexString());
+    companyRollup.remove(objectId.toHexString());
     ctx.status(HttpStatus.OK);
   }
 
@@ -348,6 +746,16 @@ public class UserController implements Controller {
     return result.toString();
   }
 
+  /**
+   * Declare the indexes behind `getUsers`, if the storage needs any; see
+   * `MongoUserRepository`.
+   *
+   * @param indexes the index manager to add declarations to
+   */
+  public void declareIndexes(IndexManager indexes) {
+    userRepository.declareIndexes(indexes);
+  }
+
   /**
    * Setup routes for the `user` collection endpoints.
    *
@@ -357,6 +765,10 @@ public class UserController implements Controller {
    *   - `GET /api/users?age=NUMBER&company=STRING&name=STRING`
    *      - List users, filtered using query parameters
    *      - `age`, `company`, and `name` are optional query parameters
+   *      - `company` is matched as described in `TextMatch`
+   *      - `limit` and `next` page through the results; see `PageToken`
+   *   - `GET /api/users/export?age=NUMBER&company=STRING&gzip=BOOLEAN`
+   *      - Stream the matching users as NDJSON, optionally gzipped
    *   - `GET /api/usersByCompany`
    *     - Get user names and IDs, possibly filtered, grouped by company
    *   - `DELETE /api/users/:id`
@@ -364,6 +776,8 @@ public class UserController implements Controller {
    *   - `POST /api/users`
    *      - Create a new user
    *      - The user info is in the JSON body of the HTTP request
+   *   - `POST /api/users/import?batchSize=NUMBER`
+   *      - Import many users, from a JSON array or NDJSON in the body
    *
    * GROUPS SHOULD CREATE THEIR OWN CONTROLLERS THAT IMPLEMENT THE
    * `Controller` INTERFACE FOR WHATEVER DATA THEY'RE WORKING WITH.
@@ -376,6 +790,10 @@ public class UserController implements Controller {
    * @param userController The controller that handles the user endpoints
    */
   public void addRoutes(Javalin server) {
+    // Export users as NDJSON. This has to come before `API_USER_BY_ID`, or
+    // "export" would be taken for an ID.
+    server.get(API_USERS + "/export", this::exportUsers);
+
     // Get the specified user
     server.get(API_USER_BY_ID, this::getUser);
 
@@ -391,5 +809,26 @@ public class UserController implements Controller {
     // Add new user with the user info being in the JSON body
     // of the HTTP request
     server.post(API_USERS, this::addNewUser);
+
+    // Import many users at once, from a JSON array or NDJSON in the body
+    server.post(API_USERS + "/import", this::importUsers);
+  }
+
+  /**
+   * Add the admin routes for users:
+   *
+   *   - `POST /api/admin/usersByCompany/rebuild`
+   *      - Recompute the users-grouped-by-company view from the database
+   *
+   * These have no authentication, so (like the flight recording routes)
+   * they're only added when the server is started with `JFR_ADMIN=true`
+   * (see `Main`), and they refuse (403) requests that don't come from
+   * this machine.
+   *
+   * @param server The Javalin server instance
+   */
+  public void addAdminRoutes(Javalin server) {
+    server.before(API_REBUILD_COMPANY_ROLLUP, FlightRecordings::requireLoopback);
+    server.post(API_REBUILD_COMPANY_ROLLUP, this::rebuildCompanyRollup);
   }
 }
@@ -0,0 +1,239 @@
+package umm3601.user;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.UnaryOperator;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * Imports a (potentially very large) stream of users, either a JSON array
+ * or newline-delimited JSON, checking each one like `addNewUser` does.
+ *
+ * The pipeline has three stages:
+ *
+ *   - The calling thread reads one user at a time with Jackson's streaming
+ *     parser, so the input is never held in memory as a whole.
+ *   - A fixed pool of `workers` threads validates each user and generates
+ *     its avatar (an MD5 hash), which is where most of the CPU time goes.
+ *   - The calling thread collects the finished users, in input order, and
+ *     writes them with unordered `insertMany`s of `batchSize` users.
+ *
+ * At most `IN_FLIGHT_BATCHES` batches worth of users are handed to the
+ * workers at a time; once that many are waiting, the reader stops and
+ * writes before reading more. That backpressure keeps memory bounded no
+ * matter how big the input is or how slow the database is.
+ */
+public class UserImporter {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(UserImporter.class);
+
+  // How many batches the workers may be ahead of the writes.
+  private static final int IN_FLIGHT_BATCHES = 2;
+
+  // Only this many errors are kept for the result; the rest are just counted.
+  static final int MAX_REPORTED_ERRORS = 100;
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+  private static final ObjectReader USER_READER = OBJECT_MAPPER.readerFor(User.class);
+
+  private final UserRepository userRepository;
+  private final UnaryOperator<String> avatarGenerator;
+  private final int batchSize;
+  private final int workers;
+
+  /**
+   * The outcome of an import.
+   */
+  @SuppressWarnings("checkstyle:visibilitymodifier")
+  public static class Result {
+    // How many users were read, added, and rejected
+    public long read;
+    public long inserted;
+    public long failed;
+    // The first `MAX_REPORTED_ERRORS` errors, each with the (zero-based)
+    // position of the user in the input
+    public List<String> errors = new ArrayList<>();
+    // Why the import stopped early, if the input wasn't well-formed JSON
+    public String error;
+
+    private void fail(long index, String message) {
+      failed++;
+      if (errors.size() < MAX_REPORTED_ERRORS) {
+        errors.add("User " + index + ": " + message);
+      }
+    }
+  }
+
+  /**
+   * A user that has been through a worker: either a legal user (with its
+   * avatar) or the reasons it isn't legal.
+   */
+  private static final class Checked {
+    private final long index;
+    private final User user;
+    private final String problem;
+
+    Checked(long index, User user, String problem) {
+      this.index = index;
+      this.user = user;
+      this.problem = problem;
+    }
+  }
+
+  /**
+   * Construct an importer.
+   *
+   * @param userRepository where to add the users
+   * @param avatarGenerator makes the avatar URL for an email address
+   * @param batchSize the number of users written per `insertMany`
+   * @param workers the number of threads that check users and make avatars
+   */
+  UserImporter(UserRepository userRepository, UnaryOperator<String> avatarGenerator, int batchSize, int workers) {
+    this.userRepository = userRepository;
+    this.avatarGenerator = avatarGenerator;
+    this.batchSize = batchSize;
+    this.workers = workers;
+  }
+
+  /**
+   * Import all the users in `in`.
+   *
+   * If the input turns out not to be well-formed JSON, the users before the
+   * problem are still imported, and the result's `error` says what went
+   * wrong.
+   *
+   * @param in a JSON array of users, or newline-delimited JSON users
+   * @return how many users were imported, and what went wrong with the rest
+   */
+  public Result importFrom(InputStream in) {
+    Result result = new Result();
+    ArrayDeque<Future<Checked>> inFlight = new ArrayDeque<>();
+    List<Checked> batch = new ArrayList<>(batchSize);
+    ExecutorService pool = Executors.newFixedThreadPool(workers);
+
+    try (JsonParser parser = OBJECT_MAPPER.getFactory().createParser(in)) {
+      JsonToken token = parser.nextToken();
+      boolean isArray = token == JsonToken.START_ARRAY;
+      if (isArray) {
+        token = parser.nextToken();
+      }
+      while (token != null && token != JsonToken.END_ARRAY) {
+        JsonNode json = OBJECT_MAPPER.readTree(parser);
+        long index = result.read++;
+        inFlight.add(pool.submit(() -> check(index, json)));
+
+        // Backpressure: don't read further ahead than the writes can keep up.
+        while (inFlight.size() >= batchSize * IN_FLIGHT_BATCHES) {
+          collect(inFlight.remove(), batch, result);
+        }
+        token = parser.nextToken();
+      }
+    } catch (JsonProcessingException e) {
+      result.error = "Malformed JSON after user " + result.read + ": " + e.getOriginalMessage();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      try {
+        while (!inFlight.isEmpty()) {
+          collect(inFlight.remove(), batch, result);
+        }
+        write(batch, result);
+      } finally {
+        pool.shutdownNow();
+      }
+    }
+
+    LOGGER.info("Imported {} of {} users ({} failed)", result.inserted, result.read, result.failed);
+    return result;
+  }
+
+  /**
+   * Check one user and generate its avatar; this runs on a worker.
+   *
+   * The user has already been parsed, so it's turned into a `User` (and
+   * checked) as is, rather than written out and parsed again.
+   */
+  private Checked check(long index, JsonNode json) {
+    User user;
+    try {
+      user = json.isObject() ? USER_READER.readValue(json) : null;
+    } catch (IOException e) {
+      user = null;
+    }
+    if (user == null) {
+      return new Checked(index, null, "User must be an object with user fields");
+    }
+    List<String> errors = UserController.newUserErrors(user);
+    if (!errors.isEmpty()) {
+      return new Checked(index, null, String.join("; ", errors));
+    }
+    user.avatar = avatarGenerator.apply(user.email);
+    // Pick the ID ourselves so every batch is ready to go as is.
+    if (user._id == null) {
+      user._id = new ObjectId().toHexString();
+    }
+    return new Checked(index, user, null);
+  }
+
+  /**
+   * Wait for a worker to finish with a user, and add it to the batch (or
+   * record why it was rejected). A full batch is written right away.
+   */
+  private void collect(Future<Checked> pending, List<Checked> batch, Result result) {
+    Checked checked;
+    try {
+      checked = pending.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while importing users", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Checking a user failed", e.getCause());
+    }
+
+    if (checked.user == null) {
+      result.fail(checked.index, checked.problem);
+      return;
+    }
+    batch.add(checked);
+    if (batch.size() == batchSize) {
+      write(batch, result);
+    }
+  }
+
+  /**
+   * Write a batch of users at once (with Mongo, a single unordered
+   * `insertMany`), and empty the batch.
+   */
+  private void write(List<Checked> batch, Result result) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    List<User> users = new ArrayList<>(batch.size());
+    for (Checked checked : batch) {
+      users.add(checked.user);
+    }
+    Map<Integer, String> errors = userRepository.insertMany(users);
+    errors.forEach((position, message) -> result.fail(batch.get(position).index, message));
+    result.inserted += users.size() - errors.size();
+    batch.clear();
+  }
+}
@@ -0,0 +1,89 @@
+package umm3601.user;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import umm3601.IndexManager;
+
+/**
+ * Where the users are stored.
+ *
+ * Queries are Bson filters and sorts, built with `Filters` and `Sorts` the
+ * way Mongo expects them, so the controller, its caches, and its page
+ * tokens work the same whatever the storage. Strings are compared ignoring
+ * case, as with `TextMatch.COLLATION`.
+ *
+ * `MongoUserRepository` keeps them in MongoDB, `MemoryUserRepository` in
+ * this JVM, and `LogUserRepository` in logs on this machine; `Main` picks
+ * one from the `STORAGE` environment variable.
+ */
+public interface UserRepository {
+
+  /**
+   * @param id the ID of a user
+   * @return the user, or null if there isn't one with that ID
+   */
+  User findById(ObjectId id);
+
+  /**
+   * @param filter which users to find
+   * @param sort the order to put them in
+   * @param limit the most users to return, or zero for all of them
+   * @return the matching users, in order
+   */
+  ArrayList<User> find(Bson filter, Bson sort, int limit);
+
+  /**
+   * Read the matching users, in no particular order, for an export (which
+   * may be served from a replica, if there is one). The stream has to be
+   * closed.
+   *
+   * @param filter which users to export
+   * @return the matching users
+   */
+  Stream<User> export(Bson filter);
+
+  /**
+   * Read every user's ID, name, and company (and perhaps nothing else),
+   * for `CompanyRollup`. The stream has to be closed.
+   *
+   * @return all the users
+   */
+  Stream<User> namesAndCompanies();
+
+  /**
+   * Add a user, giving it an ID if it doesn't have one.
+   *
+   * @param user the new user
+   */
+  void insert(User user);
+
+  /**
+   * Add many users at once, each of which must already have its ID. A user
+   * that can't be added doesn't stop the rest.
+   *
+   * @param users the new users
+   * @return why each user that couldn't be added wasn't, by its position
+   *   in `users`
+   */
+  Map<Integer, String> insertMany(List<User> users);
+
+  /**
+   * @param id the ID of the user to delete
+   * @return whether there was a user with that ID to delete
+   */
+  boolean delete(ObjectId id);
+
+  /**
+   * Declare any indexes this storage needs in the database.
+   *
+   * @param indexes the index manager to add declarations to
+   */
+  default void declareIndexes(IndexManager indexes) {
+  }
+}
@@ -0,0 +1,185 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Tests that `CommandMonitor` totals commands by collection and command,
+ * and explains slow queries.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class CommandMonitorSpec {
+
+  private CommandMonitor monitor;
+
+  @BeforeEach
+  void setupEach() {
+    monitor = new CommandMonitor(Duration.ofMillis(100));
+  }
+
+  private void start(int requestId, String commandName, BsonDocument command) {
+    CommandStartedEvent event = mock(CommandStartedEvent.class);
+    when(event.getRequestId()).thenReturn(requestId);
+    when(event.getCommandName()).thenReturn(commandName);
+    when(event.getCommand()).thenReturn(command);
+    when(event.getDatabaseName()).thenReturn("test");
+    monitor.commandStarted(event);
+  }
+
+  private void succeed(int requestId, long millis, BsonDocument response) {
+    CommandSucceededEvent event = mock(CommandSucceededEvent.class);
+    when(event.getRequestId()).thenReturn(requestId);
+    when(event.getElapsedTime(TimeUnit.NANOSECONDS)).thenReturn(TimeUnit.MILLISECONDS.toNanos(millis));
+    when(event.getResponse()).thenReturn(response);
+    monitor.commandSucceeded(event);
+  }
+
+  private static BsonDocument find(String collection) {
+    return new BsonDocument("find", new BsonString(collection))
+      .append("filter", new BsonDocument("owner", new BsonString("Fry")))
+      .append("comment", new BsonString("request-1"))
+      .append("lsid", new BsonDocument("id", new BsonInt32(1)))
+      .append("$db", new BsonString("test"));
+  }
+
+  private static BsonDocument batch(String field, int size) {
+    BsonArray documents = new BsonArray();
+    for (int i = 0; i < size; i++) {
+      documents.add(new BsonDocument("_id", new BsonInt32(i)));
+    }
+    return new BsonDocument("cursor", new BsonDocument(field, documents));
+  }
+
+  @Test
+  void totalsCommandsByCollectionAndCommand() {
+    start(1, "find", find("todos"));
+    succeed(1, 5, batch("firstBatch", 3));
+    start(2, "getMore", new BsonDocument("getMore", new BsonInt32(42)).append("collection", new BsonString("todos")));
+    succeed(2, 7, batch("nextBatch", 2));
+    start(3, "find", find("todos"));
+    succeed(3, 20, batch("firstBatch", 4));
+    start(4, "insert", new BsonDocument("insert", new BsonString("users")));
+    succeed(4, 1, new BsonDocument("n", new BsonInt32(1)));
+
+    List<Map<String, Object>> stats = monitor.commandStats();
+    assertEquals(3, stats.size());
+    Map<String, Object> todosFind = stats.get(0);
+    assertEquals("todos", todosFind.get("collection"));
+    assertEquals("find", todosFind.get("command"));
+    assertEquals(2L, todosFind.get("calls"));
+    assertEquals(25L, todosFind.get("totalMillis"));
+    assertEquals(20L, todosFind.get("maxMillis"));
+    assertEquals(7L, todosFind.get("documents"));
+    assertEquals("getMore", stats.get(1).get("command"));
+    assertEquals(2L, stats.get(1).get("documents"));
+    assertEquals("users", stats.get(2).get("collection"));
+    assertEquals(1L, stats.get(2).get("documents"));
+  }
+
+  @Test
+  void countsFailures() {
+    start(1, "find", find("users"));
+    CommandFailedEvent event = mock(CommandFailedEvent.class);
+    when(event.getRequestId()).thenReturn(1);
+    when(event.getElapsedTime(TimeUnit.NANOSECONDS)).thenReturn(TimeUnit.MILLISECONDS.toNanos(3));
+    monitor.commandFailed(event);
+
+    Map<String, Object> usersFind = monitor.commandStats().get(0);
+    assertEquals(1L, usersFind.get("calls"));
+    assertEquals(1L, usersFind.get("failures"));
+  }
+
+  @Test
+  void explainsSlowQueriesOncePerInterval() {
+    MongoClient client = mock(MongoClient.class);
+    MongoDatabase database = mock(MongoDatabase.class);
+    when(client.getDatabase("test")).thenReturn(database);
+    when(database.runCommand(any(Bson.class))).thenReturn(new Document("queryPlanner",
+      new Document("winningPlan", new Document("stage", "COLLSCAN"))));
+    monitor.explainWith(client);
+
+    // A quick query isn't explained; the first slow one is, the next isn't.
+    start(1, "find", find("todos"));
+    succeed(1, 50, batch("firstBatch", 1));
+    start(2, "find", find("todos"));
+    succeed(2, 500, batch("firstBatch", 1));
+    start(3, "find", find("todos"));
+    succeed(3, 500, batch("firstBatch", 1));
+
+    ArgumentCaptor<Bson> explainCaptor = ArgumentCaptor.forClass(Bson.class);
+    verify(database, timeout(10_000).times(1)).runCommand(explainCaptor.capture());
+    BsonDocument explain = (BsonDocument) explainCaptor.getValue();
+    BsonDocument explained = explain.getDocument("explain");
+    assertEquals("todos", explained.getString("find").getValue());
+    assertEquals("request-1", explained.getString("comment").getValue());
+    // The driver's session fields are left out.
+    assertTrue(!explained.containsKey("lsid") && !explained.containsKey("$db"));
+    assertEquals("queryPlanner", explain.getString("verbosity").getValue());
+  }
+
+  @Test
+  void shapesFiltersWithoutTheirValues() {
+    BsonDocument command = BsonDocument.parse("{find: 'users', filter: {$and: ["
+      + "{company: {$regex: 'OHM', $options: 'i'}}, {age: {$in: [25, 26, 27]}}]}, limit: 5}");
+    assertEquals("{\"$and\": [{\"company\": {\"$regex\": ?, \"$options\": ?}}, {\"age\": {\"$in\": ?}}]}",
+      MongoCommandEvent.filterShape(command));
+    assertEquals("", MongoCommandEvent.filterShape(new BsonDocument("insert", new BsonString("users"))));
+  }
+
+  @Test
+  void listsPlanStagesWithoutTheirBounds() {
+    Document plan = Document.parse("{stage: 'LIMIT', inputStage: {stage: 'FETCH', filter: {owner: {$eq: 'Fry'}},"
+      + " inputStage: {stage: 'IXSCAN', indexName: 'owner_1__id_1', indexBounds: {owner: ['[\"fry\", \"fry\"]']}}}}");
+    assertEquals("LIMIT <- FETCH <- IXSCAN(owner_1__id_1)", CommandMonitor.planStages(plan));
+    Document or = Document.parse("{queryPlan: {stage: 'OR', inputStages: ["
+      + "{stage: 'IXSCAN', indexName: 'a_1'}, {stage: 'COLLSCAN', filter: {b: 5}}]}}");
+    assertEquals("OR <- [IXSCAN(a_1), COLLSCAN]", CommandMonitor.planStages(or));
+  }
+
+  @Test
+  void servesCommandStats() {
+    Context ctx = mock(Context.class);
+    monitor.getCommandStats(ctx);
+
+    verify(ctx).json(any(List.class));
+    verify(ctx).status(HttpStatus.OK);
+  }
+
+  @Test
+  void addsRoute() {
+    Javalin mockServer = Mockito.mock(Javalin.class);
+    monitor.addRoutes(mockServer);
+    verify(mockServer).get(any(), any());
+  }
+}
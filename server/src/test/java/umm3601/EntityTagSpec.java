@@ -0,0 +1,62 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.eq;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Tests building entity tags and checking `If-None-Match` against them.
+ */
+class EntityTagSpec {
+
+  @Test
+  void tagsDependOnVersionAndQuery() {
+    String tag = EntityTag.of(1, eq("owner", "Fry"));
+
+    assertEquals(tag, EntityTag.of(1, eq("owner", "Fry")));
+    assertNotEquals(tag, EntityTag.of(2, eq("owner", "Fry")));
+    assertNotEquals(tag, EntityTag.of(1, eq("owner", "Blanche")));
+    assertTrue(tag.startsWith("\"") && tag.endsWith("\""));
+  }
+
+  @Test
+  void matchesListsWildcardsAndWeakTags() {
+    String tag = EntityTag.of(1, "x");
+
+    assertTrue(EntityTag.matches(tag, tag));
+    assertTrue(EntityTag.matches("\"other\", " + tag, tag));
+    assertTrue(EntityTag.matches("W/" + tag, tag));
+    assertTrue(EntityTag.matches("*", tag));
+    assertFalse(EntityTag.matches("\"other\"", tag));
+    assertFalse(EntityTag.matches(null, tag));
+  }
+
+  @Test
+  void answersNotModifiedOnlyForAMatchingTag() {
+    String tag = EntityTag.of(1, "x");
+    Context current = Mockito.mock(Context.class);
+    when(current.header(Header.IF_NONE_MATCH)).thenReturn(tag);
+    Context stale = Mockito.mock(Context.class);
+    when(stale.header(Header.IF_NONE_MATCH)).thenReturn(EntityTag.of(0, "x"));
+
+    assertTrue(EntityTag.notModified(current, tag));
+    verify(current).status(HttpStatus.NOT_MODIFIED);
+    verify(current).header(Header.ETAG, tag);
+
+    assertFalse(EntityTag.notModified(stale, tag));
+    verify(stale, never()).status(any(HttpStatus.class));
+  }
+}
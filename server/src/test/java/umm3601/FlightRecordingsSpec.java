@@ -0,0 +1,155 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import io.javalin.Javalin;
+import io.javalin.http.ConflictResponse;
+import io.javalin.http.Context;
+import io.javalin.http.ForbiddenResponse;
+import io.javalin.http.HandlerType;
+import io.javalin.http.HttpStatus;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Tests that `FlightRecordings` starts, dumps, and stops a recording, and
+ * that the requests `HttpRequestEvent` records end up in it.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class FlightRecordingsSpec {
+
+  private Path directory;
+
+  private FlightRecordings recordings;
+
+  @BeforeEach
+  void setupEach() throws IOException {
+    directory = Files.createTempDirectory("recordings");
+    recordings = new FlightRecordings(directory, Duration.ofMinutes(1), 10 * 1024 * 1024);
+  }
+
+  @AfterEach
+  void stopRecording() {
+    try {
+      recordings.stopRecording(mock(Context.class));
+    } catch (ConflictResponse e) {
+      // It wasn't recording.
+    }
+  }
+
+  private static void request(HandlerType method, String route, int status, String requestId) {
+    Context ctx = mock(Context.class);
+    HttpRequestEvent.begin(ctx);
+    ArgumentCaptor<HttpRequestEvent> eventCaptor = ArgumentCaptor.forClass(HttpRequestEvent.class);
+    verify(ctx).attribute(eq(HttpRequestEvent.ATTRIBUTE), eventCaptor.capture());
+    when(ctx.<HttpRequestEvent>attribute(HttpRequestEvent.ATTRIBUTE)).thenReturn(eventCaptor.getValue());
+    when(ctx.method()).thenReturn(method);
+    when(ctx.endpointHandlerPath()).thenReturn(route);
+    when(ctx.statusCode()).thenReturn(status);
+    HttpServletResponse res = mock(HttpServletResponse.class);
+    when(res.getHeader(RequestId.HEADER)).thenReturn(requestId);
+    when(ctx.res()).thenReturn(res);
+    HttpRequestEvent.end(ctx);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  void recordsRequestsAndDumpsThem() throws Exception {
+    Context startCtx = mock(Context.class);
+    recordings.startRecording(startCtx);
+    verify(startCtx).status(HttpStatus.CREATED);
+
+    request(HandlerType.GET, "/api/todos/{id}", 200, "request-7");
+
+    Context dumpCtx = mock(Context.class);
+    recordings.dumpRecording(dumpCtx);
+    ArgumentCaptor<Map<String, String>> dumpCaptor = ArgumentCaptor.forClass(Map.class);
+    verify(dumpCtx).json(dumpCaptor.capture());
+    Path file = Path.of(dumpCaptor.getValue().get("file"));
+    assertEquals(directory, file.getParent());
+
+    List<RecordedEvent> requests = RecordingFile.readAllEvents(file).stream()
+      .filter(event -> event.getEventType().getName().equals("umm3601.HttpRequest"))
+      .toList();
+    assertEquals(1, requests.size());
+    assertEquals("GET", requests.get(0).getString("method"));
+    assertEquals("/api/todos/{id}", requests.get(0).getString("route"));
+    assertEquals(200, requests.get(0).getInt("status"));
+    assertEquals("request-7", requests.get(0).getString("requestId"));
+  }
+
+  @Test
+  void refusesToStartTwice() {
+    recordings.startRecording(mock(Context.class));
+    assertThrows(ConflictResponse.class, () -> recordings.startRecording(mock(Context.class)));
+  }
+
+  @Test
+  void refusesToDumpOrStopWhenNotRecording() {
+    assertThrows(ConflictResponse.class, () -> recordings.dumpRecording(mock(Context.class)));
+    assertThrows(ConflictResponse.class, () -> recordings.stopRecording(mock(Context.class)));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  void reportsWhetherItsRecording() {
+    Context ctx = mock(Context.class);
+    recordings.getRecording(ctx);
+    recordings.startRecording(mock(Context.class));
+    recordings.getRecording(ctx);
+
+    ArgumentCaptor<Map<String, Object>> statusCaptor = ArgumentCaptor.forClass(Map.class);
+    verify(ctx, times(2)).json(statusCaptor.capture());
+    assertEquals(false, statusCaptor.getAllValues().get(0).get("recording"));
+    assertEquals(true, statusCaptor.getAllValues().get(1).get("recording"));
+    assertTrue(statusCaptor.getAllValues().get(1).containsKey("startTime"));
+  }
+
+  private static Context requestFrom(String address) {
+    Context ctx = mock(Context.class);
+    HttpServletRequest req = mock(HttpServletRequest.class);
+    when(req.getRemoteAddr()).thenReturn(address);
+    when(ctx.req()).thenReturn(req);
+    return ctx;
+  }
+
+  @Test
+  void onlyAnswersThisMachine() {
+    FlightRecordings.requireLoopback(requestFrom("127.0.0.1"));
+    FlightRecordings.requireLoopback(requestFrom("0:0:0:0:0:0:0:1"));
+    assertThrows(ForbiddenResponse.class, () -> FlightRecordings.requireLoopback(requestFrom("203.0.113.9")));
+    assertThrows(ForbiddenResponse.class, () -> FlightRecordings.requireLoopback(requestFrom(null)));
+  }
+
+  @Test
+  void addsRoutes() {
+    Javalin mockServer = Mockito.mock(Javalin.class);
+    recordings.addRoutes(mockServer);
+    verify(mockServer, times(2)).before(any(), any());
+    verify(mockServer).get(any(), any());
+    verify(mockServer, times(3)).post(any(), any());
+  }
+}
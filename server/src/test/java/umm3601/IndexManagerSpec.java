@@ -0,0 +1,149 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Indexes;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Tests that the `IndexManager` creates the declared indexes, and only
+ * the ones that are missing.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class IndexManagerSpec {
+
+  private static MongoClient mongoClient;
+  private static MongoDatabase db;
+
+  private IndexManager indexManager;
+
+  @Mock
+  private Context ctx;
+
+  @BeforeAll
+  static void setupAll() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+
+    mongoClient = MongoClients.create(
+        MongoClientSettings.builder()
+            .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+            .build());
+    db = mongoClient.getDatabase("test");
+  }
+
+  @AfterAll
+  static void teardown() {
+    db.drop();
+    mongoClient.close();
+  }
+
+  @BeforeEach
+  void setupEach() {
+    MockitoAnnotations.openMocks(this);
+
+    MongoCollection<Document> widgets = db.getCollection("widgets");
+    widgets.drop();
+    widgets.insertOne(new Document("name", "sprocket").append("size", 2));
+
+    indexManager = new IndexManager(db);
+  }
+
+  private List<String> indexNames() {
+    List<String> names = new ArrayList<>();
+    for (Document index : db.getCollection("widgets").listIndexes()) {
+      names.add(index.getString("name"));
+    }
+    return names;
+  }
+
+  @Test
+  void createsDeclaredIndexes() {
+    indexManager.declare("widgets", Indexes.ascending("name", "_id"));
+    indexManager.declare("widgets", Indexes.descending("size"));
+
+    indexManager.reconcile();
+
+    List<String> names = indexNames();
+    assertTrue(names.contains("name_1__id_1"));
+    assertTrue(names.contains("size_-1"));
+    assertEquals(Map.of("widgets", List.of("name_1__id_1", "size_-1")), indexManager.appliedIndexes());
+  }
+
+  @Test
+  void onlyCreatesMissingIndexes() {
+    // One of the two declared indexes (and one undeclared one) is already there
+    db.getCollection("widgets").createIndex(Indexes.ascending("name", "_id"));
+    db.getCollection("widgets").createIndex(Indexes.ascending("color"));
+    indexManager.declare("widgets", Indexes.ascending("name", "_id"));
+    indexManager.declare("widgets", Indexes.descending("size"));
+
+    indexManager.reconcile();
+    // Reconciling again shouldn't change anything
+    indexManager.reconcile();
+
+    // `_id_`, the two declared indexes, and the undeclared one, which is left alone
+    List<String> names = indexNames();
+    assertEquals(4, names.size());
+    assertTrue(names.contains("color_1"));
+    assertEquals(List.of("name_1__id_1", "size_-1"), indexManager.appliedIndexes().get("widgets"));
+  }
+
+  @Test
+  void keepsIndexesWithDifferentCollationsApart() {
+    // A plain index on the same keys doesn't count as the collated one
+    db.getCollection("widgets").createIndex(Indexes.ascending("name"));
+    indexManager.declare("widgets", Indexes.ascending("name"), TextMatch.indexOptions());
+
+    indexManager.reconcile();
+
+    List<String> names = indexNames();
+    assertTrue(names.contains("name_1"));
+    assertTrue(names.contains("name_1_en_2"));
+    assertEquals(List.of("name_1@en/2"), indexManager.appliedIndexes().get("widgets"));
+  }
+
+  @Test
+  void canGetAppliedIndexes() {
+    indexManager.declare("widgets", Indexes.ascending("name"));
+    indexManager.reconcile();
+
+    indexManager.getIndexes(ctx);
+
+    verify(ctx).json(Map.of("widgets", List.of("name_1")));
+    verify(ctx).status(HttpStatus.OK);
+  }
+
+  @Test
+  void canAddRoutes() {
+    Javalin mockServer = Mockito.mock(Javalin.class);
+    indexManager.addRoutes(mockServer);
+
+    verify(mockServer).get(any(), any());
+  }
+}
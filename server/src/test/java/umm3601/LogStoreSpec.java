@@ -0,0 +1,218 @@
+package umm3601;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that a `LogStore` gets back what was written to it when it's
+ * opened again, through segment changes, compactions, and torn writes.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class LogStoreSpec {
+
+  // Small segments, so a few writes fill several of them.
+  private static final int SEGMENT_SIZE = 256;
+
+  private Path directory;
+
+  private LogStore store;
+
+  @BeforeEach
+  void setupEach() throws IOException {
+    directory = Files.createTempDirectory("logs");
+    store = open();
+  }
+
+  @AfterEach
+  void closeStore() {
+    store.close();
+  }
+
+  private LogStore open() throws IOException {
+    // Compactions only happen when the tests ask for them.
+    return new LogStore(directory, "things", SEGMENT_SIZE, Duration.ofDays(1));
+  }
+
+  private void reopen() throws IOException {
+    store.close();
+    store = open();
+  }
+
+  private static byte[] bytes(String document) {
+    return document.getBytes(UTF_8);
+  }
+
+  private List<String> files(String suffix) throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.map(file -> file.getFileName().toString()).filter(name -> name.endsWith(suffix)).sorted().toList();
+    }
+  }
+
+  /**
+   * Write ten documents, write a second version of the even ones, and
+   * delete every third one.
+   */
+  private void churn() {
+    for (int i = 0; i < 10; i++) {
+      store.sync(store.put("id" + i, bytes("first " + i)));
+    }
+    for (int i = 0; i < 10; i += 2) {
+      store.sync(store.put("id" + i, bytes("second " + i)));
+    }
+    for (int i = 0; i < 10; i += 3) {
+      store.sync(store.delete("id" + i));
+    }
+  }
+
+  private Map<String, String> contents() {
+    Map<String, String> contents = new TreeMap<>();
+    store.forEach((id, document) -> contents.put(id, new String(document, UTF_8)));
+    return contents;
+  }
+
+  @Test
+  void readsBackTheLatestVersions() throws IOException {
+    churn();
+    assertTrue(files(".log").size() > 1);
+    assertEquals(0, store.delete("id0"));
+
+    reopen();
+
+    assertEquals(6, store.size());
+    assertArrayEquals(bytes("second 2"), store.get("id2"));
+    assertArrayEquals(bytes("first 1"), store.get("id1"));
+    assertNull(store.get("id3"));
+  }
+
+  @Test
+  void compactsSealedSegments() throws IOException {
+    churn();
+    Map<String, String> before = contents();
+
+    assertTrue(store.compact());
+
+    // Everything but the active segment is now in one compacted file.
+    assertEquals(1, files(".compacted").size());
+    assertEquals(1, files(".log").size());
+    assertEquals(before, contents());
+    reopen();
+    assertEquals(before, contents());
+  }
+
+  @Test
+  void onlyCompactsWhenMostlyGarbage() throws IOException {
+    for (int i = 0; i < 20; i++) {
+      store.sync(store.put("id" + i, bytes("only " + i)));
+    }
+
+    assertFalse(store.compact());
+  }
+
+  @Test
+  void compactsAgainAfterMoreChanges() throws IOException {
+    churn();
+    store.compact();
+    store.sync(store.put("id3", bytes("back again")));
+    store.sync(store.delete("id1"));
+    churn();
+    Map<String, String> before = contents();
+
+    assertTrue(store.compact());
+
+    assertEquals(1, files(".compacted").size());
+    reopen();
+    assertEquals(before, contents());
+  }
+
+  @Test
+  void finishesACompactionCutShort() throws IOException {
+    churn();
+    Map<String, String> before = contents();
+    store.close();
+    // A compaction that crashed before its file was in place.
+    Files.write(directory.resolve("things-0000000001.compacted.tmp"), bytes("half written"));
+
+    reopen();
+    assertEquals(before, contents());
+    assertTrue(files(".tmp").isEmpty());
+  }
+
+  @Test
+  void dropsATornRecord() throws IOException {
+    store.sync(store.put("id1", bytes("whole")));
+    store.close();
+    // Half of a record, after the whole one: its CRC can't match.
+    Path segment = directory.resolve(files(".log").get(0));
+    byte[] contents = Files.readAllBytes(segment);
+    int end = ByteBuffer.wrap(contents).getInt(0) + 8;
+    ByteBuffer.wrap(contents).putInt(end, 40).putInt(end + 4, 12345).put(end + 8, (byte) 1);
+    Files.write(segment, contents);
+
+    reopen();
+    assertEquals(Map.of("id1", "whole"), contents());
+
+    store.sync(store.put("id2", bytes("after")));
+    reopen();
+    assertEquals(Map.of("id1", "whole", "id2", "after"), contents());
+  }
+
+  @Test
+  void keepsConcurrentWrites() throws Exception {
+    ExecutorService writers = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> done = new ArrayList<>();
+      for (int w = 0; w < 8; w++) {
+        int writer = w;
+        done.add(writers.submit(() -> {
+          for (int i = 0; i < 50; i++) {
+            store.sync(store.put(writer + "-" + i, bytes("x")));
+          }
+        }));
+      }
+      for (Future<?> future : done) {
+        future.get();
+      }
+    } finally {
+      writers.shutdown();
+    }
+
+    reopen();
+    assertEquals(400, store.size());
+  }
+
+  @Test
+  void refusesDocumentsBiggerThanASegment() {
+    assertThrows(IllegalArgumentException.class, () -> store.put("id1", new byte[SEGMENT_SIZE]));
+    assertEquals(0, store.size());
+  }
+
+  @Test
+  void refusesWritesOnceClosed() {
+    store.close();
+
+    assertThrows(IllegalStateException.class, () -> store.put("id1", bytes("too late")));
+  }
+}
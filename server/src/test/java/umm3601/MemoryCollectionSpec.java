@@ -0,0 +1,182 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Filters.ne;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Filters.regex;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.client.model.Sorts;
+
+/**
+ * Tests that a `MemoryCollection` answers the filters and sorts the
+ * controllers build the way Mongo (with `TextMatch.COLLATION`) would.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class MemoryCollectionSpec {
+
+  private record Person(String id, String name, Integer age, boolean admin) {
+  }
+
+  private MemoryCollection<Person> people;
+
+  @BeforeEach
+  void setupEach() {
+    people = new MemoryCollection<>(
+      Map.<String, Function<Person, Object>>of(
+        MemoryCollection.ID_KEY, Person::id,
+        "name", Person::name,
+        "age", Person::age,
+        "admin", Person::admin),
+      List.of("name", "age"));
+    people.insert(new Person(id(1), "Alice", 30, true));
+    people.insert(new Person(id(2), "albert", 25, false));
+    people.insert(new Person(id(3), "Bob", 30, true));
+    people.insert(new Person(id(4), "carol", 41, false));
+    people.insert(new Person(id(5), "Dave", 30, false));
+    people.insert(new Person(id(6), "nobody", null, false));
+  }
+
+  private static String id(int n) {
+    return String.format("%024x", n);
+  }
+
+  private static List<String> names(List<Person> found) {
+    return found.stream().map(Person::name).toList();
+  }
+
+  @Test
+  void refusesDuplicateIds() {
+    assertFalse(people.insert(new Person(id(1), "Another Alice", 20, false)));
+    assertEquals(6, people.size());
+    assertEquals("Alice", people.get(id(1)).name());
+  }
+
+  @Test
+  void matchesStringsIgnoringCase() {
+    assertEquals(List.of("Alice"), names(people.find(eq("name", "ALICE"), null, 0)));
+  }
+
+  @Test
+  void matchesPrefixes() {
+    // This is how `TextMatch` asks for a prefix.
+    List<Person> found = people.find(and(gte("name", "AL"), lt("name", "AL\uFFFF")),
+      Sorts.ascending("name", "_id"), 0);
+
+    assertEquals(List.of("albert", "Alice"), names(found));
+  }
+
+  @Test
+  void matchesRegexesWithTheirOwnFlags() {
+    assertEquals(List.of("Dave"), names(people.find(regex("name", Pattern.compile("v")), null, 0)));
+    assertEquals(List.of(),
+      names(people.find(regex("name", Pattern.compile("V")), null, 0)));
+    assertEquals(List.of("Dave"),
+      names(people.find(regex("name", Pattern.compile("V", Pattern.CASE_INSENSITIVE)), null, 0)));
+  }
+
+  @Test
+  void sortsAndLimits() {
+    List<Person> found = people.find(gte("age", 25), Sorts.descending("age", "_id"), 3);
+
+    assertEquals(List.of("carol", "Dave", "Bob"), names(found));
+  }
+
+  @Test
+  void sortsMissingValuesFirst() {
+    List<Person> found = people.find(new Document(), Sorts.ascending("age", "_id"), 0);
+
+    assertEquals(List.of("nobody", "albert", "Alice", "Bob", "Dave", "carol"), names(found));
+  }
+
+  @Test
+  void picksUpAfterAPageToken() {
+    // The page after Bob, sorted by age (descending) and then `_id`
+    List<Person> found = people.find(
+      or(lt("age", 30), and(eq("age", 30), lt("_id", new ObjectId(id(3))))),
+      Sorts.descending("age", "_id"), 0);
+
+    assertEquals(List.of("Alice", "albert"), names(found));
+  }
+
+  @Test
+  void findsRangesOfIds() {
+    List<Person> found = people.find(and(gt("_id", new ObjectId(id(2))), lte("_id", new ObjectId(id(5)))),
+      Sorts.ascending("_id"), 2);
+
+    assertEquals(List.of("Bob", "carol"), names(found));
+  }
+
+  @Test
+  void matchesNullToMissingValues() {
+    assertEquals(List.of("nobody"), names(people.find(eq("age", null), null, 0)));
+    assertEquals(List.of("albert", "carol", "nobody"),
+      names(people.find(ne("age", 30), Sorts.ascending("name"), 0)));
+  }
+
+  @Test
+  void onlyMatchesRangesOfTheSameType() {
+    assertTrue(people.find(gt("age", "a"), null, 0).isEmpty());
+    assertTrue(people.find(lt("name", 100), null, 0).isEmpty());
+  }
+
+  @Test
+  void combinesConditions() {
+    List<Person> found = people.find(and(eq("admin", true), eq("age", 30)), Sorts.ascending("name"), 0);
+
+    assertEquals(List.of("Alice", "Bob"), names(found));
+  }
+
+  @Test
+  void findsNothingInAnEmptyRange() {
+    assertTrue(people.find(and(gte("name", "b"), lt("name", "a")), null, 0).isEmpty());
+  }
+
+  @Test
+  void comparesAccentsButNotCase() {
+    people.insert(new Person(id(7), "Élodie", 30, false));
+    people.insert(new Person(id(8), "elodie", 30, false));
+    // The "e" and a combining acute accent, rather than the one "é".
+    people.insert(new Person(id(9), "e\u0301lodie", 30, false));
+    people.insert(new Person(id(10), "Emma", 30, false));
+
+    assertEquals(List.of("elodie", "Élodie", "e\u0301lodie", "Emma"),
+      names(people.find(gte("name", "e"), Sorts.ascending("name", "_id"), 4)));
+    assertEquals(List.of("Élodie", "e\u0301lodie"),
+      names(people.find(eq("name", "ÉLODIE"), Sorts.ascending("_id"), 0)));
+  }
+
+  @Test
+  void keepsIndexesUpToDateOnDelete() {
+    assertEquals("Alice", people.delete(id(1)).name());
+    assertNull(people.delete(id(1)));
+
+    assertTrue(people.find(eq("name", "alice"), null, 0).isEmpty());
+    assertEquals(List.of("Bob", "Dave"), names(people.find(eq("age", 30), Sorts.ascending("name"), 0)));
+  }
+
+  @Test
+  void refusesOperatorsItDoesNotKnow() {
+    assertThrows(IllegalArgumentException.class, () -> people.find(in("name", "Bob", "Dave"), null, 0));
+  }
+}
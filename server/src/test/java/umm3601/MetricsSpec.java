@@ -0,0 +1,104 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Tests that `Metrics` counts requests by route template and status, and
+ * publishes them (and the JVM's statistics) in the Prometheus format.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class MetricsSpec {
+
+  private Metrics metrics;
+
+  @BeforeEach
+  void setupEach() {
+    metrics = new Metrics();
+  }
+
+  private static Context request(HandlerType method, String route, int status) {
+    Context ctx = mock(Context.class);
+    when(ctx.method()).thenReturn(method);
+    when(ctx.endpointHandlerPath()).thenReturn(route);
+    when(ctx.statusCode()).thenReturn(status);
+    return ctx;
+  }
+
+  @Test
+  void countsRequestsByRouteTemplateAndStatus() {
+    metrics.record(request(HandlerType.GET, "/api/todos/{id}", 200), 3.0f);
+    metrics.record(request(HandlerType.GET, "/api/todos/{id}", 200), 4.0f);
+    metrics.record(request(HandlerType.GET, "/api/todos/{id}", 404), 1.0f);
+
+    String scraped = metrics.scrape();
+    assertTrue(scraped.contains(
+      "http_server_requests_total{method=\"GET\",route=\"/api/todos/{id}\",status=\"200\"} 2\n"));
+    assertTrue(scraped.contains(
+      "http_server_requests_total{method=\"GET\",route=\"/api/todos/{id}\",status=\"404\"} 1\n"));
+  }
+
+  @Test
+  void recordsLatenciesInBuckets() {
+    metrics.record(request(HandlerType.POST, "/api/todos", 201), 3.0f);
+    metrics.record(request(HandlerType.POST, "/api/todos", 201), 30.0f);
+
+    String scraped = metrics.scrape();
+    String labels = "method=\"POST\",route=\"/api/todos\"";
+    assertTrue(scraped.contains("# TYPE http_server_request_duration_seconds histogram\n"));
+    assertTrue(scraped.contains("http_server_request_duration_seconds_bucket{" + labels + ",le=\"0.001\"} 0\n"));
+    assertTrue(scraped.contains("http_server_request_duration_seconds_bucket{" + labels + ",le=\"0.005\"} 1\n"));
+    assertTrue(scraped.contains("http_server_request_duration_seconds_bucket{" + labels + ",le=\"0.05\"} 2\n"));
+    assertTrue(scraped.contains("http_server_request_duration_seconds_bucket{" + labels + ",le=\"+Inf\"} 2\n"));
+    assertTrue(scraped.contains("http_server_request_duration_seconds_sum{" + labels + "} 0.033\n"));
+    assertTrue(scraped.contains("http_server_request_duration_seconds_count{" + labels + "} 2\n"));
+  }
+
+  @Test
+  void groupsUnmatchedRequests() {
+    metrics.record(request(HandlerType.GET, "", 404), 1.0f);
+
+    assertTrue(metrics.scrape().contains(
+      "http_server_requests_total{method=\"GET\",route=\"unmatched\",status=\"404\"} 1\n"));
+  }
+
+  @Test
+  void includesJvmMetrics() {
+    String scraped = metrics.scrape();
+    assertTrue(scraped.contains("jvm_memory_used_bytes{area=\"heap\"} "));
+    assertTrue(scraped.contains("# TYPE jvm_gc_collections_total counter\n"));
+    assertTrue(scraped.contains("process_uptime_seconds "));
+    // Nothing has been recorded, so there are no request samples.
+    assertFalse(scraped.contains("http_server_requests_total{"));
+  }
+
+  @Test
+  void servesMetricsInThePrometheusFormat() {
+    Context ctx = mock(Context.class);
+    metrics.getMetrics(ctx);
+
+    verify(ctx).contentType(Metrics.CONTENT_TYPE);
+    verify(ctx).result(any(String.class));
+    verify(ctx).status(HttpStatus.OK);
+  }
+
+  @Test
+  void addsRoute() {
+    Javalin mockServer = Mockito.mock(Javalin.class);
+    metrics.addRoutes(mockServer);
+    verify(mockServer).get(any(), any());
+  }
+}
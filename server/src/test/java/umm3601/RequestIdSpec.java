@@ -0,0 +1,57 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import io.javalin.http.Context;
+
+/**
+ * Tests that `RequestId` keeps sensible IDs from clients, makes up the
+ * rest, and forgets them once the request is done.
+ */
+class RequestIdSpec {
+
+  @AfterEach
+  void forgetId() {
+    RequestId.end(null);
+  }
+
+  private static String idFor(String header) {
+    Context ctx = mock(Context.class);
+    when(ctx.header(RequestId.HEADER)).thenReturn(header);
+    RequestId.start(ctx);
+    ArgumentCaptor<String> idCaptor = ArgumentCaptor.forClass(String.class);
+    verify(ctx).header(eq(RequestId.HEADER), idCaptor.capture());
+    assertEquals(idCaptor.getValue(), RequestId.current());
+    return idCaptor.getValue();
+  }
+
+  @Test
+  void keepsTheClientsId() {
+    assertEquals("load-test.42", idFor("load-test.42"));
+  }
+
+  @Test
+  void makesUpMissingOrOddIds() {
+    String first = idFor(null);
+    String second = idFor("not an id\n");
+    assertNotEquals(first, second);
+    assertNotEquals("not an id\n", second);
+  }
+
+  @Test
+  void forgetsTheIdAtTheEnd() {
+    idFor(null);
+    RequestId.end(mock(Context.class));
+    assertNull(RequestId.current());
+  }
+}
@@ -0,0 +1,156 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.verify;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import com.mongodb.client.model.Sorts;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Tests the eviction and bookkeeping of `ResponseCache`, using a fake
+ * clock so we can control when entries expire.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class ResponseCacheSpec {
+
+  private static final byte[] BODY_A = "{\"a\":1}".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] BODY_B = "{\"b\":2}".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] BODY_C = "{\"c\":3}".getBytes(StandardCharsets.UTF_8);
+
+  // The fake clock's current time, in nanoseconds
+  private long now;
+  private ResponseCache cache;
+
+  @BeforeEach
+  void setupEach() {
+    now = 0;
+    cache = new ResponseCache("test", 2, Duration.ofSeconds(10), () -> now);
+  }
+
+  @Test
+  void countsHitsAndMisses() {
+    assertNull(cache.get("a"));
+    cache.put("a", BODY_A);
+    assertArrayEquals(BODY_A, cache.get("a"));
+    assertArrayEquals(BODY_A, cache.get("a"));
+
+    assertEquals(2, cache.hits());
+    assertEquals(1, cache.misses());
+  }
+
+  @Test
+  void evictsLeastRecentlyUsedWhenFull() {
+    cache.put("a", BODY_A);
+    cache.put("b", BODY_B);
+    // Using "a" makes "b" the least recently used entry
+    cache.get("a");
+    cache.put("c", BODY_C);
+
+    assertEquals(2, cache.size());
+    assertArrayEquals(BODY_A, cache.get("a"));
+    assertNull(cache.get("b"));
+    assertArrayEquals(BODY_C, cache.get("c"));
+  }
+
+  @Test
+  void expiresEntriesAfterTtl() {
+    cache.put("a", BODY_A);
+    now = Duration.ofSeconds(10).toNanos();
+    assertArrayEquals(BODY_A, cache.get("a"));
+
+    now = Duration.ofSeconds(11).toNanos();
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  void onlyCachesWhatWasReadAtTheCurrentVersion() {
+    CollectionVersion version = new CollectionVersion();
+    long readAt = version.current();
+    cache.putIfCurrent("a", BODY_A, version, readAt);
+    version.bump();
+    cache.putIfCurrent("b", BODY_B, version, readAt);
+
+    assertArrayEquals(BODY_A, cache.get("a"));
+    assertNull(cache.get("b"));
+  }
+
+  @Test
+  void canInvalidateEntries() {
+    cache.put("a", BODY_A);
+    cache.put("b", BODY_B);
+
+    cache.invalidate("a");
+    assertNull(cache.get("a"));
+    assertEquals(1, cache.size());
+
+    cache.invalidateAll();
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  void disabledCacheStoresNothing() {
+    ResponseCache disabled = ResponseCache.disabled("off");
+    disabled.put("a", BODY_A);
+
+    assertFalse(disabled.isEnabled());
+    assertTrue(cache.isEnabled());
+    assertNull(disabled.get("a"));
+    assertEquals(0, disabled.size());
+  }
+
+  @Test
+  void queryKeysDependOnVersionAndQuery() {
+    String key = ResponseCache.queryKey(1, and(eq("owner", "Fry"), eq("status", true)), Sorts.ascending("owner"), 0);
+
+    // The same query against the same version gets the same key
+    assertEquals(key,
+      ResponseCache.queryKey(1, and(eq("owner", "Fry"), eq("status", true)), Sorts.ascending("owner"), 0));
+    assertNotEquals(key,
+      ResponseCache.queryKey(2, and(eq("owner", "Fry"), eq("status", true)), Sorts.ascending("owner"), 0));
+    assertNotEquals(key,
+      ResponseCache.queryKey(1, and(eq("owner", "Fry"), eq("status", false)), Sorts.ascending("owner"), 0));
+    assertNotEquals(key,
+      ResponseCache.queryKey(1, and(eq("owner", "Fry"), eq("status", true)), Sorts.ascending("owner"), 5));
+  }
+
+  @Test
+  void canGetStats() {
+    Context ctx = Mockito.mock(Context.class);
+    cache.put("a", BODY_A);
+    cache.get("a");
+    cache.get("b");
+
+    cache.getStats(ctx);
+
+    verify(ctx).json(Map.of("name", "test", "capacity", 2, "size", 1, "hits", 1L, "misses", 1L));
+    verify(ctx).status(HttpStatus.OK);
+  }
+
+  @Test
+  void canAddRoutes() {
+    Javalin mockServer = Mockito.mock(Javalin.class);
+    cache.addRoutes(mockServer);
+
+    verify(mockServer).get(any(), any());
+  }
+}
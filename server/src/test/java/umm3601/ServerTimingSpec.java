@@ -0,0 +1,83 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import io.javalin.http.Context;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Tests that `ServerTiming` adds up the phases a handler marks and writes
+ * them (and the total) as a `Server-Timing` header.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class ServerTimingSpec {
+
+  private static final String METRIC = "\\d+\\.\\d{3}";
+
+  private static Context timedRequest(boolean committed) {
+    Context ctx = mock(Context.class);
+    ServerTiming.start(ctx);
+    ArgumentCaptor<ServerTiming> timingCaptor = ArgumentCaptor.forClass(ServerTiming.class);
+    verify(ctx).attribute(eq(ServerTiming.ATTRIBUTE), timingCaptor.capture());
+    when(ctx.<ServerTiming>attribute(ServerTiming.ATTRIBUTE)).thenReturn(timingCaptor.getValue());
+    HttpServletResponse res = mock(HttpServletResponse.class);
+    when(res.isCommitted()).thenReturn(committed);
+    when(ctx.res()).thenReturn(res);
+    return ctx;
+  }
+
+  @Test
+  void writesMillisecondsToThreeDecimalPlaces() {
+    assertEquals("total;dur=1.234", new ServerTiming(0).header(1_234_567));
+    assertEquals("total;dur=0.050", new ServerTiming(0).header(50_000));
+    assertEquals("total;dur=12.005", new ServerTiming(0).header(12_005_999));
+  }
+
+  @Test
+  void addsUpEachPhaseInOrder() {
+    Context ctx = timedRequest(false);
+    ServerTiming timing = ServerTiming.forContext(ctx);
+    timing.mark(ServerTiming.VALIDATE);
+    timing.mark(ServerTiming.DB);
+    timing.mark(ServerTiming.DB);
+    timing.mark(ServerTiming.SERIALIZE);
+    ServerTiming.finish(ctx);
+
+    ArgumentCaptor<String> headerCaptor = ArgumentCaptor.forClass(String.class);
+    verify(ctx).header(eq(ServerTiming.HEADER), headerCaptor.capture());
+    String header = headerCaptor.getValue();
+    assertTrue(header.matches("validate;dur=" + METRIC + ", db;dur=" + METRIC
+      + ", serialize;dur=" + METRIC + ", total;dur=" + METRIC), header);
+  }
+
+  @Test
+  void leavesCommittedResponsesAlone() {
+    Context ctx = timedRequest(true);
+    ServerTiming.forContext(ctx).mark(ServerTiming.DB);
+    ServerTiming.finish(ctx);
+
+    verify(ctx, never()).header(anyString(), anyString());
+  }
+
+  @Test
+  void ignoresUntimedRequests() {
+    Context ctx = mock(Context.class);
+    // A handler called without `start` (as in the controller tests) can
+    // still mark phases; they just aren't recorded anywhere.
+    ServerTiming.forContext(ctx).mark(ServerTiming.VALIDATE);
+    ServerTiming.finish(ctx);
+
+    verify(ctx, never()).header(anyString(), any());
+  }
+}
@@ -0,0 +1,58 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that `VirtualThreadPool` runs tasks on virtual threads, and never
+ * claims to be short of them.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class VirtualThreadPoolSpec {
+
+  @Test
+  void runsTasksOnVirtualThreads() throws Exception {
+    VirtualThreadPool pool = new VirtualThreadPool();
+    pool.start();
+    CompletableFuture<Boolean> virtual = new CompletableFuture<>();
+
+    pool.execute(() -> virtual.complete(Thread.currentThread().isVirtual()));
+
+    assertTrue(virtual.get(10, TimeUnit.SECONDS));
+    pool.stop();
+  }
+
+  @Test
+  void isNeverLowOnThreads() throws Exception {
+    VirtualThreadPool pool = new VirtualThreadPool();
+    pool.start();
+    // Tie up far more tasks than a platform pool would have threads.
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch started = new CountDownLatch(1000);
+    for (int i = 0; i < 1000; i++) {
+      pool.execute(() -> {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+    }
+
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    assertFalse(pool.isLowOnThreads());
+    assertEquals(0, pool.getThreads());
+    assertEquals(0, pool.getIdleThreads());
+    release.countDown();
+    pool.stop();
+    pool.join();
+  }
+}
@@ -0,0 +1,93 @@
+package umm3601.todo;
+
+import static com.mongodb.client.model.Filters.eq;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.client.model.Sorts;
+
+/**
+ * Tests that a `LogTodoRepository` still has its todos and tombstones
+ * (and answers the same queries) after it's closed and opened again.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class LogTodoRepositorySpec {
+
+  private Path directory;
+
+  private LogTodoRepository todoRepository;
+
+  @BeforeEach
+  void setupEach() throws IOException {
+    directory = Files.createTempDirectory("todos");
+    todoRepository = new LogTodoRepository(directory);
+    todoRepository.insert(todo("Chris", "homework", false));
+    todoRepository.insert(todo("Pat", "groceries", true));
+    todoRepository.insert(todo("chris", "groceries", true));
+  }
+
+  @AfterEach
+  void closeRepository() {
+    todoRepository.close();
+  }
+
+  private void reopen() throws IOException {
+    todoRepository.close();
+    todoRepository = new LogTodoRepository(directory);
+  }
+
+  private static Todo todo(String owner, String category, boolean status) {
+    Todo todo = new Todo();
+    todo.owner = owner;
+    todo.category = category;
+    todo.status = status;
+    todo.body = "Do something";
+    return todo;
+  }
+
+  @Test
+  void keepsTodosAcrossRestarts() throws IOException {
+    Todo sam = todo("Sam", "homework", false);
+    Map<Integer, String> errors = todoRepository.insertMany(List.of(sam, todo("Kim", "video games", true)));
+    assertEquals(Map.of(), errors);
+    Todo pats = todoRepository.find(eq(TodoController.OWNER_KEY, "Pat"), null, 0).get(0);
+    todoRepository.delete(new ObjectId(pats._id));
+
+    reopen();
+
+    List<Todo> found = todoRepository.find(eq(TodoController.OWNER_KEY, "CHRIS"), Sorts.ascending("_id"), 0);
+    assertEquals(List.of("Chris", "chris"), found.stream().map(todo -> todo.owner).toList());
+    assertEquals("homework", todoRepository.findById(new ObjectId(sam._id)).category);
+    assertEquals(2, todoRepository.find(eq(TodoController.STATUS_KEY, true), null, 0).size());
+    assertNull(todoRepository.findById(new ObjectId(pats._id)));
+  }
+
+  @Test
+  void keepsTombstonesAcrossRestarts() throws IOException {
+    Instant now = Instant.now();
+    todoRepository.addTombstone(new ObjectId().toHexString(), now);
+    // Made long enough ago that it's dropped when the log is read again.
+    todoRepository.addTombstone(new ObjectId().toHexString(), now.minus(TodoChangeLog.RETENTION).minusSeconds(1));
+    todoRepository.addTombstone("deleted", now);
+
+    reopen();
+
+    ObjectId start = new ObjectId(Date.from(now.minusSeconds(60)), 0);
+    ObjectId end = new ObjectId(Date.from(now.plusSeconds(60)), 0);
+    assertEquals(2, todoRepository.tombstones(start, end, 10).size());
+    assertEquals("deleted", todoRepository.tombstones(start, end, 10).get(1).getString(TodoChangeLog.TODO_ID_KEY));
+  }
+}
@@ -0,0 +1,103 @@
+package umm3601.todo;
+
+import static com.mongodb.client.model.Filters.eq;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.client.model.Sorts;
+
+/**
+ * Tests that a `MemoryTodoRepository` stores todos and tombstones the way
+ * the `TodoController` and `TodoChangeLog` expect.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class MemoryTodoRepositorySpec {
+
+  private MemoryTodoRepository todoRepository;
+  private AtomicReference<Instant> now;
+  private TodoChangeLog changeLog;
+
+  @BeforeEach
+  void setupEach() {
+    todoRepository = new MemoryTodoRepository();
+    // These todos were added a minute ago, so they've long settled.
+    Date minuteAgo = Date.from(Instant.now().minusSeconds(60));
+    for (Todo todo : List.of(todo("Chris", "homework", false), todo("Pat", "groceries", true),
+        todo("chris", "groceries", true))) {
+      todo._id = new ObjectId(minuteAgo).toHexString();
+      todoRepository.insert(todo);
+    }
+    now = new AtomicReference<>(Instant.now().minusSeconds(30));
+    changeLog = new TodoChangeLog(todoRepository, now::get);
+  }
+
+  private static Todo todo(String owner, String category, boolean status) {
+    Todo todo = new Todo();
+    todo.owner = owner;
+    todo.category = category;
+    todo.status = status;
+    todo.body = "Do something";
+    return todo;
+  }
+
+  @Test
+  void findsTodosByOwnerIgnoringCase() {
+    List<Todo> found = todoRepository.find(eq(TodoController.OWNER_KEY, "CHRIS"), Sorts.ascending("_id"), 0);
+
+    assertEquals(2, found.size());
+    assertEquals("Chris", found.get(0).owner);
+  }
+
+  @Test
+  void streamsTodosInOrder() {
+    try (Stream<Todo> todos = todoRepository.stream(eq(TodoController.STATUS_KEY, true),
+        Sorts.descending(TodoController.OWNER_KEY, "_id"), 0, 1)) {
+      assertEquals(List.of("Pat", "chris"), todos.map(todo -> todo.owner).toList());
+    }
+  }
+
+  @Test
+  void reportsDuplicatesInBulk() {
+    Todo existing = todoRepository.find(eq(TodoController.OWNER_KEY, "Pat"), null, 0).get(0);
+    Todo fresh = todo("Sam", "homework", false);
+    fresh._id = new ObjectId().toHexString();
+
+    Map<Integer, String> errors = todoRepository.insertMany(List.of(existing, fresh));
+
+    assertEquals(List.of(0), List.copyOf(errors.keySet()));
+    assertEquals("Sam", todoRepository.findById(new ObjectId(fresh._id)).owner);
+  }
+
+  @Test
+  void reportsInsertsAndDeletesSinceToken() {
+    TodoChangeLog.Changes start = changeLog.since(null);
+    assertEquals(3, start.inserted.size());
+    // Run the clock ahead, so the changes made below have settled.
+    now.set(Instant.now().plus(TodoChangeLog.SETTLE).plusSeconds(1));
+
+    Todo pats = todoRepository.find(eq(TodoController.OWNER_KEY, "Pat"), null, 0).get(0);
+    assertEquals(pats, todoRepository.delete(new ObjectId(pats._id)));
+    assertNull(todoRepository.delete(new ObjectId(pats._id)));
+    changeLog.recordDelete(pats._id);
+    Todo added = todo("Sam", "homework", false);
+    todoRepository.insert(added);
+
+    TodoChangeLog.Changes changes = changeLog.since(start.next);
+
+    assertEquals(List.of(added), changes.inserted);
+    assertEquals(List.of(pats._id), changes.deleted);
+    assertTrue(changeLog.since(changes.next).deleted.isEmpty());
+  }
+}
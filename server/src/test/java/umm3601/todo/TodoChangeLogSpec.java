@@ -0,0 +1,126 @@
+package umm3601.todo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.UuidRepresentation;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mongojack.JacksonMongoCollection;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Sorts;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.GoneResponse;
+
+/**
+ * Tests that the `TodoChangeLog` reports the todos added and deleted since
+ * a change token.
+ */
+class TodoChangeLogSpec {
+
+  private static MongoClient mongoClient;
+  private static MongoDatabase db;
+
+  private MongoCollection<Document> todoDocuments;
+  private TodoChangeLog changeLog;
+
+  @BeforeAll
+  static void setupAll() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+
+    mongoClient = MongoClients.create(
+        MongoClientSettings.builder()
+            .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+            .build());
+    db = mongoClient.getDatabase("test");
+  }
+
+  @AfterAll
+  static void teardown() {
+    db.drop();
+    mongoClient.close();
+  }
+
+  @BeforeEach
+  void setupEach() {
+    todoDocuments = db.getCollection("todos");
+    todoDocuments.drop();
+    db.getCollection(TodoChangeLog.TOMBSTONE_COLLECTION).drop();
+    todoDocuments.insertMany(List.of(
+        new Document("owner", "Chris").append("status", false).append("category", "homework").append("body", "A"),
+        new Document("owner", "Pat").append("status", true).append("category", "groceries").append("body", "B")));
+
+    JacksonMongoCollection<Todo> todoCollection = JacksonMongoCollection.builder()
+        .build(db, "todos", Todo.class, UuidRepresentation.STANDARD);
+    // Run the clock ahead, so changes made just now have already settled.
+    changeLog = new TodoChangeLog(db, todoCollection, () -> Instant.now().plus(TodoChangeLog.SETTLE).plusSeconds(1));
+  }
+
+  @Test
+  void startsWithEveryTodo() {
+    TodoChangeLog.Changes changes = changeLog.since(null);
+
+    assertEquals(2, changes.inserted.size());
+    assertTrue(changes.deleted.isEmpty());
+    assertFalse(changes.more);
+  }
+
+  @Test
+  void reportsInsertsAndDeletesSinceToken() {
+    // A token from just after the todos (and before any deletes) we have now
+    ObjectId lastTodo = todoDocuments.find().sort(Sorts.descending("_id")).first().getObjectId("_id");
+    String token = TodoChangeLog.token(lastTodo, new ObjectId(Date.from(Instant.now().minusSeconds(60))));
+
+    todoDocuments.insertOne(
+        new Document("owner", "Jake").append("status", true).append("category", "homework").append("body", "C"));
+    ObjectId deleted = todoDocuments.find().first().getObjectId("_id");
+    changeLog.recordDelete(deleted.toHexString());
+
+    TodoChangeLog.Changes changes = changeLog.since(token);
+
+    assertEquals(1, changes.inserted.size());
+    assertEquals("Jake", changes.inserted.get(0).owner);
+    assertEquals(List.of(deleted.toHexString()), changes.deleted);
+
+    // Nothing has changed since the new token
+    TodoChangeLog.Changes none = changeLog.since(changes.next);
+    assertTrue(none.inserted.isEmpty());
+    assertTrue(none.deleted.isEmpty());
+  }
+
+  @Test
+  void rejectsIllegalToken() {
+    assertThrows(BadRequestResponse.class, () -> {
+      changeLog.since("not a token");
+    });
+  }
+
+  @Test
+  void rejectsExpiredToken() {
+    ObjectId longAgo = new ObjectId(Date.from(Instant.now().minus(TodoChangeLog.RETENTION).minus(Duration.ofDays(1))));
+    String token = TodoChangeLog.token(longAgo, longAgo);
+
+    assertThrows(GoneResponse.class, () -> {
+      changeLog.since(token);
+    });
+  }
+}
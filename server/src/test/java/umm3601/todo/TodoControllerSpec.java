@@ -2,22 +2,35 @@ package umm3601.todo;
 
 import static com.mongodb.client.model.Filters.eq;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 
 
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
 
 import org.bson.Document;
 import org.bson.types.ObjectId;
@@ -31,6 +44,8 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.mongodb.MongoClientSettings;
 import com.mongodb.ServerAddress;
 import com.mongodb.client.MongoClient;
@@ -41,15 +56,28 @@ import com.mongodb.client.MongoDatabase;
 import io.javalin.Javalin;
 import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
+import io.javalin.http.Header;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
 import io.javalin.json.JavalinJackson;
 import io.javalin.validation.BodyValidator;
 import io.javalin.validation.ValidationException;
+import io.javalin.validation.Validator;
+import umm3601.AsyncMongo;
+import umm3601.IndexManager;
+import umm3601.NdjsonExport;
+import umm3601.PageToken;
+import umm3601.ResponseCache;
+import umm3601.TextMatch;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
 
 
 public class TodoControllerSpec {
 
+  // How many responses the caching controllers in these tests keep.
+  private static final int CACHE_SIZE = 10;
+
   @SuppressWarnings({ "MagicNumber" })
   private TodoController todoController;
   private ObjectId fryId;
@@ -147,6 +175,14 @@ public class TodoControllerSpec {
     verify(mockServer, Mockito.atLeast(0)).get(any(), any());
   }
 
+  @Test
+  void declaresIndexesForListQueries() {
+    IndexManager indexManager = Mockito.mock(IndexManager.class);
+    todoController.declareIndexes(indexManager);
+
+    verify(indexManager, Mockito.atLeastOnce()).declare(Mockito.eq("todos"), any(), any());
+  }
+
   @Test
   void canGetAllTodos() throws IOException {
 
@@ -179,6 +215,318 @@ public class TodoControllerSpec {
     }
   }
 
+  /**
+   * Ask for the todos whose owner matches `owner` in the given `match` mode.
+   */
+  private List<Todo> todosWithOwner(String owner, String match) {
+    when(ctx.queryParamMap())
+        .thenReturn(Map.of(TodoController.OWNER_KEY, List.of(owner), TextMatch.MATCH_KEY, List.of(match)));
+    when(ctx.queryParam(TodoController.OWNER_KEY)).thenReturn(owner);
+    when(ctx.queryParamAsClass(TextMatch.MATCH_KEY, String.class))
+        .thenReturn(Validator.create(String.class, match, TextMatch.MATCH_KEY));
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).json(todoArrayListCaptor.capture());
+    return todoArrayListCaptor.getValue();
+  }
+
+  @Test
+  void canGetTodosWithOwnerPrefixIgnoringCase() {
+    List<Todo> todos = todosWithOwner("FR", "prefix");
+    assertEquals(1, todos.size());
+    assertEquals("Fry", todos.get(0).owner);
+  }
+
+  @Test
+  void canGetTodosWithExactOwnerIgnoringCase() {
+    List<Todo> todos = todosWithOwner("fry", "exact");
+    assertEquals(1, todos.size());
+    assertEquals("Fry", todos.get(0).owner);
+  }
+
+  @Test
+  void exactOwnerMatchDoesNotMatchPrefixes() {
+    assertEquals(0, todosWithOwner("fr", "exact").size());
+  }
+
+  @Test
+  @SuppressWarnings({ "MagicNumber" })
+  void canGetTodosWithOwnerSubstring() {
+    // "a" appears in Pat, Jake, and Blanche, but none of them start with it
+    assertEquals(3, todosWithOwner("A", "substring").size());
+  }
+
+  @Test
+  void prefixOwnerMatchDoesNotMatchSubstrings() {
+    assertEquals(0, todosWithOwner("a", "prefix").size());
+  }
+
+  @Test
+  void respondsAppropriatelyToIllegalMatchMode() {
+    assertThrows(ValidationException.class, () -> {
+      todosWithOwner("Fry", "fuzzy");
+    });
+  }
+
+  @Test
+  @SuppressWarnings({ "MagicNumber" })
+  void canGetTodosWithStatus() throws IOException {
+    when(ctx.queryParamMap()).thenReturn(Map.of(TodoController.STATUS_KEY, List.of("true")));
+    when(ctx.queryParamAsClass(TodoController.STATUS_KEY, String.class))
+        .thenReturn(Validator.create(String.class, "true", TodoController.STATUS_KEY));
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).json(todoArrayListCaptor.capture());
+    verify(ctx).status(HttpStatus.OK);
+    assertEquals(4, todoArrayListCaptor.getValue().size());
+    for (Todo todo : todoArrayListCaptor.getValue()) {
+      assertEquals(true, todo.status);
+    }
+  }
+
+  @Test
+  void respondsAppropriatelyToIllegalStatus() {
+    when(ctx.queryParamMap()).thenReturn(Map.of(TodoController.STATUS_KEY, List.of("done")));
+    when(ctx.queryParamAsClass(TodoController.STATUS_KEY, String.class))
+        .thenReturn(Validator.create(String.class, "done", TodoController.STATUS_KEY));
+
+    assertThrows(ValidationException.class, () -> {
+      todoController.getTodos(ctx);
+    });
+  }
+
+  @Test
+  void canGetTodosWithCategory() throws IOException {
+    when(ctx.queryParamMap()).thenReturn(Map.of(TodoController.CATEGORY_KEY, List.of("homework")));
+    when(ctx.queryParamAsClass(TodoController.CATEGORY_KEY, String.class))
+        .thenReturn(Validator.create(String.class, "homework", TodoController.CATEGORY_KEY));
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).json(todoArrayListCaptor.capture());
+    assertEquals(2, todoArrayListCaptor.getValue().size());
+    for (Todo todo : todoArrayListCaptor.getValue()) {
+      assertEquals("homework", todo.category);
+    }
+  }
+
+  @Test
+  void respondsAppropriatelyToIllegalCategory() {
+    when(ctx.queryParamMap()).thenReturn(Map.of(TodoController.CATEGORY_KEY, List.of("shopping")));
+    when(ctx.queryParamAsClass(TodoController.CATEGORY_KEY, String.class))
+        .thenReturn(Validator.create(String.class, "shopping", TodoController.CATEGORY_KEY));
+
+    assertThrows(ValidationException.class, () -> {
+      todoController.getTodos(ctx);
+    });
+  }
+
+  @Test
+  void canGetTodosWithBodyContaining() throws IOException {
+    when(ctx.queryParamMap()).thenReturn(Map.of(TodoController.CONTAINS_KEY, List.of("todo 3")));
+    when(ctx.queryParam(TodoController.CONTAINS_KEY)).thenReturn("todo 3");
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).json(todoArrayListCaptor.capture());
+    assertEquals(1, todoArrayListCaptor.getValue().size());
+    assertEquals("Blanche", todoArrayListCaptor.getValue().get(0).owner);
+  }
+
+  @Test
+  void canGetTodosWithLimit() throws IOException {
+    when(ctx.queryParamMap()).thenReturn(Map.of(TodoController.LIMIT_KEY, List.of("2")));
+    when(ctx.queryParamAsClass(TodoController.LIMIT_KEY, Integer.class))
+        .thenReturn(Validator.create(Integer.class, "2", TodoController.LIMIT_KEY));
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).json(todoArrayListCaptor.capture());
+    assertEquals(2, todoArrayListCaptor.getValue().size());
+    // Sorted by owner, so the limit keeps the first two owners alphabetically
+    assertEquals("Blanche", todoArrayListCaptor.getValue().get(0).owner);
+    assertEquals("Chris", todoArrayListCaptor.getValue().get(1).owner);
+  }
+
+  @Test
+  void respondsAppropriatelyToNonPositiveLimit() {
+    when(ctx.queryParamMap()).thenReturn(Map.of(TodoController.LIMIT_KEY, List.of("0")));
+    when(ctx.queryParamAsClass(TodoController.LIMIT_KEY, Integer.class))
+        .thenReturn(Validator.create(Integer.class, "0", TodoController.LIMIT_KEY));
+
+    assertThrows(ValidationException.class, () -> {
+      todoController.getTodos(ctx);
+    });
+  }
+
+  /**
+   * Build a mock context asking for a page of `pageSize` todos, starting
+   * after the given continuation token (if it isn't null).
+   */
+  private Context pageContext(int pageSize, String token) {
+    Context pageCtx = Mockito.mock(Context.class);
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(TodoController.LIMIT_KEY, List.of(Integer.toString(pageSize)));
+    if (token != null) {
+      queryParams.put(PageToken.NEXT_KEY, List.of(token));
+      when(pageCtx.queryParam(PageToken.NEXT_KEY)).thenReturn(token);
+    }
+    when(pageCtx.queryParamMap()).thenReturn(queryParams);
+    when(pageCtx.queryParamAsClass(TodoController.LIMIT_KEY, Integer.class))
+        .thenReturn(Validator.create(Integer.class, Integer.toString(pageSize), TodoController.LIMIT_KEY));
+    return pageCtx;
+  }
+
+  @Test
+  void canPageThroughTodos() throws IOException {
+    ArgumentCaptor<String> tokenCaptor = ArgumentCaptor.forClass(String.class);
+
+    Context firstPage = pageContext(2, null);
+    todoController.getTodos(firstPage);
+    verify(firstPage).json(todoArrayListCaptor.capture());
+    verify(firstPage).header(Mockito.eq(PageToken.NEXT_HEADER), tokenCaptor.capture());
+    assertEquals("Blanche", todoArrayListCaptor.getValue().get(0).owner);
+    assertEquals("Chris", todoArrayListCaptor.getValue().get(1).owner);
+
+    Context secondPage = pageContext(2, tokenCaptor.getValue());
+    todoController.getTodos(secondPage);
+    verify(secondPage).json(todoArrayListCaptor.capture());
+    verify(secondPage).header(Mockito.eq(PageToken.NEXT_HEADER), tokenCaptor.capture());
+    assertEquals("Fry", todoArrayListCaptor.getValue().get(0).owner);
+    assertEquals("Jake", todoArrayListCaptor.getValue().get(1).owner);
+
+    // The last page isn't full, so there's no token for a page after it
+    Context lastPage = pageContext(2, tokenCaptor.getValue());
+    todoController.getTodos(lastPage);
+    verify(lastPage).json(todoArrayListCaptor.capture());
+    verify(lastPage, Mockito.never()).header(Mockito.eq(PageToken.NEXT_HEADER), Mockito.anyString());
+    assertEquals(1, todoArrayListCaptor.getValue().size());
+    assertEquals("Pat", todoArrayListCaptor.getValue().get(0).owner);
+  }
+
+  @Test
+  void respondsAppropriatelyToIllegalPageToken() {
+    Context badPage = pageContext(2, "not a token!");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      todoController.getTodos(badPage);
+    });
+  }
+
+  @Test
+  void refusesToSortByAnUnknownField() {
+    Context badSort = pageContext(2, null);
+    when(badSort.queryParam("sortby")).thenReturn("getClass");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      todoController.getTodos(badSort);
+    });
+    verify(badSort, Mockito.never()).json(Mockito.any());
+  }
+
+  /**
+   * A `ServletOutputStream` that just collects everything written to it,
+   * so we can look at what a streaming handler sent to the client.
+   */
+  private static ServletOutputStream outputStreamFor(ByteArrayOutputStream bytes) {
+    return new ServletOutputStream() {
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setWriteListener(WriteListener writeListener) {
+        // We're always ready, so there's nothing to listen for.
+      }
+
+      @Override
+      public void write(int b) {
+        bytes.write(b);
+      }
+    };
+  }
+
+  @Test
+  void canStreamAllTodos() throws IOException {
+    TodoController streamingController =
+        new TodoController(db, 2, ResponseCache.disabled("todos"), ResponseCache.disabled("todos"));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    when(ctx.queryParamMap()).thenReturn(Collections.emptyMap());
+    when(ctx.jsonMapper()).thenReturn(javalinJackson);
+    when(ctx.outputStream()).thenReturn(outputStreamFor(bytes));
+
+    streamingController.getTodos(ctx);
+
+    verify(ctx).status(HttpStatus.OK);
+    verify(ctx, Mockito.never()).json(any());
+
+    JsonNode streamed = new ObjectMapper().readTree(bytes.toByteArray());
+    assertEquals(db.getCollection("todos").countDocuments(), streamed.size());
+    // The default sort is by owner, ascending
+    assertEquals("Blanche", streamed.get(0).get("owner").asText());
+  }
+
+  @Test
+  void canStreamTodosWithOwner() throws IOException {
+    TodoController streamingController =
+        new TodoController(db, 1, ResponseCache.disabled("todos"), ResponseCache.disabled("todos"));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(TodoController.OWNER_KEY, Arrays.asList(new String[] {"fry"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam(TodoController.OWNER_KEY)).thenReturn("fry");
+    when(ctx.jsonMapper()).thenReturn(javalinJackson);
+    when(ctx.outputStream()).thenReturn(outputStreamFor(bytes));
+
+    streamingController.getTodos(ctx);
+
+    JsonNode streamed = new ObjectMapper().readTree(bytes.toByteArray());
+    assertEquals(1, streamed.size());
+    assertEquals("Fry", streamed.get(0).get("owner").asText());
+  }
+
+  @Test
+  void canExportTodosWithOwnerAsNdjson() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(TodoController.OWNER_KEY, Arrays.asList(new String[] {"fry"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam(TodoController.OWNER_KEY)).thenReturn("fry");
+    when(ctx.jsonMapper()).thenReturn(javalinJackson);
+    when(ctx.outputStream()).thenReturn(outputStreamFor(bytes));
+
+    todoController.exportTodos(ctx);
+
+    verify(ctx).status(HttpStatus.OK);
+    verify(ctx).contentType(NdjsonExport.NDJSON_CONTENT_TYPE);
+    String[] lines = bytes.toString(StandardCharsets.UTF_8).split("\n");
+    assertEquals(1, lines.length);
+    assertEquals("Fry", new ObjectMapper().readTree(lines[0]).get("owner").asText());
+  }
+
+  @Test
+  void canExportAllTodosGzipped() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(NdjsonExport.GZIP_KEY, Arrays.asList(new String[] {"true"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParamAsClass(NdjsonExport.GZIP_KEY, Boolean.class))
+        .thenReturn(Validator.create(Boolean.class, "true", NdjsonExport.GZIP_KEY));
+    when(ctx.jsonMapper()).thenReturn(javalinJackson);
+    when(ctx.outputStream()).thenReturn(outputStreamFor(bytes));
+
+    todoController.exportTodos(ctx);
+
+    verify(ctx).contentType(NdjsonExport.GZIP_CONTENT_TYPE);
+    try (GZIPInputStream unzipped = new GZIPInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      String[] lines = new String(unzipped.readAllBytes(), StandardCharsets.UTF_8).split("\n");
+      assertEquals(db.getCollection("todos").countDocuments(), lines.length);
+    }
+  }
+
   @Test
   void canGetSingleTodo() throws IOException {
     String testID = fryId.toHexString();
@@ -192,6 +540,279 @@ public class TodoControllerSpec {
     assertEquals("Fry", todoCaptor.getValue().owner);
   }
 
+  @Test
+  void servesCachedTodoWithoutTheDatabase() {
+    ResponseCache cache = new ResponseCache("todos", CACHE_SIZE, Duration.ofMinutes(1));
+    TodoController cachingController = new TodoController(db, 0, cache, ResponseCache.disabled("todos"));
+    when(ctx.pathParam("id")).thenReturn(fryId.toHexString());
+    when(ctx.jsonMapper()).thenReturn(javalinJackson);
+
+    cachingController.getTodo(ctx);
+    // Remove Fry's todo behind the controller's back; the cached copy is
+    // still served, which shows we didn't go back to the database.
+    db.getCollection("todos").deleteOne(eq("_id", fryId));
+    cachingController.getTodo(ctx);
+
+    ArgumentCaptor<byte[]> bodyCaptor = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx, Mockito.times(2)).result(bodyCaptor.capture());
+    verify(ctx, Mockito.times(2)).status(HttpStatus.OK);
+    assertTrue(new String(bodyCaptor.getValue(), StandardCharsets.UTF_8).contains("Fry"));
+    assertEquals(1, cache.hits());
+    assertEquals(1, cache.misses());
+  }
+
+  @Test
+  void keepsCachedTodoWhenOtherTodosChange() {
+    ResponseCache cache = new ResponseCache("todos", CACHE_SIZE, Duration.ofMinutes(1));
+    TodoController cachingController = new TodoController(db, 0, cache, ResponseCache.disabled("todos"));
+    when(ctx.pathParam("id")).thenReturn(fryId.toHexString());
+    when(ctx.jsonMapper()).thenReturn(javalinJackson);
+    ObjectId otherId = db.getCollection("todos")
+        .find(new Document("_id", new Document("$ne", fryId))).first().getObjectId("_id");
+    Context deleteCtx = Mockito.mock(Context.class);
+    when(deleteCtx.pathParam("id")).thenReturn(otherId.toHexString());
+
+    cachingController.getTodo(ctx);
+    cachingController.deleteTodo(deleteCtx);
+    cachingController.getTodo(ctx);
+
+    assertEquals(1, cache.hits());
+    assertEquals(1, cache.misses());
+  }
+
+  @Test
+  void deletingTodoInvalidatesCache() {
+    ResponseCache cache = new ResponseCache("todos", CACHE_SIZE, Duration.ofMinutes(1));
+    TodoController cachingController = new TodoController(db, 0, cache, ResponseCache.disabled("todos"));
+    when(ctx.pathParam("id")).thenReturn(fryId.toHexString());
+    when(ctx.jsonMapper()).thenReturn(javalinJackson);
+
+    cachingController.getTodo(ctx);
+    cachingController.deleteTodo(ctx);
+
+    assertEquals(0, cache.size());
+    assertThrows(NotFoundResponse.class, () -> {
+      cachingController.getTodo(ctx);
+    });
+  }
+
+  @Test
+  void doesNotCacheTodoDeletedWhileItWasBeingRead() {
+    ResponseCache cache = new ResponseCache("todos", CACHE_SIZE, Duration.ofMinutes(1));
+    TodoRepository repository = Mockito.spy(new MongoTodoRepository(db));
+    TodoController cachingController = new TodoController(repository, 0, cache, ResponseCache.disabled("todos"), null);
+    when(ctx.pathParam("id")).thenReturn(fryId.toHexString());
+    when(ctx.jsonMapper()).thenReturn(javalinJackson);
+    // Delete Fry's todo after the read finds it, but before it's cached.
+    Mockito.doAnswer(invocation -> {
+      Object found = invocation.callRealMethod();
+      cachingController.deleteTodo(ctx);
+      return found;
+    }).doCallRealMethod().when(repository).findById(fryId);
+
+    cachingController.getTodo(ctx);
+
+    assertThrows(NotFoundResponse.class, () -> {
+      cachingController.getTodo(ctx);
+    });
+    assertEquals(0, cache.hits());
+  }
+
+  @Test
+  void servesCachedTodoListWithoutTheDatabase() {
+    ResponseCache listCache = new ResponseCache("todoLists", CACHE_SIZE, Duration.ofMinutes(1));
+    TodoController cachingController = new TodoController(db, 0, ResponseCache.disabled("todos"), listCache);
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(TodoController.OWNER_KEY, Arrays.asList(new String[] {"fry"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam(TodoController.OWNER_KEY)).thenReturn("fry");
+    when(ctx.jsonMapper()).thenReturn(javalinJackson);
+
+    cachingController.getTodos(ctx);
+    // Fry's todo is gone, but the cached list still has it, which shows the
+    // second request never went to the database.
+    db.getCollection("todos").deleteOne(eq("_id", fryId));
+    cachingController.getTodos(ctx);
+
+    ArgumentCaptor<byte[]> bodyCaptor = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx, Mockito.times(2)).result(bodyCaptor.capture());
+    assertTrue(new String(bodyCaptor.getValue(), StandardCharsets.UTF_8).contains("Fry"));
+    assertEquals(1, listCache.hits());
+    assertEquals(1, listCache.misses());
+  }
+
+  @Test
+  void deletingTodoRetiresCachedLists() {
+    ResponseCache listCache = new ResponseCache("todoLists", CACHE_SIZE, Duration.ofMinutes(1));
+    TodoController cachingController = new TodoController(db, 0, ResponseCache.disabled("todos"), listCache);
+    when(ctx.queryParamMap()).thenReturn(Collections.emptyMap());
+    when(ctx.pathParam("id")).thenReturn(fryId.toHexString());
+    when(ctx.jsonMapper()).thenReturn(javalinJackson);
+
+    cachingController.getTodos(ctx);
+    cachingController.deleteTodo(ctx);
+    cachingController.getTodos(ctx);
+
+    ArgumentCaptor<byte[]> bodyCaptor = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx, Mockito.times(2)).result(bodyCaptor.capture());
+    assertFalse(new String(bodyCaptor.getValue(), StandardCharsets.UTF_8).contains("Fry"));
+    assertEquals(0, listCache.hits());
+    assertEquals(2, listCache.misses());
+  }
+
+  @Test
+  void deletingMissingTodoKeepsCachedLists() {
+    ResponseCache listCache = new ResponseCache("todoLists", CACHE_SIZE, Duration.ofMinutes(1));
+    TodoController cachingController = new TodoController(db, 0, ResponseCache.disabled("todos"), listCache);
+    when(ctx.queryParamMap()).thenReturn(Collections.emptyMap());
+    when(ctx.pathParam("id")).thenReturn(new ObjectId().toHexString());
+    when(ctx.jsonMapper()).thenReturn(javalinJackson);
+
+    cachingController.getTodos(ctx);
+    assertThrows(NotFoundResponse.class, () -> {
+      cachingController.deleteTodo(ctx);
+    });
+    cachingController.getTodos(ctx);
+
+    assertEquals(1, listCache.hits());
+  }
+
+  @Test
+  void answersNotModifiedForCurrentTodoTag() {
+    when(ctx.pathParam("id")).thenReturn(fryId.toHexString());
+
+    todoController.getTodo(ctx);
+    ArgumentCaptor<String> etagCaptor = ArgumentCaptor.forClass(String.class);
+    verify(ctx).header(Mockito.eq(Header.ETAG), etagCaptor.capture());
+
+    // Ask again, with the tag we were just given
+    Context conditionalCtx = Mockito.mock(Context.class);
+    when(conditionalCtx.pathParam("id")).thenReturn(fryId.toHexString());
+    when(conditionalCtx.header(Header.IF_NONE_MATCH)).thenReturn(etagCaptor.getValue());
+
+    todoController.getTodo(conditionalCtx);
+
+    verify(conditionalCtx).status(HttpStatus.NOT_MODIFIED);
+    verify(conditionalCtx, Mockito.never()).json(any());
+  }
+
+  @Test
+  void answersNotFoundForMissingTodoWhateverItsTag() {
+    when(ctx.pathParam("id")).thenReturn(new ObjectId().toHexString());
+    when(ctx.header(Header.IF_NONE_MATCH)).thenReturn("*");
+
+    assertThrows(NotFoundResponse.class, () -> {
+      todoController.getTodo(ctx);
+    });
+    verify(ctx, Mockito.never()).status(HttpStatus.NOT_MODIFIED);
+  }
+
+  @Test
+  void listTagChangesWhenTodosChange() {
+    when(ctx.queryParamMap()).thenReturn(Collections.emptyMap());
+    when(ctx.pathParam("id")).thenReturn(fryId.toHexString());
+
+    todoController.getTodos(ctx);
+    todoController.deleteTodo(ctx);
+    todoController.getTodos(ctx);
+
+    ArgumentCaptor<String> etagCaptor = ArgumentCaptor.forClass(String.class);
+    verify(ctx, Mockito.times(2)).header(Mockito.eq(Header.ETAG), etagCaptor.capture());
+    assertNotEquals(etagCaptor.getAllValues().get(0), etagCaptor.getAllValues().get(1));
+  }
+
+  @Test
+  void deletingTodoLeavesTombstone() {
+    when(ctx.pathParam("id")).thenReturn(fryId.toHexString());
+
+    todoController.deleteTodo(ctx);
+
+    assertEquals(1, db.getCollection(TodoChangeLog.TOMBSTONE_COLLECTION)
+        .countDocuments(eq(TodoChangeLog.TODO_ID_KEY, fryId.toHexString())));
+  }
+
+  @Test
+  void canGetTodoChangesWithoutToken() {
+    todoController.getTodoChanges(ctx);
+
+    ArgumentCaptor<Object> changesCaptor = ArgumentCaptor.forClass(Object.class);
+    verify(ctx).json(changesCaptor.capture());
+    verify(ctx).status(HttpStatus.OK);
+    assertNotNull(((TodoChangeLog.Changes) changesCaptor.getValue()).next);
+  }
+
+  /**
+   * Run the future a handler handed to `ctx.future(...)`, and wait for it.
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private void awaitFuture() {
+    ArgumentCaptor<Supplier> futureCaptor = ArgumentCaptor.forClass(Supplier.class);
+    verify(ctx).future(futureCaptor.capture());
+    ((CompletableFuture<?>) futureCaptor.getValue().get()).join();
+  }
+
+  @Test
+  void getTodoAsync() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+    try (AsyncMongo asyncMongo = AsyncMongo.connect(mongoAddr, "test")) {
+      TodoController asyncController = new TodoController(db, 0,
+        ResponseCache.disabled("todos"), ResponseCache.disabled("todoLists"), asyncMongo);
+      when(ctx.pathParam("id")).thenReturn(fryId.toHexString());
+      when(ctx.jsonMapper()).thenReturn(javalinJackson);
+
+      asyncController.getTodo(ctx);
+      // Nothing is sent until the query comes back.
+      verify(ctx, Mockito.never()).json(any());
+      awaitFuture();
+
+      verify(ctx).json(todoCaptor.capture());
+      verify(ctx).status(HttpStatus.OK);
+      assertEquals("Fry", todoCaptor.getValue().owner);
+      assertEquals(fryId.toHexString(), todoCaptor.getValue()._id);
+    }
+  }
+
+  @Test
+  void getTodoAsyncWithNotFoundID() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+    try (AsyncMongo asyncMongo = AsyncMongo.connect(mongoAddr, "test")) {
+      TodoController asyncController = new TodoController(db, 0,
+        ResponseCache.disabled("todos"), ResponseCache.disabled("todoLists"), asyncMongo);
+      when(ctx.pathParam("id")).thenReturn(new ObjectId().toHexString());
+      when(ctx.jsonMapper()).thenReturn(javalinJackson);
+
+      asyncController.getTodo(ctx);
+
+      CompletionException exception = assertThrows(CompletionException.class, this::awaitFuture);
+      assertTrue(exception.getCause() instanceof NotFoundResponse);
+    }
+  }
+
+  @Test
+  void getTodosAsync() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+    try (AsyncMongo asyncMongo = AsyncMongo.connect(mongoAddr, "test")) {
+      TodoController asyncController = new TodoController(db, 0,
+        ResponseCache.disabled("todos"), ResponseCache.disabled("todoLists"), asyncMongo);
+      Map<String, List<String>> queryParams = new HashMap<>();
+      queryParams.put(TodoController.CATEGORY_KEY, Arrays.asList(new String[] {"homework"}));
+      when(ctx.queryParamMap()).thenReturn(queryParams);
+      when(ctx.queryParamAsClass(TodoController.CATEGORY_KEY, String.class))
+        .thenReturn(Validator.create(String.class, "homework", TodoController.CATEGORY_KEY));
+      when(ctx.jsonMapper()).thenReturn(javalinJackson);
+
+      asyncController.getTodos(ctx);
+      awaitFuture();
+
+      verify(ctx).json(todoArrayListCaptor.capture());
+      verify(ctx).status(HttpStatus.OK);
+      // Sorted by owner, like the blocking version.
+      assertEquals(2, todoArrayListCaptor.getValue().size());
+      assertEquals("Chris", todoArrayListCaptor.getValue().get(0).owner);
+      assertEquals("Jake", todoArrayListCaptor.getValue().get(1).owner);
+    }
+  }
+
   @Test
   void getTodoWithBadID() {
     String testID = "badID";
@@ -247,6 +868,149 @@ public class TodoControllerSpec {
 
 
 
+  /**
+   * Send `body` to `addNewTodos` and get back the JSON response.
+   */
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> addTodosInBulk(String body) {
+    when(ctx.bodyInputStream()).thenReturn(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+    when(ctx.jsonMapper()).thenReturn(javalinJackson);
+
+    todoController.addNewTodos(ctx);
+
+    ArgumentCaptor<Object> responseCaptor = ArgumentCaptor.forClass(Object.class);
+    verify(ctx).json(responseCaptor.capture());
+    return (Map<String, Object>) responseCaptor.getValue();
+  }
+
+  @Test
+  @SuppressWarnings({ "unchecked", "MagicNumber" })
+  void addTodosFromJsonArrayInBatches() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(TodoController.BATCH_SIZE_KEY, Arrays.asList(new String[] {"2"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParamAsClass(TodoController.BATCH_SIZE_KEY, Integer.class))
+        .thenReturn(Validator.create(Integer.class, "2", TodoController.BATCH_SIZE_KEY));
+    long before = db.getCollection("todos").countDocuments();
+
+    Map<String, Object> response = addTodosInBulk("""
+        [
+          {"owner": "Steve", "status": false, "body": "one", "category": "homework"},
+          {"owner": "", "status": true, "body": "two", "category": "homework"},
+          {"owner": "Steve", "status": true, "body": "three", "category": "groceries"},
+          {"owner": "Steve", "status": false, "body": "four", "category": "video games"}
+        ]
+        """);
+
+    verify(ctx).status(HttpStatus.CREATED);
+    assertEquals(3L, response.get("inserted"));
+    assertEquals(1L, response.get("failed"));
+    assertEquals(before + 3, db.getCollection("todos").countDocuments());
+
+    List<Map<String, Object>> results = (List<Map<String, Object>>) response.get("results");
+    assertEquals(4, results.size());
+    assertEquals(List.of("Todo must have a non-empty owner"), results.get(1).get("errors"));
+    Document first = db.getCollection("todos")
+        .find(eq("_id", new ObjectId((String) results.get(0).get("id")))).first();
+    assertEquals("one", first.get("body"));
+    assertEquals(false, first.get("status"));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void bulkAddedTodosShowUpInChanges() {
+    AtomicReference<Instant> now = new AtomicReference<>(Instant.now());
+    todoController = new TodoController(new MongoTodoRepository(db), 0,
+      ResponseCache.disabled("todos"), ResponseCache.disabled("todoLists"), null, now::get);
+    Context startCtx = Mockito.mock(Context.class);
+    todoController.getTodoChanges(startCtx);
+    ArgumentCaptor<Object> changesCaptor = ArgumentCaptor.forClass(Object.class);
+    verify(startCtx).json(changesCaptor.capture());
+    String token = ((TodoChangeLog.Changes) changesCaptor.getValue()).next;
+    when(ctx.queryParamMap()).thenReturn(Collections.emptyMap());
+
+    Map<String, Object> response = addTodosInBulk("""
+        [
+          {"owner": "Steve", "status": false, "body": "synced", "category": "homework"},
+          {"_id": "000000000000000000000001", "owner": "Steve", "status": true, "body": "old", "category": "homework"}
+        ]
+        """);
+    List<Map<String, Object>> results = (List<Map<String, Object>>) response.get("results");
+    assertEquals(List.of("Todo must not have an _id; the server picks it"), results.get(1).get("errors"));
+
+    // Once the insert has settled, a client syncing from before it hears about it.
+    now.set(Instant.now().plus(TodoChangeLog.SETTLE).plusSeconds(1));
+    Context changesCtx = Mockito.mock(Context.class);
+    when(changesCtx.queryParam(TodoController.SINCE_KEY)).thenReturn(token);
+    todoController.getTodoChanges(changesCtx);
+    verify(changesCtx).json(changesCaptor.capture());
+    List<Todo> inserted = ((TodoChangeLog.Changes) changesCaptor.getValue()).inserted;
+    assertTrue(inserted.stream().anyMatch(todo -> todo._id.equals(results.get(0).get("id"))));
+  }
+
+  @Test
+  void addTodosFromNdjson() {
+    when(ctx.queryParamMap()).thenReturn(Collections.emptyMap());
+    long before = db.getCollection("todos").countDocuments();
+
+    Map<String, Object> response = addTodosInBulk(
+        "{\"owner\": \"Steve\", \"status\": true, \"body\": \"one\", \"category\": \"homework\"}\n"
+        + "{\"owner\": \"Steve\", \"status\": true, \"body\": \"two\"}\n");
+
+    verify(ctx).status(HttpStatus.CREATED);
+    assertEquals(1L, response.get("inserted"));
+    assertEquals(1L, response.get("failed"));
+    assertEquals(before + 1, db.getCollection("todos").countDocuments());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void addTodosChecksEachParsedTodo() {
+    when(ctx.queryParamMap()).thenReturn(Collections.emptyMap());
+
+    Map<String, Object> response = addTodosInBulk("""
+        [
+          {"owner": "Steve", "status": true, "body": "one", "category": "games"},
+          ["not", "a", "todo"],
+          {"owner": "Steve", "status": true, "body": "three", "category": "video games"}
+        ]
+        """);
+
+    assertEquals(1L, response.get("inserted"));
+    List<Map<String, Object>> results = (List<Map<String, Object>>) response.get("results");
+    assertEquals(List.of("Must be existing category"), results.get(0).get("errors"));
+    assertTrue(results.get(1).containsKey("errors"));
+    assertTrue(results.get(2).containsKey("id"));
+  }
+
+  @Test
+  void addTodosKeepsTodosBeforeMalformedJson() {
+    when(ctx.queryParamMap()).thenReturn(Collections.emptyMap());
+    long before = db.getCollection("todos").countDocuments();
+
+    Map<String, Object> response = addTodosInBulk(
+        "{\"owner\": \"Steve\", \"status\": true, \"body\": \"one\", \"category\": \"homework\"}\n"
+        + "{\"owner\": \"Steve\", \"status\": ");
+
+    verify(ctx).status(HttpStatus.BAD_REQUEST);
+    assertEquals(1L, response.get("inserted"));
+    assertTrue(response.containsKey("error"));
+    assertEquals(before + 1, db.getCollection("todos").countDocuments());
+  }
+
+  @Test
+  void addTodosRejectsIllegalBatchSize() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(TodoController.BATCH_SIZE_KEY, Arrays.asList(new String[] {"0"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParamAsClass(TodoController.BATCH_SIZE_KEY, Integer.class))
+        .thenReturn(Validator.create(Integer.class, "0", TodoController.BATCH_SIZE_KEY));
+
+    assertThrows(ValidationException.class, () -> {
+      todoController.addNewTodos(ctx);
+    });
+  }
+
   @Test
   void addInvalidOwner() throws IOException {
     String testNewTodo = """
@@ -325,6 +1089,24 @@ public class TodoControllerSpec {
   }
 
 
+  @Test
+  void addPartOfALegalCategory() throws IOException {
+    String testNewTodo = """
+        {
+          "owner": "Steve",
+          "status": true,
+          "body": "testers",
+          "category": "work"
+        }
+        """;
+    when(ctx.bodyValidator(Todo.class))
+        .then(value -> new BodyValidator<Todo>(testNewTodo, Todo.class, javalinJackson));
+
+    assertThrows(ValidationException.class, () -> {
+      todoController.addNewTodo(ctx);
+    });
+  }
+
   @Test
   void deleteFoundTodo() throws IOException {
     String testID = fryId.toHexString();
@@ -357,6 +1139,35 @@ public class TodoControllerSpec {
     assertEquals(0, db.getCollection("todos").countDocuments(eq("_id", new ObjectId(testID))));
   }
 
+  @Test
+  void deleteTodoWithIllegalId() {
+    when(ctx.pathParam("id")).thenReturn("bad");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      todoController.deleteTodo(ctx);
+    });
+  }
+
+  @Test
+  void addTodoWithItsOwnId() throws IOException {
+    // An old ID would put the todo where delta sync has already looked.
+    String testNewTodo = """
+        {
+          "_id": "000000000000000000000001",
+          "owner": "Steve",
+          "status": true,
+          "body": "testers",
+          "category": "groceries"
+        }
+        """;
+    when(ctx.bodyValidator(Todo.class))
+        .then(value -> new BodyValidator<Todo>(testNewTodo, Todo.class, javalinJackson));
+
+    assertThrows(ValidationException.class, () -> {
+      todoController.addNewTodo(ctx);
+    });
+  }
+
   @Test
   void addEmptyCategory() throws IOException {
     String testNewTodo = """
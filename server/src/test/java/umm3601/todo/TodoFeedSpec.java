@@ -0,0 +1,156 @@
+package umm3601.todo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import io.javalin.http.Context;
+import io.javalin.http.sse.SseClient;
+
+/**
+ * Tests that the `TodoFeed` sends subscribers the todos they asked for, and
+ * drops the ones that can't keep up.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class TodoFeedSpec {
+
+  private TodoFeed feed;
+
+  @BeforeEach
+  void setupEach() {
+    feed = new TodoFeed();
+  }
+
+  private SseClient subscribe(String owner, String category) {
+    Context ctx = mock(Context.class);
+    when(ctx.queryParam("owner")).thenReturn(owner);
+    when(ctx.queryParam("category")).thenReturn(category);
+    SseClient client = mock(SseClient.class);
+    when(client.ctx()).thenReturn(ctx);
+    feed.subscribe(client);
+    return client;
+  }
+
+  private static Todo todo(String owner, String category) {
+    Todo todo = new Todo();
+    todo._id = new ObjectId().toHexString();
+    todo.owner = owner;
+    todo.category = category;
+    todo.body = "Do something";
+    return todo;
+  }
+
+  @Test
+  void sendsInsertsAndDeletes() {
+    SseClient client = subscribe(null, null);
+    verify(client).keepAlive();
+    assertEquals(1, feed.subscriberCount());
+
+    Todo todo = todo("Chris", "homework");
+    feed.inserted(todo);
+    feed.deleted(todo);
+
+    verify(client, timeout(1000)).sendEvent(TodoFeed.INSERT_EVENT, todo, todo._id);
+    verify(client, timeout(1000)).sendEvent(TodoFeed.DELETE_EVENT, todo, todo._id);
+  }
+
+  @Test
+  void filtersByOwnerAndCategory() {
+    SseClient chrisHomework = subscribe("chris", "homework");
+    SseClient groceries = subscribe(null, "groceries");
+
+    Todo chrisGroceries = todo("Chris", "groceries");
+    Todo homework = todo("Chris", "homework");
+    feed.inserted(chrisGroceries);
+    feed.inserted(homework);
+
+    // The owner is matched ignoring case.
+    verify(chrisHomework, timeout(1000)).sendEvent(TodoFeed.INSERT_EVENT, homework, homework._id);
+    verify(groceries, timeout(1000)).sendEvent(TodoFeed.INSERT_EVENT, chrisGroceries, chrisGroceries._id);
+    verify(chrisHomework, never()).sendEvent(anyString(), eq(chrisGroceries), anyString());
+    verify(groceries, never()).sendEvent(anyString(), eq(homework), anyString());
+  }
+
+  @Test
+  void forgetsClosedSubscribers() {
+    SseClient client = subscribe(null, null);
+    ArgumentCaptor<Runnable> onClose = ArgumentCaptor.forClass(Runnable.class);
+    verify(client).onClose(onClose.capture());
+
+    onClose.getValue().run();
+
+    assertEquals(0, feed.subscriberCount());
+    feed.inserted(todo("Chris", "homework"));
+    verify(client, never()).sendEvent(anyString(), any(), anyString());
+  }
+
+  @Test
+  void disconnectsSlowSubscribers() throws InterruptedException {
+    SseClient slow = subscribe(null, null);
+    CountDownLatch stuck = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    // The first send never finishes (until the end of the test), so
+    // everything after it piles up in the subscriber's buffer.
+    doAnswer(invocation -> {
+      stuck.countDown();
+      release.await();
+      return null;
+    }).when(slow).sendEvent(anyString(), any(), anyString());
+
+    feed.inserted(todo("Chris", "homework"));
+    stuck.await();
+    for (int i = 0; i <= TodoFeed.BUFFER_SIZE; i++) {
+      feed.inserted(todo("Chris", "homework"));
+    }
+
+    verify(slow).close();
+    assertEquals(0, feed.subscriberCount());
+    release.countDown();
+  }
+
+  @Test
+  void stalledSubscribersDoNotHoldUpTheOthers() throws InterruptedException {
+    feed = new TodoFeed(Duration.ofMillis(200));
+    CountDownLatch release = new CountDownLatch(1);
+    SseClient[] stalled = { subscribe(null, null), subscribe(null, null) };
+    for (SseClient client : stalled) {
+      // Clients that never read: their first write blocks.
+      doAnswer(invocation -> {
+        release.await();
+        return null;
+      }).when(client).sendEvent(anyString(), any(), anyString());
+    }
+    SseClient healthy = subscribe(null, null);
+
+    // Fewer events than fill a queue, so only the write timeout can tell
+    // the stalled subscribers apart from the healthy one.
+    Todo last = null;
+    for (int i = 0; i < TodoFeed.BUFFER_SIZE / 2; i++) {
+      last = todo("Chris", "homework");
+      feed.inserted(last);
+    }
+
+    verify(healthy, timeout(1000)).sendEvent(TodoFeed.INSERT_EVENT, last, last._id);
+    for (SseClient client : stalled) {
+      verify(client, timeout(1000)).close();
+    }
+    verify(healthy, never()).close();
+    assertEquals(1, feed.subscriberCount());
+    release.countDown();
+  }
+}
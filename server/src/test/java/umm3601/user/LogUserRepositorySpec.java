@@ -0,0 +1,123 @@
+package umm3601.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.mongodb.client.model.Sorts;
+
+import io.javalin.http.ConflictResponse;
+import io.javalin.http.Context;
+import umm3601.ResponseCache;
+
+/**
+ * Tests that a `LogUserRepository` still has its users (and answers the
+ * same queries) after it's closed and opened again.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class LogUserRepositorySpec {
+
+  private Path directory;
+
+  private LogUserRepository userRepository;
+
+  @BeforeEach
+  void setupEach() throws IOException {
+    directory = Files.createTempDirectory("users");
+    userRepository = new LogUserRepository(directory);
+    userRepository.insert(user("Chris", 25, "UMM", "admin"));
+    userRepository.insert(user("Pat", 37, "IBM", "editor"));
+    userRepository.insert(user("Jamie", 37, "OHMNET", "viewer"));
+  }
+
+  @AfterEach
+  void closeRepository() {
+    userRepository.close();
+  }
+
+  private void reopen() throws IOException {
+    userRepository.close();
+    userRepository = new LogUserRepository(directory);
+  }
+
+  private static User user(String name, int age, String company, String role) {
+    User user = new User();
+    user.name = name;
+    user.age = age;
+    user.company = company;
+    user.role = role;
+    user.email = name.toLowerCase() + "@example.com";
+    return user;
+  }
+
+  private List<String> names() {
+    return userRepository.find(new Document(), Sorts.ascending(UserController.NAME_KEY), 0).stream()
+      .map(user -> user.name)
+      .toList();
+  }
+
+  @Test
+  void keepsUsersAcrossRestarts() throws IOException {
+    User sam = user("Sam", 45, "OHMNET", "viewer");
+    Map<Integer, String> errors = userRepository.insertMany(List.of(sam, user("Kim", 30, "UMM", "viewer")));
+    assertEquals(Map.of(), errors);
+    User pat = userRepository.find(new Document(UserController.NAME_KEY, "Pat"), null, 0).get(0);
+    userRepository.delete(new ObjectId(pat._id));
+
+    reopen();
+
+    assertEquals(List.of("Chris", "Jamie", "Kim", "Sam"), names());
+    User found = userRepository.findById(new ObjectId(sam._id));
+    assertEquals(45, found.age);
+    assertEquals("sam@example.com", found.email);
+    assertNull(userRepository.findById(new ObjectId(pat._id)));
+  }
+
+  @Test
+  void refusesDuplicatesAfterRestarts() throws IOException {
+    User chris = userRepository.find(new Document(UserController.NAME_KEY, "Chris"), null, 0).get(0);
+
+    reopen();
+
+    assertThrows(ConflictResponse.class, () -> userRepository.insert(chris));
+    assertEquals(List.of(0), List.copyOf(userRepository.insertMany(List.of(chris)).keySet()));
+  }
+
+  @Test
+  void groupsUsersByCompanyAfterRestarts() throws IOException {
+    userRepository.insert(user("Sam", 45, "OHMNET", "viewer"));
+    reopen();
+    UserController userController = new UserController(userRepository,
+      ResponseCache.disabled("users"), ResponseCache.disabled("users"), null);
+    Context ctx = mock(Context.class);
+    when(ctx.queryParam("sortBy")).thenReturn("count");
+    when(ctx.queryParam("sortOrder")).thenReturn("desc");
+
+    userController.getUsersGroupedByCompany(ctx);
+
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<ArrayList<UserByCompany>> groupsCaptor = ArgumentCaptor.forClass(ArrayList.class);
+    verify(ctx).json(groupsCaptor.capture());
+    ArrayList<UserByCompany> groups = groupsCaptor.getValue();
+    assertEquals(3, groups.size());
+    assertEquals("OHMNET", groups.get(0)._id);
+    assertEquals(2, groups.get(0).count);
+  }
+}
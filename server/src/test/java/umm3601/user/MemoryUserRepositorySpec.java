@@ -0,0 +1,178 @@
+package umm3601.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import io.javalin.http.ConflictResponse;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+import io.javalin.validation.Validator;
+import umm3601.IndexManager;
+import umm3601.PageToken;
+import umm3601.ResponseCache;
+
+/**
+ * Tests that the `UserController` works the same with its users kept in a
+ * `MemoryUserRepository` as it does with Mongo.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class MemoryUserRepositorySpec {
+
+  private MemoryUserRepository userRepository;
+  private UserController userController;
+
+  @Mock
+  private Context ctx;
+
+  @Captor
+  private ArgumentCaptor<ArrayList<User>> userArrayListCaptor;
+
+  @Captor
+  private ArgumentCaptor<ArrayList<UserByCompany>> userByCompanyListCaptor;
+
+  @BeforeEach
+  void setupEach() {
+    MockitoAnnotations.openMocks(this);
+    userRepository = new MemoryUserRepository();
+    userRepository.insert(user("Chris", 25, "UMM", "admin"));
+    userRepository.insert(user("Pat", 37, "IBM", "editor"));
+    userRepository.insert(user("Jamie", 37, "OHMNET", "viewer"));
+    userRepository.insert(user("Sam", 45, "OHMNET", "viewer"));
+    userController = new UserController(userRepository,
+      ResponseCache.disabled("users"), ResponseCache.disabled("users"), null);
+  }
+
+  private static User user(String name, int age, String company, String role) {
+    User user = new User();
+    user.name = name;
+    user.age = age;
+    user.company = company;
+    user.role = role;
+    user.email = name.toLowerCase() + "@example.com";
+    return user;
+  }
+
+  @Test
+  void declaresNoIndexes() {
+    IndexManager indexManager = Mockito.mock(IndexManager.class);
+    userController.declareIndexes(indexManager);
+
+    Mockito.verifyNoInteractions(indexManager);
+  }
+
+  @Test
+  void givesNewUsersIds() {
+    User user = user("Kim", 30, "UMM", "viewer");
+    userRepository.insert(user);
+
+    assertEquals("Kim", userRepository.findById(new ObjectId(user._id)).name);
+    assertThrows(ConflictResponse.class, () -> userRepository.insert(user));
+  }
+
+  @Test
+  void reportsDuplicatesInBulk() {
+    User existing = userRepository.find(new Document(), null, 1).get(0);
+    User fresh = user("Kim", 30, "UMM", "viewer");
+    fresh._id = new ObjectId().toHexString();
+
+    Map<Integer, String> errors = userRepository.insertMany(List.of(fresh, existing));
+
+    assertEquals(List.of(1), List.copyOf(errors.keySet()));
+    assertEquals("Kim", userRepository.findById(new ObjectId(fresh._id)).name);
+  }
+
+  @Test
+  void getsUsersByCompanyPrefixIgnoringCase() {
+    when(ctx.queryParamMap()).thenReturn(Map.of(UserController.COMPANY_KEY, List.of("ohm")));
+    when(ctx.queryParam(UserController.COMPANY_KEY)).thenReturn("ohm");
+
+    userController.getUsers(ctx);
+
+    verify(ctx).json(userArrayListCaptor.capture());
+    verify(ctx).status(HttpStatus.OK);
+    assertEquals(List.of("Jamie", "Sam"), userArrayListCaptor.getValue().stream().map(u -> u.name).toList());
+  }
+
+  @Test
+  void getsUsersByRoleSortedByAge() {
+    when(ctx.queryParamMap()).thenReturn(Map.of(UserController.ROLE_KEY, List.of("viewer")));
+    when(ctx.queryParamAsClass(UserController.ROLE_KEY, String.class))
+        .thenReturn(Validator.create(String.class, "viewer", UserController.ROLE_KEY));
+    when(ctx.queryParam("sortby")).thenReturn(UserController.AGE_KEY);
+    when(ctx.queryParam(UserController.SORT_ORDER_KEY)).thenReturn("desc");
+
+    userController.getUsers(ctx);
+
+    verify(ctx).json(userArrayListCaptor.capture());
+    assertEquals(List.of("Sam", "Jamie"), userArrayListCaptor.getValue().stream().map(u -> u.name).toList());
+  }
+
+  @Test
+  void pagesThroughUsers() {
+    ArgumentCaptor<String> tokenCaptor = ArgumentCaptor.forClass(String.class);
+    when(ctx.queryParamMap()).thenReturn(Map.of(UserController.LIMIT_KEY, List.of("3")));
+    when(ctx.queryParamAsClass(UserController.LIMIT_KEY, Integer.class))
+        .thenReturn(Validator.create(Integer.class, "3", UserController.LIMIT_KEY));
+
+    userController.getUsers(ctx);
+
+    verify(ctx).json(userArrayListCaptor.capture());
+    verify(ctx).header(Mockito.eq(PageToken.NEXT_HEADER), tokenCaptor.capture());
+    assertEquals(List.of("Chris", "Jamie", "Pat"), userArrayListCaptor.getValue().stream().map(u -> u.name).toList());
+
+    Context nextCtx = Mockito.mock(Context.class);
+    String token = tokenCaptor.getValue();
+    when(nextCtx.queryParamMap())
+        .thenReturn(Map.of(UserController.LIMIT_KEY, List.of("3"), PageToken.NEXT_KEY, List.of(token)));
+    when(nextCtx.queryParam(PageToken.NEXT_KEY)).thenReturn(token);
+    when(nextCtx.queryParamAsClass(UserController.LIMIT_KEY, Integer.class))
+        .thenReturn(Validator.create(Integer.class, "3", UserController.LIMIT_KEY));
+
+    userController.getUsers(nextCtx);
+
+    verify(nextCtx).json(userArrayListCaptor.capture());
+    assertEquals(List.of("Sam"), userArrayListCaptor.getValue().stream().map(u -> u.name).toList());
+  }
+
+  @Test
+  void groupsUsersByCompany() {
+    when(ctx.queryParam("sortBy")).thenReturn("count");
+    when(ctx.queryParam("sortOrder")).thenReturn("desc");
+
+    userController.getUsersGroupedByCompany(ctx);
+
+    verify(ctx).json(userByCompanyListCaptor.capture());
+    ArrayList<UserByCompany> groups = userByCompanyListCaptor.getValue();
+    assertEquals(3, groups.size());
+    assertEquals("OHMNET", groups.get(0)._id);
+    assertEquals(2, groups.get(0).count);
+  }
+
+  @Test
+  void deletesUsers() {
+    User sam = userRepository.find(new Document("name", "Sam"), null, 0).get(0);
+
+    assertTrue(userRepository.delete(new ObjectId(sam._id)));
+    assertFalse(userRepository.delete(new ObjectId(sam._id)));
+    assertNull(userRepository.findById(new ObjectId(sam._id)));
+  }
+}
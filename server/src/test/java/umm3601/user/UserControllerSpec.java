@@ -2,25 +2,36 @@ package umm3601.user;
 
 import static com.mongodb.client.model.Filters.eq;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import org.bson.Document;
+import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
@@ -41,16 +52,26 @@ import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Sorts;
 
 import io.javalin.Javalin;
 import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
+import io.javalin.http.Header;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
+import io.javalin.http.ServiceUnavailableResponse;
 import io.javalin.json.JavalinJackson;
 import io.javalin.validation.BodyValidator;
 import io.javalin.validation.ValidationException;
 import io.javalin.validation.Validator;
+import umm3601.AsyncMongo;
+import umm3601.IndexManager;
+import umm3601.PageToken;
+import umm3601.ResponseCache;
+import umm3601.TextMatch;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
 
 /**
  * Tests the logic of the UserController
@@ -193,6 +214,30 @@ class UserControllerSpec {
     verify(mockServer, Mockito.atLeast(2)).get(any(), any());
   }
 
+  @Test
+  void rebuildingTheGroupingIsOnlyAnAdminRoute() {
+    Javalin mockServer = Mockito.mock(Javalin.class);
+    userController.addRoutes(mockServer);
+    verify(mockServer, never()).post(Mockito.contains("rebuild"), any());
+
+    Javalin adminServer = Mockito.mock(Javalin.class);
+    userController.addAdminRoutes(adminServer);
+    verify(adminServer).before(Mockito.eq("/api/admin/usersByCompany/rebuild"), any());
+    verify(adminServer).post(Mockito.eq("/api/admin/usersByCompany/rebuild"), any());
+  }
+
+  /**
+   * Verify that the controller declares indexes for the `users` collection
+   * when asked to.
+   */
+  @Test
+  void declaresIndexesForListQueries() {
+    IndexManager indexManager = Mockito.mock(IndexManager.class);
+    userController.declareIndexes(indexManager);
+
+    verify(indexManager, Mockito.atLeastOnce()).declare(Mockito.eq("users"), any(), any());
+  }
+
   @Test
   void canGetAllUsers() throws IOException {
     // When something asks the (mocked) context for the queryParamMap,
@@ -382,6 +427,38 @@ class UserControllerSpec {
     }
   }
 
+  @Test
+  void canGetUsersWithExactCompanyIgnoringCase() throws IOException {
+    when(ctx.queryParamMap())
+        .thenReturn(Map.of(UserController.COMPANY_KEY, List.of("ohmnet"), TextMatch.MATCH_KEY, List.of("exact")));
+    when(ctx.queryParam(UserController.COMPANY_KEY)).thenReturn("ohmnet");
+    when(ctx.queryParamAsClass(TextMatch.MATCH_KEY, String.class))
+        .thenReturn(Validator.create(String.class, "exact", TextMatch.MATCH_KEY));
+
+    userController.getUsers(ctx);
+
+    verify(ctx).json(userArrayListCaptor.capture());
+    assertEquals(2, userArrayListCaptor.getValue().size());
+    for (User user : userArrayListCaptor.getValue()) {
+      assertEquals("OHMNET", user.company);
+    }
+  }
+
+  @Test
+  void canGetUsersWithCompanySubstring() throws IOException {
+    // "mne" is in the middle of OHMNET, so only a substring match finds it
+    when(ctx.queryParamMap())
+        .thenReturn(Map.of(UserController.COMPANY_KEY, List.of("mne"), TextMatch.MATCH_KEY, List.of("substring")));
+    when(ctx.queryParam(UserController.COMPANY_KEY)).thenReturn("mne");
+    when(ctx.queryParamAsClass(TextMatch.MATCH_KEY, String.class))
+        .thenReturn(Validator.create(String.class, "substring", TextMatch.MATCH_KEY));
+
+    userController.getUsers(ctx);
+
+    verify(ctx).json(userArrayListCaptor.capture());
+    assertEquals(2, userArrayListCaptor.getValue().size());
+  }
+
   @Test
   void getUsersByRole() throws IOException {
     Map<String, List<String>> queryParams = new HashMap<>();
@@ -418,6 +495,89 @@ class UserControllerSpec {
     }
   }
 
+  @Test
+  void canPageThroughUsersByAge() throws IOException {
+    ArgumentCaptor<String> tokenCaptor = ArgumentCaptor.forClass(String.class);
+    when(ctx.queryParam("sortby")).thenReturn(UserController.AGE_KEY);
+    when(ctx.queryParamMap()).thenReturn(Map.of(UserController.LIMIT_KEY, List.of("2")));
+    when(ctx.queryParamAsClass(UserController.LIMIT_KEY, Integer.class))
+        .thenReturn(Validator.create(Integer.class, "2", UserController.LIMIT_KEY));
+
+    userController.getUsers(ctx);
+
+    verify(ctx).header(Mockito.eq(PageToken.NEXT_HEADER), tokenCaptor.capture());
+    Context nextCtx = Mockito.mock(Context.class);
+    String token = tokenCaptor.getValue();
+    when(nextCtx.queryParam("sortby")).thenReturn(UserController.AGE_KEY);
+    when(nextCtx.queryParamMap())
+        .thenReturn(Map.of(UserController.LIMIT_KEY, List.of("2"), PageToken.NEXT_KEY, List.of(token)));
+    when(nextCtx.queryParam(PageToken.NEXT_KEY)).thenReturn(token);
+    when(nextCtx.queryParamAsClass(UserController.LIMIT_KEY, Integer.class))
+        .thenReturn(Validator.create(Integer.class, "2", UserController.LIMIT_KEY));
+
+    userController.getUsers(nextCtx);
+
+    // The first page was Chris (25) and one of the two 37 year olds, so this
+    // one starts with the other of them.
+    verify(nextCtx).json(userArrayListCaptor.capture());
+    assertEquals(List.of(37, 45), userArrayListCaptor.getValue().stream().map(user -> user.age).toList());
+  }
+
+  @Test
+  void refusesToSortByAnUnknownField() {
+    when(ctx.queryParam("sortby")).thenReturn("avatar.length");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      userController.getUsers(ctx);
+    });
+    verify(ctx, Mockito.never()).json(Mockito.any());
+  }
+
+  @Test
+  void canPageThroughUsers() throws IOException {
+    ArgumentCaptor<String> tokenCaptor = ArgumentCaptor.forClass(String.class);
+    when(ctx.queryParamMap()).thenReturn(Map.of(UserController.LIMIT_KEY, List.of("3")));
+    when(ctx.queryParamAsClass(UserController.LIMIT_KEY, Integer.class))
+        .thenReturn(Validator.create(Integer.class, "3", UserController.LIMIT_KEY));
+
+    userController.getUsers(ctx);
+
+    verify(ctx).json(userArrayListCaptor.capture());
+    verify(ctx).header(Mockito.eq(PageToken.NEXT_HEADER), tokenCaptor.capture());
+    // Users are sorted by name by default
+    assertEquals(3, userArrayListCaptor.getValue().size());
+    assertEquals("Chris", userArrayListCaptor.getValue().get(0).name);
+    assertEquals("Pat", userArrayListCaptor.getValue().get(2).name);
+
+    // Ask for the next page using the token we were handed
+    Context nextCtx = Mockito.mock(Context.class);
+    String token = tokenCaptor.getValue();
+    when(nextCtx.queryParamMap())
+        .thenReturn(Map.of(UserController.LIMIT_KEY, List.of("3"), PageToken.NEXT_KEY, List.of(token)));
+    when(nextCtx.queryParam(PageToken.NEXT_KEY)).thenReturn(token);
+    when(nextCtx.queryParamAsClass(UserController.LIMIT_KEY, Integer.class))
+        .thenReturn(Validator.create(Integer.class, "3", UserController.LIMIT_KEY));
+
+    userController.getUsers(nextCtx);
+
+    verify(nextCtx).json(userArrayListCaptor.capture());
+    // That was the last page, so there's no token for another one
+    verify(nextCtx, Mockito.never()).header(Mockito.eq(PageToken.NEXT_HEADER), Mockito.anyString());
+    assertEquals(1, userArrayListCaptor.getValue().size());
+    assertEquals("Sam", userArrayListCaptor.getValue().get(0).name);
+  }
+
+  @Test
+  void respondsAppropriatelyToNonPositiveLimit() {
+    when(ctx.queryParamMap()).thenReturn(Map.of(UserController.LIMIT_KEY, List.of("0")));
+    when(ctx.queryParamAsClass(UserController.LIMIT_KEY, Integer.class))
+        .thenReturn(Validator.create(Integer.class, "0", UserController.LIMIT_KEY));
+
+    assertThrows(ValidationException.class, () -> {
+      userController.getUsers(ctx);
+    });
+  }
+
   @Test
   void getUserWithExistentId() throws IOException {
     String id = samsId.toHexString();
@@ -431,6 +591,190 @@ class UserControllerSpec {
     assertEquals(samsId.toHexString(), userCaptor.getValue()._id);
   }
 
+  @Test
+  void servesCachedUserWithoutTheDatabase() throws IOException {
+    ResponseCache cache = new ResponseCache("users", 10, Duration.ofMinutes(1));
+    UserController cachingController = new UserController(db, cache, ResponseCache.disabled("users"));
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    when(ctx.jsonMapper()).thenReturn(javalinJackson);
+
+    cachingController.getUser(ctx);
+    // Sam is gone from the database, but the cached copy is still served,
+    // which shows the second request never went to the database.
+    db.getCollection("users").deleteOne(eq("_id", samsId));
+    cachingController.getUser(ctx);
+
+    ArgumentCaptor<byte[]> bodyCaptor = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx, Mockito.times(2)).result(bodyCaptor.capture());
+    assertTrue(new String(bodyCaptor.getValue(), StandardCharsets.UTF_8).contains("Sam"));
+    assertEquals(1, cache.hits());
+    assertEquals(1, cache.misses());
+  }
+
+  @Test
+  void deletingUserInvalidatesCache() throws IOException {
+    ResponseCache cache = new ResponseCache("users", 10, Duration.ofMinutes(1));
+    UserController cachingController = new UserController(db, cache, ResponseCache.disabled("users"));
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    when(ctx.jsonMapper()).thenReturn(javalinJackson);
+
+    cachingController.getUser(ctx);
+    cachingController.deleteUser(ctx);
+
+    assertEquals(0, cache.size());
+    assertThrows(NotFoundResponse.class, () -> {
+      cachingController.getUser(ctx);
+    });
+  }
+
+  @Test
+  void doesNotCacheUserDeletedWhileItWasBeingRead() throws IOException {
+    ResponseCache cache = new ResponseCache("users", 10, Duration.ofMinutes(1));
+    UserRepository repository = Mockito.spy(new MongoUserRepository(db));
+    UserController cachingController = new UserController(repository, cache, ResponseCache.disabled("users"), null);
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    when(ctx.jsonMapper()).thenReturn(javalinJackson);
+    // Delete Sam after the read finds them, but before they're cached.
+    Mockito.doAnswer(invocation -> {
+      Object found = invocation.callRealMethod();
+      cachingController.deleteUser(ctx);
+      return found;
+    }).doCallRealMethod().when(repository).findById(samsId);
+
+    cachingController.getUser(ctx);
+
+    assertThrows(NotFoundResponse.class, () -> {
+      cachingController.getUser(ctx);
+    });
+    assertEquals(0, cache.hits());
+  }
+
+  @Test
+  void servesCachedUserListWithoutTheDatabase() throws IOException {
+    ResponseCache listCache = new ResponseCache("userLists", 10, Duration.ofMinutes(1));
+    UserController cachingController = new UserController(db, ResponseCache.disabled("users"), listCache);
+    when(ctx.queryParamMap()).thenReturn(Collections.emptyMap());
+    when(ctx.jsonMapper()).thenReturn(javalinJackson);
+
+    cachingController.getUsers(ctx);
+    db.getCollection("users").deleteOne(eq("_id", samsId));
+    cachingController.getUsers(ctx);
+
+    ArgumentCaptor<byte[]> bodyCaptor = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx, Mockito.times(2)).result(bodyCaptor.capture());
+    assertTrue(new String(bodyCaptor.getValue(), StandardCharsets.UTF_8).contains("Sam"));
+    assertEquals(1, listCache.hits());
+  }
+
+  @Test
+  void deletingUserRetiresCachedLists() throws IOException {
+    ResponseCache listCache = new ResponseCache("userLists", 10, Duration.ofMinutes(1));
+    UserController cachingController = new UserController(db, ResponseCache.disabled("users"), listCache);
+    when(ctx.queryParamMap()).thenReturn(Collections.emptyMap());
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    when(ctx.jsonMapper()).thenReturn(javalinJackson);
+
+    cachingController.getUsers(ctx);
+    cachingController.deleteUser(ctx);
+    cachingController.getUsers(ctx);
+
+    ArgumentCaptor<byte[]> bodyCaptor = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx, Mockito.times(2)).result(bodyCaptor.capture());
+    assertFalse(new String(bodyCaptor.getValue(), StandardCharsets.UTF_8).contains("Sam"));
+    assertEquals(0, listCache.hits());
+  }
+
+  @Test
+  void canExportUsersWithRoleAsNdjson() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(UserController.ROLE_KEY, Arrays.asList(new String[] {"viewer"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParamAsClass(UserController.ROLE_KEY, String.class))
+        .thenReturn(Validator.create(String.class, "viewer", UserController.ROLE_KEY));
+    when(ctx.jsonMapper()).thenReturn(javalinJackson);
+    when(ctx.outputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setWriteListener(WriteListener writeListener) {
+        // We're always ready, so there's nothing to listen for.
+      }
+
+      @Override
+      public void write(int b) {
+        bytes.write(b);
+      }
+    });
+
+    userController.exportUsers(ctx);
+
+    verify(ctx).status(HttpStatus.OK);
+    String[] lines = bytes.toString(StandardCharsets.UTF_8).split("\n");
+    assertEquals(db.getCollection("users").countDocuments(eq(UserController.ROLE_KEY, "viewer")), lines.length);
+    for (String line : lines) {
+      assertTrue(line.contains("\"role\":\"viewer\""));
+    }
+  }
+
+  /**
+   * Run the future a handler handed to `ctx.future(...)`, and wait for it.
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private void awaitFuture() {
+    ArgumentCaptor<Supplier> futureCaptor = ArgumentCaptor.forClass(Supplier.class);
+    verify(ctx).future(futureCaptor.capture());
+    ((CompletableFuture<?>) futureCaptor.getValue().get()).join();
+  }
+
+  @Test
+  void getUserAsync() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+    try (AsyncMongo asyncMongo = AsyncMongo.connect(mongoAddr, "test")) {
+      UserController asyncController = new UserController(db,
+        ResponseCache.disabled("users"), ResponseCache.disabled("userLists"), asyncMongo);
+      when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+      when(ctx.jsonMapper()).thenReturn(javalinJackson);
+
+      asyncController.getUser(ctx);
+      // Nothing is sent until the query comes back.
+      verify(ctx, Mockito.never()).json(any());
+      awaitFuture();
+
+      verify(ctx).json(userCaptor.capture());
+      verify(ctx).status(HttpStatus.OK);
+      assertEquals("Sam", userCaptor.getValue().name);
+      assertEquals(samsId.toHexString(), userCaptor.getValue()._id);
+    }
+  }
+
+  @Test
+  void getUsersAsync() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+    try (AsyncMongo asyncMongo = AsyncMongo.connect(mongoAddr, "test")) {
+      UserController asyncController = new UserController(db,
+        ResponseCache.disabled("users"), ResponseCache.disabled("userLists"), asyncMongo);
+      Map<String, List<String>> queryParams = new HashMap<>();
+      queryParams.put(UserController.COMPANY_KEY, Arrays.asList(new String[] {"OHMNET"}));
+      when(ctx.queryParamMap()).thenReturn(queryParams);
+      when(ctx.queryParam(UserController.COMPANY_KEY)).thenReturn("OHMNET");
+      when(ctx.jsonMapper()).thenReturn(javalinJackson);
+
+      asyncController.getUsers(ctx);
+      awaitFuture();
+
+      verify(ctx).json(userArrayListCaptor.capture());
+      verify(ctx).status(HttpStatus.OK);
+      assertEquals(2, userArrayListCaptor.getValue().size());
+      for (User user : userArrayListCaptor.getValue()) {
+        assertEquals("OHMNET", user.company);
+      }
+    }
+  }
+
   @Test
   void getUserWithBadId() throws IOException {
     when(ctx.pathParam("id")).thenReturn("bad");
@@ -454,9 +798,71 @@ class UserControllerSpec {
     assertEquals("The requested user was not found", exception.getMessage());
   }
 
+  @Test
+  void answersNotModifiedForCurrentUserTag() {
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+
+    userController.getUser(ctx);
+    ArgumentCaptor<String> etagCaptor = ArgumentCaptor.forClass(String.class);
+    verify(ctx).header(Mockito.eq(Header.ETAG), etagCaptor.capture());
+
+    Context conditionalCtx = Mockito.mock(Context.class);
+    when(conditionalCtx.pathParam("id")).thenReturn(samsId.toHexString());
+    when(conditionalCtx.header(Header.IF_NONE_MATCH)).thenReturn(etagCaptor.getValue());
+
+    userController.getUser(conditionalCtx);
+
+    verify(conditionalCtx).status(HttpStatus.NOT_MODIFIED);
+    verify(conditionalCtx, Mockito.never()).json(any());
+  }
+
+  @Test
+  void answersNotFoundForMissingUserWhateverItsTag() {
+    when(ctx.pathParam("id")).thenReturn(new ObjectId().toHexString());
+    when(ctx.header(Header.IF_NONE_MATCH)).thenReturn("*");
+
+    assertThrows(NotFoundResponse.class, () -> {
+      userController.getUser(ctx);
+    });
+    verify(ctx, Mockito.never()).status(HttpStatus.NOT_MODIFIED);
+  }
+
   @Captor
   private ArgumentCaptor<ArrayList<UserByCompany>> userByCompanyListCaptor;
 
+  @Test
+  void answersNotModifiedForCurrentUserListTag() {
+    when(ctx.queryParamMap()).thenReturn(Collections.emptyMap());
+
+    userController.getUsers(ctx);
+    ArgumentCaptor<String> etagCaptor = ArgumentCaptor.forClass(String.class);
+    verify(ctx).header(Mockito.eq(Header.ETAG), etagCaptor.capture());
+
+    Context conditionalCtx = Mockito.mock(Context.class);
+    when(conditionalCtx.queryParamMap()).thenReturn(Collections.emptyMap());
+    when(conditionalCtx.header(Header.IF_NONE_MATCH)).thenReturn(etagCaptor.getValue());
+
+    userController.getUsers(conditionalCtx);
+
+    verify(conditionalCtx).status(HttpStatus.NOT_MODIFIED);
+    verify(conditionalCtx, Mockito.never()).json(any());
+  }
+
+  @Test
+  void answersNotModifiedForCurrentGroupingTag() {
+    userController.getUsersGroupedByCompany(ctx);
+    ArgumentCaptor<String> etagCaptor = ArgumentCaptor.forClass(String.class);
+    verify(ctx).header(Mockito.eq(Header.ETAG), etagCaptor.capture());
+
+    Context conditionalCtx = Mockito.mock(Context.class);
+    when(conditionalCtx.header(Header.IF_NONE_MATCH)).thenReturn(etagCaptor.getValue());
+
+    userController.getUsersGroupedByCompany(conditionalCtx);
+
+    verify(conditionalCtx).status(HttpStatus.NOT_MODIFIED);
+    verify(conditionalCtx, Mockito.never()).json(any());
+  }
+
   @Test
   public void testGetUsersGroupedByCompany() {
     when(ctx.queryParam("sortBy")).thenReturn("company");
@@ -557,6 +963,211 @@ class UserControllerSpec {
     assertEquals(2, ohmnet.count);
   }
 
+  /**
+   * Ask the controller for the users grouped by company (sorted by
+   * company name), with a context of its own.
+   */
+  @SuppressWarnings("unchecked")
+  private ArrayList<UserByCompany> groupedByCompany() {
+    Context groupCtx = Mockito.mock(Context.class);
+    userController.getUsersGroupedByCompany(groupCtx);
+    ArgumentCaptor<Object> groupCaptor = ArgumentCaptor.forClass(Object.class);
+    verify(groupCtx).json(groupCaptor.capture());
+    return (ArrayList<UserByCompany>) groupCaptor.getValue();
+  }
+
+  private int countIn(ArrayList<UserByCompany> groups, String company) {
+    return groups.stream().filter(group -> group._id.equals(company)).mapToInt(group -> group.count).sum();
+  }
+
+  @Test
+  void groupingFollowsAddedAndDeletedUsers() throws IOException {
+    assertEquals(2, countIn(groupedByCompany(), "OHMNET"));
+
+    String testNewUser = """
+        {
+          "name": "Test User",
+          "age": 25,
+          "company": "OHMNET",
+          "email": "test@example.com",
+          "role": "viewer"
+        }
+        """;
+    when(ctx.bodyValidator(User.class))
+        .then(value -> new BodyValidator<User>(testNewUser, User.class, javalinJackson));
+    userController.addNewUser(ctx);
+    ArrayList<UserByCompany> afterAdd = groupedByCompany();
+    assertEquals(3, countIn(afterAdd, "OHMNET"));
+    assertEquals(3, afterAdd.size());
+
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    userController.deleteUser(ctx);
+    assertEquals(2, countIn(groupedByCompany(), "OHMNET"));
+  }
+
+  @SuppressWarnings("unchecked")
+  private ArrayList<UserByCompany> groupedByCount() {
+    Context groupCtx = Mockito.mock(Context.class);
+    when(groupCtx.queryParam("sortBy")).thenReturn("count");
+    when(groupCtx.queryParam("sortOrder")).thenReturn("desc");
+    userController.getUsersGroupedByCompany(groupCtx);
+    ArgumentCaptor<Object> groupCaptor = ArgumentCaptor.forClass(Object.class);
+    verify(groupCtx).json(groupCaptor.capture());
+    return (ArrayList<UserByCompany>) groupCaptor.getValue();
+  }
+
+  @Test
+  void sortedGroupingKeepsItsOrderAsUsersChange() {
+    ArrayList<UserByCompany> before = groupedByCount();
+    assertEquals("OHMNET", before.get(0)._id);
+
+    // With Sam gone, OHMNET is down to one user, like IBM and UMM, so it
+    // moves to the middle of the (count, then name) order.
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    userController.deleteUser(ctx);
+
+    ArrayList<UserByCompany> after = groupedByCount();
+    assertEquals(List.of("UMM", "OHMNET", "IBM"), after.stream().map(group -> group._id).toList());
+    assertEquals(List.of(1, 1, 1), after.stream().map(group -> group.count).toList());
+    // The list handed out before is left as it was.
+    assertEquals("OHMNET", before.get(0)._id);
+    assertEquals(2, before.get(0).count);
+  }
+
+  @Test
+  void groupingPicksUpDirectChangesOnRebuild() throws IOException {
+    assertEquals(3, groupedByCompany().size());
+
+    // Changes made behind the controller's back aren't seen...
+    db.getCollection("users").insertOne(new Document("name", "Lee").append("company", "Acme"));
+    assertEquals(3, groupedByCompany().size());
+
+    // ...until the view is rebuilt
+    userController.rebuildCompanyRollup(ctx);
+    verify(ctx).json(Map.of("companies", 4));
+    ArrayList<UserByCompany> rebuilt = groupedByCompany();
+    assertEquals(4, rebuilt.size());
+    assertEquals("Acme", rebuilt.get(0)._id);
+  }
+
+  @Test
+  void groupingIsServedEvenIfInvalidatedDuringEveryRebuild() {
+    UserRepository repository = Mockito.mock(UserRepository.class);
+    CompanyRollup[] rollup = new CompanyRollup[1];
+    User lee = new User();
+    lee._id = new ObjectId().toHexString();
+    lee.name = "Lee";
+    lee.company = "Acme";
+    // Every read of the users sees the view invalidated (say, by an import)
+    when(repository.namesAndCompanies()).then(invocation -> {
+      rollup[0].invalidate();
+      return Stream.of(lee);
+    });
+    rollup[0] = new CompanyRollup(repository);
+
+    ArrayList<UserByCompany> grouped = rollup[0].grouped("company", false);
+    assertEquals(List.of("Acme"), grouped.stream().map(group -> group._id).toList());
+    verify(repository).namesAndCompanies();
+
+    // The view it served is stale, so the next use rebuilds it (once)
+    rollup[0].grouped("company", false);
+    verify(repository, Mockito.times(2)).namesAndCompanies();
+  }
+
+  @Test
+  void importUsersFromJsonArray() {
+    when(ctx.queryParamMap()).thenReturn(Collections.emptyMap());
+    when(ctx.jsonMapper()).thenReturn(javalinJackson);
+    when(ctx.bodyInputStream()).thenReturn(new ByteArrayInputStream("""
+        [
+          {"name": "Ada", "age": 36, "company": "UMM", "email": "ada@example.com", "role": "admin"},
+          {"name": "", "age": 36, "company": "UMM", "email": "nobody@example.com", "role": "admin"},
+          {"name": "Grace", "age": 85, "company": "Navy", "email": "grace@example.com", "role": "editor"}
+        ]
+        """.getBytes(StandardCharsets.UTF_8)));
+
+    userController.importUsers(ctx);
+
+    ArgumentCaptor<Object> resultCaptor = ArgumentCaptor.forClass(Object.class);
+    verify(ctx).json(resultCaptor.capture());
+    verify(ctx).status(HttpStatus.CREATED);
+    UserImporter.Result result = (UserImporter.Result) resultCaptor.getValue();
+    assertEquals(3, result.read);
+    assertEquals(2, result.inserted);
+    assertEquals(1, result.failed);
+    assertEquals(List.of("User 1: User must have a non-empty user name"), result.errors);
+
+    Document grace = db.getCollection("users").find(eq("name", "Grace")).first();
+    assertEquals("Navy", grace.get(UserController.COMPANY_KEY));
+    assertEquals(userController.generateAvatar("grace@example.com"), grace.get("avatar"));
+  }
+
+  @Test
+  void importUsersTurnsAwayImportsOverTheLimit() throws InterruptedException {
+    when(ctx.queryParamMap()).thenReturn(Collections.emptyMap());
+    // Stand in for imports that are already running
+    UserController.IMPORTS.acquire(UserController.MAX_CONCURRENT_IMPORTS);
+    try {
+      assertThrows(ServiceUnavailableResponse.class, () -> userController.importUsers(ctx));
+    } finally {
+      UserController.IMPORTS.release(UserController.MAX_CONCURRENT_IMPORTS);
+    }
+    verify(ctx, never()).bodyInputStream();
+
+    // Once they finish, imports are let through again
+    when(ctx.bodyInputStream()).thenReturn(new ByteArrayInputStream("[]".getBytes(StandardCharsets.UTF_8)));
+    userController.importUsers(ctx);
+    verify(ctx).status(HttpStatus.CREATED);
+  }
+
+  @Test
+  void importUsersFromNdjsonInSmallBatches() {
+    StringBuilder ndjson = new StringBuilder();
+    for (int i = 0; i < 25; i++) {
+      ndjson.append("{\"name\": \"User ").append(i)
+          .append("\", \"age\": 30, \"company\": \"Bulk\", \"email\": \"user").append(i)
+          .append("@example.com\", \"role\": \"viewer\"}\n");
+    }
+    InputStream in = new ByteArrayInputStream(ndjson.toString().getBytes(StandardCharsets.UTF_8));
+
+    UserImporter.Result result = userController.importUsers(in, 4, 3);
+
+    assertEquals(25, result.inserted);
+    assertEquals(0, result.failed);
+    assertEquals(25, db.getCollection("users").countDocuments(eq(UserController.COMPANY_KEY, "Bulk")));
+    // The grouping picks up the imported users
+    assertEquals(25, countIn(groupedByCompany(), "Bulk"));
+  }
+
+  @Test
+  void importUsersReportsUsersThatFailTheirChecks() {
+    InputStream in = new ByteArrayInputStream(
+        ("{\"name\": \"Ada\", \"age\": 36, \"company\": \"UMM\", \"email\": \"ada@example.com\", "
+        + "\"role\": \"admin\"}\n"
+        + "{\"name\": \"\", \"age\": 36, \"company\": \"UMM\", \"email\": \"nope\", \"role\": \"admin\"}\n"
+        + "42\n").getBytes(StandardCharsets.UTF_8));
+
+    UserImporter.Result result = userController.importUsers(in, 10, 2);
+
+    assertEquals(1, result.inserted);
+    assertEquals(2, result.failed);
+    assertTrue(result.errors.stream().anyMatch(error -> error.contains("User must have a non-empty user name")
+        && error.contains("User must have a legal email")));
+    assertTrue(result.errors.stream().anyMatch(error -> error.contains("User must be an object with user fields")));
+  }
+
+  @Test
+  void importUsersStopsAtMalformedJson() {
+    InputStream in = new ByteArrayInputStream(
+        ("{\"name\": \"Ada\", \"age\": 36, \"company\": \"UMM\", \"email\": \"ada@example.com\", "
+        + "\"role\": \"admin\"}\n{\"name\": ").getBytes(StandardCharsets.UTF_8));
+
+    UserImporter.Result result = userController.importUsers(in, 10, 2);
+
+    assertEquals(1, result.inserted);
+    assertNotNull(result.error);
+  }
+
   @Test
   void addUser() throws IOException {
     String testNewUser = """
@@ -802,6 +1413,15 @@ class UserControllerSpec {
     assertEquals(0, db.getCollection("users").countDocuments(eq("_id", new ObjectId(testID))));
   }
 
+  @Test
+  void deleteUserWithIllegalId() {
+    when(ctx.pathParam("id")).thenReturn("bad");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      userController.deleteUser(ctx);
+    });
+  }
+
   /**
    * Test that the `generateAvatar` method works as expected.
    *
@@ -863,4 +1483,31 @@ class UserControllerSpec {
     // Assert
     assertEquals("https://gravatar.com/avatar/?d=mp", avatar);
   }
+
+  @Test
+  void sortsAccentedNamesLikeTheMemoryRepository() {
+    MongoUserRepository mongoUsers = new MongoUserRepository(db);
+    MemoryUserRepository memoryUsers = new MemoryUserRepository();
+    for (String name : List.of("Zoë", "Élodie", "emma", "elodie", "zoe", "Eloise", "Émile")) {
+      User user = new User();
+      user._id = new ObjectId().toHexString();
+      user.name = name;
+      user.age = 30;
+      user.company = "Accents";
+      user.email = "someone@example.com";
+      user.role = "viewer";
+      mongoUsers.insert(user);
+      memoryUsers.insert(user);
+    }
+
+    Bson accents = eq(UserController.COMPANY_KEY, "Accents");
+    Bson byName = Sorts.ascending(UserController.NAME_KEY, UserController.ID_KEY);
+    List<String> fromMongo = mongoUsers.find(accents, byName, 0).stream().map(user -> user.name).toList();
+    assertEquals(List.of("elodie", "Élodie", "Eloise", "Émile", "emma", "zoe", "Zoë"), fromMongo);
+    assertEquals(fromMongo, memoryUsers.find(accents, byName, 0).stream().map(user -> user.name).toList());
+
+    Bson sameName = eq(UserController.NAME_KEY, "ÉLODIE");
+    assertEquals(mongoUsers.find(sameName, null, 0).stream().map(user -> user.name).toList(),
+      memoryUsers.find(sameName, null, 0).stream().map(user -> user.name).toList());
+  }
 }